@@ -2,6 +2,8 @@ package graphics;
 import static org.lwjgl.opengl.GL30.*;
 
 public final class Axes {
+  public static final int VERTEX_COUNT = 12;  // 12 vertices = 6 lines
+
   public final int vao;
 
   private Axes(int vao) {
@@ -15,7 +17,7 @@ public final class Axes {
 
   public void draw() {
     glBindVertexArray(vao);
-    glDrawArrays(GL_LINES, 0, 12);  // 12 vertices = 6 lines
+    glDrawArrays(GL_LINES, 0, VERTEX_COUNT);
     glBindVertexArray(0);
   }
 
@@ -29,6 +29,16 @@ public class Camera {
     rotation = new Quaternionf().rotateY(yaw).rotateX(pitch);
   }
 
+  /**
+   * copy position, orientation and aspect of another camera
+   */
+  public Camera set(Camera other) {
+    position.set(other.position);
+    rotation.set(other.rotation);
+    aspect = other.aspect;
+    return this;
+  }
+
   public Matrix4f viewMat() {
     return new Matrix4f()
         .rotate(rotation.conjugate(new Quaternionf()))
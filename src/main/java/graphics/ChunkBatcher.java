@@ -0,0 +1,368 @@
+package graphics;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import state.StageLibrary;
+import state.Variation;
+
+/**
+ * Static instances merged into one world space mesh per chunk.
+ *
+ * Decoration that never moves (rocks, grass) is not put in the Scene, every instance
+ * would cost a cull test, a LOD pick and a slot in the instance buffers while its mesh is
+ * a few dozen triangles. Instead the ground is split into size x size chunks in x/z and
+ * the instances of a chunk are pre-transformed into a single vertex range of an own
+ * MeshArena, with the chunk's world bounds. A frame culls the chunks and draws the
+ * visible ones with one multi-draw, a draw per chunk (chunk.vert, the vertices are in
+ * world space already).
+ *
+ * Variation is baked into the vertices like the shaders do it for Scene instances: stage
+ * of randomized blueprints, yaw, scale and tint from the key of the translation. Growth
+ * stays at scale 1.
+ *
+ * add() and remove() only mark the chunk dirty. update() (GL thread) snapshots dirty
+ * chunks and merges them on a worker, finished meshes replace the chunk's range in the
+ * arena. A chunk edited again while its merge runs is merged once more afterwards, the
+ * outdated result is dropped.
+ *
+ */
+public final class ChunkBatcher {
+
+  private static final int F = Mesh.VERTEX_FLOATS;
+
+  private static final class Chunk {
+    final int id;               // range id in the arena
+    int[] stages = new int[8];
+    float[] transforms = new float[8 * 16];
+    int[] handles = new int[8];
+    int count = 0;
+    int version = 0;            // bumped on every edit
+    boolean queued = false;
+    boolean building = false;
+    // world bounds of the mesh in the arena, center and half extents
+    float cx, cy, cz, ex, ey, ez;
+
+    Chunk(int id) {
+      this.id = id;
+    }
+  }
+
+  // merged vertices of a snapshot, min.xyz max.xyz in bounds
+  private record Merged(Chunk chunk, int version, float[] vertices, float[] bounds) {}
+
+  private final StageLibrary stages;
+  private final Variation variation;
+  private final float size;
+  private final MeshArena arena;
+  private final ExecutorService worker;
+
+  private final Map<Long, Chunk> chunks = new HashMap<>();
+  private final List<Chunk> chunkList = new ArrayList<>();
+  private final ArrayDeque<Chunk> dirty = new ArrayDeque<>();
+  private final ConcurrentLinkedQueue<Merged> merged = new ConcurrentLinkedQueue<>();
+
+  // handle -> chunk and slot in it, free handles are chained through handleSlot
+  private Chunk[] handleChunk = new Chunk[64];
+  private int[] handleSlot = new int[64];
+  private int handleCount = 0;
+  private int freeHandle = -1;
+  private int instanceCount = 0;
+
+  private IntBuffer drawFirst = MemoryUtil.memAllocInt(64);
+  private IntBuffer drawCount = MemoryUtil.memAllocInt(64);
+  private int visibleChunks = 0;
+  private int rebuilds = 0;
+  private volatile long lastMergeNanos = 0;
+
+  /**
+   * @param size chunk side in world units
+   */
+  public ChunkBatcher(StageLibrary stages, Variation variation, float size) {
+    this.stages = stages;
+    this.variation = variation;
+    this.size = size;
+    this.arena = new MeshArena(1 << 16);
+    this.worker = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "chunk-batcher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * place a static instance, it shows once its chunk was merged again
+   *
+   * @return handle for remove()
+   */
+  public int add(int stageId, Matrix4f model) {
+    int cellX = (int) Math.floor(model.m30() / size);
+    int cellZ = (int) Math.floor(model.m32() / size);
+    long key = ((long) cellX << 32) | (cellZ & 0xffffffffL);
+    Chunk chunk = chunks.get(key);
+    if (chunk == null) {
+      chunk = new Chunk(chunkList.size());
+      chunks.put(key, chunk);
+      chunkList.add(chunk);
+    }
+    int handle = newHandle();
+    int slot = chunk.count++;
+    if (slot == chunk.stages.length) {
+      int n = slot * 2;
+      chunk.stages = Arrays.copyOf(chunk.stages, n);
+      chunk.transforms = Arrays.copyOf(chunk.transforms, n * 16);
+      chunk.handles = Arrays.copyOf(chunk.handles, n);
+    }
+    chunk.stages[slot] = stageId;
+    model.get(chunk.transforms, slot * 16);
+    chunk.handles[slot] = handle;
+    handleChunk[handle] = chunk;
+    handleSlot[handle] = slot;
+    instanceCount++;
+    markDirty(chunk);
+    return handle;
+  }
+
+  /**
+   * remove a static instance, the last instance of its chunk takes its slot
+   */
+  public void remove(int handle) {
+    Chunk chunk = handleChunk[handle];
+    if (chunk == null) {
+      return;
+    }
+    int slot = handleSlot[handle];
+    int last = --chunk.count;
+    if (slot != last) {
+      chunk.stages[slot] = chunk.stages[last];
+      System.arraycopy(chunk.transforms, last * 16, chunk.transforms, slot * 16, 16);
+      chunk.handles[slot] = chunk.handles[last];
+      handleSlot[chunk.handles[slot]] = slot;
+    }
+    handleChunk[handle] = null;
+    handleSlot[handle] = freeHandle;
+    freeHandle = handle;
+    instanceCount--;
+    markDirty(chunk);
+  }
+
+  private int newHandle() {
+    if (freeHandle >= 0) {
+      int h = freeHandle;
+      freeHandle = handleSlot[h];
+      return h;
+    }
+    if (handleCount == handleChunk.length) {
+      handleChunk = Arrays.copyOf(handleChunk, handleCount * 2);
+      handleSlot = Arrays.copyOf(handleSlot, handleCount * 2);
+    }
+    return handleCount++;
+  }
+
+  private void markDirty(Chunk chunk) {
+    chunk.version++;
+    if (!chunk.queued) {
+      chunk.queued = true;
+      dirty.add(chunk);
+    }
+  }
+
+  /**
+   * GL thread, once per frame - uploads finished merges and starts the pending ones
+   */
+  public void update() {
+    Merged m;
+    while ((m = merged.poll()) != null) {
+      Chunk chunk = m.chunk;
+      chunk.building = false;
+      if (m.version != chunk.version) {
+        continue;   // edited meanwhile, a newer merge is queued
+      }
+      arena.remove(chunk.id);
+      if (m.vertices.length > 0) {
+        arena.add(chunk.id, m.vertices);
+      }
+      float[] b = m.bounds;
+      chunk.cx = (b[0] + b[3]) * 0.5f;
+      chunk.cy = (b[1] + b[4]) * 0.5f;
+      chunk.cz = (b[2] + b[5]) * 0.5f;
+      chunk.ex = (b[3] - b[0]) * 0.5f;
+      chunk.ey = (b[4] - b[1]) * 0.5f;
+      chunk.ez = (b[5] - b[2]) * 0.5f;
+      rebuilds++;
+    }
+    for (int n = dirty.size(); n > 0; n--) {
+      Chunk chunk = dirty.poll();
+      if (chunk.building) {
+        dirty.add(chunk);   // one merge per chunk at a time, try again next frame
+        continue;
+      }
+      chunk.queued = false;
+      submit(chunk);
+    }
+  }
+
+  // the snapshot is taken here, the worker doesn't touch the chunk or the stage library
+  private void submit(Chunk chunk) {
+    int count = chunk.count;
+    int version = chunk.version;
+    float[] transforms = Arrays.copyOf(chunk.transforms, count * 16);
+    float[][] meshes = new float[count][];
+    for (int i = 0; i < count; i++) {
+      int key = variation.key(transforms, i * 16);
+      meshes[i] = stages.get(variation.stage(stages, chunk.stages[i], key)).getFullModelData();
+    }
+    chunk.building = true;
+    worker.execute(() -> {
+      long start = System.nanoTime();
+      float[][] out = new float[2][];
+      merge(transforms, meshes, count, out);
+      lastMergeNanos = System.nanoTime() - start;
+      merged.add(new Merged(chunk, version, out[0], out[1]));
+    });
+  }
+
+  // pre-transform every instance into one vertex array, out = {vertices, bounds}
+  private void merge(float[] transforms, float[][] meshes, int count, float[][] out) {
+    int floats = 0;
+    for (int i = 0; i < count; i++) {
+      floats += meshes[i].length;
+    }
+    float[] vertices = new float[floats];
+    float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+        -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    Matrix4f model = new Matrix4f();
+    Vector3f v = new Vector3f();
+    int dst = 0;
+    for (int i = 0; i < count; i++) {
+      int key = variation.key(transforms, i * 16);
+      model.set(transforms, i * 16).rotateY(variation.yaw(key)).scale(variation.scale(key));
+      float tint = variation.tint(key);
+      float[] data = meshes[i];
+      for (int src = 0; src + F <= data.length; src += F, dst += F) {
+        model.transformPosition(data[src], data[src+1], data[src+2], v);
+        vertices[dst] = v.x;
+        vertices[dst+1] = v.y;
+        vertices[dst+2] = v.z;
+        bounds[0] = Math.min(bounds[0], v.x);
+        bounds[1] = Math.min(bounds[1], v.y);
+        bounds[2] = Math.min(bounds[2], v.z);
+        bounds[3] = Math.max(bounds[3], v.x);
+        bounds[4] = Math.max(bounds[4], v.y);
+        bounds[5] = Math.max(bounds[5], v.z);
+        vertices[dst+3] = data[src+3];
+        // mat3(model) * normal like mesh.vert, uniform scale so normalizing is enough
+        model.transformDirection(data[src+4], data[src+5], data[src+6], v).normalize();
+        vertices[dst+4] = v.x;
+        vertices[dst+5] = v.y;
+        vertices[dst+6] = v.z;
+        vertices[dst+7] = data[src+7] * tint;
+        vertices[dst+8] = data[src+8] * tint;
+        vertices[dst+9] = data[src+9] * tint;
+      }
+    }
+    out[0] = vertices;
+    out[1] = bounds;
+  }
+
+  /**
+   * collect the merged chunks inside the frustum for draw()
+   */
+  public void cull(FrustumCuller culler) {
+    if (drawFirst.capacity() < chunkList.size()) {
+      int n = Math.max(chunkList.size(), drawFirst.capacity() * 2);
+      drawFirst = MemoryUtil.memRealloc(drawFirst, n);
+      drawCount = MemoryUtil.memRealloc(drawCount, n);
+    }
+    drawFirst.clear();
+    drawCount.clear();
+    for (Chunk chunk : chunkList) {
+      if (!arena.isResident(chunk.id)
+          || !culler.isVisible(chunk.cx, chunk.cy, chunk.cz, chunk.ex, chunk.ey, chunk.ez)) {
+        continue;
+      }
+      drawFirst.put(arena.first(chunk.id));
+      drawCount.put(arena.count(chunk.id));
+    }
+    drawFirst.flip();
+    drawCount.flip();
+    visibleChunks = drawFirst.remaining();
+  }
+
+  /**
+   * chunk program must be bound
+   */
+  public void draw(GLStateCache state) {
+    if (visibleChunks == 0) {
+      return;
+    }
+    state.bindVertexArray(arena.vao);
+    glMultiDrawArrays(GL_TRIANGLES, drawFirst, drawCount);
+  }
+
+  public int vao() {
+    return arena.vao;
+  }
+
+  public float getChunkSize() {
+    return size;
+  }
+
+  public int getChunkCount() {
+    return chunkList.size();
+  }
+
+  public int getVisibleChunks() {
+    return visibleChunks;
+  }
+
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  /**
+   * chunks queued or being merged
+   */
+  public int getPending() {
+    int n = dirty.size();
+    for (Chunk chunk : chunkList) {
+      n += chunk.building && !chunk.queued ? 1 : 0;
+    }
+    return n;
+  }
+
+  /**
+   * merges uploaded since the start
+   */
+  public int getRebuilds() {
+    return rebuilds;
+  }
+
+  public long sizeBytes() {
+    return arena.sizeBytes();
+  }
+
+  public long getLastMergeNanos() {
+    return lastMergeNanos;
+  }
+
+  public void dispose() {
+    worker.shutdownNow();
+    arena.dispose();
+    MemoryUtil.memFree(drawFirst);
+    MemoryUtil.memFree(drawCount);
+  }
+}
@@ -0,0 +1,399 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import state.Scene;
+
+/**
+ * Builds the draw list of a frame on worker threads while the GL thread submits the
+ * previous one.
+ *
+ * begin() takes this frame's camera and returns at once. A coordinator thread runs the
+ * build in three steps. First the scene is split in segments that are frustum culled in
+ * parallel, each into its own range of the candidate array, then compacted in order.
+ * With a ResidencyController the same segments score the stages of their instances.
+ * Second, the occlusion buffer is rendered from the survivors; it spreads its tiles over
+ * the common pool itself. Third, the survivors are split again and each segment runs the
+ * occlusion test, LOD selection and the eye distance into its own range of the back
+ * list, with its own LodSelector.Tally and occlusion counts. The ranges are compacted
+ * into one list.
+ *
+ * finish() waits for the build, swaps back and front and hands the LOD counts to the
+ * LodSelector, the occlusion counts to the OcclusionCuller and the stage scores, the
+ * nearest per stage over the segments, to the ResidencyController. beginScoring() runs
+ * only the scoring, for frames drawn without a list (GpuCuller). The front list belongs to
+ * the GL thread until the next finish(), which may compact it in place
+ * (ImpostorRenderer.split()). The scene and the arena must not change between begin()
+ * and finish(). A list is used a frame after the scene it was built from, which it keeps
+ * (DrawList.scene), the caller has to keep that scene unchanged until the list is done
+ * with.
+ *
+ */
+public final class DrawListBuilder {
+
+  // fewer instances per segment aren't worth a task
+  private static final int MIN_SEGMENT = 2048;
+  // segments per thread, uneven segments even out
+  private static final int SEGMENTS_PER_THREAD = 4;
+
+  /**
+   * visible instances of a frame, their stage and distance to the eye
+   */
+  public static final class DrawList {
+    public int[] instances = new int[0];
+    public int[] stages = new int[0];
+    public float[] depths = new float[0];
+    public int count = 0;
+    // the instance indices are this scene's, null before the first build
+    public Scene scene;
+
+    private void ensure(int n) {
+      if (instances.length < n) {
+        int size = Math.max(n, instances.length * 2);
+        instances = new int[size];
+        stages = new int[size];
+        depths = new float[size];
+      }
+    }
+  }
+
+  private final LodSelector lod;
+  private final OcclusionCuller occlusion;
+  private final ResidencyController residency;
+  private final int threads;
+  private final ExecutorService coordinator;
+  private final ExecutorService workers;
+  private final FrustumCuller culler = new FrustumCuller();
+
+  private DrawList front = new DrawList();
+  private DrawList back = new DrawList();
+  private CompletableFuture<Void> build;
+
+  // inputs of the build in flight
+  private Scene scene;
+  private MeshArena arena;
+  private final Matrix4f viewProj = new Matrix4f();
+  private final Vector3f eye = new Vector3f();
+  private final Vector3f predicted = new Vector3f();
+  private float pixelScale;
+  private boolean occlusionOn;
+  // false when the build only scores
+  private boolean listOn;
+
+  private int[] candidates = new int[0];
+  private int[] segmentFrom = new int[0];
+  private int[] segmentTo = new int[0];
+  private int[] segmentCount = new int[0];
+  // occlusion tests and rejections per segment, with the time they took
+  private int[] segmentTested = new int[0];
+  private int[] segmentOccluded = new int[0];
+  private long[] segmentTestNanos = new long[0];
+  private LodSelector.Tally[] tallies = new LodSelector.Tally[0];
+  private int segments = 0;
+  // nearest distance per stage of each scene segment, over scoreSegments of them
+  private float[][] segmentScores = new float[0][];
+  private int scoreSegments = 0;
+  private int stageCount = 0;
+  private float[] scores = new float[0];
+
+  private volatile long lastBuildNanos = 0;
+
+  /**
+   * @param occlusion tested in the build when begin() asks for it, may be null
+   * @param residency gets the stage scores of every build, may be null
+   */
+  public DrawListBuilder(LodSelector lod, OcclusionCuller occlusion, ResidencyController residency,
+      int threads) {
+    this.lod = lod;
+    this.occlusion = occlusion;
+    this.residency = residency;
+    this.threads = Math.max(1, threads);
+    coordinator = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "draw-list");
+      t.setDaemon(true);
+      return t;
+    });
+    AtomicInteger ids = new AtomicInteger();
+    workers = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads, r -> {
+      Thread t = new Thread(r, "draw-list-" + ids.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * start building the list for this camera, the last build must be finished
+   *
+   * @param arena residency for the LOD fallback, null counts everything as resident
+   */
+  public void begin(Scene scene, MeshArena arena, Matrix4f viewProj, Vector3f eye, float pixelScale,
+      boolean occlusion) {
+    checkIdle();
+    this.arena = arena;
+    this.viewProj.set(viewProj);
+    this.pixelScale = pixelScale;
+    this.occlusionOn = occlusion && this.occlusion != null;
+    culler.setViewProj(viewProj);
+    lod.prepare(scene.size());
+    start(scene, eye, true);
+  }
+
+  /**
+   * score the stages for the ResidencyController without building a list, the front
+   * list stays as it is
+   */
+  public void beginScoring(Scene scene, Vector3f eye) {
+    if (residency != null) {
+      checkIdle();
+      start(scene, eye, false);
+    }
+  }
+
+  private void checkIdle() {
+    if (build != null) {
+      throw new IllegalStateException("build in flight, finish() it first");
+    }
+  }
+
+  private void start(Scene scene, Vector3f eye, boolean list) {
+    this.scene = scene;
+    this.eye.set(eye);
+    this.listOn = list;
+    if (residency != null) {
+      predicted.set(residency.getPredicted());
+      stageCount = scene.stages.size();
+    }
+    build = CompletableFuture.runAsync(this::build, coordinator);
+  }
+
+  /**
+   * wait for the build begun last, it becomes the front list
+   *
+   * @return the front list, empty before the first build
+   */
+  public DrawList finish() {
+    if (build == null) {
+      return front;
+    }
+    build.join();
+    build = null;
+    if (residency != null) {
+      if (scores.length < stageCount) {
+        scores = new float[Math.max(stageCount, scores.length * 2)];
+      }
+      Arrays.fill(scores, 0, stageCount, Float.POSITIVE_INFINITY);
+      for (int s = 0; s < scoreSegments; s++) {
+        float[] segment = segmentScores[s];
+        for (int k = 0; k < stageCount; k++) {
+          scores[k] = Math.min(scores[k], segment[k]);
+        }
+      }
+      residency.recordScores(scores, stageCount);
+    }
+    if (!listOn) {
+      return front;
+    }
+    DrawList done = back;
+    back = front;
+    front = done;
+    lod.combine(tallies, segments);
+    if (occlusion != null) {
+      int tested = 0, occluded = 0;
+      long nanos = 0;
+      for (int s = 0; occlusionOn && s < segments; s++) {
+        tested += segmentTested[s];
+        occluded += segmentOccluded[s];
+        nanos += segmentTestNanos[s];
+      }
+      occlusion.recordTests(tested, occluded, nanos);
+    }
+    return front;
+  }
+
+  /**
+   * the list of the last finish()
+   */
+  public DrawList front() {
+    return front;
+  }
+
+  private void build() {
+    long start = System.nanoTime();
+    int size = scene.size();
+    if (candidates.length < size) {
+      candidates = new int[Math.max(size, candidates.length * 2)];
+    }
+
+    split(size);
+    if (residency != null) {
+      if (segmentScores.length < segments) {
+        segmentScores = Arrays.copyOf(segmentScores, segments);
+      }
+      for (int s = 0; s < segments; s++) {
+        if (segmentScores[s] == null || segmentScores[s].length < stageCount) {
+          segmentScores[s] = new float[Math.max(stageCount, 16)];
+        }
+      }
+      scoreSegments = segments;
+    }
+    run(this::cull);
+    if (!listOn) {
+      lastBuildNanos = System.nanoTime() - start;
+      return;
+    }
+    int n = compact(candidates, null, null);
+
+    if (occlusionOn) {
+      occlusion.render(scene, viewProj, eye, candidates, n);
+    }
+
+    back.ensure(n);
+    split(n);
+    run(this::select);
+    back.count = compact(back.instances, back.stages, back.depths);
+    back.scene = scene;
+    lastBuildNanos = System.nanoTime() - start;
+  }
+
+  // frustum culling and stage scores for the scene segment s
+  private void cull(int s) {
+    if (listOn) {
+      segmentCount[s] = culler.cull(scene, segmentFrom[s], segmentTo[s], candidates);
+    }
+    if (residency != null) {
+      float[] score = segmentScores[s];
+      Arrays.fill(score, 0, stageCount, Float.POSITIVE_INFINITY);
+      ResidencyController.score(scene, segmentFrom[s], segmentTo[s], eye, predicted, score);
+    }
+  }
+
+  // occlusion, LOD and depth for the candidates of segment s
+  private void select(int s) {
+    int from = segmentFrom[s];
+    int to = segmentTo[s];
+    if (occlusionOn) {
+      long t0 = System.nanoTime();
+      float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+      float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+      int kept = from;
+      for (int k = from; k < to; k++) {
+        int i = candidates[k];
+        candidates[kept] = i;
+        kept += occlusion.isOccluded(viewProj, cx[i], cy[i], cz[i], ex[i], ey[i], ez[i]) ? 0 : 1;
+      }
+      segmentTested[s] = to - from;
+      segmentOccluded[s] = to - kept;
+      segmentTestNanos[s] = System.nanoTime() - t0;
+      to = kept;
+    }
+    int n = lod.select(scene, candidates, from, to, eye, pixelScale, arena, back.instances, back.stages, from,
+        tallies[s]);
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    for (int k = from; k < from + n; k++) {
+      int i = back.instances[k];
+      back.depths[k] = eye.distance(cx[i], cy[i], cz[i]);
+    }
+    segmentCount[s] = n;
+  }
+
+  // segments over [0, n), at most SEGMENTS_PER_THREAD per thread
+  private void split(int n) {
+    int count = Math.max(1, Math.min(threads * SEGMENTS_PER_THREAD, (n + MIN_SEGMENT - 1) / MIN_SEGMENT));
+    if (segmentFrom.length < count) {
+      segmentFrom = new int[count];
+      segmentTo = new int[count];
+      segmentCount = new int[count];
+      segmentTested = new int[count];
+      segmentOccluded = new int[count];
+      segmentTestNanos = new long[count];
+    }
+    if (tallies.length < count) {
+      LodSelector.Tally[] grown = new LodSelector.Tally[count];
+      for (int s = 0; s < count; s++) {
+        grown[s] = s < tallies.length ? tallies[s] : lod.newTally();
+      }
+      tallies = grown;
+    }
+    for (int s = 0; s < count; s++) {
+      segmentFrom[s] = (int) ((long) n * s / count);
+      segmentTo[s] = (int) ((long) n * (s + 1) / count);
+    }
+    segments = count;
+  }
+
+  private interface SegmentJob {
+    void run(int segment);
+  }
+
+  private void run(SegmentJob job) {
+    if (workers == null || segments == 1) {
+      for (int s = 0; s < segments; s++) {
+        job.run(s);
+      }
+      return;
+    }
+    List<Callable<Void>> tasks = new ArrayList<>(segments);
+    for (int s = 0; s < segments; s++) {
+      final int segment = s;
+      tasks.add(() -> {
+        job.run(segment);
+        return null;
+      });
+    }
+    try {
+      for (var f : workers.invokeAll(tasks)) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("draw list build interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("draw list build failed", e.getCause());
+    }
+  }
+
+  // segment s holds segmentCount[s] entries from segmentFrom[s] on, slide them together
+  private int compact(int[] a, int[] b, float[] c) {
+    int n = segmentCount[0];
+    for (int s = 1; s < segments; s++) {
+      int from = segmentFrom[s];
+      int count = segmentCount[s];
+      System.arraycopy(a, from, a, n, count);
+      if (b != null) {
+        System.arraycopy(b, from, b, n, count);
+        System.arraycopy(c, from, c, n, count);
+      }
+      n += count;
+    }
+    return n;
+  }
+
+  /**
+   * time of the last completed build on the coordinator thread
+   */
+  public long getLastBuildNanos() {
+    return lastBuildNanos;
+  }
+
+  public void dispose() {
+    coordinator.shutdownNow();
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package graphics;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.stb.STBImageWrite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Screenshots and continuous frame capture without stalling on glReadPixels.
+ *
+ * capture() reads the framebuffer into a pixel buffer object of a ring and puts a fence
+ * behind it, glReadPixels into a bound GL_PIXEL_PACK_BUFFER returns at once and the copy
+ * runs on the GPU. Later calls poll the fences without waiting, a slot whose fence has
+ * signaled (usually a frame or two later) is mapped and the mapped memory goes straight
+ * to an encoder thread, nothing is copied on the GL thread. The encoder writes a PNG or
+ * the raw rows and hands the slot back, the next capture() unmaps it and it is free
+ * again. When every slot is still in flight a frame is dropped and counted rather than
+ * waited for.
+ *
+ * Screenshots are PNGs. Recording writes raw frames by default, stb's PNG encoder takes
+ * far longer than a frame at 1080p and would run out of slots. Rows are bottom up as GL
+ * reads them, PNGs are flipped on write. Raw files are RGBA, bottom row first, named
+ * frame-NNNNNN-WxH.rgba. Every run writes into its own directory named after its start.
+ *
+ */
+public final class FrameCapture {
+
+  private static final Logger log = LoggerFactory.getLogger(FrameCapture.class);
+
+  public enum Format { PNG, RAW }
+
+  private enum State { FREE, READING, ENCODING }
+
+  private static final class Slot {
+    final int pbo;
+    long capacity = 0;
+    State state = State.FREE;
+    long fence = 0;
+    int width;
+    int height;
+    long frame;
+    Format format;
+    ByteBuffer mapped;
+
+    Slot(int pbo) {
+      this.pbo = pbo;
+    }
+  }
+
+  private final Slot[] slots;
+  private final Path dir;
+  private final ExecutorService encoders;
+  // slots the encoders are done with, unmapped on the GL thread
+  private final ConcurrentLinkedQueue<Slot> encoded = new ConcurrentLinkedQueue<>();
+
+  private Format recordFormat = Format.RAW;
+  private boolean recording = false;
+  private int screenshots = 0;
+  private long frame = 0;
+
+  private int captured = 0;
+  private int dropped = 0;
+  private final AtomicInteger written = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private long lastNanos = 0;
+
+  /**
+   * @param slots frames in flight, reading back or encoding
+   * @param dir the run's directory is created in it on the first write
+   */
+  public FrameCapture(int slots, int encoderThreads, Path dir) {
+    this.slots = new Slot[slots];
+    for (int i = 0; i < slots; i++) {
+      this.slots[i] = new Slot(glGenBuffers());
+    }
+    this.dir = dir.resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+    AtomicInteger ids = new AtomicInteger();
+    encoders = Executors.newFixedThreadPool(encoderThreads, r -> {
+      Thread t = new Thread(r, "frame-encoder-" + ids.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    });
+    STBImageWrite.stbi_flip_vertically_on_write(true);
+  }
+
+  /**
+   * format of the recorded frames from now on, screenshots are always PNG
+   */
+  public void setRecordFormat(Format format) {
+    this.recordFormat = format;
+  }
+
+  /**
+   * capture every frame while on
+   */
+  public void setRecording(boolean recording) {
+    this.recording = recording;
+  }
+
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * capture the next frame
+   */
+  public void screenshot() {
+    screenshots++;
+  }
+
+  /**
+   * GL thread, once per frame after it is drawn and before the swap - collects finished
+   * readbacks and reads this frame if a capture was asked for, from the bound read
+   * framebuffer
+   */
+  public void capture(int width, int height) {
+    long start = System.nanoTime();
+    Slot done;
+    while ((done = encoded.poll()) != null) {
+      glBindBuffer(GL_PIXEL_PACK_BUFFER, done.pbo);
+      glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+      done.mapped = null;
+      done.state = State.FREE;
+    }
+    collect();
+
+    if (recording || screenshots > 0) {
+      Slot slot = free();
+      if (slot == null) {
+        dropped++;
+      } else {
+        read(slot, width, height, screenshots > 0 ? Format.PNG : recordFormat);
+        screenshots = Math.max(0, screenshots - 1);
+      }
+    }
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    frame++;
+    lastNanos = System.nanoTime() - start;
+  }
+
+  // polls every readback, a timeout of 0 never waits
+  private void collect() {
+    for (Slot slot : slots) {
+      if (slot.state != State.READING) {
+        continue;
+      }
+      int status = glClientWaitSync(slot.fence, 0, 0);
+      if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+        continue;
+      }
+      glDeleteSync(slot.fence);
+      slot.fence = 0;
+      glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+      slot.mapped = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, (long) slot.width * slot.height * 4,
+          GL_MAP_READ_BIT);
+      if (slot.mapped == null) {
+        log.warn("couldn't map capture of frame {}", slot.frame);
+        failed.incrementAndGet();
+        slot.state = State.FREE;
+        continue;
+      }
+      slot.state = State.ENCODING;
+      Slot s = slot;
+      encoders.execute(() -> encode(s));
+    }
+  }
+
+  private Slot free() {
+    for (Slot slot : slots) {
+      if (slot.state == State.FREE) {
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  private void read(Slot slot, int width, int height, Format format) {
+    long bytes = (long) width * height * 4;
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+    if (slot.capacity < bytes) {
+      glBufferData(GL_PIXEL_PACK_BUFFER, bytes, GL_STREAM_READ);
+      slot.capacity = bytes;
+    }
+    glPixelStorei(GL_PACK_ALIGNMENT, 4);
+    glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+    slot.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    slot.width = width;
+    slot.height = height;
+    slot.frame = frame;
+    slot.format = format;
+    slot.state = State.READING;
+    captured++;
+  }
+
+  // encoder thread, only reads the mapped memory
+  private void encode(Slot slot) {
+    try {
+      Files.createDirectories(dir);
+      ByteBuffer pixels = slot.mapped.duplicate();
+      if (slot.format == Format.PNG) {
+        Path file = dir.resolve(String.format("frame-%06d.png", slot.frame));
+        if (!STBImageWrite.stbi_write_png(file.toString(), slot.width, slot.height, 4, pixels, slot.width * 4)) {
+          throw new IOException("stbi_write_png failed");
+        }
+      } else {
+        Path file = dir.resolve(String.format("frame-%06d-%dx%d.rgba", slot.frame, slot.width, slot.height));
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+          while (pixels.hasRemaining()) {
+            out.write(pixels);
+          }
+        }
+      }
+      written.incrementAndGet();
+    } catch (IOException | RuntimeException e) {
+      log.warn("couldn't write frame {}: {}", slot.frame, e.getMessage());
+      failed.incrementAndGet();
+    } finally {
+      encoded.add(slot);
+    }
+  }
+
+  /**
+   * screenshots asked for, readbacks or encodes in flight - capture() has to keep being
+   * called for them to finish
+   */
+  public boolean isBusy() {
+    if (screenshots > 0 || !encoded.isEmpty()) {
+      return true;
+    }
+    for (Slot slot : slots) {
+      if (slot.state != State.FREE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * frames read back so far
+   */
+  public int getCaptured() {
+    return captured;
+  }
+
+  /**
+   * frames skipped because every slot was still in flight
+   */
+  public int getDropped() {
+    return dropped;
+  }
+
+  public int getWritten() {
+    return written.get();
+  }
+
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * GL thread time of the last capture()
+   */
+  public long getLastNanos() {
+    return lastNanos;
+  }
+
+  public long sizeBytes() {
+    long bytes = 0;
+    for (Slot slot : slots) {
+      bytes += slot.capacity;
+    }
+    return bytes;
+  }
+
+  /**
+   * GL thread - lets the encoders finish what they have, drops readbacks still in flight
+   */
+  public void dispose() {
+    encoders.shutdown();
+    try {
+      if (!encoders.awaitTermination(5, TimeUnit.SECONDS)) {
+        log.warn("frame encoders still busy, {} frames may be incomplete", captured - written.get() - failed.get());
+        encoders.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Slot slot : slots) {
+      if (slot.fence != 0) {
+        glDeleteSync(slot.fence);
+      }
+      if (slot.state == State.ENCODING) {
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, slot.pbo);
+        glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+      }
+      glDeleteBuffers(slot.pbo);
+    }
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+  }
+}
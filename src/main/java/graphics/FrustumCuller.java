@@ -0,0 +1,185 @@
+package graphics;
+
+import java.util.stream.IntStream;
+
+import org.joml.Matrix4f;
+
+import state.Scene;
+
+/**
+ * Tests instance bounds against the six planes of the camera frustum.
+ *
+ * The planes are extracted from the view-projection matrix (Gribb/Hartmann) and stored
+ * as 24 floats, the bounds come as packed center/half-extent arrays (see Scene). Ranges
+ * are culled in blocks of BLOCK instances. A block's bounds are copied to the start of
+ * per-thread scratch arrays, then one pass per plane keeps the smallest signed distance
+ * per box. C2 only vectorizes loops that small and that index every array from 0, all
+ * six planes in one loop body run scalar. A last scalar pass compacts the indices of the
+ * boxes with no negative distance. Large inputs are split in chunks which are culled in
+ * parallel, each chunk writing its survivors at the chunk's own offset in the output
+ * before the chunks are compacted into one ordered visible-index list.
+ *
+ */
+public final class FrustumCuller {
+
+  // instances per parallel task
+  private static final int CHUNK = 1 << 14;
+  // instances per plane pass, the scratch arrays stay in L1
+  private static final int BLOCK = 1024;
+
+  // a block of bounds from index 0 and the smallest distance per box so far
+  private static final class Block {
+    final float[] x = new float[BLOCK], y = new float[BLOCK], z = new float[BLOCK];
+    final float[] hx = new float[BLOCK], hy = new float[BLOCK], hz = new float[BLOCK];
+    final float[] dist = new float[BLOCK];
+  }
+
+  private static final ThreadLocal<Block> blocks = ThreadLocal.withInitial(Block::new);
+
+  // a,b,c,d for left, right, bottom, top, near, far
+  private final float[] planes = new float[24];
+  private int[] chunkCounts = new int[0];
+  private boolean parallel = true;
+
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public void setViewProj(Matrix4f m) {
+    // rows of the matrix (JOML mRC is column R, row C)
+    setPlane(0, m.m03() + m.m00(), m.m13() + m.m10(), m.m23() + m.m20(), m.m33() + m.m30());
+    setPlane(1, m.m03() - m.m00(), m.m13() - m.m10(), m.m23() - m.m20(), m.m33() - m.m30());
+    setPlane(2, m.m03() + m.m01(), m.m13() + m.m11(), m.m23() + m.m21(), m.m33() + m.m31());
+    setPlane(3, m.m03() - m.m01(), m.m13() - m.m11(), m.m23() - m.m21(), m.m33() - m.m31());
+    setPlane(4, m.m03() + m.m02(), m.m13() + m.m12(), m.m23() + m.m22(), m.m33() + m.m32());
+    setPlane(5, m.m03() - m.m02(), m.m13() - m.m12(), m.m23() - m.m22(), m.m33() - m.m32());
+  }
+
+  private void setPlane(int p, float a, float b, float c, float d) {
+    float invLen = 1f / (float) Math.sqrt(a*a + b*b + c*c);
+    planes[p*4]   = a * invLen;
+    planes[p*4+1] = b * invLen;
+    planes[p*4+2] = c * invLen;
+    planes[p*4+3] = d * invLen;
+  }
+
+  /**
+   * extracted planes, a,b,c,d per plane with the normals pointing inwards
+   */
+  public float[] planes() {
+    return planes;
+  }
+
+  /**
+   * @return true if the box (center, half extents) is at least partly inside
+   */
+  public boolean isVisible(float cx, float cy, float cz, float ex, float ey, float ez) {
+    for (int p = 0; p < 24; p += 4) {
+      float a = planes[p];
+      float b = planes[p+1];
+      float c = planes[p+2];
+      float dist = a*cx + b*cy + c*cz + planes[p+3];
+      float radius = Math.abs(a)*ex + Math.abs(b)*ey + Math.abs(c)*ez;
+      if (dist + radius < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * write the indices of all visible scene instances into out
+   *
+   * @return number of visible instances
+   */
+  public int cull(Scene scene, int[] out) {
+    return cull(scene.centerX(), scene.centerY(), scene.centerZ(),
+        scene.extentX(), scene.extentY(), scene.extentZ(), scene.size(), out);
+  }
+
+  /**
+   * @param out receives the visible indices in ascending order, must hold count entries
+   * @return number of visible instances
+   */
+  public int cull(float[] cx, float[] cy, float[] cz, float[] ex, float[] ey, float[] ez, int count, int[] out) {
+    int chunks = (count + CHUNK - 1) / CHUNK;
+    if (!parallel || chunks <= 1) {
+      return cullRange(cx, cy, cz, ex, ey, ez, 0, count, out);
+    }
+    if (chunkCounts.length < chunks) {
+      chunkCounts = new int[chunks];
+    }
+    final int[] counts = chunkCounts;
+    IntStream.range(0, chunks).parallel().forEach(c -> {
+      int from = c * CHUNK;
+      int to = Math.min(count, from + CHUNK);
+      counts[c] = cullRange(cx, cy, cz, ex, ey, ez, from, to, out);
+    });
+    // chunk 0 is already in place, slide the others down
+    int n = counts[0];
+    for (int c = 1; c < chunks; c++) {
+      System.arraycopy(out, c * CHUNK, out, n, counts[c]);
+      n += counts[c];
+    }
+    return n;
+  }
+
+  /**
+   * cull the instances [from,to) only, survivors are written from out[from] on so
+   * disjoint ranges can run on separate threads
+   *
+   * @return number of visible instances in the range
+   */
+  public int cull(Scene scene, int from, int to, int[] out) {
+    return cullRange(scene.centerX(), scene.centerY(), scene.centerZ(),
+        scene.extentX(), scene.extentY(), scene.extentZ(), from, to, out);
+  }
+
+  /**
+   * cull [from,to), survivors are written from out[from] on
+   */
+  private int cullRange(float[] cx, float[] cy, float[] cz, float[] ex, float[] ey, float[] ez,
+      int from, int to, int[] out) {
+    final Block b = blocks.get();
+    final float[] dist = b.dist;
+    int n = from;
+    for (int base = from; base < to; base += BLOCK) {
+      int len = Math.min(BLOCK, to - base);
+      System.arraycopy(cx, base, b.x, 0, len);
+      System.arraycopy(cy, base, b.y, 0, len);
+      System.arraycopy(cz, base, b.z, 0, len);
+      System.arraycopy(ex, base, b.hx, 0, len);
+      System.arraycopy(ey, base, b.hy, 0, len);
+      System.arraycopy(ez, base, b.hz, 0, len);
+      firstPlane(b.x, b.y, b.z, b.hx, b.hy, b.hz, dist, len, 0);
+      for (int p = 4; p < 24; p += 4) {
+        nextPlane(b.x, b.y, b.z, b.hx, b.hy, b.hz, dist, len, p);
+      }
+      // branch-free compaction: always write, only advance when visible
+      for (int k = 0; k < len; k++) {
+        out[n] = base + k;
+        n += dist[k] < 0 ? 0 : 1;
+      }
+    }
+    return n - from;
+  }
+
+  // signed distance + projected radius of plane p, the box is out if it is negative
+  private void firstPlane(float[] x, float[] y, float[] z, float[] hx, float[] hy, float[] hz,
+      float[] dist, int len, int p) {
+    final float a = planes[p], b = planes[p+1], c = planes[p+2], d = planes[p+3];
+    final float aa = Math.abs(a), ab = Math.abs(b), ac = Math.abs(c);
+    for (int k = 0; k < len; k++) {
+      dist[k] = a*x[k] + b*y[k] + c*z[k] + d + aa*hx[k] + ab*hy[k] + ac*hz[k];
+    }
+  }
+
+  private void nextPlane(float[] x, float[] y, float[] z, float[] hx, float[] hy, float[] hz,
+      float[] dist, int len, int p) {
+    final float a = planes[p], b = planes[p+1], c = planes[p+2], d = planes[p+3];
+    final float aa = Math.abs(a), ab = Math.abs(b), ac = Math.abs(c);
+    for (int k = 0; k < len; k++) {
+      dist[k] = Math.min(dist[k], a*x[k] + b*y[k] + c*z[k] + d + aa*hx[k] + ab*hy[k] + ac*hz[k]);
+    }
+  }
+}
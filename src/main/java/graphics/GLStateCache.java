@@ -0,0 +1,191 @@
+package graphics;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.util.Arrays;
+
+/**
+ * Shadow copy of the GL binding state, calls that wouldn't change anything are skipped.
+ *
+ * All binds that go through here must keep going through here - a direct glUseProgram
+ * or glBindVertexArray elsewhere makes the cache stale, call invalidate() after such code.
+ * The counters are reset by beginFrame() and give the issued and skipped changes of the
+ * current frame.
+ *
+ */
+public final class GLStateCache {
+
+  // buffer targets we track, index into boundBuffers
+  private static final int[] BUFFER_TARGETS = {
+      GL_ARRAY_BUFFER, GL_ELEMENT_ARRAY_BUFFER, GL_DRAW_INDIRECT_BUFFER, GL_UNIFORM_BUFFER,
+      GL_SHADER_STORAGE_BUFFER, GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, GL_PIXEL_PACK_BUFFER,
+  };
+  // capabilities we track, index into enabledCaps
+  private static final int[] CAPS = {
+      GL_DEPTH_TEST, GL_CULL_FACE, GL_BLEND, GL_MULTISAMPLE, GL_SCISSOR_TEST,
+  };
+
+  private static final int UNKNOWN = -1;
+  private static final int UNIFORM_BINDINGS = 16;
+
+  private int program = UNKNOWN;
+  private int vao = UNKNOWN;
+  private final int[] boundBuffers = new int[BUFFER_TARGETS.length];
+  private final int[] enabledCaps = new int[CAPS.length];   // 1 enabled, 0 disabled
+  // ranges bound to the indexed uniform buffer binding points
+  private final int[] uniformBuffer = new int[UNIFORM_BINDINGS];
+  private final long[] uniformOffset = new long[UNIFORM_BINDINGS];
+  private final long[] uniformSize = new long[UNIFORM_BINDINGS];
+
+  private int changes = 0;
+  private int skipped = 0;
+
+  public GLStateCache() {
+    invalidate();
+  }
+
+  /**
+   * forget everything, the next call of each kind goes to GL
+   */
+  public void invalidate() {
+    program = UNKNOWN;
+    vao = UNKNOWN;
+    Arrays.fill(boundBuffers, UNKNOWN);
+    Arrays.fill(enabledCaps, UNKNOWN);
+    Arrays.fill(uniformBuffer, UNKNOWN);
+  }
+
+  public void beginFrame() {
+    changes = 0;
+    skipped = 0;
+  }
+
+  public void useProgram(int id) {
+    if (program == id) {
+      skipped++;
+      return;
+    }
+    glUseProgram(id);
+    program = id;
+    changes++;
+  }
+
+  public void bindVertexArray(int id) {
+    if (vao == id) {
+      skipped++;
+      return;
+    }
+    glBindVertexArray(id);
+    vao = id;
+    changes++;
+    // the element array binding is part of the VAO
+    boundBuffers[1] = UNKNOWN;
+  }
+
+  public void bindBuffer(int target, int id) {
+    int slot = bufferSlot(target);
+    if (slot >= 0 && boundBuffers[slot] == id) {
+      skipped++;
+      return;
+    }
+    glBindBuffer(target, id);
+    if (slot >= 0) {
+      boundBuffers[slot] = id;
+    }
+    changes++;
+  }
+
+  /**
+   * indexed binding, also changes the generic binding of the target like GL does
+   */
+  public void bindBufferBase(int target, int index, int id) {
+    glBindBufferBase(target, index, id);
+    if (target == GL_UNIFORM_BUFFER && index < UNIFORM_BINDINGS) {
+      uniformBuffer[index] = UNKNOWN;
+    }
+    int slot = bufferSlot(target);
+    if (slot >= 0) {
+      boundBuffers[slot] = id;
+    }
+    changes++;
+  }
+
+  /**
+   * indexed range binding, only uniform buffer ranges are remembered
+   */
+  public void bindBufferRange(int target, int index, int id, long offset, long size) {
+    boolean tracked = target == GL_UNIFORM_BUFFER && index < UNIFORM_BINDINGS;
+    if (tracked && uniformBuffer[index] == id && uniformOffset[index] == offset && uniformSize[index] == size) {
+      skipped++;
+      return;
+    }
+    glBindBufferRange(target, index, id, offset, size);
+    if (tracked) {
+      uniformBuffer[index] = id;
+      uniformOffset[index] = offset;
+      uniformSize[index] = size;
+    }
+    int slot = bufferSlot(target);
+    if (slot >= 0) {
+      boundBuffers[slot] = id;
+    }
+    changes++;
+  }
+
+  public void enable(int cap) {
+    setCap(cap, true);
+  }
+
+  public void disable(int cap) {
+    setCap(cap, false);
+  }
+
+  private void setCap(int cap, boolean on) {
+    int slot = capSlot(cap);
+    int value = on ? 1 : 0;
+    if (slot >= 0 && enabledCaps[slot] == value) {
+      skipped++;
+      return;
+    }
+    if (on) {
+      glEnable(cap);
+    } else {
+      glDisable(cap);
+    }
+    if (slot >= 0) {
+      enabledCaps[slot] = value;
+    }
+    changes++;
+  }
+
+  private static int bufferSlot(int target) {
+    for (int i = 0; i < BUFFER_TARGETS.length; i++) {
+      if (BUFFER_TARGETS[i] == target) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int capSlot(int cap) {
+    for (int i = 0; i < CAPS.length; i++) {
+      if (CAPS[i] == cap) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * state changes sent to GL since beginFrame()
+   */
+  public int getChanges() {
+    return changes;
+  }
+
+  /**
+   * redundant changes filtered out since beginFrame()
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+}
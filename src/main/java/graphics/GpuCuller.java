@@ -0,0 +1,310 @@
+package graphics;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+import state.Scene;
+
+/**
+ * Frustum culling and indirect draw generation on the GPU (GL 4.3).
+ *
+ * The instance bounds, stage ids and model matrices live in shader storage buffers and
+ * are only uploaded again when the scene changes. Every frame cull.comp tests all
+ * instances against the camera planes and appends the survivors to the instance list
+ * of their stage, bumping that stage's DrawArraysIndirectCommand.instanceCount with an
+ * atomic. The command buffer is then consumed directly by glMultiDrawArraysIndirect,
+ * nothing is read back to the CPU.
+ *
+ * Each stage owns a fixed range of the visible-id buffer (as many slots as the scene has
+ * instances of that stage), the range start is the command's baseInstance. The ids are
+ * fed to mesh_gpu.vert as an instanced attribute which indexes the transform and the
+ * growth buffer. Growth changes (Scene.growthVersion()) only re-upload the growth buffer.
+ * With setLod() a stage that isn't resident draws the fallback level of its chain.
+ *
+ */
+public final class GpuCuller {
+
+  private static final int WORKGROUP_SIZE = 256;
+  private static final int BOUNDS_FLOATS = 8;    // vec4 center, vec4 extent (std430)
+  private static final int GROWTH_FLOATS = 4;    // progress, min scale, max scale, pad
+
+  private final MeshArena arena;
+  private final Shader cullProgram;
+
+  private final int boundsSsbo;
+  private final int stageSsbo;
+  private final int transformSsbo;
+  private final int growthSsbo;
+  private final int commandBuffer;
+  private final int commandTemplate;
+  private final int visibleBuffer;
+  private final int vao;
+
+  private int instanceCount = 0;
+  private int commandCount = 0;
+  private int uploadedSceneVersion = -1;
+  private int uploadedArenaVersion = -1;
+  private int uploadedGrowthVersion = -1;
+  private int layoutVbo = -1;
+  private long storageBytes = 0;
+  private int[] usedStages = new int[0];
+  private int usedStageCount = 0;
+  private LodSelector lod;
+  private int fallbacks = 0;
+
+  public static boolean isSupported() {
+    return GL.getCapabilities().OpenGL43;
+  }
+
+  /**
+   * @param cullProgram compiled from cull.comp
+   */
+  public GpuCuller(MeshArena arena, Shader cullProgram) {
+    this.arena = arena;
+    this.cullProgram = cullProgram;
+    boundsSsbo = glGenBuffers();
+    stageSsbo = glGenBuffers();
+    transformSsbo = glGenBuffers();
+    growthSsbo = glGenBuffers();
+    commandBuffer = glGenBuffers();
+    commandTemplate = glGenBuffers();
+    visibleBuffer = glGenBuffers();
+    vao = glGenVertexArrays();
+  }
+
+  /**
+   * evicted stages draw LodSelector.fallback() until they are back, null draws nothing
+   */
+  public void setLod(LodSelector lod) {
+    this.lod = lod;
+    uploadedArenaVersion = -1;
+  }
+
+  /**
+   * upload bounds, stage ids and transforms if the scene or the arena changed
+   */
+  public void upload(Scene scene) {
+    if (scene.version() == uploadedSceneVersion && arena.version() == uploadedArenaVersion) {
+      if (scene.growthVersion() != uploadedGrowthVersion) {
+        uploadGrowth(scene);
+      }
+      return;
+    }
+    instanceCount = scene.size();
+    int n = Math.max(instanceCount, 1);
+
+    FloatBuffer bounds = MemoryUtil.memAllocFloat(n * BOUNDS_FLOATS);
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    for (int i = 0; i < instanceCount; i++) {
+      bounds.put(cx[i]).put(cy[i]).put(cz[i]).put(0f);
+      bounds.put(ex[i]).put(ey[i]).put(ez[i]).put(0f);
+    }
+    bounds.flip();
+    uploadStorage(boundsSsbo, bounds);
+    MemoryUtil.memFree(bounds);
+
+    // stages that aren't resident keep count 0, their instances are still listed but draw nothing
+    commandCount = Math.max(arena.stageCapacity(), scene.stages.size());
+    int[] perStage = new int[commandCount];
+    IntBuffer stageIds = MemoryUtil.memAllocInt(n);
+    for (int i = 0; i < instanceCount; i++) {
+      // randomized blueprints resolve their variant here, the shaders only see the result
+      int stage = scene.variantStage(i);
+      stageIds.put(stage);
+      perStage[stage]++;
+    }
+    stageIds.flip();
+    uploadStorage(stageSsbo, stageIds);
+    MemoryUtil.memFree(stageIds);
+
+    FloatBuffer transforms = MemoryUtil.memAllocFloat(n * 16);
+    transforms.put(scene.transforms(), 0, instanceCount * 16).flip();
+    uploadStorage(transformSsbo, transforms);
+    MemoryUtil.memFree(transforms);
+    uploadGrowth(scene);
+
+    IntBuffer commands = MemoryUtil.memAllocInt(commandCount * IndirectBatch.COMMAND_INTS);
+    int base = 0;
+    fallbacks = 0;
+    // used stages and the levels drawn in their place, each once
+    boolean[] used = new boolean[commandCount];
+    usedStages = new int[commandCount];
+    usedStageCount = 0;
+    for (int s = 0; s < commandCount; s++) {
+      int drawn = arena.isResident(s) ? s : lod != null && perStage[s] > 0 ? lod.fallback(s, arena) : -1;
+      if (drawn != s && drawn >= 0) {
+        fallbacks++;
+      }
+      if (perStage[s] > 0) {
+        markUsed(s, used);
+        markUsed(drawn, used);
+      }
+      commands.put(drawn >= 0 ? arena.count(drawn) : 0).put(0).put(drawn >= 0 ? arena.first(drawn) : 0).put(base);
+      base += perStage[s];
+    }
+    commands.flip();
+    glBindBuffer(GL_COPY_READ_BUFFER, commandTemplate);
+    glBufferData(GL_COPY_READ_BUFFER, commands, GL_STATIC_DRAW);
+    glBindBuffer(GL_COPY_READ_BUFFER, 0);
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+    glBufferData(GL_DRAW_INDIRECT_BUFFER, (long) commands.remaining() * Integer.BYTES, GL_DYNAMIC_COPY);
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+    MemoryUtil.memFree(commands);
+
+    glBindBuffer(GL_ARRAY_BUFFER, visibleBuffer);
+    glBufferData(GL_ARRAY_BUFFER, (long) n * Integer.BYTES, GL_DYNAMIC_COPY);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+    if (layoutVbo != arena.vbo()) {
+      glBindVertexArray(vao);
+      MeshArena.bindVertexLayout(arena.vbo());
+      glBindBuffer(GL_ARRAY_BUFFER, visibleBuffer);
+      glVertexAttribIPointer(4, 1, GL_UNSIGNED_INT, Integer.BYTES, 0L);
+      glVertexAttribDivisor(4, 1);
+      glEnableVertexAttribArray(4);
+      glBindBuffer(GL_ARRAY_BUFFER, 0);
+      glBindVertexArray(0);
+      layoutVbo = arena.vbo();
+    }
+
+    // bounds, stage id, transform, growth and visible id per instance, the commands twice
+    storageBytes = (long) n * (BOUNDS_FLOATS + 1 + 16 + GROWTH_FLOATS + 1) * 4
+        + 2L * commandCount * IndirectBatch.COMMAND_INTS * Integer.BYTES;
+    uploadedSceneVersion = scene.version();
+    uploadedArenaVersion = arena.version();
+  }
+
+  private void markUsed(int stage, boolean[] used) {
+    if (stage >= 0 && !used[stage]) {
+      used[stage] = true;
+      usedStages[usedStageCount++] = stage;
+    }
+  }
+
+  /**
+   * stages with instances in the last upload and the fallback levels drawn in their place,
+   * the meshes the draw uses or waits for
+   */
+  public int[] usedStages() {
+    return usedStages;
+  }
+
+  public int usedStageCount() {
+    return usedStageCount;
+  }
+
+  /**
+   * stages drawn with a fallback level since the last upload
+   */
+  public int getFallbacks() {
+    return fallbacks;
+  }
+
+  public long sizeBytes() {
+    return storageBytes;
+  }
+
+  private void uploadGrowth(Scene scene) {
+    int n = Math.max(instanceCount, 1);
+    FloatBuffer growths = MemoryUtil.memAllocFloat(n * GROWTH_FLOATS);
+    float[] growth = scene.growth(), min = scene.growthMin(), max = scene.growthMax();
+    for (int i = 0; i < instanceCount; i++) {
+      growths.put(growth[i]).put(min[i]).put(max[i]).put(0f);
+    }
+    growths.flip();
+    uploadStorage(growthSsbo, growths);
+    MemoryUtil.memFree(growths);
+    uploadedGrowthVersion = scene.growthVersion();
+  }
+
+  private static void uploadStorage(int ssbo, FloatBuffer data) {
+    glBindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo);
+    glBufferData(GL_SHADER_STORAGE_BUFFER, data, GL_STATIC_DRAW);
+    glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+  }
+
+  private static void uploadStorage(int ssbo, IntBuffer data) {
+    glBindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo);
+    glBufferData(GL_SHADER_STORAGE_BUFFER, data, GL_STATIC_DRAW);
+    glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+  }
+
+  /**
+   * run the cull pass
+   *
+   * @param planes the 6 frustum planes, as extracted by FrustumCuller
+   */
+  public void cull(float[] planes) {
+    if (commandCount == 0) {
+      return;
+    }
+    // reset the instance counts from the template
+    long commandBytes = (long) commandCount * IndirectBatch.COMMAND_INTS * Integer.BYTES;
+    glBindBuffer(GL_COPY_READ_BUFFER, commandTemplate);
+    glBindBuffer(GL_COPY_WRITE_BUFFER, commandBuffer);
+    glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, commandBytes);
+    glBindBuffer(GL_COPY_READ_BUFFER, 0);
+    glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+    cullProgram.bind();
+    cullProgram.setVec4Array("uPlanes", planes);
+    cullProgram.setUnsigned("uCount", instanceCount);
+    glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, boundsSsbo);
+    glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 1, stageSsbo);
+    glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 2, commandBuffer);
+    glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 3, visibleBuffer);
+    glDispatchCompute((instanceCount + WORKGROUP_SIZE - 1) / WORKGROUP_SIZE, 1, 1);
+    cullProgram.unbind();
+
+    // the commands are read as indirect arguments, the ids as vertex attributes
+    glMemoryBarrier(GL_COMMAND_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
+  }
+
+  /**
+   * draw the culled instances, the bound program must be mesh_gpu.vert based
+   */
+  public void draw(GLStateCache state) {
+    if (commandCount == 0) {
+      return;
+    }
+    state.bindBufferBase(GL_SHADER_STORAGE_BUFFER, 4, transformSsbo);
+    state.bindBufferBase(GL_SHADER_STORAGE_BUFFER, 5, growthSsbo);
+    state.bindVertexArray(vao);
+    state.bindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+    glMultiDrawArraysIndirect(GL_TRIANGLES, 0L, commandCount, 0);
+  }
+
+  /**
+   * debug only - reads the command buffer back (stalls), useful to compare with the CPU culler
+   */
+  public int readVisibleCount() {
+    IntBuffer commands = MemoryUtil.memAllocInt(commandCount * IndirectBatch.COMMAND_INTS);
+    glMemoryBarrier(GL_BUFFER_UPDATE_BARRIER_BIT);
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+    glGetBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, commands);
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+    int visible = 0;
+    for (int s = 0; s < commandCount; s++) {
+      visible += commands.get(s * IndirectBatch.COMMAND_INTS + 1);
+    }
+    MemoryUtil.memFree(commands);
+    return visible;
+  }
+
+  public void dispose() {
+    cullProgram.dispose();
+    glDeleteBuffers(boundsSsbo);
+    glDeleteBuffers(stageSsbo);
+    glDeleteBuffers(transformSsbo);
+    glDeleteBuffers(growthSsbo);
+    glDeleteBuffers(commandBuffer);
+    glDeleteBuffers(commandTemplate);
+    glDeleteBuffers(visibleBuffer);
+    glDeleteVertexArrays(vao);
+  }
+}
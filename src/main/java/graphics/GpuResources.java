@@ -0,0 +1,382 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns the lifetime of GL objects through reference counted handles.
+ *
+ * register() wraps any GL object - buffer, program, texture, vertex array - with its
+ * size and the code that deletes it, the handle starts with one reference. release() may
+ * be called from any thread, the object is deleted in collect() on the GL thread once the
+ * last reference is gone. shutdown() reports the handles still referenced as leaks and
+ * deletes everything in reverse registration order while the context is alive.
+ *
+ * Meshes are stage ranges of a MeshArena. trackMesh() keeps the vertices' source so the
+ * range can be evicted and uploaded again: markDrawn() stamps the stages drawn this frame
+ * and asks for evicted ones back, endFrame() evicts the least recently drawn meshes while
+ * the total is over the budget. Meshes drawn in the last idleFrames frames are never
+ * evicted, when they alone exceed the budget it is overshot. The arena buffer itself is
+ * accounted through the meshes resident in it, its capacity only grows. request() and
+ * evict() let a residency policy (ResidencyController) load and drop meshes ahead of use,
+ * pinned meshes stay.
+ *
+ */
+public final class GpuResources {
+
+  private static final Logger log = LoggerFactory.getLogger(GpuResources.class);
+
+  public enum Kind { MESH, BUFFER, PROGRAM, TEXTURE, VERTEX_ARRAY, FRAMEBUFFER, QUERY }
+
+  public final class Handle {
+    public final String name;
+    public final Kind kind;
+    private final LongSupplier bytes;
+    private final Runnable delete;
+    private int refs = 1;
+    private boolean deleted = false;
+
+    // meshes only
+    private MeshArena arena;
+    private int stageId = -1;
+    private Supplier<float[]> source;
+    private long lastDrawn = -1;
+    private boolean restoreQueued = false;
+    private boolean pinned = false;
+
+    private Handle(String name, Kind kind, LongSupplier bytes, Runnable delete) {
+      this.name = name;
+      this.kind = kind;
+      this.bytes = bytes;
+      this.delete = delete;
+    }
+
+    public synchronized Handle retain() {
+      if (refs == 0) {
+        throw new IllegalStateException("retain of released resource " + name);
+      }
+      refs++;
+      return this;
+    }
+
+    /**
+     * drop a reference, the last one queues the deletion for the GL thread
+     */
+    public void release() {
+      synchronized (this) {
+        if (refs == 0) {
+          throw new IllegalStateException("resource released too often: " + name);
+        }
+        if (--refs > 0) {
+          return;
+        }
+      }
+      released.add(this);
+    }
+
+    public synchronized int refs() {
+      return refs;
+    }
+
+    public long bytes() {
+      return deleted ? 0 : bytes.getAsLong();
+    }
+
+    public boolean isResident() {
+      return kind != Kind.MESH || arena.isResident(stageId);
+    }
+
+    /**
+     * size of the mesh when resident, evicted or not
+     */
+    public long meshBytes() {
+      return kind == Kind.MESH ? (long) source.get().length * Float.BYTES : bytes();
+    }
+
+    /**
+     * pinned meshes are never evicted
+     */
+    public void setPinned(boolean pinned) {
+      this.pinned = pinned;
+    }
+
+    public boolean isPinned() {
+      return pinned;
+    }
+  }
+
+  private final List<Handle> handles = new ArrayList<>();
+  private final ConcurrentLinkedQueue<Handle> released = new ConcurrentLinkedQueue<>();
+  private Handle[] meshByStage = new Handle[16];
+  private final List<Handle> restores = new ArrayList<>();
+
+  private long budgetBytes;
+  private int idleFrames = 2;
+  private long restoreBytesPerFrame = 4L << 20;
+  private long frame = 0;
+
+  private int evictions = 0;
+  private int restored = 0;
+  private boolean overshootLogged = false;
+
+  /**
+   * @param budgetBytes target for the sum of all resources, Long.MAX_VALUE for none
+   */
+  public GpuResources(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  public void setBudget(long bytes) {
+    budgetBytes = bytes;
+    overshootLogged = false;
+  }
+
+  public long getBudget() {
+    return budgetBytes;
+  }
+
+  /**
+   * frames a drawn mesh stays safe from eviction
+   */
+  public void setIdleFrames(int frames) {
+    idleFrames = frames;
+  }
+
+  /**
+   * upload limit for evicted meshes coming back, at least one is restored per frame
+   */
+  public void setRestoreBytesPerFrame(long bytes) {
+    restoreBytesPerFrame = bytes;
+  }
+
+  /**
+   * take ownership of a GL object
+   *
+   * @param bytes current size, read whenever the totals are needed
+   * @param delete called once on the GL thread
+   */
+  public Handle register(String name, Kind kind, LongSupplier bytes, Runnable delete) {
+    Handle h = new Handle(name, kind, bytes, delete);
+    handles.add(h);
+    return h;
+  }
+
+  public Handle register(String name, Kind kind, long bytes, Runnable delete) {
+    return register(name, kind, () -> bytes, delete);
+  }
+
+  /**
+   * track the resident mesh of a stage, source gives the vertices to upload it again after
+   * an eviction. Releasing the handle removes the mesh from the arena
+   */
+  public Handle trackMesh(String name, MeshArena arena, int stageId, Supplier<float[]> source) {
+    Handle h = register(name, Kind.MESH,
+        () -> arena.isResident(stageId) ? (long) arena.count(stageId) * Mesh.STRIDE_BYTES : 0L,
+        () -> arena.remove(stageId));
+    h.arena = arena;
+    h.stageId = stageId;
+    h.source = source;
+    h.lastDrawn = frame;
+    if (stageId >= meshByStage.length) {
+      meshByStage = Arrays.copyOf(meshByStage, Math.max(stageId + 1, meshByStage.length * 2));
+    }
+    meshByStage[stageId] = h;
+    return h;
+  }
+
+  public Handle mesh(int stageId) {
+    return stageId < meshByStage.length ? meshByStage[stageId] : null;
+  }
+
+  /**
+   * stamp the stages drawn this frame, evicted ones are uploaded again in update()
+   */
+  public void markDrawn(int[] stageIds, int count) {
+    for (int k = 0; k < count; k++) {
+      int s = stageIds[k];
+      Handle h = s < meshByStage.length ? meshByStage[s] : null;
+      if (h == null || h.deleted) {
+        continue;
+      }
+      h.lastDrawn = frame;
+      queueRestore(h);
+    }
+  }
+
+  /**
+   * ask for an evicted mesh ahead of its use, restores run in request order
+   */
+  public void request(int stageId) {
+    Handle h = mesh(stageId);
+    if (h != null && !h.deleted) {
+      queueRestore(h);
+    }
+  }
+
+  private void queueRestore(Handle h) {
+    if (!h.restoreQueued && !h.arena.isResident(h.stageId)) {
+      h.restoreQueued = true;
+      restores.add(h);
+    }
+  }
+
+  /**
+   * evict a mesh now, unless it is pinned or was drawn in the last idleFrames frames
+   *
+   * @return the bytes freed
+   */
+  public long evict(int stageId) {
+    Handle h = mesh(stageId);
+    if (h == null || h.deleted || h.pinned || !h.arena.isResident(stageId) || h.lastDrawn > frame - idleFrames) {
+      return 0;
+    }
+    long bytes = h.bytes();
+    h.arena.remove(stageId);
+    evictions++;
+    return bytes;
+  }
+
+  /**
+   * GL thread, start of the frame - deletes released resources and restores evicted meshes
+   */
+  public void update() {
+    collect();
+    long bytes = 0;
+    for (int i = 0; i < restores.size(); i++) {
+      Handle h = restores.get(i);
+      h.restoreQueued = false;
+      if (h.deleted || h.arena.isResident(h.stageId)) {
+        continue;
+      }
+      if (bytes > 0 && bytes >= restoreBytesPerFrame) {
+        // over the upload limit, the rest waits for the next frame
+        restores.subList(0, i).clear();
+        for (Handle rest : restores) {
+          rest.restoreQueued = true;
+        }
+        return;
+      }
+      float[] data = h.source.get();
+      h.arena.add(h.stageId, data);
+      bytes += (long) data.length * Float.BYTES;
+      restored++;
+    }
+    restores.clear();
+  }
+
+  /**
+   * GL thread - run the deletions of resources whose last reference was released
+   */
+  public void collect() {
+    Handle h;
+    while ((h = released.poll()) != null) {
+      delete(h);
+    }
+  }
+
+  private void delete(Handle h) {
+    if (h.deleted) {
+      return;
+    }
+    h.delete.run();
+    h.deleted = true;
+    handles.remove(h);
+    if (h.kind == Kind.MESH && meshByStage[h.stageId] == h) {
+      meshByStage[h.stageId] = null;
+    }
+  }
+
+  /**
+   * GL thread, end of the frame - evicts least recently drawn meshes while over budget
+   */
+  public void endFrame() {
+    long total = totalBytes();
+    if (total > budgetBytes) {
+      List<Handle> candidates = new ArrayList<>();
+      for (Handle h : handles) {
+        if (h.kind == Kind.MESH && !h.pinned && h.arena.isResident(h.stageId) && h.lastDrawn <= frame - idleFrames) {
+          candidates.add(h);
+        }
+      }
+      candidates.sort((a, b) -> Long.compare(a.lastDrawn, b.lastDrawn));
+      for (int i = 0; i < candidates.size() && total > budgetBytes; i++) {
+        Handle h = candidates.get(i);
+        total -= h.bytes();
+        h.arena.remove(h.stageId);
+        evictions++;
+      }
+      if (total > budgetBytes && !overshootLogged) {
+        log.warn("resources {} KB over the budget of {} KB, all meshes in use",
+            (total - budgetBytes) >> 10, budgetBytes >> 10);
+        overshootLogged = true;
+      }
+    }
+    frame++;
+  }
+
+  public long totalBytes() {
+    long total = 0;
+    for (Handle h : handles) {
+      total += h.bytes();
+    }
+    return total;
+  }
+
+  public long bytes(Kind kind) {
+    long total = 0;
+    for (Handle h : handles) {
+      total += h.kind == kind ? h.bytes() : 0;
+    }
+    return total;
+  }
+
+  public int count() {
+    return handles.size();
+  }
+
+  public int getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * evicted meshes waiting to be uploaded again
+   */
+  public int getPendingRestores() {
+    return restores.size();
+  }
+
+  public int getRestored() {
+    return restored;
+  }
+
+  /**
+   * GL thread, before the context goes away - every handle still referenced is a leak,
+   * it is logged and deleted anyway
+   *
+   * @return the number of leaked handles
+   */
+  public int shutdown() {
+    collect();
+    int leaks = 0;
+    for (int i = handles.size() - 1; i >= 0; i--) {
+      Handle h = handles.get(i);
+      log.warn("leaked {} {} ({} refs, {} KB)", h.kind, h.name, h.refs(), h.bytes() >> 10);
+      leaks++;
+    }
+    for (int i = handles.size() - 1; i >= 0; i--) {
+      Handle h = handles.get(i);
+      h.delete.run();
+      h.deleted = true;
+    }
+    handles.clear();
+    Arrays.fill(meshByStage, null);
+    return leaks;
+  }
+}
@@ -0,0 +1,86 @@
+package graphics;
+import static org.lwjgl.opengl.GL33.*;
+
+import org.lwjgl.opengl.GL;
+
+/**
+ * GPU time of a frame from GL_TIME_ELAPSED queries, read back without stalling.
+ *
+ * A ring of queries, one per frame in flight. begin() first collects every finished query
+ * (GL_QUERY_RESULT_AVAILABLE) and keeps the newest result, a frame's time is known a
+ * couple of frames later. If the ring is full of unfinished queries the frame isn't
+ * measured instead of waiting. Queries of this kind can't nest, only one timer may run at
+ * a time.
+ *
+ */
+public final class GpuTimer {
+
+  private final int[] queries;
+  private final boolean[] pending;
+  private int next = 0;
+  private boolean running = false;
+  private long lastNanos = 0;
+  private int skipped = 0;
+
+  public static boolean isSupported() {
+    return GL.getCapabilities().OpenGL33 || GL.getCapabilities().GL_ARB_timer_query;
+  }
+
+  /**
+   * @param frames queries in flight, 3 or 4 cover a driver running ahead
+   */
+  public GpuTimer(int frames) {
+    queries = new int[frames];
+    pending = new boolean[frames];
+    glGenQueries(queries);
+  }
+
+  public void begin() {
+    collect();
+    if (pending[next]) {
+      skipped++;
+      return;
+    }
+    glBeginQuery(GL_TIME_ELAPSED, queries[next]);
+    running = true;
+  }
+
+  public void end() {
+    if (!running) {
+      return;
+    }
+    glEndQuery(GL_TIME_ELAPSED);
+    running = false;
+    pending[next] = true;
+    next = (next + 1) % queries.length;
+  }
+
+  // oldest first, the newest finished result wins
+  private void collect() {
+    for (int k = 0; k < queries.length; k++) {
+      int i = (next + k) % queries.length;
+      if (pending[i] && glGetQueryObjecti(queries[i], GL_QUERY_RESULT_AVAILABLE) != 0) {
+        lastNanos = glGetQueryObjecti64(queries[i], GL_QUERY_RESULT);
+        pending[i] = false;
+      }
+    }
+  }
+
+  /**
+   * GPU time of the newest measured frame, 0 before the first
+   */
+  public long getLastNanos() {
+    return lastNanos;
+  }
+
+  /**
+   * frames not measured because every query was still in flight
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  public void dispose() {
+    glDeleteQueries(queries);
+  }
+}
@@ -0,0 +1,90 @@
+package graphics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Baked views of one stage, see ImpostorBaker.
+ *
+ * frames x frames views on a hemi-octahedral grid, each a cell x cell square of the
+ * atlas. View (i, j) is the cell in column i, row j, rows start at the bottom like GL
+ * textures. Colour is RGBA with alpha 0 outside the silhouette, normals are object
+ * space, RGB = n * 0.5 + 0.5. center and radius give the object space sphere the
+ * views were framed on.
+ *
+ */
+public final class ImpostorAtlas {
+
+  private static final int MAGIC = 0x494d5031; // "IMP1"
+
+  public final int frames;
+  public final int cell;
+  public final float[] center;
+  public final float radius;
+  public final byte[] color;
+  public final byte[] normal;
+
+  public ImpostorAtlas(int frames, int cell, float[] center, float radius, byte[] color, byte[] normal) {
+    this.frames = frames;
+    this.cell = cell;
+    this.center = center;
+    this.radius = radius;
+    this.color = color;
+    this.normal = normal;
+  }
+
+  /**
+   * width and height in texels
+   */
+  public int size() {
+    return frames * cell;
+  }
+
+  public void save(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    try (OutputStream os = Files.newOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(os))) {
+      out.writeInt(MAGIC);
+      out.writeInt(frames);
+      out.writeInt(cell);
+      out.writeFloat(center[0]);
+      out.writeFloat(center[1]);
+      out.writeFloat(center[2]);
+      out.writeFloat(radius);
+      out.write(color);
+      out.write(normal);
+    }
+  }
+
+  /**
+   * @return null when the file is missing or not an atlas of this format
+   */
+  public static ImpostorAtlas load(Path file) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (InputStream is = Files.newInputStream(file);
+        DataInputStream in = new DataInputStream(new GZIPInputStream(is))) {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      int frames = in.readInt();
+      int cell = in.readInt();
+      float[] center = {in.readFloat(), in.readFloat(), in.readFloat()};
+      float radius = in.readFloat();
+      int texels = frames * cell * frames * cell;
+      byte[] color = new byte[texels * 4];
+      byte[] normal = new byte[texels * 4];
+      in.readFully(color);
+      in.readFully(normal);
+      return new ImpostorAtlas(frames, cell, center, radius, color, normal);
+    }
+  }
+}
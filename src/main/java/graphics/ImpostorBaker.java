@@ -0,0 +1,240 @@
+package graphics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bakes impostor atlases of blueprint meshes on the CPU.
+ *
+ * The mesh is rendered orthographically from frames x frames directions spread over the
+ * upper hemisphere with a hemi-octahedral mapping, each into one cell of a colour and a
+ * normal atlas. Rasterizing is plain Java with a depth buffer per cell, so baking needs no
+ * GL context and runs the same headless, at startup or in the impostor benchmark.
+ *
+ * Atlases are cached on disk keyed by the mesh data and the grid, a warm start only reads
+ * them back. impostor.vert picks views with the same mapping and basis as here, keep the
+ * two in sync.
+ *
+ */
+public final class ImpostorBaker {
+
+  private static final Logger log = LoggerFactory.getLogger(ImpostorBaker.class);
+  private static final int F = Mesh.VERTEX_FLOATS;
+
+  private final int frames;
+  private final int cell;
+  private final Path cacheDir;
+
+  private int hits = 0;
+  private int baked = 0;
+  private long bakeNanos = 0;
+
+  /**
+   * @param cacheDir null disables the disk cache
+   */
+  public ImpostorBaker(int frames, int cell, Path cacheDir) {
+    this.frames = frames;
+    this.cell = cell;
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * the cached atlas of the mesh, baked and written to the cache on a miss
+   */
+  public ImpostorAtlas bakeCached(float[] data) {
+    Path file = cacheDir == null ? null : cacheDir.resolve(key(data) + ".imp");
+    if (file != null) {
+      try {
+        ImpostorAtlas cached = ImpostorAtlas.load(file);
+        if (cached != null && cached.frames == frames && cached.cell == cell) {
+          hits++;
+          return cached;
+        }
+      } catch (IOException e) {
+        log.warn("couldn't read impostor {}, baking again", file);
+      }
+    }
+    ImpostorAtlas atlas = bake(data);
+    if (file != null) {
+      try {
+        atlas.save(file);
+      } catch (IOException e) {
+        log.warn("couldn't write impostor {}: {}", file, e.getMessage());
+      }
+    }
+    return atlas;
+  }
+
+  public ImpostorAtlas bake(float[] data) {
+    long start = System.nanoTime();
+    int vertexCount = data.length / F;
+
+    // bounding sphere around the box center, every vertex fits into each view
+    float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    for (int v = 0; v < vertexCount; v++) {
+      for (int k = 0; k < 3; k++) {
+        min[k] = Math.min(min[k], data[v*F + k]);
+        max[k] = Math.max(max[k], data[v*F + k]);
+      }
+    }
+    float[] center = new float[3];
+    float radius = 1e-4f;
+    if (vertexCount > 0) {
+      for (int k = 0; k < 3; k++) {
+        center[k] = (min[k] + max[k]) * 0.5f;
+      }
+      for (int v = 0; v < vertexCount; v++) {
+        float dx = data[v*F] - center[0], dy = data[v*F+1] - center[1], dz = data[v*F+2] - center[2];
+        radius = Math.max(radius, (float) Math.sqrt(dx*dx + dy*dy + dz*dz));
+      }
+    }
+
+    int size = frames * cell;
+    byte[] color = new byte[size * size * 4];
+    byte[] normal = new byte[size * size * 4];
+    float[] depth = new float[cell * cell];
+    // screen x, y and depth per vertex of the current view
+    float[] sx = new float[vertexCount], sy = new float[vertexCount], sz = new float[vertexCount];
+    float[] dir = new float[3], right = new float[3], up = new float[3];
+    float half = cell * 0.5f;
+
+    for (int j = 0; j < frames; j++) {
+      for (int i = 0; i < frames; i++) {
+        frameDirection(i, j, frames, dir);
+        basis(dir, right, up);
+        for (int v = 0; v < vertexCount; v++) {
+          float px = data[v*F] - center[0], py = data[v*F+1] - center[1], pz = data[v*F+2] - center[2];
+          sx[v] = (px*right[0] + py*right[1] + pz*right[2]) / radius * half + half;
+          sy[v] = (px*up[0] + py*up[1] + pz*up[2]) / radius * half + half;
+          sz[v] = px*dir[0] + py*dir[1] + pz*dir[2];
+        }
+        Arrays.fill(depth, -Float.MAX_VALUE);
+        for (int t = 0; t + 2 < vertexCount; t += 3) {
+          rasterize(data, t, sx, sy, sz, depth, color, normal, i * cell, j * cell, size);
+        }
+      }
+    }
+    baked++;
+    bakeNanos += System.nanoTime() - start;
+    return new ImpostorAtlas(frames, cell, center, radius, color, normal);
+  }
+
+  // one triangle into the cell at (cellX, cellY), closest to the viewer (largest depth) wins
+  private void rasterize(float[] data, int t, float[] sx, float[] sy, float[] sz, float[] depth,
+      byte[] color, byte[] normal, int cellX, int cellY, int size) {
+    int a = t, b = t + 1, c = t + 2;
+    float area = (sx[b] - sx[a]) * (sy[c] - sy[a]) - (sx[c] - sx[a]) * (sy[b] - sy[a]);
+    // counter clockwise faces the viewer, the back faces are culled at runtime as well
+    if (area <= 1e-9f) {
+      return;
+    }
+    int x0 = Math.max(0, (int) Math.floor(Math.min(sx[a], Math.min(sx[b], sx[c]))));
+    int x1 = Math.min(cell - 1, (int) Math.ceil(Math.max(sx[a], Math.max(sx[b], sx[c]))));
+    int y0 = Math.max(0, (int) Math.floor(Math.min(sy[a], Math.min(sy[b], sy[c]))));
+    int y1 = Math.min(cell - 1, (int) Math.ceil(Math.max(sy[a], Math.max(sy[b], sy[c]))));
+    float inv = 1f / area;
+    for (int y = y0; y <= y1; y++) {
+      float py = y + 0.5f;
+      for (int x = x0; x <= x1; x++) {
+        float px = x + 0.5f;
+        // barycentric weights from the edge functions
+        float wa = ((sx[b] - px) * (sy[c] - py) - (sx[c] - px) * (sy[b] - py)) * inv;
+        float wb = ((sx[c] - px) * (sy[a] - py) - (sx[a] - px) * (sy[c] - py)) * inv;
+        float wc = 1f - wa - wb;
+        if (wa < 0f || wb < 0f || wc < 0f) {
+          continue;
+        }
+        float z = wa * sz[a] + wb * sz[b] + wc * sz[c];
+        int d = y * cell + x;
+        if (z <= depth[d]) {
+          continue;
+        }
+        depth[d] = z;
+        int o = ((cellY + y) * size + cellX + x) * 4;
+        int fa = a * F, fb = b * F, fc = c * F;
+        for (int k = 0; k < 3; k++) {
+          float col = wa * data[fa+7+k] + wb * data[fb+7+k] + wc * data[fc+7+k];
+          color[o+k] = unorm(col);
+        }
+        color[o+3] = (byte) 255;
+        float nx = wa * data[fa+4] + wb * data[fb+4] + wc * data[fc+4];
+        float ny = wa * data[fa+5] + wb * data[fb+5] + wc * data[fc+5];
+        float nz = wa * data[fa+6] + wb * data[fb+6] + wc * data[fc+6];
+        float len = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+        if (len > 1e-6f) {
+          nx /= len;
+          ny /= len;
+          nz /= len;
+        }
+        normal[o] = unorm(nx * 0.5f + 0.5f);
+        normal[o+1] = unorm(ny * 0.5f + 0.5f);
+        normal[o+2] = unorm(nz * 0.5f + 0.5f);
+        normal[o+3] = (byte) 255;
+      }
+    }
+  }
+
+  private static byte unorm(float v) {
+    return (byte) Math.round(Math.max(0f, Math.min(1f, v)) * 255f);
+  }
+
+  /**
+   * direction towards the viewer of view (i, j), the grid corners are included so the
+   * outer ring of views looks along the horizon
+   */
+  public static void frameDirection(int i, int j, int frames, float[] out) {
+    float u = i / (float) (frames - 1) * 2f - 1f;
+    float v = j / (float) (frames - 1) * 2f - 1f;
+    // rotate the square back into the |x| + |z| <= 1 diamond
+    float x = (u + v) * 0.5f;
+    float z = (u - v) * 0.5f;
+    float y = 1f - Math.abs(x) - Math.abs(z);
+    float len = (float) Math.sqrt(x*x + y*y + z*z);
+    out[0] = x / len;
+    out[1] = y / len;
+    out[2] = z / len;
+  }
+
+  /**
+   * right and up of a view looking against dir, right x up = dir
+   */
+  public static void basis(float[] dir, float[] right, float[] up) {
+    if (Math.abs(dir[1]) > 0.999f) {
+      right[0] = 1f;
+      right[1] = 0f;
+      right[2] = 0f;
+    } else {
+      // (0, 1, 0) x dir
+      float rx = dir[2], rz = -dir[0];
+      float len = (float) Math.sqrt(rx*rx + rz*rz);
+      right[0] = rx / len;
+      right[1] = 0f;
+      right[2] = rz / len;
+    }
+    // dir x right
+    up[0] = dir[1]*right[2] - dir[2]*right[1];
+    up[1] = dir[2]*right[0] - dir[0]*right[2];
+    up[2] = dir[0]*right[1] - dir[1]*right[0];
+  }
+
+  private String key(float[] data) {
+    return String.format("%08x_%d_%dx%d", Arrays.hashCode(data), data.length, frames, cell);
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getBaked() {
+    return baked;
+  }
+
+  public long getBakeNanos() {
+    return bakeNanos;
+  }
+}
@@ -0,0 +1,248 @@
+package graphics;
+import static org.lwjgl.opengl.GL33.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+import state.Scene;
+
+/**
+ * Draws distant instances as single camera-facing quads textured from baked atlases.
+ *
+ * Every stage with an impostor owns one layer of a colour and a normal texture array.
+ * split() takes the visible instances further away than the distance threshold out of
+ * the mesh path and packs them into an instance buffer - world space center and radius
+ * of the baked sphere plus the layer. draw() expands the quads from gl_VertexID, the
+ * vertex shader picks the baked view closest to the eye direction per instance
+ * (impostor.vert), the fragment shader lights it with the baked normals like mesh.frag.
+ *
+ * Baked views are in object space, instance rotation is not taken into account. Scale
+ * comes from the length of the transform's first column, the growth and the jitter scale.
+ *
+ */
+public final class ImpostorRenderer {
+
+  public static final int INSTANCE_FLOATS = 5;   // center.xyz, radius, layer
+
+  private final int frames;
+  private final int cell;
+  private final int maxLayers;
+  private final int colorTex;
+  private final int normalTex;
+  private final int vao;
+  private final int instanceVbo;
+
+  private int layers = 0;
+  private int[] stageLayer = new int[16];
+  private float[] layerSpheres = new float[0];   // center.xyz, radius per layer
+
+  private float distance = 40f;
+  private FloatBuffer instanceData = MemoryUtil.memAllocFloat(256 * INSTANCE_FLOATS);
+  private int instanceBufferBytes = 0;
+  private int instanceCount = 0;
+
+  public ImpostorRenderer(int frames, int cell, int maxLayers) {
+    this.frames = frames;
+    this.cell = cell;
+    this.maxLayers = maxLayers;
+    Arrays.fill(stageLayer, -1);
+    colorTex = createArray(frames * cell, maxLayers);
+    normalTex = createArray(frames * cell, maxLayers);
+
+    vao = glGenVertexArrays();
+    instanceVbo = glGenBuffers();
+    glBindVertexArray(vao);
+    glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+    final int STRIDE_BYTES = INSTANCE_FLOATS * Float.BYTES;
+    glVertexAttribPointer(0, 4, GL_FLOAT, false, STRIDE_BYTES, 0L);
+    glVertexAttribDivisor(0, 1);
+    glEnableVertexAttribArray(0);
+    glVertexAttribPointer(1, 1, GL_FLOAT, false, STRIDE_BYTES, 4L * Float.BYTES);
+    glVertexAttribDivisor(1, 1);
+    glEnableVertexAttribArray(1);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    glBindVertexArray(0);
+  }
+
+  // nearest filtering, a linear lookup would bleed the neighbouring views in
+  private static int createArray(int size, int layers) {
+    int tex = glGenTextures();
+    glBindTexture(GL_TEXTURE_2D_ARRAY, tex);
+    glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_RGBA8, size, size, layers, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+        (ByteBuffer) null);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    return tex;
+  }
+
+  /**
+   * upload the atlas of a stage into the next free layer
+   *
+   * @return false when all layers are taken or the atlas has a different grid
+   */
+  public boolean add(int stageId, ImpostorAtlas atlas) {
+    if (layers == maxLayers || atlas.frames != frames || atlas.cell != cell) {
+      return false;
+    }
+    int layer = layers++;
+    upload(colorTex, layer, atlas.color);
+    upload(normalTex, layer, atlas.normal);
+    if (stageId >= stageLayer.length) {
+      int old = stageLayer.length;
+      stageLayer = Arrays.copyOf(stageLayer, Math.max(stageId + 1, old * 2));
+      Arrays.fill(stageLayer, old, stageLayer.length, -1);
+    }
+    stageLayer[stageId] = layer;
+    layerSpheres = Arrays.copyOf(layerSpheres, layers * 4);
+    layerSpheres[layer*4] = atlas.center[0];
+    layerSpheres[layer*4+1] = atlas.center[1];
+    layerSpheres[layer*4+2] = atlas.center[2];
+    layerSpheres[layer*4+3] = atlas.radius;
+    return true;
+  }
+
+  private void upload(int tex, int layer, byte[] texels) {
+    int size = frames * cell;
+    ByteBuffer buf = MemoryUtil.memAlloc(texels.length);
+    buf.put(texels).flip();
+    glBindTexture(GL_TEXTURE_2D_ARRAY, tex);
+    glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+    glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, size, size, 1, GL_RGBA, GL_UNSIGNED_BYTE, buf);
+    glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+    MemoryUtil.memFree(buf);
+  }
+
+  public boolean has(int stageId) {
+    return stageId < stageLayer.length && stageLayer[stageId] >= 0;
+  }
+
+  /**
+   * instances further than this from the eye are drawn as impostors
+   */
+  public void setDistance(float distance) {
+    this.distance = distance;
+  }
+
+  public float getDistance() {
+    return distance;
+  }
+
+  /**
+   * move the far instances with an impostor out of visible / stages and upload them
+   *
+   * @param stages the mesh stage per visible instance, compacted along with visible
+   * @return the number of instances left for the mesh path
+   */
+  public int split(Scene scene, int[] visible, int[] stages, int count, Vector3f eye) {
+    return split(scene, visible, stages, null, count, eye);
+  }
+
+  /**
+   * split() with a per-instance value compacted along with visible, may be null
+   */
+  public int split(Scene scene, int[] visible, int[] stages, float[] depths, int count, Vector3f eye) {
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] transforms = scene.transforms();
+    float far2 = distance * distance;
+    instanceData.clear();
+    instanceCount = 0;
+    int kept = 0;
+    for (int k = 0; k < count; k++) {
+      int i = visible[k];
+      int stage = scene.variantStage(i);
+      float dx = cx[i] - eye.x, dy = cy[i] - eye.y, dz = cz[i] - eye.z;
+      if (dx*dx + dy*dy + dz*dz < far2 || !has(stage)) {
+        visible[kept] = i;
+        stages[kept] = stages[k];
+        if (depths != null) {
+          depths[kept] = depths[k];
+        }
+        kept++;
+        continue;
+      }
+      if (instanceData.remaining() < INSTANCE_FLOATS) {
+        instanceData = MemoryUtil.memRealloc(instanceData, instanceData.capacity() * 2);
+      }
+      int layer = stageLayer[stage];
+      int m = i * 16;
+      float growth = scene.instanceScale(i);
+      float sx = layerSpheres[layer*4] * growth, sy = layerSpheres[layer*4+1] * growth;
+      float sz = layerSpheres[layer*4+2] * growth;
+      // baked sphere center through the model matrix (column major)
+      float wx = transforms[m] * sx + transforms[m+4] * sy + transforms[m+8] * sz + transforms[m+12];
+      float wy = transforms[m+1] * sx + transforms[m+5] * sy + transforms[m+9] * sz + transforms[m+13];
+      float wz = transforms[m+2] * sx + transforms[m+6] * sy + transforms[m+10] * sz + transforms[m+14];
+      float scale = growth * (float) Math.sqrt(transforms[m] * transforms[m] + transforms[m+1] * transforms[m+1]
+          + transforms[m+2] * transforms[m+2]);
+      instanceData.put(wx).put(wy).put(wz).put(layerSpheres[layer*4+3] * scale).put(layer);
+      instanceCount++;
+    }
+    instanceData.flip();
+    upload();
+    return kept;
+  }
+
+  private void upload() {
+    if (instanceCount == 0) {
+      return;
+    }
+    int bytes = instanceData.remaining() * Float.BYTES;
+    glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+    if (bytes > instanceBufferBytes) {
+      instanceBufferBytes = Math.max(bytes, instanceBufferBytes * 2);
+    }
+    // orphan the old storage so the driver doesn't wait for the previous frame
+    glBufferData(GL_ARRAY_BUFFER, instanceBufferBytes, GL_STREAM_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, instanceData);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * impostor program must be bound, its samplers uColorAtlas / uNormalAtlas set to units 0 / 1
+   */
+  public void draw(GLStateCache state) {
+    if (instanceCount == 0) {
+      return;
+    }
+    glActiveTexture(GL_TEXTURE0);
+    glBindTexture(GL_TEXTURE_2D_ARRAY, colorTex);
+    glActiveTexture(GL_TEXTURE1);
+    glBindTexture(GL_TEXTURE_2D_ARRAY, normalTex);
+    glActiveTexture(GL_TEXTURE0);
+    state.bindVertexArray(vao);
+    glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, instanceCount);
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  public int getLayers() {
+    return layers;
+  }
+
+  // both texture arrays, allocated for all layers up front
+  public long sizeBytes() {
+    long size = (long) frames * cell;
+    return size * size * 4 * 2 * maxLayers + instanceBufferBytes;
+  }
+
+  public void dispose() {
+    glDeleteTextures(colorTex);
+    glDeleteTextures(normalTex);
+    glDeleteBuffers(instanceVbo);
+    glDeleteVertexArrays(vao);
+    MemoryUtil.memFree(instanceData);
+  }
+}
@@ -0,0 +1,226 @@
+package graphics;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import state.Scene;
+
+/**
+ * Submits every visible instance of every mesh in the arena with (normally) a single
+ * glMultiDrawArraysIndirect call.
+ *
+ * build() buckets the visible instances by stage, writes their model matrices into one
+ * instance buffer (per-instance attribute, locations 4..7, followed by the growth
+ * progress, min and max scale at location 8) and fills one
+ * DrawArraysIndirectCommand per stage. The command's baseInstance points at the first
+ * matrix of the stage, so the vertex shader fetches its per-draw data through the
+ * instanced attribute without any further binds.
+ *
+ * DrawArraysIndirectCommand = { count, instanceCount, first, baseInstance }
+ *
+ * Requires GL 4.2 (base instance). Without GL 4.3 / ARB_multi_draw_indirect the commands
+ * are issued one by one with glDrawArraysInstancedBaseInstance.
+ *
+ */
+public final class IndirectBatch {
+
+  public static final int COMMAND_INTS = 4;
+  public static final int INSTANCE_FLOATS = 19;   // mat4 model, vec3 growth
+
+  private final MeshArena arena;
+  private final boolean multiDraw;
+
+  private final int instanceVbo;
+  private final int commandBuffer;
+
+  private FloatBuffer instanceData;
+  private IntBuffer commands;
+  private int instanceBufferBytes = 0;
+  private int commandBufferBytes = 0;
+
+  private int[] stageCounts = new int[16];
+  private int[] stageOffsets = new int[16];
+  private int drawCount = 0;
+  private int instanceCount = 0;
+
+  // number of GL draw calls issued by the last draw()
+  private int drawCalls = 0;
+
+  public static boolean isSupported() {
+    GLCapabilities caps = GL.getCapabilities();
+    return caps.OpenGL42 || caps.GL_ARB_base_instance;
+  }
+
+  public IndirectBatch(MeshArena arena) {
+    GLCapabilities caps = GL.getCapabilities();
+    this.arena = arena;
+    this.multiDraw = caps.OpenGL43 || caps.GL_ARB_multi_draw_indirect;
+
+    instanceData = MemoryUtil.memAllocFloat(256 * INSTANCE_FLOATS);
+    commands = MemoryUtil.memAllocInt(16 * COMMAND_INTS);
+
+    instanceVbo = glGenBuffers();
+    commandBuffer = glGenBuffers();
+
+    // per-instance model matrix, a mat4 attribute takes 4 consecutive locations
+    glBindVertexArray(arena.vao);
+    glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+    final int STRIDE_BYTES = INSTANCE_FLOATS * Float.BYTES;
+    for (int col = 0; col < 4; col++) {
+      int loc = 4 + col;
+      glVertexAttribPointer(loc, 4, GL_FLOAT, false, STRIDE_BYTES, (long) col * 4 * Float.BYTES);
+      glVertexAttribDivisor(loc, 1);
+      glEnableVertexAttribArray(loc);
+    }
+    glVertexAttribPointer(8, 3, GL_FLOAT, false, STRIDE_BYTES, 16L * Float.BYTES);
+    glVertexAttribDivisor(8, 1);
+    glEnableVertexAttribArray(8);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    glBindVertexArray(0);
+  }
+
+  /**
+   * fill the instance and command buffers from a list of visible instance indices
+   *
+   * instances whose stage is not resident in the arena are skipped
+   */
+  public void build(Scene scene, int[] visible, int visibleCount) {
+    build(scene, visible, null, visibleCount);
+  }
+
+  /**
+   * same, but visible[i] is drawn with the mesh of stage visibleStages[i] (LOD levels)
+   */
+  public void build(Scene scene, int[] visible, int[] visibleStages, int visibleCount) {
+    int stageCount = arena.stageCapacity();
+    if (stageCounts.length < stageCount) {
+      stageCounts = new int[stageCount];
+      stageOffsets = new int[stageCount];
+    }
+    Arrays.fill(stageCounts, 0, stageCount, 0);
+
+    // pass 1 - count instances per stage
+    for (int i = 0; i < visibleCount; i++) {
+      int stage = visibleStages != null ? visibleStages[i] : scene.variantStage(visible[i]);
+      if (stage < stageCount && arena.isResident(stage)) {
+        stageCounts[stage]++;
+      }
+    }
+
+    // prefix sum gives the baseInstance of each stage, one command per non-empty stage
+    commands.clear();
+    drawCount = 0;
+    int offset = 0;
+    for (int s = 0; s < stageCount; s++) {
+      stageOffsets[s] = offset;
+      int n = stageCounts[s];
+      if (n == 0) {
+        continue;
+      }
+      commands = ensureRemaining(commands, COMMAND_INTS);
+      commands.put(arena.count(s)).put(n).put(arena.first(s)).put(offset);
+      drawCount++;
+      offset += n;
+    }
+    instanceCount = offset;
+
+    // pass 2 - scatter the model matrices into their stage's range
+    if (instanceData.capacity() < instanceCount * INSTANCE_FLOATS) {
+      instanceData = MemoryUtil.memRealloc(instanceData, Math.max(instanceCount, instanceData.capacity() / INSTANCE_FLOATS * 2) * INSTANCE_FLOATS);
+    }
+    instanceData.clear();
+    float[] transforms = scene.transforms();
+    float[] growth = scene.growth(), growthMin = scene.growthMin(), growthMax = scene.growthMax();
+    for (int i = 0; i < visibleCount; i++) {
+      int instance = visible[i];
+      int stage = visibleStages != null ? visibleStages[i] : scene.variantStage(instance);
+      if (stage >= stageCount || !arena.isResident(stage)) {
+        continue;
+      }
+      int dst = stageOffsets[stage]++ * INSTANCE_FLOATS;
+      instanceData.position(dst);
+      instanceData.put(transforms, instance * 16, 16);
+      instanceData.put(growth[instance]).put(growthMin[instance]).put(growthMax[instance]);
+    }
+    instanceData.position(0).limit(instanceCount * INSTANCE_FLOATS);
+    commands.flip();
+
+    upload();
+  }
+
+  private static IntBuffer ensureRemaining(IntBuffer buf, int n) {
+    if (buf.remaining() >= n) {
+      return buf;
+    }
+    return MemoryUtil.memRealloc(buf, buf.capacity() * 2);
+  }
+
+  private void upload() {
+    int instanceBytes = instanceData.remaining() * Float.BYTES;
+    glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+    if (instanceBytes > instanceBufferBytes) {
+      instanceBufferBytes = Math.max(instanceBytes, instanceBufferBytes * 2);
+    }
+    // orphan the old storage so the driver doesn't wait for the previous frame
+    glBufferData(GL_ARRAY_BUFFER, instanceBufferBytes, GL_STREAM_DRAW);
+    glBufferSubData(GL_ARRAY_BUFFER, 0, instanceData);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+    int commandBytes = commands.remaining() * Integer.BYTES;
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+    if (commandBytes > commandBufferBytes) {
+      commandBufferBytes = Math.max(commandBytes, commandBufferBytes * 2);
+    }
+    glBufferData(GL_DRAW_INDIRECT_BUFFER, commandBufferBytes, GL_STREAM_DRAW);
+    glBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, commands);
+    glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+  }
+
+  public void draw(GLStateCache state) {
+    drawCalls = 0;
+    if (drawCount == 0) {
+      return;
+    }
+    state.bindVertexArray(arena.vao);
+    if (multiDraw) {
+      state.bindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+      glMultiDrawArraysIndirect(GL_TRIANGLES, 0L, drawCount, 0);
+      drawCalls = 1;
+    } else {
+      for (int i = 0; i < drawCount; i++) {
+        int c = i * COMMAND_INTS;
+        glDrawArraysInstancedBaseInstance(GL_TRIANGLES, commands.get(c+2), commands.get(c), commands.get(c+1), commands.get(c+3));
+      }
+      drawCalls = drawCount;
+    }
+  }
+
+  public int getDrawCount() {
+    return drawCount;
+  }
+
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  public int getDrawCalls() {
+    return drawCalls;
+  }
+
+  public long sizeBytes() {
+    return (long) instanceBufferBytes + commandBufferBytes;
+  }
+
+  public void dispose() {
+    glDeleteBuffers(instanceVbo);
+    glDeleteBuffers(commandBuffer);
+    MemoryUtil.memFree(instanceData);
+    MemoryUtil.memFree(commands);
+  }
+}
@@ -0,0 +1,337 @@
+package graphics;
+
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+
+import model_loader.MeshSimplifier;
+import model_loader.SubBlueprint;
+import state.Scene;
+import state.StageLibrary;
+
+/**
+ * Per-instance level of detail from the projected screen size.
+ *
+ * An instance's size in pixels is its largest world bounding box dimension times
+ * pixelScale() over its distance to the eye. Level i is used while that size is at
+ * least levelPixels[i]; below the last threshold the instance is culled. A level only
+ * changes once the size is past the threshold by the hysteresis fraction, so instances
+ * sitting on a boundary don't flicker between levels.
+ *
+ * The levels of a stage are separate stages (own id, own arena range) built with
+ * MeshSimplifier, see buildChain(). Stages without a chain always use themselves.
+ * The bias scales all sizes by 2^-bias, positive values go coarser sooner.
+ *
+ * A level that isn't resident in the arena (evicted, still streaming in) is replaced by
+ * the closest resident one of its chain, coarser levels first, and listed in missing()
+ * so it can be requested. The coarsest level is kept resident as the fallback
+ * (ResidencyController), so there is always something to draw.
+ *
+ * select() may run on several threads at once over disjoint parts of the scene
+ * (DrawListBuilder): prepare() first, each caller counts into its own Tally, combine() makes
+ * the sum what the getters report.
+ *
+ */
+public final class LodSelector {
+
+  private static final byte NONE = -1;
+
+  // min pixel size of level 0, 1, 2, below the last one the instance is culled
+  private float[] levelPixels = {96f, 32f, 3f};
+  private float hysteresis = 0.15f;
+  private float bias = 0f;
+
+  private int[][] chains = new int[16][];
+  private byte[] current = new byte[0];
+
+  /**
+   * counts of one select() call
+   */
+  public static final class Tally {
+    int trianglesSubmitted = 0;
+    int culled = 0;
+    int fallbacks = 0;
+    final int[] perLevel;
+    int[] missing = new int[16];
+    int missingCount = 0;
+
+    private Tally(int levels) {
+      perLevel = new int[levels];
+    }
+
+    void clear() {
+      trianglesSubmitted = 0;
+      culled = 0;
+      fallbacks = 0;
+      Arrays.fill(perLevel, 0);
+      missingCount = 0;
+    }
+
+    void addMissing(int stage) {
+      for (int k = 0; k < missingCount; k++) {
+        if (missing[k] == stage) {
+          return;
+        }
+      }
+      if (missingCount == missing.length) {
+        missing = Arrays.copyOf(missing, missing.length * 2);
+      }
+      missing[missingCount++] = stage;
+    }
+  }
+
+  private final Tally tally = new Tally(levelPixels.length);
+
+  /**
+   * pixels per world unit at distance 1 - projection's m11 times half the viewport height
+   */
+  public static float pixelScale(Camera camera, int viewportHeight) {
+    return camera.projMat().m11() * viewportHeight * 0.5f;
+  }
+
+  /**
+   * register simplified versions of a stage as new stages and upload them
+   *
+   * @return the stage ids of the chain, the given stage first
+   */
+  public int[] buildChain(StageLibrary stages, MeshArena arena, int stageId) {
+    SubBlueprint base = stages.get(stageId);
+    float[] data = base.getFullModelData();
+    float size = base.getAABB().getMaxDimension();
+    int[] chain = new int[levelPixels.length];
+    chain[0] = stageId;
+    int levels = 1;
+    int previousLength = data.length;
+    // 12 and 5 cells across the largest dimension
+    float[] cellsAcross = {12f, 5f};
+    for (int l = 0; l < cellsAcross.length && levels < chain.length; l++) {
+      float[] coarse = MeshSimplifier.cluster(data, size / cellsAcross[l]);
+      // not worth a level when it barely saves anything
+      if (coarse.length == 0 || coarse.length > previousLength * 0.8f) {
+        continue;
+      }
+      int id = stages.register(stages.getName(stageId) + "-lod" + levels,
+          new SubBlueprint(coarse, base.getAABB(), base.getExtraAabbs(), base.getIncreaseFactor()));
+      arena.add(id, coarse);
+      chain[levels++] = id;
+      previousLength = coarse.length;
+    }
+    chain = Arrays.copyOf(chain, levels);
+    setChain(stageId, chain);
+    return chain;
+  }
+
+  /**
+   * the chain is registered under every level's id, fallback() starts from whichever level
+   * was selected
+   */
+  public void setChain(int stageId, int[] chain) {
+    put(stageId, chain);
+    for (int id : chain) {
+      put(id, chain);
+    }
+  }
+
+  private void put(int stageId, int[] chain) {
+    if (stageId >= chains.length) {
+      chains = Arrays.copyOf(chains, Math.max(stageId + 1, chains.length * 2));
+    }
+    chains[stageId] = chain;
+  }
+
+  /**
+   * stage ids of the levels of the chain a stage is part of, null when it has none
+   */
+  public int[] chain(int stageId) {
+    return stageId < chains.length ? chains[stageId] : null;
+  }
+
+  /**
+   * the level drawn in place of a stage that isn't resident, -1 when none is
+   */
+  public int fallback(int stageId, MeshArena arena) {
+    if (arena.isResident(stageId)) {
+      return stageId;
+    }
+    int[] chain = chain(stageId);
+    if (chain == null) {
+      return -1;
+    }
+    int level = 0;
+    while (chain[level] != stageId) {
+      level++;
+    }
+    for (int l = level + 1; l < chain.length; l++) {
+      if (arena.isResident(chain[l])) {
+        return chain[l];
+      }
+    }
+    for (int l = level - 1; l >= 0; l--) {
+      if (arena.isResident(chain[l])) {
+        return chain[l];
+      }
+    }
+    return -1;
+  }
+
+  public void setBias(float bias) {
+    this.bias = bias;
+  }
+
+  public float getBias() {
+    return bias;
+  }
+
+  public void setHysteresis(float fraction) {
+    this.hysteresis = fraction;
+  }
+
+  /**
+   * pick the stage of every visible instance, culled ones are removed from visible
+   *
+   * @param stagesOut receives the stage to draw for visible[k]
+   * @return the new visible count
+   */
+  public int select(Scene scene, int[] visible, int count, Vector3f eye, float pixelScale, MeshArena arena,
+      int[] stagesOut) {
+    prepare(scene.size());
+    tally.clear();
+    return select(scene, visible, 0, count, eye, pixelScale, arena, visible, stagesOut, 0, tally);
+  }
+
+  /**
+   * make room for the level memory of every instance, before select() runs on other threads
+   */
+  public void prepare(int instanceCount) {
+    if (current.length < instanceCount) {
+      int old = current.length;
+      current = Arrays.copyOf(current, Math.max(instanceCount, old * 2));
+      Arrays.fill(current, old, current.length, NONE);
+    }
+  }
+
+  public Tally newTally() {
+    return new Tally(levelPixels.length);
+  }
+
+  /**
+   * select() over visible[from, to) into the outputs from outOffset on, prepare() must have
+   * covered the scene. Calls on other threads need disjoint instances and their own tally.
+   * A null arena counts every stage as resident, without triangles (benchmarks)
+   *
+   * @return the number written
+   */
+  public int select(Scene scene, int[] visible, int from, int to, Vector3f eye, float pixelScale, MeshArena arena,
+      int[] visibleOut, int[] stagesOut, int outOffset, Tally t) {
+    float scale = pixelScale * (float) Math.pow(2, -bias);
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    int levels = levelPixels.length;
+    t.clear();
+
+    int kept = outOffset;
+    for (int k = from; k < to; k++) {
+      int i = visible[k];
+      float dx = cx[i] - eye.x, dy = cy[i] - eye.y, dz = cz[i] - eye.z;
+      float dist = Math.max((float) Math.sqrt(dx*dx + dy*dy + dz*dz), 1e-3f);
+      float size = 2f * Math.max(ex[i], Math.max(ey[i], ez[i]));
+      float px = size * scale / dist;
+
+      // finest and coarsest level the hysteresis band allows, stay inside it
+      int finest = level(px * (1f + hysteresis));
+      int coarsest = level(px * (1f - hysteresis));
+      int level = current[i] == NONE ? level(px) : Math.max(finest, Math.min(coarsest, current[i]));
+      current[i] = (byte) level;
+      if (level == levels) {
+        t.culled++;
+        continue;
+      }
+      int stage = scene.variantStage(i);
+      int[] chain = stage < chains.length ? chains[stage] : null;
+      if (chain != null) {
+        stage = chain[Math.min(level, chain.length - 1)];
+      }
+      if (arena != null && !arena.isResident(stage)) {
+        t.addMissing(stage);
+        int fallback = fallback(stage, arena);
+        if (fallback < 0) {
+          continue;
+        }
+        stage = fallback;
+        t.fallbacks++;
+      }
+      t.perLevel[level]++;
+      t.trianglesSubmitted += arena != null ? arena.count(stage) / 3 : 0;
+      visibleOut[kept] = i;
+      stagesOut[kept] = stage;
+      kept++;
+    }
+    return kept - outOffset;
+  }
+
+  /**
+   * the getters report the sum of parts[0, count)
+   */
+  public void combine(Tally[] parts, int count) {
+    tally.clear();
+    for (int p = 0; p < count; p++) {
+      Tally t = parts[p];
+      tally.trianglesSubmitted += t.trianglesSubmitted;
+      tally.culled += t.culled;
+      tally.fallbacks += t.fallbacks;
+      for (int l = 0; l < tally.perLevel.length; l++) {
+        tally.perLevel[l] += t.perLevel[l];
+      }
+      for (int k = 0; k < t.missingCount; k++) {
+        tally.addMissing(t.missing[k]);
+      }
+    }
+  }
+
+  // levelPixels.length means culled
+  private int level(float px) {
+    for (int l = 0; l < levelPixels.length; l++) {
+      if (px >= levelPixels[l]) {
+        return l;
+      }
+    }
+    return levelPixels.length;
+  }
+
+  /**
+   * instance slots are the scene indices, forget them after the scene was reordered
+   */
+  public void reset() {
+    Arrays.fill(current, NONE);
+  }
+
+  /**
+   * stages the last select() wanted but found evicted, getMissingCount() of them
+   */
+  public int[] missing() {
+    return tally.missing;
+  }
+
+  public int getMissingCount() {
+    return tally.missingCount;
+  }
+
+  /**
+   * instances drawn with another level than selected in the last select()
+   */
+  public int getFallbacks() {
+    return tally.fallbacks;
+  }
+
+  public int getTrianglesSubmitted() {
+    return tally.trianglesSubmitted;
+  }
+
+  public int getCulled() {
+    return tally.culled;
+  }
+
+  public int getLevelCount(int level) {
+    return tally.perLevel[level];
+  }
+}
@@ -2,6 +2,9 @@ package graphics;
 import static org.lwjgl.opengl.GL30.*;
 
 public final class Mesh {
+  public static final int VERTEX_FLOATS = 10;          // pos(3) + wobble(1) + normal(3) + color(3)
+  public static final int STRIDE_BYTES  = VERTEX_FLOATS * Float.BYTES; // 40
+
   public final int vao;
   public final int vbo;
   public final int vertexCount;
@@ -13,9 +16,6 @@ public final class Mesh {
   }
 
   public static Mesh create(float[] data) {
-    final int VERTEX_FLOATS = 10;          // pos(3) + wobble(1) + normal(3) + color(3)
-    final int STRIDE_BYTES  = VERTEX_FLOATS * Float.BYTES; // 40
-
     int vao = glGenVertexArrays();
     int vbo = glGenBuffers();
 
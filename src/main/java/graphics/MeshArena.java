@@ -0,0 +1,271 @@
+package graphics;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * One shared vertex buffer holding many meshes (blueprint stages).
+ *
+ * All meshes use the same vertex layout as {@link Mesh} so a single VAO describes them
+ * all, meshes are addressed by the stage id they were added under and drawn through
+ * their first vertex and vertex count. Ranges are handed out first-fit from a free list,
+ * a full arena is grown by copying into a larger buffer.
+ *
+ */
+public final class MeshArena {
+
+  public final int vao;
+  // false keeps only the range bookkeeping, without a context (tests)
+  private final boolean backed;
+  private int vbo;
+  private int capacity;      // vertices
+  private int used = 0;      // high water mark (vertices)
+
+  private int[] first = new int[16];
+  private int[] count = new int[16];
+
+  // free ranges below the high water mark, kept sorted by start
+  private int[] freeStart = new int[8];
+  private int[] freeLength = new int[8];
+  private int freeCount = 0;
+
+  // bumped whenever a range or the buffer changes
+  private int version = 0;
+
+  public MeshArena(int initialVertexCapacity) {
+    this(initialVertexCapacity, true);
+  }
+
+  /**
+   * ranges without a vertex buffer, reserve(), attach() and remove() only
+   */
+  static MeshArena unbacked(int initialVertexCapacity) {
+    return new MeshArena(initialVertexCapacity, false);
+  }
+
+  private MeshArena(int initialVertexCapacity, boolean backed) {
+    Arrays.fill(first, -1);
+    capacity = initialVertexCapacity;
+    this.backed = backed;
+    if (!backed) {
+      vao = 0;
+      return;
+    }
+    vao = glGenVertexArrays();
+    vbo = createBuffer(capacity);
+    glBindVertexArray(vao);
+    bindVertexLayout(vbo);
+    glBindVertexArray(0);
+  }
+
+  private static int createBuffer(int vertexCapacity) {
+    int buf = glGenBuffers();
+    glBindBuffer(GL_ARRAY_BUFFER, buf);
+    glBufferData(GL_ARRAY_BUFFER, (long) vertexCapacity * Mesh.STRIDE_BYTES, GL_STATIC_DRAW);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    return buf;
+  }
+
+  // attribute layout is the one from Mesh.create (locations 0..3)
+  static void bindVertexLayout(int buf) {
+    glBindBuffer(GL_ARRAY_BUFFER, buf);
+    glVertexAttribPointer(0, 3, GL_FLOAT, false, Mesh.STRIDE_BYTES, 0L);
+    glEnableVertexAttribArray(0);
+    glVertexAttribPointer(1, 1, GL_FLOAT, false, Mesh.STRIDE_BYTES, 12L);
+    glEnableVertexAttribArray(1);
+    glVertexAttribPointer(2, 3, GL_FLOAT, false, Mesh.STRIDE_BYTES, 16L);
+    glEnableVertexAttribArray(2);
+    glVertexAttribPointer(3, 3, GL_FLOAT, false, Mesh.STRIDE_BYTES, 28L);
+    glEnableVertexAttribArray(3);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * upload the vertex data of a stage, data is in the blueprint format of 10 floats per vertex
+   */
+  public void add(int stageId, float[] data) {
+    if (isResident(stageId)) {
+      throw new IllegalStateException("stage already resident: " + stageId);
+    }
+    int vertexCount = data.length / Mesh.VERTEX_FLOATS;
+    int start = reserve(vertexCount);
+    glBindBuffer(GL_ARRAY_BUFFER, vbo);
+    glBufferSubData(GL_ARRAY_BUFFER, (long) start * Mesh.STRIDE_BYTES, data);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+    attach(stageId, start, vertexCount);
+  }
+
+  /**
+   * allocate a range that is filled over several upload() calls and handed to a stage
+   * with attach() once complete, returns the first vertex
+   */
+  public int reserve(int vertexCount) {
+    return allocate(vertexCount);
+  }
+
+  /**
+   * write vertices into a reserved range, data is read from its position to its limit
+   */
+  public void upload(int firstVertex, FloatBuffer data) {
+    glBindBuffer(GL_ARRAY_BUFFER, vbo);
+    glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex * Mesh.STRIDE_BYTES, data);
+    glBindBuffer(GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * make a reserved and uploaded range the mesh of a stage
+   */
+  public void attach(int stageId, int start, int vertexCount) {
+    if (isResident(stageId)) {
+      throw new IllegalStateException("stage already resident: " + stageId);
+    }
+    ensureStageSlot(stageId);
+    first[stageId] = start;
+    count[stageId] = vertexCount;
+    version++;
+  }
+
+  public void remove(int stageId) {
+    if (!isResident(stageId)) {
+      return;
+    }
+    release(first[stageId], count[stageId]);
+    first[stageId] = -1;
+    count[stageId] = 0;
+    version++;
+  }
+
+  public boolean isResident(int stageId) {
+    return stageId < first.length && first[stageId] >= 0;
+  }
+
+  public int first(int stageId) {
+    return first[stageId];
+  }
+
+  public int count(int stageId) {
+    return count[stageId];
+  }
+
+  public int vbo() {
+    return vbo;
+  }
+
+  public int version() {
+    return version;
+  }
+
+  public int stageCapacity() {
+    return first.length;
+  }
+
+  public long sizeBytes() {
+    return (long) capacity * Mesh.STRIDE_BYTES;
+  }
+
+  private void ensureStageSlot(int stageId) {
+    if (stageId < first.length) {
+      return;
+    }
+    int n = Math.max(stageId + 1, first.length * 2);
+    int old = first.length;
+    first = Arrays.copyOf(first, n);
+    count = Arrays.copyOf(count, n);
+    Arrays.fill(first, old, n, -1);
+  }
+
+  private int allocate(int vertexCount) {
+    for (int i = 0; i < freeCount; i++) {
+      if (freeLength[i] >= vertexCount) {
+        int start = freeStart[i];
+        freeStart[i] += vertexCount;
+        freeLength[i] -= vertexCount;
+        if (freeLength[i] == 0) {
+          removeFree(i);
+        }
+        return start;
+      }
+    }
+    if (used + vertexCount > capacity) {
+      grow(Math.max(capacity * 2, used + vertexCount));
+    }
+    int start = used;
+    used += vertexCount;
+    return start;
+  }
+
+  private void release(int start, int length) {
+    if (start + length == used) {
+      used = start;
+      // the range now at the top may expose a free range as well
+      while (freeCount > 0 && freeStart[freeCount-1] + freeLength[freeCount-1] == used) {
+        used = freeStart[freeCount-1];
+        freeCount--;
+      }
+      return;
+    }
+    int i = 0;
+    while (i < freeCount && freeStart[i] < start) {
+      i++;
+    }
+    // merge with the neighbours when adjacent
+    boolean mergePrev = i > 0 && freeStart[i-1] + freeLength[i-1] == start;
+    boolean mergeNext = i < freeCount && start + length == freeStart[i];
+    if (mergePrev && mergeNext) {
+      freeLength[i-1] += length + freeLength[i];
+      removeFree(i);
+    } else if (mergePrev) {
+      freeLength[i-1] += length;
+    } else if (mergeNext) {
+      freeStart[i] = start;
+      freeLength[i] += length;
+    } else {
+      if (freeCount == freeStart.length) {
+        freeStart = Arrays.copyOf(freeStart, freeCount * 2);
+        freeLength = Arrays.copyOf(freeLength, freeCount * 2);
+      }
+      System.arraycopy(freeStart, i, freeStart, i + 1, freeCount - i);
+      System.arraycopy(freeLength, i, freeLength, i + 1, freeCount - i);
+      freeStart[i] = start;
+      freeLength[i] = length;
+      freeCount++;
+    }
+  }
+
+  private void removeFree(int i) {
+    System.arraycopy(freeStart, i + 1, freeStart, i, freeCount - i - 1);
+    System.arraycopy(freeLength, i + 1, freeLength, i, freeCount - i - 1);
+    freeCount--;
+  }
+
+  private void grow(int newCapacity) {
+    if (!backed) {
+      capacity = newCapacity;
+      version++;
+      return;
+    }
+    int newVbo = createBuffer(newCapacity);
+    glBindBuffer(GL_COPY_READ_BUFFER, vbo);
+    glBindBuffer(GL_COPY_WRITE_BUFFER, newVbo);
+    glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, (long) used * Mesh.STRIDE_BYTES);
+    glBindBuffer(GL_COPY_READ_BUFFER, 0);
+    glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    glDeleteBuffers(vbo);
+    vbo = newVbo;
+    capacity = newCapacity;
+    version++;
+
+    glBindVertexArray(vao);
+    bindVertexLayout(vbo);
+    glBindVertexArray(0);
+  }
+
+  public void dispose() {
+    if (!backed) {
+      return;
+    }
+    glDeleteBuffers(vbo);
+    glDeleteVertexArrays(vao);
+  }
+}
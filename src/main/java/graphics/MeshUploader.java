@@ -0,0 +1,219 @@
+package graphics;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.lwjgl.system.MemoryUtil;
+
+import model_loader.BlueprintLoader;
+import model_loader.MyFile;
+import model_loader.SubBlueprint;
+import state.StageLibrary;
+
+/**
+ * Loads blueprints without blocking the GL thread.
+ *
+ * Worker threads parse the blueprint and pack the vertices of every stage into direct
+ * staging buffers. The GL thread calls update() once per frame, which registers the
+ * stages, reserves their ranges in the arena and uploads at most the byte / time budget
+ * with glBufferSubData. A stage becomes resident (drawable) once all of its vertices
+ * are uploaded.
+ *
+ * load() returns a future of the first stage id, it completes on the GL thread inside
+ * update(), so callbacks may add instances to the scene directly.
+ *
+ */
+public final class MeshUploader {
+
+  // parsed blueprint waiting for / in upload
+  private static final class Job {
+    final String name;
+    final CompletableFuture<Integer> ready;
+    final List<SubBlueprint> bps;
+    final FloatBuffer[] staging;
+    Exception error;        // parse failure, reported from update()
+    int firstStage = -1;
+    int[] start;
+    int stage = 0;          // stage being uploaded
+    int uploaded = 0;       // vertices of that stage done
+
+    Job(String name, CompletableFuture<Integer> ready, List<SubBlueprint> bps, FloatBuffer[] staging) {
+      this.name = name;
+      this.ready = ready;
+      this.bps = bps;
+      this.staging = staging;
+    }
+  }
+
+  private final StageLibrary stages;
+  private final MeshArena arena;
+  private final ExecutorService workers;
+  private final ConcurrentLinkedQueue<Job> parsed = new ConcurrentLinkedQueue<>();
+  private Job current;
+
+  private int budgetBytes = 256 * 1024;
+  private long budgetNanos = 1_000_000L;
+
+  private int lastBytes = 0;
+  private long lastNanos = 0;
+  private int pending = 0;
+
+  public MeshUploader(StageLibrary stages, MeshArena arena, int workerThreads) {
+    this.stages = stages;
+    this.arena = arena;
+    this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+      Thread t = new Thread(r, "mesh-loader");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * upload limit per update(), whichever is hit first. At least one vertex is always
+   * uploaded so a small budget can't stall the queue
+   */
+  public void setBudget(int bytes, long nanos) {
+    budgetBytes = bytes;
+    budgetNanos = nanos;
+  }
+
+  /**
+   * parse and upload a blueprint in the background
+   *
+   * @return completes with the id of the first stage once every stage is resident
+   */
+  public CompletableFuture<Integer> load(String name, MyFile file) {
+    CompletableFuture<Integer> ready = new CompletableFuture<>();
+    pending++;
+    workers.execute(() -> {
+      try {
+        List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(file);
+        FloatBuffer[] staging = new FloatBuffer[bps.size()];
+        for (int i = 0; i < staging.length; i++) {
+          float[] data = bps.get(i).getFullModelData();
+          staging[i] = MemoryUtil.memAllocFloat(Math.max(data.length, 1));
+          staging[i].put(data).flip();
+        }
+        parsed.add(new Job(name, ready, bps, staging));
+      } catch (Exception e) {
+        Job failed = new Job(name, ready, null, null);
+        failed.error = e;
+        parsed.add(failed);
+      }
+    });
+    return ready;
+  }
+
+  /**
+   * GL thread, once per frame
+   */
+  public void update() {
+    long startTime = System.nanoTime();
+    int bytes = 0;
+    while (bytes < budgetBytes && System.nanoTime() - startTime < budgetNanos) {
+      if (current == null) {
+        current = parsed.poll();
+        if (current == null) {
+          break;
+        }
+        if (current.bps == null) {
+          finish();
+          continue;
+        }
+        begin(current);
+      }
+      Job job = current;
+      if (job.stage == job.staging.length) {
+        finish();
+        continue;
+      }
+      FloatBuffer src = job.staging[job.stage];
+      int remaining = src.remaining() / Mesh.VERTEX_FLOATS;
+      int budgetVertices = Math.max((budgetBytes - bytes) / Mesh.STRIDE_BYTES, bytes == 0 ? 1 : 0);
+      int n = Math.min(remaining, budgetVertices);
+      if (n == 0 && remaining > 0) {
+        break;
+      }
+      if (n > 0) {
+        int limit = src.limit();
+        src.limit(src.position() + n * Mesh.VERTEX_FLOATS);
+        arena.upload(job.start[job.stage] + job.uploaded, src);
+        src.position(src.limit()).limit(limit);
+        job.uploaded += n;
+        bytes += n * Mesh.STRIDE_BYTES;
+      }
+      if (!src.hasRemaining()) {
+        arena.attach(job.firstStage + job.stage, job.start[job.stage], job.uploaded);
+        job.stage++;
+        job.uploaded = 0;
+      }
+    }
+    lastBytes = bytes;
+    lastNanos = System.nanoTime() - startTime;
+  }
+
+  // stages are registered and their ranges reserved on the GL thread
+  private void begin(Job job) {
+    job.firstStage = stages.registerAll(job.name, job.bps);
+    job.start = new int[job.staging.length];
+    for (int i = 0; i < job.staging.length; i++) {
+      job.start[i] = arena.reserve(job.staging[i].remaining() / Mesh.VERTEX_FLOATS);
+    }
+  }
+
+  private void finish() {
+    Job job = current;
+    current = null;
+    pending--;
+    if (job.error != null) {
+      job.ready.completeExceptionally(job.error);
+      return;
+    }
+    for (FloatBuffer b : job.staging) {
+      MemoryUtil.memFree(b);
+    }
+    job.ready.complete(job.firstStage);
+  }
+
+  /**
+   * bytes uploaded by the last update()
+   */
+  public int getLastBytes() {
+    return lastBytes;
+  }
+
+  /**
+   * time spent in the last update()
+   */
+  public long getLastNanos() {
+    return lastNanos;
+  }
+
+  /**
+   * loads not yet complete (parsing or uploading)
+   */
+  public int getPending() {
+    return pending;
+  }
+
+  public void dispose() {
+    workers.shutdownNow();
+    if (current != null && current.staging != null) {
+      for (FloatBuffer b : current.staging) {
+        MemoryUtil.memFree(b);
+      }
+    }
+    Job job;
+    while ((job = parsed.poll()) != null) {
+      if (job.staging != null) {
+        for (FloatBuffer b : job.staging) {
+          MemoryUtil.memFree(b);
+        }
+      }
+    }
+  }
+}
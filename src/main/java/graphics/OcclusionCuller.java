@@ -0,0 +1,379 @@
+package graphics;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import model_loader.SubBlueprint;
+import state.IntList;
+import state.Scene;
+
+/**
+ * Software occlusion culling against a few large occluders.
+ *
+ * Each frame the biggest on-screen instances (by bounds size over distance) are picked
+ * as occluders and their triangles are rasterized into a small depth buffer. The screen
+ * is split into tiles, triangles are binned per tile and the tiles are rasterized in
+ * parallel, depth is interpolated and sampled at pixel centers. After rasterization the
+ * buffer is reduced to a hierarchical buffer holding the farthest depth of every 8x8
+ * block.
+ *
+ * Candidates are then tested by projecting the 8 corners of their AABB: an instance is
+ * hidden when its nearest depth is behind the occluder depth everywhere in its screen
+ * rectangle. Blocks whose farthest depth is already nearer are accepted without looking
+ * at their pixels, only the inconclusive blocks are scanned per pixel.
+ *
+ * Everything runs on the CPU, so it can be tested and benchmarked headless.
+ *
+ */
+public final class OcclusionCuller {
+
+  private static final int TILE_W = 32;
+  private static final int TILE_H = 32;
+  private static final int BLOCK = 8;           // hierarchical depth block size
+  private static final float NEAR_W = 1e-3f;    // triangles/boxes crossing the near plane are skipped / kept
+
+  private final int width;
+  private final int height;
+  private final int tilesX;
+  private final int tilesY;
+  private final int blocksX;
+  private final int blocksY;
+
+  private final float[] depth;
+  private final float[] hiz;
+
+  // screen space triangles x0,y0,z0,x1,y1,z1,x2,y2,z2 and their tile bins
+  private static final int TRI_FLOATS = 9;
+  private float[] tris = new float[TRI_FLOATS * 1024];
+  private int triCount = 0;
+  private final IntList[] bins;
+  // scratch of render(), the occluder transform and the screen corners of a triangle
+  private final Matrix4f model = new Matrix4f();
+  private final Matrix4f mvp = new Matrix4f();
+  private final float[] sx = new float[3];
+  private final float[] sy = new float[3];
+  private final float[] sz = new float[3];
+
+  private int maxOccluders = 24;
+  private float minOccluderScore = 0.15f;
+
+  // occluders picked last frame (instance indices) and their scores
+  private int[] occluders = new int[0];
+  private float[] occluderScores = new float[0];
+  private int occluderCount = 0;
+
+  // stats of the last frame
+  private int lastTested = 0;
+  private int lastCulled = 0;
+  private long lastRasterNanos = 0;
+  private long lastTestNanos = 0;
+
+  public OcclusionCuller(int width, int height) {
+    this.width = width;
+    this.height = height;
+    tilesX = (width + TILE_W - 1) / TILE_W;
+    tilesY = (height + TILE_H - 1) / TILE_H;
+    blocksX = (width + BLOCK - 1) / BLOCK;
+    blocksY = (height + BLOCK - 1) / BLOCK;
+    depth = new float[width * height];
+    hiz = new float[blocksX * blocksY];
+    bins = new IntList[tilesX * tilesY];
+    for (int i = 0; i < bins.length; i++) {
+      bins[i] = new IntList(256);
+    }
+  }
+
+  public void setMaxOccluders(int maxOccluders) {
+    this.maxOccluders = maxOccluders;
+  }
+
+  /**
+   * occluders need a bounds diameter of at least score * distance
+   */
+  public void setMinOccluderScore(float minOccluderScore) {
+    this.minOccluderScore = minOccluderScore;
+  }
+
+
+  /**
+   * pick occluders among the candidates, rasterize them and build the hierarchical buffer
+   *
+   * @param candidates instance indices (normally the frustum survivors)
+   */
+  public void render(Scene scene, Matrix4f viewProj, Vector3f cameraPos, int[] candidates, int candidateCount) {
+    long t0 = System.nanoTime();
+    selectOccluders(scene, cameraPos, candidates, candidateCount);
+
+    triCount = 0;
+    for (IntList bin : bins) {
+      bin.clear();
+    }
+    for (int k = 0; k < occluderCount; k++) {
+      int instance = occluders[k];
+      // the exact drawn shape, a larger occluder would hide visible instances
+      scene.model(instance, model);
+      viewProj.mul(model, mvp);
+      SubBlueprint stage = scene.stages.get(scene.variantStage(instance));
+      setupTriangles(stage.getFullModelData(), mvp);
+    }
+
+    Arrays.fill(depth, 1f);
+    IntStream.range(0, bins.length).parallel().forEach(this::rasterizeTile);
+    lastRasterNanos = System.nanoTime() - t0;
+  }
+
+  private void selectOccluders(Scene scene, Vector3f cameraPos, int[] candidates, int candidateCount) {
+    if (occluders.length < maxOccluders) {
+      occluders = new int[maxOccluders];
+      occluderScores = new float[maxOccluders];
+    }
+    occluderCount = 0;
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    for (int j = 0; j < candidateCount; j++) {
+      int i = candidates[j];
+      float dx = cx[i] - cameraPos.x, dy = cy[i] - cameraPos.y, dz = cz[i] - cameraPos.z;
+      float dist = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+      float size = 2 * Math.max(ex[i], Math.max(ey[i], ez[i]));
+      float score = size / Math.max(dist, 1e-3f);
+      if (score < minOccluderScore) {
+        continue;
+      }
+      // keep the best maxOccluders, sorted by descending score
+      if (occluderCount == maxOccluders && score <= occluderScores[occluderCount-1]) {
+        continue;
+      }
+      int p = occluderCount < maxOccluders ? occluderCount++ : occluderCount - 1;
+      while (p > 0 && occluderScores[p-1] < score) {
+        occluders[p] = occluders[p-1];
+        occluderScores[p] = occluderScores[p-1];
+        p--;
+      }
+      occluders[p] = i;
+      occluderScores[p] = score;
+    }
+  }
+
+  private void setupTriangles(float[] data, Matrix4f mvp) {
+    final int STRIDE = Mesh.VERTEX_FLOATS;
+    float m00 = mvp.m00(), m10 = mvp.m10(), m20 = mvp.m20(), m30 = mvp.m30();
+    float m01 = mvp.m01(), m11 = mvp.m11(), m21 = mvp.m21(), m31 = mvp.m31();
+    float m02 = mvp.m02(), m12 = mvp.m12(), m22 = mvp.m22(), m32 = mvp.m32();
+    float m03 = mvp.m03(), m13 = mvp.m13(), m23 = mvp.m23(), m33 = mvp.m33();
+    float[] sx = this.sx, sy = this.sy, sz = this.sz;
+    int vertexCount = data.length / STRIDE;
+    for (int v = 0; v + 2 < vertexCount; v += 3) {
+      boolean clipped = false;
+      for (int k = 0; k < 3; k++) {
+        int o = (v + k) * STRIDE;
+        float x = data[o], y = data[o+1], z = data[o+2];
+        float cw = m03*x + m13*y + m23*z + m33;
+        if (cw < NEAR_W) {
+          clipped = true;
+          break;
+        }
+        float inv = 1f / cw;
+        sx[k] = ((m00*x + m10*y + m20*z + m30) * inv * 0.5f + 0.5f) * width;
+        sy[k] = ((m01*x + m11*y + m21*z + m31) * inv * 0.5f + 0.5f) * height;
+        sz[k] = (m02*x + m12*y + m22*z + m32) * inv * 0.5f + 0.5f;
+      }
+      // skipping an occluder triangle only loses occlusion, never adds it
+      if (clipped) {
+        continue;
+      }
+      float area = (sx[1] - sx[0]) * (sy[2] - sy[0]) - (sx[2] - sx[0]) * (sy[1] - sy[0]);
+      if (Math.abs(area) < 1e-6f) {
+        continue;
+      }
+      int minX = Math.max(0, (int) Math.floor(Math.min(sx[0], Math.min(sx[1], sx[2]))));
+      int maxX = Math.min(width - 1, (int) Math.ceil(Math.max(sx[0], Math.max(sx[1], sx[2]))));
+      int minY = Math.max(0, (int) Math.floor(Math.min(sy[0], Math.min(sy[1], sy[2]))));
+      int maxY = Math.min(height - 1, (int) Math.ceil(Math.max(sy[0], Math.max(sy[1], sy[2]))));
+      if (minX > maxX || minY > maxY) {
+        continue;
+      }
+      if ((triCount + 1) * TRI_FLOATS > tris.length) {
+        tris = Arrays.copyOf(tris, tris.length * 2);
+      }
+      int t = triCount * TRI_FLOATS;
+      // counter-clockwise order so all edge functions are positive inside
+      int b = area > 0 ? 1 : 2;
+      int c = area > 0 ? 2 : 1;
+      tris[t]   = sx[0]; tris[t+1] = sy[0]; tris[t+2] = sz[0];
+      tris[t+3] = sx[b]; tris[t+4] = sy[b]; tris[t+5] = sz[b];
+      tris[t+6] = sx[c]; tris[t+7] = sy[c]; tris[t+8] = sz[c];
+      for (int ty = minY / TILE_H; ty <= maxY / TILE_H; ty++) {
+        for (int tx = minX / TILE_W; tx <= maxX / TILE_W; tx++) {
+          bins[ty * tilesX + tx].add(triCount);
+        }
+      }
+      triCount++;
+    }
+  }
+
+  private void rasterizeTile(int tile) {
+    int tx0 = (tile % tilesX) * TILE_W;
+    int ty0 = (tile / tilesX) * TILE_H;
+    int tx1 = Math.min(width, tx0 + TILE_W);
+    int ty1 = Math.min(height, ty0 + TILE_H);
+    IntList bin = bins[tile];
+    int[] ids = bin.array();
+    for (int k = 0; k < bin.size(); k++) {
+      int t = ids[k] * TRI_FLOATS;
+      float x0 = tris[t],   y0 = tris[t+1], z0 = tris[t+2];
+      float x1 = tris[t+3], y1 = tris[t+4], z1 = tris[t+5];
+      float x2 = tris[t+6], y2 = tris[t+7], z2 = tris[t+8];
+      int minX = Math.max(tx0, (int) Math.min(x0, Math.min(x1, x2)));
+      int maxX = Math.min(tx1 - 1, (int) Math.max(x0, Math.max(x1, x2)));
+      int minY = Math.max(ty0, (int) Math.min(y0, Math.min(y1, y2)));
+      int maxY = Math.min(ty1 - 1, (int) Math.max(y0, Math.max(y1, y2)));
+      // edge functions e(x,y) = a*x + b*y + c, evaluated at pixel centers
+      float a0 = y1 - y2, b0 = x2 - x1, c0 = x1*y2 - x2*y1;
+      float a1 = y2 - y0, b1 = x0 - x2, c1 = x2*y0 - x0*y2;
+      float a2 = y0 - y1, b2 = x1 - x0, c2 = x0*y1 - x1*y0;
+      // depth plane z(x,y) = za*x + zb*y + zc from the barycentric weights
+      float invArea = 1f / (c0 + c1 + c2);
+      float za = (a0*z0 + a1*z1 + a2*z2) * invArea;
+      float zb = (b0*z0 + b1*z1 + b2*z2) * invArea;
+      float zc = (c0*z0 + c1*z1 + c2*z2) * invArea;
+      for (int y = minY; y <= maxY; y++) {
+        float py = y + 0.5f;
+        float px = minX + 0.5f;
+        float w0 = a0*px + b0*py + c0;
+        float w1 = a1*px + b1*py + c1;
+        float w2 = a2*px + b2*py + c2;
+        float z = za*px + zb*py + zc;
+        int row = y * width;
+        for (int x = minX; x <= maxX; x++) {
+          // inside when no edge function is negative
+          int outside = (Float.floatToRawIntBits(w0) | Float.floatToRawIntBits(w1) | Float.floatToRawIntBits(w2)) >>> 31;
+          if (outside == 0 && z < depth[row + x]) {
+            depth[row + x] = z;
+          }
+          w0 += a0;
+          w1 += a1;
+          w2 += a2;
+          z += za;
+        }
+      }
+    }
+    // reduce the tile into its hierarchical blocks (tiles are multiples of the block size)
+    for (int by = ty0 / BLOCK; by * BLOCK < ty1; by++) {
+      for (int bx = tx0 / BLOCK; bx * BLOCK < tx1; bx++) {
+        float far = 0;
+        int yEnd = Math.min(height, (by + 1) * BLOCK);
+        int xEnd = Math.min(width, (bx + 1) * BLOCK);
+        for (int y = by * BLOCK; y < yEnd; y++) {
+          int row = y * width;
+          for (int x = bx * BLOCK; x < xEnd; x++) {
+            far = Math.max(far, depth[row + x]);
+          }
+        }
+        hiz[by * blocksX + bx] = far;
+      }
+    }
+  }
+
+
+  /**
+   * the occlusion tests of a frame, counted by the callers of isOccluded()
+   *
+   * @param nanos time spent testing, summed over threads
+   */
+  void recordTests(int tested, int culled, long nanos) {
+    lastTested = tested;
+    lastCulled = culled;
+    lastTestNanos = nanos;
+  }
+
+  /**
+   * true when the box (center, half extents) is behind the occluders everywhere on screen,
+   * safe to call from several threads once render() returned
+   */
+  public boolean isOccluded(Matrix4f m, float cx, float cy, float cz, float ex, float ey, float ez) {
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+    for (int k = 0; k < 8; k++) {
+      float x = (k & 1) == 0 ? cx - ex : cx + ex;
+      float y = (k & 2) == 0 ? cy - ey : cy + ey;
+      float z = (k & 4) == 0 ? cz - ez : cz + ez;
+      float cw = m.m03()*x + m.m13()*y + m.m23()*z + m.m33();
+      if (cw < NEAR_W) {
+        // box reaches behind the camera, can't be occluded
+        return false;
+      }
+      float inv = 1f / cw;
+      float sx = ((m.m00()*x + m.m10()*y + m.m20()*z + m.m30()) * inv * 0.5f + 0.5f) * width;
+      float sy = ((m.m01()*x + m.m11()*y + m.m21()*z + m.m31()) * inv * 0.5f + 0.5f) * height;
+      float sz = (m.m02()*x + m.m12()*y + m.m22()*z + m.m32()) * inv * 0.5f + 0.5f;
+      minX = Math.min(minX, sx);
+      maxX = Math.max(maxX, sx);
+      minY = Math.min(minY, sy);
+      maxY = Math.max(maxY, sy);
+      minZ = Math.min(minZ, sz);
+    }
+    int bx0 = Math.max(0, (int) Math.floor(minX) / BLOCK);
+    int bx1 = Math.min(blocksX - 1, (int) Math.floor(maxX) / BLOCK);
+    int by0 = Math.max(0, (int) Math.floor(minY) / BLOCK);
+    int by1 = Math.min(blocksY - 1, (int) Math.floor(maxY) / BLOCK);
+    if (bx0 > bx1 || by0 > by1) {
+      // off screen, that's for the frustum culler to decide
+      return false;
+    }
+    int px0 = Math.max(0, (int) Math.floor(minX));
+    int px1 = Math.min(width - 1, (int) Math.floor(maxX));
+    int py0 = Math.max(0, (int) Math.floor(minY));
+    int py1 = Math.min(height - 1, (int) Math.floor(maxY));
+    for (int by = by0; by <= by1; by++) {
+      int row = by * blocksX;
+      for (int bx = bx0; bx <= bx1; bx++) {
+        if (minZ > hiz[row + bx]) {
+          // whole block is covered by nearer occluders
+          continue;
+        }
+        // block is not conclusive, look at the pixels the rectangle covers in it
+        int yEnd = Math.min(py1, by * BLOCK + BLOCK - 1);
+        int xEnd = Math.min(px1, bx * BLOCK + BLOCK - 1);
+        for (int y = Math.max(py0, by * BLOCK); y <= yEnd; y++) {
+          int prow = y * width;
+          for (int x = Math.max(px0, bx * BLOCK); x <= xEnd; x++) {
+            if (minZ <= depth[prow + x]) {
+              return false;
+            }
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  public int getOccluderCount() {
+    return occluderCount;
+  }
+
+  public int getTriangleCount() {
+    return triCount;
+  }
+
+  public int getLastTested() {
+    return lastTested;
+  }
+
+  public int getLastCulled() {
+    return lastCulled;
+  }
+
+  public double getLastRasterMs() {
+    return lastRasterNanos / 1e6;
+  }
+
+  /**
+   * time spent in the occlusion tests of the last frame, summed over threads
+   */
+  public double getLastTestMs() {
+    return lastTestNanos / 1e6;
+  }
+}
@@ -0,0 +1,242 @@
+package graphics;
+import static org.lwjgl.opengl.GL30.*;
+
+import java.util.Arrays;
+
+/**
+ * Per-frame list of draw items, sorted by a packed 64-bit key before submission.
+ *
+ * key layout, most significant first:
+ *   63..60  pass          (opaque before transparent before overlay)
+ *   59..48  shader        (program id, low 12 bits)
+ *   47..32  mesh          (arena stage id or vao id, low 16 bits)
+ *   31..16  depth bucket  (front to back for opaque, back to front for transparent)
+ *   15..0   unused
+ *
+ * The keys are sorted with an LSD radix sort on bytes, passes where every key has the
+ * same byte are skipped (the unused low bytes, usually the pass). Submission goes
+ * through a GLStateCache so consecutive items with the same program or vao don't rebind.
+ *
+ * Items are either plain draws with a model matrix or commands that issue their own
+ * draws (batches). prepare() writes the model matrices and the growth (progress, min and
+ * max scale, see Scene) as Object blocks into the
+ * uniform ring, submit() binds each item's range; the Camera block is bound by the caller.
+ *
+ */
+public final class RenderQueue {
+
+  public static final int PASS_OPAQUE = 0;
+  public static final int PASS_TRANSPARENT = 1;
+  public static final int PASS_OVERLAY = 2;
+
+  private static final int DEPTH_BUCKETS = 1 << 16;
+
+  /**
+   * draw issued by the item itself, the item's program is bound when it's called
+   */
+  public interface Command {
+    void draw(GLStateCache state);
+  }
+
+  private long[] keys = new long[256];
+  private int[] order = new int[256];
+  private long[] keysTmp = new long[256];
+  private int[] orderTmp = new int[256];
+  private final int[] histogram = new int[256];
+
+  private Shader[] shaders = new Shader[256];
+  private Command[] commands = new Command[256];
+  private int[] vaos = new int[256];
+  private int[] modes = new int[256];
+  private int[] firsts = new int[256];
+  private int[] counts = new int[256];
+  private float[] models = new float[256 * 16];
+  private float[] growths = new float[256 * 3];
+  private int[] objectBlocks = new int[256];
+  private int size = 0;
+
+  private float maxDepth = 100f;
+  private int drawCalls = 0;
+
+  /**
+   * distance mapped to the last depth bucket, usually the far plane
+   */
+  public void setMaxDepth(float maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  public void clear() {
+    // drop references so disposed meshes and lambdas don't linger
+    Arrays.fill(commands, 0, size, null);
+    Arrays.fill(shaders, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * stage of the arena drawn with the model matrix at model[offset..offset+15] (column-major)
+   */
+  public void add(int pass, Shader shader, MeshArena arena, int stageId, float depth, float[] model, int offset) {
+    add(pass, shader, arena, stageId, depth, model, offset, 1f, 1f, 1f);
+  }
+
+  /**
+   * same, scaled by mix(minScale, maxScale, progress) in the vertex shader
+   */
+  public void add(int pass, Shader shader, MeshArena arena, int stageId, float depth, float[] model, int offset,
+      float progress, float minScale, float maxScale) {
+    int i = push(key(pass, shader.getId(), stageId, depth));
+    set(i, shader, arena.vao, GL_TRIANGLES, arena.first(stageId), arena.count(stageId), model, offset);
+    growths[i*3] = progress;
+    growths[i*3+1] = minScale;
+    growths[i*3+2] = maxScale;
+  }
+
+  /**
+   * glDrawArrays(mode, 0, count) with the given vao
+   */
+  public void add(int pass, Shader shader, int vao, int mode, int count, float depth, float[] model, int offset) {
+    int i = push(key(pass, shader.getId(), vao, depth));
+    set(i, shader, vao, mode, 0, count, model, offset);
+    growths[i*3] = growths[i*3+1] = growths[i*3+2] = 1f;
+  }
+
+  private void set(int i, Shader shader, int vao, int mode, int first, int count, float[] model, int offset) {
+    shaders[i] = shader;
+    commands[i] = null;
+    vaos[i] = vao;
+    modes[i] = mode;
+    firsts[i] = first;
+    counts[i] = count;
+    System.arraycopy(model, offset, models, i * 16, 16);
+  }
+
+  /**
+   * custom draw, sorted by the given vao
+   */
+  public void add(int pass, Shader shader, int vao, float depth, Command command) {
+    int i = push(key(pass, shader.getId(), vao, depth));
+    shaders[i] = shader;
+    commands[i] = command;
+  }
+
+  int push(long key) {
+    if (size == keys.length) {
+      int n = size * 2;
+      keys = Arrays.copyOf(keys, n);
+      order = Arrays.copyOf(order, n);
+      keysTmp = new long[n];
+      orderTmp = new int[n];
+      shaders = Arrays.copyOf(shaders, n);
+      commands = Arrays.copyOf(commands, n);
+      vaos = Arrays.copyOf(vaos, n);
+      modes = Arrays.copyOf(modes, n);
+      firsts = Arrays.copyOf(firsts, n);
+      counts = Arrays.copyOf(counts, n);
+      models = Arrays.copyOf(models, n * 16);
+      growths = Arrays.copyOf(growths, n * 3);
+      objectBlocks = Arrays.copyOf(objectBlocks, n);
+    }
+    keys[size] = key;
+    order[size] = size;
+    return size++;
+  }
+
+  long key(int pass, int program, int vao, float depth) {
+    int bucket = (int) (depth / maxDepth * (DEPTH_BUCKETS - 1));
+    bucket = Math.max(0, Math.min(DEPTH_BUCKETS - 1, bucket));
+    if (pass == PASS_TRANSPARENT) {
+      bucket = DEPTH_BUCKETS - 1 - bucket;
+    }
+    return ((long) (pass & 0xF) << 60)
+        | ((long) (program & 0xFFF) << 48)
+        | ((long) (vao & 0xFFFF) << 32)
+        | ((long) bucket << 16);
+  }
+
+  /**
+   * stable LSD radix sort of keys (and the item order along with them)
+   */
+  public void sort() {
+    long[] k = keys, kt = keysTmp;
+    int[] o = order, ot = orderTmp;
+    for (int shift = 0; shift < 64; shift += 8) {
+      Arrays.fill(histogram, 0);
+      for (int i = 0; i < size; i++) {
+        histogram[(int) (k[i] >>> shift) & 0xFF]++;
+      }
+      // all keys share this byte, nothing moves
+      if (size == 0 || histogram[(int) (k[0] >>> shift) & 0xFF] == size) {
+        continue;
+      }
+      int sum = 0;
+      for (int b = 0; b < 256; b++) {
+        int c = histogram[b];
+        histogram[b] = sum;
+        sum += c;
+      }
+      for (int i = 0; i < size; i++) {
+        int dst = histogram[(int) (k[i] >>> shift) & 0xFF]++;
+        kt[dst] = k[i];
+        ot[dst] = o[i];
+      }
+      long[] sk = k; k = kt; kt = sk;
+      int[] so = o; o = ot; ot = so;
+    }
+    keys = k;
+    keysTmp = kt;
+    order = o;
+    orderTmp = ot;
+  }
+
+  /**
+   * write the Object blocks of all draw items, before the ring is flushed
+   */
+  public void prepare(UniformRing ring) {
+    for (int i = 0; i < size; i++) {
+      if (commands[i] == null) {
+        objectBlocks[i] = ring.allocate(Shader.OBJECT_BYTES);
+        ring.writer(objectBlocks[i]).putMat4(models, i * 16)
+            .putVec4(growths[i*3], growths[i*3+1], growths[i*3+2], 0f);
+      }
+    }
+  }
+
+  /**
+   * issue all items in key order, call sort() and prepare() first
+   */
+  public void submit(GLStateCache state, UniformRing ring) {
+    drawCalls = 0;
+    for (int s = 0; s < size; s++) {
+      int i = order[s];
+      state.useProgram(shaders[i].getId());
+      if (commands[i] != null) {
+        commands[i].draw(state);
+      } else {
+        ring.bind(state, Shader.OBJECT_BLOCK, objectBlocks[i], Shader.OBJECT_BYTES);
+        state.bindVertexArray(vaos[i]);
+        glDrawArrays(modes[i], firsts[i], counts[i]);
+      }
+      drawCalls++;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // item at position s of the sorted order and its key, for tests
+  int sortedItem(int s) {
+    return order[s];
+  }
+
+  long sortedKey(int s) {
+    return keys[s];
+  }
+
+  /**
+   * items submitted by the last submit(), commands count as one
+   */
+  public int getDrawCalls() {
+    return drawCalls;
+  }
+}
@@ -0,0 +1,146 @@
+package graphics;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Offscreen framebuffer the scene is drawn into at a fraction of the window size, then
+ * scaled up to the default framebuffer.
+ *
+ * Color and depth are renderbuffers, multisampled when samples > 0. A multisampled target
+ * of the window's size is resolved straight into the default framebuffer. A smaller one
+ * can't be, a multisample blit has to keep the size, it is resolved into a single sample
+ * color buffer first and that one is stretched with linear filtering. The default
+ * framebuffer must be single sampled for either blit (no GLFW_SAMPLES hint).
+ *
+ * resize() only reallocates when the size or the sample count changed.
+ *
+ */
+public final class RenderTarget {
+
+  private final int fbo;
+  private final int color;
+  private final int depth;
+  private final int resolveFbo;
+  private final int resolveColor;
+  private final int maxSamples;
+
+  private int width = 0;
+  private int height = 0;
+  private int samples = 0;
+  private boolean resolveAllocated = false;
+  private int reallocations = 0;
+
+  public RenderTarget() {
+    fbo = glGenFramebuffers();
+    color = glGenRenderbuffers();
+    depth = glGenRenderbuffers();
+    resolveFbo = glGenFramebuffers();
+    resolveColor = glGenRenderbuffers();
+    maxSamples = glGetInteger(GL_MAX_SAMPLES);
+  }
+
+  /**
+   * @param samples 0 for no multisampling, clamped to GL_MAX_SAMPLES
+   */
+  public void resize(int width, int height, int samples) {
+    width = Math.max(width, 1);
+    height = Math.max(height, 1);
+    samples = Math.min(samples, maxSamples);
+    if (width == this.width && height == this.height && samples == this.samples) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    this.samples = samples;
+    reallocations++;
+
+    glBindRenderbuffer(GL_RENDERBUFFER, color);
+    glRenderbufferStorageMultisample(GL_RENDERBUFFER, samples, GL_RGBA8, width, height);
+    glBindRenderbuffer(GL_RENDERBUFFER, depth);
+    glRenderbufferStorageMultisample(GL_RENDERBUFFER, samples, GL_DEPTH_COMPONENT24, width, height);
+    glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+    glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, color);
+    glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depth);
+    check("render target");
+
+    // only needed for a multisampled target smaller than the window, allocated anyway while multisampled
+    resolveAllocated = samples > 0;
+    glBindRenderbuffer(GL_RENDERBUFFER, resolveColor);
+    glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, resolveAllocated ? width : 1, resolveAllocated ? height : 1);
+    glBindFramebuffer(GL_FRAMEBUFFER, resolveFbo);
+    glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, resolveColor);
+    check("resolve target");
+
+    glBindRenderbuffer(GL_RENDERBUFFER, 0);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+  }
+
+  private static void check(String what) {
+    int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+    if (status != GL_FRAMEBUFFER_COMPLETE) {
+      throw new IllegalStateException(what + " incomplete: 0x" + Integer.toHexString(status));
+    }
+  }
+
+  /**
+   * draw into the target, sets the viewport to its size
+   */
+  public void bind() {
+    glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+    glViewport(0, 0, width, height);
+  }
+
+  /**
+   * resolve and scale the color into the default framebuffer, which is left bound with
+   * its viewport
+   */
+  public void blitToScreen(int screenWidth, int screenHeight) {
+    int source = fbo;
+    if (samples > 0 && (width != screenWidth || height != screenHeight)) {
+      glBindFramebuffer(GL_READ_FRAMEBUFFER, fbo);
+      glBindFramebuffer(GL_DRAW_FRAMEBUFFER, resolveFbo);
+      glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+      source = resolveFbo;
+    }
+    glBindFramebuffer(GL_READ_FRAMEBUFFER, source);
+    glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+    boolean same = width == screenWidth && height == screenHeight;
+    glBlitFramebuffer(0, 0, width, height, 0, 0, screenWidth, screenHeight, GL_COLOR_BUFFER_BIT,
+        same ? GL_NEAREST : GL_LINEAR);
+    glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    glViewport(0, 0, screenWidth, screenHeight);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getSamples() {
+    return samples;
+  }
+
+  public int getMaxSamples() {
+    return maxSamples;
+  }
+
+  public int getReallocations() {
+    return reallocations;
+  }
+
+  public long sizeBytes() {
+    long pixels = (long) width * height;
+    // RGBA8 and DEPTH24 (padded to 4 bytes) per sample
+    return pixels * 8 * Math.max(samples, 1) + (resolveAllocated ? pixels * 4 : 4);
+  }
+
+  public void dispose() {
+    glDeleteFramebuffers(fbo);
+    glDeleteFramebuffers(resolveFbo);
+    glDeleteRenderbuffers(color);
+    glDeleteRenderbuffers(depth);
+    glDeleteRenderbuffers(resolveColor);
+  }
+}
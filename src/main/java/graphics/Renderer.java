@@ -1,6 +1,17 @@
 package graphics;
 
-public class Renderer {
-  
-}
+import state.Scene;
+
+/**
+ * A backend that draws a scene as seen from a camera.
+ *
+ * The GL path lives in renderEngine.HelloLWJGL and draws to the window, SoftwareRenderer
+ * rasterizes on the CPU into an in-memory framebuffer for machines without a GPU.
+ *
+ */
+public interface Renderer {
 
+  void render(Scene scene, Camera camera);
+
+  void dispose();
+}
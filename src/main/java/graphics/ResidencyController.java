@@ -0,0 +1,212 @@
+package graphics;
+
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+
+import state.Scene;
+
+/**
+ * Keeps the meshes near the camera resident and drops far ones to stay under a target.
+ *
+ * Every stage placed in the scene is scored with the distance to the nearest bounds of
+ * its instances, measured from the eye and from the predicted eye (eye + velocity *
+ * lookahead), whichever is closer. Stages ahead of a moving camera score as near before
+ * it gets there and are prefetched. The scores are taken by the DrawListBuilder segments
+ * next to their frustum pass and handed over at finish(), update() uses those of the last
+ * build, a frame behind the camera. Stages are wanted in score order until their full
+ * size reaches the target. Wanted ones that aren't resident are requested from
+ * GpuResources, which uploads them nearest first within its per-frame limit. Resident
+ * ones scoring past the last wanted one by more than the hysteresis are evicted.
+ *
+ * The levels of a LOD chain share the score of their stage. The coarsest level is pinned,
+ * it is the fallback LodSelector and GpuCuller draw while the finer levels stream in. A
+ * stage without simplified levels is its own coarsest level and always stays resident.
+ *
+ */
+public final class ResidencyController {
+
+  private final GpuResources resources;
+  private final LodSelector lod;
+
+  private long targetBytes;
+  private float lookahead = 1.5f;
+  private float smoothing = 0.2f;
+  private float hysteresis = 0.25f;
+
+  private final Vector3f velocity = new Vector3f();
+  private final Vector3f lastEye = new Vector3f();
+  private final Vector3f predicted = new Vector3f();
+  private boolean started = false;
+
+  // nearest distance per stage of the last build, stageCount of them
+  private float[] score = new float[16];
+  private int stageCount = 0;
+  // score bits << 32 | stage id, non negative floats sort like their bits
+  private long[] candidates = new long[16];
+
+  private long wantedBytes = 0;
+  private int wanted = 0;
+  private int requests = 0;
+  private int evictions = 0;
+
+  /**
+   * @param targetBytes meshes kept resident, pinned fallbacks included
+   */
+  public ResidencyController(GpuResources resources, LodSelector lod, long targetBytes) {
+    this.resources = resources;
+    this.lod = lod;
+    this.targetBytes = targetBytes;
+  }
+
+  public void setTarget(long bytes) {
+    targetBytes = bytes;
+  }
+
+  /**
+   * how far ahead in seconds the camera's motion is extrapolated for prefetching
+   */
+  public void setLookahead(float seconds) {
+    lookahead = seconds;
+  }
+
+  /**
+   * fraction past the cutoff score a stage has to be before it is evicted
+   */
+  public void setHysteresis(float fraction) {
+    hysteresis = fraction;
+  }
+
+  /**
+   * GL thread, before GpuResources.update() so the requests are uploaded this frame and
+   * before DrawListBuilder.begin() so the build scores from this predicted eye
+   *
+   * @param dt seconds since the last call
+   */
+  public void update(Vector3f eye, float dt) {
+    if (started && dt > 0f) {
+      float k = smoothing;
+      velocity.mul(1f - k).add((eye.x - lastEye.x) / dt * k, (eye.y - lastEye.y) / dt * k,
+          (eye.z - lastEye.z) / dt * k);
+    }
+    started = true;
+    lastEye.set(eye);
+    velocity.mulAdd(lookahead, eye, predicted);
+
+
+    // pinned fallbacks first, they count against the target whatever their score
+    long used = 0;
+    int n = 0;
+    for (int s = 0; s < stageCount; s++) {
+      if (score[s] == Float.POSITIVE_INFINITY) {
+        continue;
+      }
+      int[] chain = lod.chain(s);
+      int levels = chain != null ? chain.length : 1;
+      GpuResources.Handle last = resources.mesh(chain != null ? chain[levels - 1] : s);
+      if (last != null) {
+        last.setPinned(true);
+        used += last.meshBytes();
+      }
+      for (int l = 0; l < levels - 1; l++) {
+        if (n == candidates.length) {
+          candidates = Arrays.copyOf(candidates, n * 2);
+        }
+        candidates[n++] = (long) Float.floatToIntBits(score[s]) << 32 | chain[l];
+      }
+    }
+    Arrays.sort(candidates, 0, n);
+
+    wanted = 0;
+    float cutoff = 0f;
+    boolean full = false;
+    for (int k = 0; k < n; k++) {
+      int id = (int) candidates[k];
+      float d = Float.intBitsToFloat((int) (candidates[k] >>> 32));
+      GpuResources.Handle h = resources.mesh(id);
+      if (h == null) {
+        continue;
+      }
+      long bytes = h.meshBytes();
+      if (!full && used + bytes <= targetBytes) {
+        used += bytes;
+        cutoff = d;
+        wanted++;
+        if (!h.isResident()) {
+          resources.request(id);
+          requests++;
+        }
+        continue;
+      }
+      full = true;
+      if (h.isResident() && d > cutoff * (1f + hysteresis) && resources.evict(id) > 0) {
+        evictions++;
+      }
+    }
+    wantedBytes = used;
+  }
+
+  /**
+   * the scores of a build, combined over its segments by DrawListBuilder.finish()
+   */
+  void recordScores(float[] scores, int count) {
+    if (score.length < count) {
+      score = new float[Math.max(count, score.length * 2)];
+    }
+    System.arraycopy(scores, 0, score, 0, count);
+    stageCount = count;
+  }
+
+  /**
+   * lowers score[stage] to the distance of each instance in [from, to) from eye or
+   * predicted, whichever is nearer; a draw list segment, on its worker thread
+   */
+  static void score(Scene scene, int from, int to, Vector3f eye, Vector3f predicted, float[] score) {
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    for (int i = from; i < to; i++) {
+      int s = scene.variantStage(i);
+      float d = Math.min(boxDistance(eye, cx[i], cy[i], cz[i], ex[i], ey[i], ez[i]),
+          boxDistance(predicted, cx[i], cy[i], cz[i], ex[i], ey[i], ez[i]));
+      score[s] = Math.min(score[s], d);
+    }
+  }
+
+  // 0 inside the box
+  private static float boxDistance(Vector3f p, float cx, float cy, float cz, float ex, float ey, float ez) {
+    float dx = Math.max(Math.abs(p.x - cx) - ex, 0f);
+    float dy = Math.max(Math.abs(p.y - cy) - ey, 0f);
+    float dz = Math.max(Math.abs(p.z - cz) - ez, 0f);
+    return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+  }
+
+  public Vector3f getVelocity() {
+    return velocity;
+  }
+
+  /**
+   * eye + velocity * lookahead as of the last update()
+   */
+  public Vector3f getPredicted() {
+    return predicted;
+  }
+
+  /**
+   * bytes of the meshes the last update() wanted resident
+   */
+  public long getWantedBytes() {
+    return wantedBytes;
+  }
+
+  public int getWanted() {
+    return wanted;
+  }
+
+  public int getRequests() {
+    return requests;
+  }
+
+  public int getEvictions() {
+    return evictions;
+  }
+}
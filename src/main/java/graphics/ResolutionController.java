@@ -0,0 +1,186 @@
+package graphics;
+
+/**
+ * Picks the render scale and MSAA sample count that hold a frame time target.
+ *
+ * The controlled value is the fraction of the window's pixels that are rendered, which
+ * the GPU time is roughly proportional to. The frame time is the GPU time when there is
+ * a timer, else the CPU time, smoothed over a few frames. Every STEP_FRAMES frames the
+ * relative error target / frame time - 1 drives a PID in velocity form. Its output scales
+ * the pixel fraction (pixels *= 1 + output), with a frame time proportional to the
+ * pixels an integral gain of 1 would hit the target in one step. Being a change rather
+ * than a position, clamping it to the limits needs no separate anti-windup. Stepping
+ * slower than every frame lets a resize show in the measurements (the GPU timer runs a
+ * few frames behind) before the next one, a per-frame controller keeps integrating the
+ * stale error and swings between the limits. A frame that is late because of the CPU
+ * never raises the resolution, more pixels wouldn't make the CPU side any faster.
+ *
+ * MSAA is the coarse step. Over target with the scale below msaaMinScale, the sample
+ * count is halved before the resolution goes any lower. At full scale with more than
+ * UPGRADE_HEADROOM to spare for a while, it is doubled again. An upgrade that has to be
+ * taken back soon after makes the next one wait twice as long.
+ *
+ * getScale() only moves by at least SCALE_STEP or onto a limit, each change reallocates
+ * the render target.
+ *
+ */
+public final class ResolutionController {
+
+  private static final double SMOOTHING = 0.25;
+  private static final int STEP_FRAMES = 10;
+  private static final float SCALE_STEP = 0.05f;
+  private static final float UPGRADE_HEADROOM = 0.3f;
+  // in steps
+  private static final int DOWNGRADE_STEPS = 2;
+  private static final int UPGRADE_STEPS = 6;
+  private static final int MAX_UPGRADE_STEPS = 360;
+  // a downgrade this soon after an upgrade means the upgrade didn't fit
+  private static final int REVERT_STEPS = 30;
+
+  private long targetNanos;
+  private float minScale = 0.5f;
+  private float maxScale = 1f;
+  private float msaaMinScale = 0.8f;
+  private int maxSamples;
+  private float kp = 0.1f;
+  private float ki = 0.6f;
+  private float kd = 0.05f;
+
+  private double smoothed = -1;
+  private float e1 = 0f;
+  private float e2 = 0f;
+  private float pixels = 1f;
+  private float scale = 1f;
+  private int samples;
+  private int sinceStep = 0;
+  private int overSteps = 0;
+  private int headroomSteps = 0;
+  private int upgradeSteps = UPGRADE_STEPS;
+  private int sinceUpgrade = Integer.MAX_VALUE;
+  private boolean cpuBound = false;
+  private int samplesChanges = 0;
+
+  /**
+   * @param maxSamples sample count to start with and the most it goes back up to
+   */
+  public ResolutionController(long targetNanos, int maxSamples) {
+    this.targetNanos = targetNanos;
+    this.maxSamples = maxSamples;
+    this.samples = maxSamples;
+  }
+
+  public void setTarget(long nanos) {
+    targetNanos = nanos;
+  }
+
+  public long getTargetNanos() {
+    return targetNanos;
+  }
+
+  /**
+   * scale limits per axis, 1 renders at window size
+   */
+  public void setLimits(float minScale, float maxScale) {
+    this.minScale = minScale;
+    this.maxScale = maxScale;
+    pixels = Math.max(minScale * minScale, Math.min(maxScale * maxScale, pixels));
+    scale = (float) Math.sqrt(pixels);
+  }
+
+  /**
+   * below this scale MSAA is given up before resolution
+   */
+  public void setMsaaMinScale(float scale) {
+    msaaMinScale = scale;
+  }
+
+  public void setGains(float kp, float ki, float kd) {
+    this.kp = kp;
+    this.ki = ki;
+    this.kd = kd;
+  }
+
+  /**
+   * once per frame with the last measured times
+   *
+   * @param gpuNanos 0 when there is no GPU timer
+   */
+  public void update(long cpuNanos, long gpuNanos) {
+    long frame = gpuNanos > 0 ? gpuNanos : cpuNanos;
+    smoothed = smoothed < 0 ? frame : smoothed + (frame - smoothed) * SMOOTHING;
+    cpuBound |= gpuNanos > 0 && cpuNanos > targetNanos && cpuNanos > gpuNanos;
+    if (++sinceStep < STEP_FRAMES) {
+      return;
+    }
+    sinceStep = 0;
+    step();
+    cpuBound = false;
+  }
+
+  private void step() {
+    // at most a quarter of the pixels at once either way, a hitch shouldn't halve the resolution
+    float e = (float) Math.max(-0.25, Math.min(0.25, targetNanos / Math.max(smoothed, 1.0) - 1.0));
+    float headroom = (float) ((targetNanos - smoothed) / targetNanos);
+    float out = kp * (e - e1) + ki * e + kd * (e - 2f * e1 + e2);
+    e2 = e1;
+    e1 = e;
+    if (cpuBound && out > 0f) {
+      out = 0f;
+    }
+    float minPixels = minScale * minScale;
+    float maxPixels = maxScale * maxScale;
+    pixels = Math.max(minPixels, Math.min(maxPixels, pixels * (1f + out)));
+    sinceUpgrade = sinceUpgrade == Integer.MAX_VALUE ? sinceUpgrade : sinceUpgrade + 1;
+
+    float wanted = (float) Math.sqrt(pixels);
+    overSteps = headroom < 0f && wanted < msaaMinScale ? overSteps + 1 : 0;
+    headroomSteps = headroom > UPGRADE_HEADROOM && pixels >= maxPixels && !cpuBound ? headroomSteps + 1 : 0;
+    if (samples > 0 && overSteps >= DOWNGRADE_STEPS) {
+      samples = samples > 2 ? samples / 2 : 0;
+      samplesChanges++;
+      overSteps = 0;
+      if (sinceUpgrade < REVERT_STEPS) {
+        upgradeSteps = Math.min(upgradeSteps * 2, MAX_UPGRADE_STEPS);
+      }
+    } else if (samples < maxSamples && headroomSteps >= upgradeSteps) {
+      samples = samples == 0 ? Math.min(2, maxSamples) : Math.min(samples * 2, maxSamples);
+      samplesChanges++;
+      headroomSteps = 0;
+      sinceUpgrade = 0;
+    }
+
+    boolean atLimit = (wanted <= minScale || wanted >= maxScale) && wanted != scale;
+    if (Math.abs(wanted - scale) >= SCALE_STEP || atLimit) {
+      scale = wanted;
+    }
+  }
+
+  /**
+   * render scale per axis
+   */
+  public float getScale() {
+    return scale;
+  }
+
+  public int getSamples() {
+    return samples;
+  }
+
+  /**
+   * render target size for a window dimension
+   */
+  public int scaled(int size) {
+    return Math.max(1, Math.round(size * scale));
+  }
+
+  /**
+   * smoothed frame time the controller works with
+   */
+  public double getFrameNanos() {
+    return Math.max(smoothed, 0);
+  }
+
+  public int getSamplesChanges() {
+    return samplesChanges;
+  }
+}
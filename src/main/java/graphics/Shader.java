@@ -1,11 +1,39 @@
 package graphics;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.glUniform1ui;
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 import org.joml.Matrix4f;
-import org.lwjgl.system.MemoryStack;
-import java.nio.FloatBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Shader {
+  // uniform block binding points, the blocks are declared the same way in every .vert
+  //   layout(std140) uniform Camera { mat4 uViewProj; float uTime; vec4 uEye; vec4 uVariation; };
+  //   layout(std140) uniform Object { mat4 uModel; vec4 uGrowth; };
+  public static final int CAMERA_BLOCK = 0;
+  public static final int OBJECT_BLOCK = 1;
+  public static final int CAMERA_BYTES = 112;
+  public static final int OBJECT_BYTES = Std140Writer.MAT4_BYTES + Std140Writer.VEC4_BYTES;
+
+  private static final Pattern INCLUDE = Pattern.compile("\\s*#include\\s+\"([^\"]+)\"\\s*");
+
   private final int programId;
+  // uniform name -> location, -1 is cached too
+  private final Map<String, Integer> locations = new HashMap<>();
+  private final float[] matrix = new float[16];
+
+  // shaders still attached while the driver links in the background, null once linked
+  private int[] pendingShaders;
+  private ShaderCache cache;
+  private String cacheKey;
 
   public Shader(String vertexSource, String fragmentSource) {
     int vs = compileShader(GL_VERTEX_SHADER, vertexSource);
@@ -15,20 +43,84 @@ public class Shader {
     glAttachShader(programId, vs);
     glAttachShader(programId, fs);
     glLinkProgram(programId);
+    pendingShaders = new int[] {vs, fs};
+    finishLink();
+  }
 
-    // check link status
+  /**
+   * program from ShaderCache, either loaded from a binary (shaders empty) or linking
+   * in the background until first use
+   */
+  Shader(int programId, int[] shaders, ShaderCache cache, String cacheKey) {
+    this.programId = programId;
+    this.pendingShaders = shaders;
+    this.cache = cache;
+    this.cacheKey = cacheKey;
+    if (shaders.length == 0) {
+      finishLink();
+    }
+  }
+
+  // checks the link status (waits for the driver if it's still busy), detaches the shaders
+  private void finishLink() {
+    if (pendingShaders == null) {
+      return;
+    }
+    long start = System.nanoTime();
     if (glGetProgrami(programId, GL_LINK_STATUS) == GL_FALSE) {
-      throw new RuntimeException("Shader link failed: " + glGetProgramInfoLog(programId));
+      StringBuilder log = new StringBuilder(glGetProgramInfoLog(programId));
+      // compile status wasn't checked for background compiles, report it here
+      for (int sh : pendingShaders) {
+        if (glGetShaderi(sh, GL_COMPILE_STATUS) == GL_FALSE) {
+          log.append(glGetShaderInfoLog(sh));
+        }
+      }
+      throw new RuntimeException("Shader link failed: " + log);
     }
+    long waited = System.nanoTime() - start;
 
     // we can detach & delete the individual shaders after linking
-    glDetachShader(programId, vs);
-    glDetachShader(programId, fs);
-    glDeleteShader(vs);
-    glDeleteShader(fs);
+    for (int sh : pendingShaders) {
+      glDetachShader(programId, sh);
+      glDeleteShader(sh);
+    }
+    bindBlock("Camera", CAMERA_BLOCK);
+    bindBlock("Object", OBJECT_BLOCK);
+    if (cache != null) {
+      cache.linked(programId, cacheKey, pendingShaders.length > 0, waited);
+    }
+    pendingShaders = null;
+  }
+
+  /**
+   * false while the driver is still compiling in the background, binding it then blocks
+   */
+  public boolean isReady() {
+    return pendingShaders == null || cache == null || cache.isLinkComplete(programId);
   }
 
-  private static int compileShader(int type, String src) {
+  // glsl 330 has no binding qualifier, the binding point is assigned after linking
+  private void bindBlock(String name, int binding) {
+    int index = glGetUniformBlockIndex(programId, name);
+    if (index != GL_INVALID_INDEX) {
+      glUniformBlockBinding(programId, index, binding);
+    }
+  }
+
+  /**
+   * compute program (GL 4.3)
+   */
+  public static Shader compute(String computeSource) {
+    int cs = compileShader(GL_COMPUTE_SHADER, computeSource);
+    int program = glCreateProgram();
+    glAttachShader(program, cs);
+    glLinkProgram(program);
+    Shader shader = new Shader(program, new int[] {cs}, null, null);
+    shader.finishLink();
+    return shader;
+  }
+
+  static int compileShader(int type, String src) {
     int id = glCreateShader(type);
     glShaderSource(id, src);
     glCompileShader(id);
@@ -38,39 +130,92 @@ public class Shader {
     return id;
   }
 
+  /**
+   * text of a classpath resource, e.g. "/glsl/mesh.vert". A line #include "name" is
+   * replaced by the text of name, relative to the resource's directory
+   */
+  public static String source(String resource) throws IOException {
+    String text;
+    try (InputStream in = Shader.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IOException("shader resource not found: " + resource);
+      }
+      text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    if (!text.contains("#include")) {
+      return text;
+    }
+    String dir = resource.substring(0, resource.lastIndexOf('/') + 1);
+    StringBuilder out = new StringBuilder(text.length());
+    for (String line : text.split("\n", -1)) {
+      Matcher m = INCLUDE.matcher(line);
+      out.append(m.matches() ? source(dir + m.group(1)) : line).append('\n');
+    }
+    out.setLength(out.length() - 1);
+    return out.toString();
+  }
+
   public void bind() {
+    finishLink();
     glUseProgram(programId);
   }
 
+  public void bind(GLStateCache state) {
+    finishLink();
+    state.useProgram(programId);
+  }
+
   public void unbind() {
     glUseProgram(0);
   }
 
   public void dispose() {
+    if (pendingShaders != null) {
+      for (int sh : pendingShaders) {
+        glDeleteShader(sh);
+      }
+    }
     glDeleteProgram(programId);
   }
 
+  public int location(String name) {
+    finishLink();
+    Integer loc = locations.get(name);
+    if (loc == null) {
+      loc = glGetUniformLocation(programId, name);
+      locations.put(name, loc);
+    }
+    return loc;
+  }
+
   // convenience uniform setters
   public void set(String name, float value) {
-    int loc = glGetUniformLocation(programId, name);
-    glUniform1f(loc, value);
+    glUniform1f(location(name), value);
   }
 
   public void set(String name, Matrix4f mat) {
-    try (MemoryStack stack = MemoryStack.stackPush()) {
-      FloatBuffer fb = stack.mallocFloat(16);
-      mat.get(fb);
-      int loc = glGetUniformLocation(programId, name);
-      glUniformMatrix4fv(loc, false, fb);
-    }
+    glUniformMatrix4fv(location(name), false, mat.get(matrix));
+  }
+
+  public void set(String name, int value) {
+    glUniform1i(location(name), value);
+  }
+
+  public void setUnsigned(String name, int value) {
+    glUniform1ui(location(name), value);
+  }
+
+  // vec4 array, 4 floats per element
+  public void setVec4Array(String name, float[] values) {
+    glUniform4fv(location(name), values);
   }
 
   public void set(String name, org.joml.Vector3f vec) {
-    int loc = glGetUniformLocation(programId, name);
-    glUniform3f(loc, vec.x, vec.y, vec.z);
+    glUniform3f(location(name), vec.x, vec.y, vec.z);
   }
 
   public int getId() {
+    finishLink();
     return programId;
   }
 }
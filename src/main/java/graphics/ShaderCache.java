@@ -0,0 +1,232 @@
+package graphics;
+import static org.lwjgl.opengl.GL43.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates shader programs through a disk cache of program binaries.
+ *
+ * Programs are keyed by a SHA-256 of the GL vendor/renderer/version string, the defines
+ * and the sources. A hit is loaded with glProgramBinary, a miss is compiled and linked -
+ * with KHR_parallel_shader_compile the driver does that on its own threads and the
+ * Shader only waits for the result when it is first used (bind, getId, uniforms).
+ * After linking the binary is written back to the cache directory.
+ *
+ * A binary the driver rejects (driver update, different GPU) is treated as a miss.
+ *
+ */
+public final class ShaderCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ShaderCache.class);
+
+  private final Path dir;
+  private final String driver;
+  private final boolean binaries;
+  private final boolean parallel;
+
+  private int hits = 0;
+  private int misses = 0;
+  private long createNanos = 0;
+  private long waitNanos = 0;
+
+  public ShaderCache(Path dir) {
+    this.dir = dir;
+    GLCapabilities caps = GL.getCapabilities();
+    driver = glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|" + glGetString(GL_VERSION);
+    binaries = (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+        && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    parallel = caps.GL_KHR_parallel_shader_compile;
+    if (parallel) {
+      // let the driver pick the thread count
+      KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+    }
+  }
+
+  public Shader program(String vertexSource, String fragmentSource, String defines) {
+    long start = System.nanoTime();
+    String vs = withDefines(vertexSource, defines);
+    String fs = withDefines(fragmentSource, defines);
+    String key = key(defines, vs, fs);
+    Shader shader = load(key);
+    if (shader == null) {
+      int program = glCreateProgram();
+      int v = compile(GL_VERTEX_SHADER, vs);
+      int f = compile(GL_FRAGMENT_SHADER, fs);
+      glAttachShader(program, v);
+      glAttachShader(program, f);
+      link(program);
+      shader = new Shader(program, new int[] {v, f}, this, key);
+      misses++;
+    }
+    createNanos += System.nanoTime() - start;
+    return shader;
+  }
+
+  public Shader compute(String source, String defines) {
+    long start = System.nanoTime();
+    String cs = withDefines(source, defines);
+    String key = key(defines, cs);
+    Shader shader = load(key);
+    if (shader == null) {
+      int program = glCreateProgram();
+      int c = compile(GL_COMPUTE_SHADER, cs);
+      glAttachShader(program, c);
+      link(program);
+      shader = new Shader(program, new int[] {c}, this, key);
+      misses++;
+    }
+    createNanos += System.nanoTime() - start;
+    return shader;
+  }
+
+  // compile status is checked by Shader at link time, asking now would wait for the driver
+  private static int compile(int type, String src) {
+    int id = glCreateShader(type);
+    glShaderSource(id, src);
+    glCompileShader(id);
+    return id;
+  }
+
+  private void link(int program) {
+    if (binaries) {
+      glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    }
+    glLinkProgram(program);
+  }
+
+  private Shader load(String key) {
+    if (!binaries) {
+      return null;
+    }
+    Path file = dir.resolve(key + ".bin");
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file);
+    } catch (IOException e) {
+      log.warn("couldn't read program binary {}", file);
+      return null;
+    }
+    if (bytes.length <= 4) {
+      return null;
+    }
+    // 4 byte format, then the binary
+    int format = ByteBuffer.wrap(bytes).getInt();
+    ByteBuffer blob = MemoryUtil.memAlloc(bytes.length - 4);
+    blob.put(bytes, 4, bytes.length - 4).flip();
+    int program = glCreateProgram();
+    glProgramBinary(program, format, blob);
+    MemoryUtil.memFree(blob);
+    if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+      log.info("program binary {} rejected by the driver, recompiling", key);
+      glDeleteProgram(program);
+      return null;
+    }
+    hits++;
+    return new Shader(program, new int[0], this, key);
+  }
+
+  /**
+   * called by Shader once linking finished
+   */
+  void linked(int program, String key, boolean compiled, long waited) {
+    waitNanos += waited;
+    if (!compiled || !binaries) {
+      return;
+    }
+    try (MemoryStack stack = MemoryStack.stackPush()) {
+      int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+      if (length <= 0) {
+        return;
+      }
+      IntBuffer lengthOut = stack.mallocInt(1);
+      IntBuffer format = stack.mallocInt(1);
+      ByteBuffer binary = MemoryUtil.memAlloc(length);
+      glGetProgramBinary(program, lengthOut, format, binary);
+      byte[] bytes = new byte[4 + lengthOut.get(0)];
+      ByteBuffer.wrap(bytes).putInt(format.get(0));
+      binary.get(0, bytes, 4, lengthOut.get(0));
+      MemoryUtil.memFree(binary);
+      Files.createDirectories(dir);
+      Files.write(dir.resolve(key + ".bin"), bytes);
+    } catch (IOException e) {
+      log.warn("couldn't write program binary {}: {}", key, e.getMessage());
+    }
+  }
+
+  boolean isLinkComplete(int program) {
+    return !parallel || glGetProgrami(program, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL_TRUE;
+  }
+
+  // defines go right after the #version line
+  static String withDefines(String source, String defines) {
+    if (defines == null || defines.isEmpty()) {
+      return source;
+    }
+    int eol = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+    return source.substring(0, eol) + defines + "\n" + source.substring(eol);
+  }
+
+  private String key(String defines, String... sources) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update(driver.getBytes(StandardCharsets.UTF_8));
+      sha.update((byte) 0);
+      sha.update(String.valueOf(defines).getBytes(StandardCharsets.UTF_8));
+      for (String s : sources) {
+        sha.update((byte) 0);
+        sha.update(s.getBytes(StandardCharsets.UTF_8));
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : sha.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
+  /**
+   * time spent creating programs (reading binaries, submitting compiles)
+   */
+  public long getCreateNanos() {
+    return createNanos;
+  }
+
+  /**
+   * time spent waiting for link results at first use
+   */
+  public long getWaitNanos() {
+    return waitNanos;
+  }
+}
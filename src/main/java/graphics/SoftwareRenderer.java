@@ -0,0 +1,430 @@
+package graphics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joml.Matrix4f;
+
+import state.Scene;
+import state.StageLibrary;
+
+/**
+ * Renders the blueprint triangle format on the CPU, for machines without a GPU.
+ *
+ * A frame runs in two parallel phases:
+ *  - geometry: the frustum-culled instances are split in one slice per worker. Each worker
+ *    transforms the vertices, clips against the near plane, culls back faces (CCW is front,
+ *    like GL) and bins the screen space triangles into its own list per TILE x TILE tile.
+ *  - raster: workers take tiles off a shared counter. A tile clears its own depth buffer
+ *    (sized to the tile, so it stays in cache), walks the bins of all workers and writes
+ *    the shaded pixels straight into the framebuffer - tiles never overlap, no locking.
+ * Both phases have no shared mutable state, so throughput grows with the worker count as
+ * long as there are enough instances and tiles to go round.
+ *
+ * Shading is mesh.frag: colour * (0.2 + 0.8 * max(dot(n, light), 0)), the normal goes
+ * through mat3(model) like mesh.vert, attributes are interpolated perspective correct.
+ * Growth and the Variation jitter are folded into the model matrix (Scene.model()), the
+ * tint into the vertex colours.
+ * Wobble is off, like in the GL path. The framebuffer is 0xRRGGBB, row 0 at the top.
+ *
+ */
+public final class SoftwareRenderer implements Renderer {
+
+  public static final int TILE = 32;
+
+  private static final int F = Mesh.VERTEX_FLOATS;
+  // clip space vertex: x, y, z, w, r, g, b, nx, ny, nz
+  private static final int C = 10;
+  // binned vertex: screen x, y, depth, 1/w, then r, g, b, nx, ny, nz divided by w
+  private static final int S = 10;
+  private static final int TRI = 3 * S;
+
+  private final int width;
+  private final int height;
+  private final int tilesX;
+  private final int tilesY;
+  private final int threads;
+  private final ExecutorService workers;
+  private final int[] pixels;
+
+  private final Binner[] binners;
+  private final float[][] tileDepth;
+  private final List<Callable<Void>> geometryTasks = new ArrayList<>();
+  private final List<Callable<Void>> rasterTasks = new ArrayList<>();
+  private final AtomicInteger nextTile = new AtomicInteger();
+
+  private final FrustumCuller culler = new FrustumCuller();
+  private final Matrix4f viewProj = new Matrix4f();
+  private final float lightX, lightY, lightZ;
+  private int clearColor = 0xFFFFFF;
+
+  // input of the current frame, read by the workers
+  private Scene scene;
+  private int[] visible = new int[0];
+  private int visibleCount = 0;
+
+  private int triangles = 0;
+  private long frameNanos = 0;
+
+  public SoftwareRenderer(int width, int height, int threads) {
+    this.width = width;
+    this.height = height;
+    this.tilesX = (width + TILE - 1) / TILE;
+    this.tilesY = (height + TILE - 1) / TILE;
+    this.threads = Math.max(1, threads);
+    this.pixels = new int[width * height];
+    this.workers = this.threads == 1 ? null : Executors.newFixedThreadPool(this.threads, r -> {
+      Thread t = new Thread(r, "software-raster");
+      t.setDaemon(true);
+      return t;
+    });
+    // single threaded culling, the workers are busy enough
+    culler.setParallel(false);
+
+    binners = new Binner[this.threads];
+    tileDepth = new float[this.threads][TILE * TILE];
+    for (int w = 0; w < this.threads; w++) {
+      binners[w] = new Binner(tilesX * tilesY);
+      final int worker = w;
+      geometryTasks.add(() -> {
+        int from = (int) ((long) visibleCount * worker / this.threads);
+        int to = (int) ((long) visibleCount * (worker + 1) / this.threads);
+        binners[worker].bin(from, to);
+        return null;
+      });
+      rasterTasks.add(() -> {
+        int tile;
+        while ((tile = nextTile.getAndIncrement()) < tilesX * tilesY) {
+          rasterTile(tile, tileDepth[worker]);
+        }
+        return null;
+      });
+    }
+
+    // mesh.frag's default uLightDir
+    float lx = 0.4f, ly = 1f, lz = 0.3f;
+    float len = (float) Math.sqrt(lx*lx + ly*ly + lz*lz);
+    lightX = lx / len;
+    lightY = ly / len;
+    lightZ = lz / len;
+  }
+
+  /**
+   * 0xRRGGBB behind everything, white like the GL path by default
+   */
+  public void setClearColor(int rgb) {
+    clearColor = rgb;
+  }
+
+  @Override
+  public void render(Scene scene, Camera camera) {
+    long start = System.nanoTime();
+    this.scene = scene;
+    viewProj.set(camera.viewProjMat());
+    culler.setViewProj(viewProj);
+    if (visible.length < scene.size()) {
+      visible = new int[scene.size()];
+    }
+    visibleCount = culler.cull(scene, visible);
+
+    run(geometryTasks);
+    nextTile.set(0);
+    run(rasterTasks);
+
+    triangles = 0;
+    for (Binner b : binners) {
+      triangles += b.count;
+    }
+    this.scene = null;
+    frameNanos = System.nanoTime() - start;
+  }
+
+  private void run(List<Callable<Void>> tasks) {
+    if (workers == null) {
+      try {
+        tasks.get(0).call();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      return;
+    }
+    try {
+      for (Future<Void> f : workers.invokeAll(tasks)) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  // triangles of one geometry worker, binned per tile
+  private final class Binner {
+    float[] tris = new float[1024 * TRI];
+    int count = 0;
+    final int[][] bins;
+    final int[] binSizes;
+    final Matrix4f model = new Matrix4f();
+    final Matrix4f mvp = new Matrix4f();
+    float tint = 1f;
+    // clip space triangle and the near clipped polygon (at most 4 vertices)
+    final float[] in = new float[3 * C];
+    final float[] out = new float[4 * C];
+
+    Binner(int tiles) {
+      bins = new int[tiles][64];
+      binSizes = new int[tiles];
+    }
+
+    void bin(int from, int to) {
+      count = 0;
+      Arrays.fill(binSizes, 0);
+      StageLibrary stages = scene.stages;
+      for (int k = from; k < to; k++) {
+        int i = visible[k];
+        float[] data = stages.get(scene.variantStage(i)).getFullModelData();
+        scene.model(i, model);
+        tint = scene.variation().tint(scene.variationKey(i));
+        viewProj.mul(model, mvp);
+        for (int t = 0; t + 2 < data.length / F; t += 3) {
+          for (int v = 0; v < 3; v++) {
+            transform(data, (t + v) * F, v * C);
+          }
+          clipNear();
+        }
+      }
+    }
+
+    private void transform(float[] data, int src, int dst) {
+      float x = data[src], y = data[src+1], z = data[src+2];
+      in[dst]   = mvp.m00() * x + mvp.m10() * y + mvp.m20() * z + mvp.m30();
+      in[dst+1] = mvp.m01() * x + mvp.m11() * y + mvp.m21() * z + mvp.m31();
+      in[dst+2] = mvp.m02() * x + mvp.m12() * y + mvp.m22() * z + mvp.m32();
+      in[dst+3] = mvp.m03() * x + mvp.m13() * y + mvp.m23() * z + mvp.m33();
+      in[dst+4] = data[src+7] * tint;
+      in[dst+5] = data[src+8] * tint;
+      in[dst+6] = data[src+9] * tint;
+      // mat3(model) * normal, renormalized per pixel
+      float nx = data[src+4], ny = data[src+5], nz = data[src+6];
+      in[dst+7] = model.m00() * nx + model.m10() * ny + model.m20() * nz;
+      in[dst+8] = model.m01() * nx + model.m11() * ny + model.m21() * nz;
+      in[dst+9] = model.m02() * nx + model.m12() * ny + model.m22() * nz;
+    }
+
+    // Sutherland-Hodgman against z + w >= 0, the result is fanned into triangles
+    private void clipNear() {
+      float d0 = in[2] + in[3], d1 = in[C+2] + in[C+3], d2 = in[2*C+2] + in[2*C+3];
+      if (d0 >= 0f && d1 >= 0f && d2 >= 0f) {
+        emit(in, 0, in, C, in, 2 * C);
+        return;
+      }
+      if (d0 < 0f && d1 < 0f && d2 < 0f) {
+        return;
+      }
+      float[] d = {d0, d1, d2};
+      int n = 0;
+      for (int a = 0; a < 3; a++) {
+        int b = (a + 1) % 3;
+        if (d[a] >= 0f) {
+          System.arraycopy(in, a * C, out, n++ * C, C);
+        }
+        if ((d[a] >= 0f) != (d[b] >= 0f)) {
+          float s = d[a] / (d[a] - d[b]);
+          for (int k = 0; k < C; k++) {
+            out[n*C + k] = in[a*C + k] + (in[b*C + k] - in[a*C + k]) * s;
+          }
+          n++;
+        }
+      }
+      for (int v = 1; v + 1 < n; v++) {
+        emit(out, 0, out, v * C, out, (v + 1) * C);
+      }
+    }
+
+    private void emit(float[] a, int oa, float[] b, int ob, float[] c, int oc) {
+      if (tris.length < (count + 1) * TRI) {
+        tris = Arrays.copyOf(tris, tris.length * 2);
+      }
+      int o = count * TRI;
+      setup(a, oa, o);
+      setup(b, ob, o + S);
+      setup(c, oc, o + 2 * S);
+      float x0 = tris[o], y0 = tris[o+1];
+      float area = (tris[o+S] - x0) * (tris[o+2*S+1] - y0) - (tris[o+2*S] - x0) * (tris[o+S+1] - y0);
+      // y points down on screen, counter clockwise (front facing) has a negative area
+      if (area >= 0f) {
+        return;
+      }
+      // swap b and c, the raster loop wants a positive area
+      for (int k = 0; k < S; k++) {
+        float tmp = tris[o+S+k];
+        tris[o+S+k] = tris[o+2*S+k];
+        tris[o+2*S+k] = tmp;
+      }
+      float minX = Math.min(x0, Math.min(tris[o+S], tris[o+2*S]));
+      float maxX = Math.max(x0, Math.max(tris[o+S], tris[o+2*S]));
+      float minY = Math.min(y0, Math.min(tris[o+S+1], tris[o+2*S+1]));
+      float maxY = Math.max(y0, Math.max(tris[o+S+1], tris[o+2*S+1]));
+      if (maxX < 0f || maxY < 0f || minX >= width || minY >= height) {
+        return;
+      }
+      int tx0 = Math.max(0, (int) minX / TILE), tx1 = Math.min(tilesX - 1, (int) maxX / TILE);
+      int ty0 = Math.max(0, (int) minY / TILE), ty1 = Math.min(tilesY - 1, (int) maxY / TILE);
+      for (int ty = ty0; ty <= ty1; ty++) {
+        for (int tx = tx0; tx <= tx1; tx++) {
+          int tile = ty * tilesX + tx;
+          if (binSizes[tile] == bins[tile].length) {
+            bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+          }
+          bins[tile][binSizes[tile]++] = count;
+        }
+      }
+      count++;
+    }
+
+    private void setup(float[] v, int src, int dst) {
+      float invW = 1f / v[src+3];
+      tris[dst]   = (v[src] * invW * 0.5f + 0.5f) * width;
+      tris[dst+1] = (0.5f - v[src+1] * invW * 0.5f) * height;
+      tris[dst+2] = v[src+2] * invW * 0.5f + 0.5f;
+      tris[dst+3] = invW;
+      for (int k = 4; k < C; k++) {
+        tris[dst+k] = v[src+k] * invW;
+      }
+    }
+  }
+
+  private void rasterTile(int tile, float[] depth) {
+    int x0 = (tile % tilesX) * TILE, y0 = (tile / tilesX) * TILE;
+    int x1 = Math.min(x0 + TILE, width), y1 = Math.min(y0 + TILE, height);
+    Arrays.fill(depth, 1f);
+    for (int y = y0; y < y1; y++) {
+      Arrays.fill(pixels, y * width + x0, y * width + x1, clearColor);
+    }
+    for (Binner b : binners) {
+      int[] bin = b.bins[tile];
+      for (int k = 0, n = b.binSizes[tile]; k < n; k++) {
+        rasterTriangle(b.tris, bin[k] * TRI, x0, y0, x1, y1, depth);
+      }
+    }
+  }
+
+  private void rasterTriangle(float[] t, int o, int tx0, int ty0, int tx1, int ty1, float[] depth) {
+    float ax = t[o], ay = t[o+1], bx = t[o+S], by = t[o+S+1], cx = t[o+2*S], cy = t[o+2*S+1];
+    int minX = Math.max(tx0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+    int maxX = Math.min(tx1 - 1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+    int minY = Math.max(ty0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+    int maxY = Math.min(ty1 - 1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+    if (minX > maxX || minY > maxY) {
+      return;
+    }
+    float area = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+    float invArea = 1f / area;
+    // edge functions at the first pixel center and their steps in x and y
+    float px = minX + 0.5f, py = minY + 0.5f;
+    float e0 = (cx - bx) * (py - by) - (px - bx) * (cy - by);
+    float e1 = (ax - cx) * (py - cy) - (px - cx) * (ay - cy);
+    float e2 = (bx - ax) * (py - ay) - (px - ax) * (by - ay);
+    float e0dx = -(cy - by), e1dx = -(ay - cy), e2dx = -(by - ay);
+    float e0dy = cx - bx, e1dy = ax - cx, e2dy = bx - ax;
+
+    for (int y = minY; y <= maxY; y++) {
+      float w0 = e0, w1 = e1, w2 = e2;
+      for (int x = minX; x <= maxX; x++) {
+        if (w0 >= 0f && w1 >= 0f && w2 >= 0f) {
+          float l0 = w0 * invArea, l1 = w1 * invArea, l2 = 1f - l0 - l1;
+          float z = l0 * t[o+2] + l1 * t[o+S+2] + l2 * t[o+2*S+2];
+          int d = (y - ty0) * TILE + (x - tx0);
+          if (z < depth[d]) {
+            depth[d] = z;
+            pixels[y * width + x] = shade(t, o, l0, l1, l2);
+          }
+        }
+        w0 += e0dx;
+        w1 += e1dx;
+        w2 += e2dx;
+      }
+      e0 += e0dy;
+      e1 += e1dy;
+      e2 += e2dy;
+    }
+  }
+
+  private int shade(float[] t, int o, float l0, float l1, float l2) {
+    float w = 1f / (l0 * t[o+3] + l1 * t[o+S+3] + l2 * t[o+2*S+3]);
+    float r = (l0 * t[o+4] + l1 * t[o+S+4] + l2 * t[o+2*S+4]) * w;
+    float g = (l0 * t[o+5] + l1 * t[o+S+5] + l2 * t[o+2*S+5]) * w;
+    float b = (l0 * t[o+6] + l1 * t[o+S+6] + l2 * t[o+2*S+6]) * w;
+    float nx = l0 * t[o+7] + l1 * t[o+S+7] + l2 * t[o+2*S+7];
+    float ny = l0 * t[o+8] + l1 * t[o+S+8] + l2 * t[o+2*S+8];
+    float nz = l0 * t[o+9] + l1 * t[o+S+9] + l2 * t[o+2*S+9];
+    // the 1/w factor of the normal goes away with the normalization
+    float len = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+    float ndl = len > 0f ? Math.max((nx * lightX + ny * lightY + nz * lightZ) / len, 0f) : 0f;
+    float lit = 0.2f + 0.8f * ndl;
+    return channel(r * lit) << 16 | channel(g * lit) << 8 | channel(b * lit);
+  }
+
+  private static int channel(float v) {
+    return Math.round(Math.max(0f, Math.min(1f, v)) * 255f);
+  }
+
+  /**
+   * 0xRRGGBB, row 0 at the top
+   */
+  public int[] getPixels() {
+    return pixels;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * triangles binned by the last render()
+   */
+  public int getTriangles() {
+    return triangles;
+  }
+
+  public long getFrameNanos() {
+    return frameNanos;
+  }
+
+  public void writePpm(Path file) throws IOException {
+    byte[] rgb = new byte[width * height * 3];
+    for (int i = 0; i < pixels.length; i++) {
+      rgb[i*3]   = (byte) (pixels[i] >> 16);
+      rgb[i*3+1] = (byte) (pixels[i] >> 8);
+      rgb[i*3+2] = (byte) pixels[i];
+    }
+    try (OutputStream out = Files.newOutputStream(file)) {
+      out.write(String.format("P6\n%d %d\n255\n", width, height).getBytes());
+      out.write(rgb);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+}
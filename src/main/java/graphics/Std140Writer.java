@@ -0,0 +1,98 @@
+package graphics;
+
+import java.nio.ByteBuffer;
+
+import org.joml.Matrix4f;
+
+/**
+ * Packs values into a buffer following the std140 uniform block rules.
+ *
+ * scalars align to 4 bytes, vec3/vec4 and mat4 columns to 16, the block size is rounded
+ * up to 16. Offsets are relative to the start given in at(), so the same writer can be
+ * reused for every block of a frame.
+ *
+ */
+public final class Std140Writer {
+
+  public static final int FLOAT_BYTES = 4;
+  public static final int VEC4_BYTES = 16;
+  public static final int MAT4_BYTES = 64;
+
+  private ByteBuffer buffer;
+  private int base = 0;
+  private int pos = 0;
+
+  /**
+   * start a block at the given byte offset of buffer
+   */
+  public Std140Writer at(ByteBuffer buffer, int offset) {
+    this.buffer = buffer;
+    base = offset;
+    pos = 0;
+    return this;
+  }
+
+  public Std140Writer putFloat(float v) {
+    align(4);
+    buffer.putFloat(base + pos, v);
+    pos += 4;
+    return this;
+  }
+
+  public Std140Writer putInt(int v) {
+    align(4);
+    buffer.putInt(base + pos, v);
+    pos += 4;
+    return this;
+  }
+
+  public Std140Writer putVec3(float x, float y, float z) {
+    align(16);
+    buffer.putFloat(base + pos, x);
+    buffer.putFloat(base + pos + 4, y);
+    buffer.putFloat(base + pos + 8, z);
+    // a following scalar may use the 4th slot
+    pos += 12;
+    return this;
+  }
+
+  public Std140Writer putVec4(float x, float y, float z, float w) {
+    align(16);
+    buffer.putFloat(base + pos, x);
+    buffer.putFloat(base + pos + 4, y);
+    buffer.putFloat(base + pos + 8, z);
+    buffer.putFloat(base + pos + 12, w);
+    pos += 16;
+    return this;
+  }
+
+  public Std140Writer putMat4(Matrix4f m) {
+    align(16);
+    m.get(base + pos, buffer);
+    pos += MAT4_BYTES;
+    return this;
+  }
+
+  /**
+   * column-major matrix from m[offset..offset+15]
+   */
+  public Std140Writer putMat4(float[] m, int offset) {
+    align(16);
+    for (int i = 0; i < 16; i++) {
+      buffer.putFloat(base + pos + i * 4, m[offset + i]);
+    }
+    pos += MAT4_BYTES;
+    return this;
+  }
+
+  private void align(int alignment) {
+    pos = (pos + alignment - 1) & -alignment;
+  }
+
+  /**
+   * bytes written so far, rounded up to the block alignment
+   */
+  public int size() {
+    return (pos + 15) & -16;
+  }
+}
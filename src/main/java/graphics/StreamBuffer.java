@@ -0,0 +1,223 @@
+package graphics;
+import static org.lwjgl.opengl.GL44.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Buffer for data written once per frame (uniform blocks, instance data, debug lines),
+ * split into one region per frame in flight.
+ *
+ * With ARB_buffer_storage (GL 4.4) the whole buffer is mapped once, persistent and
+ * coherent. Each region gets a fence after its frame's draws and beginFrame() waits on
+ * the fence before the region is written again - the time spent there is counted.
+ * Without it the current region is mapped every frame with glMapBufferRange, unsynchronized,
+ * and the buffer is orphaned whenever the ring wraps so the GPU keeps the old storage.
+ *
+ * per frame: beginFrame(bytes), allocate() and write into data(), flush(), bind, draw,
+ * endFrame(). Offsets from allocate() are relative to the region, use offset() when
+ * binding. beginFrame() may replace the buffer if the reserved size doesn't fit, so
+ * buffer() must be read after it.
+ *
+ */
+public final class StreamBuffer {
+
+  private final int regions;
+  private final boolean persistent;
+
+  private int buffer;
+  private int regionBytes;
+  private ByteBuffer mapping;             // persistent: whole buffer
+  private ByteBuffer[] regionData;        // persistent: views of mapping per region
+  private ByteBuffer data;                // current region
+  private long[] fences;
+
+  private int region = -1;
+  private int cursor = 0;
+  private int reserved = 0;
+
+  private long waitNanos = 0;
+  private int fenceWaits = 0;
+
+  public static boolean isPersistentSupported() {
+    GLCapabilities caps = GL.getCapabilities();
+    return caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+  }
+
+  public StreamBuffer(int regionBytes, int regions) {
+    this.regions = regions;
+    this.persistent = isPersistentSupported();
+    create(regionBytes);
+  }
+
+  private void create(int bytes) {
+    regionBytes = bytes;
+    long size = (long) regionBytes * regions;
+    buffer = glGenBuffers();
+    glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+    if (persistent) {
+      int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+      glBufferStorage(GL_COPY_WRITE_BUFFER, size, flags);
+      mapping = glMapBufferRange(GL_COPY_WRITE_BUFFER, 0, size, flags);
+      regionData = new ByteBuffer[regions];
+      for (int r = 0; r < regions; r++) {
+        regionData[r] = MemoryUtil.memSlice(mapping, r * regionBytes, regionBytes).order(ByteOrder.nativeOrder());
+      }
+      fences = new long[regions];
+    } else {
+      glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STREAM_DRAW);
+    }
+    glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    region = -1;
+  }
+
+  private void destroy() {
+    if (persistent) {
+      for (int r = 0; r < regions; r++) {
+        if (fences[r] != 0) {
+          glDeleteSync(fences[r]);
+        }
+      }
+      glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+      glUnmapBuffer(GL_COPY_WRITE_BUFFER);
+      glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+    // the GL keeps the storage alive until pending draws are done with it
+    glDeleteBuffers(buffer);
+  }
+
+  /**
+   * move to the next region, reserving at least the given number of bytes for this frame
+   */
+  public void beginFrame(int bytes) {
+    waitNanos = 0;
+    fenceWaits = 0;
+    if (bytes > regionBytes) {
+      destroy();
+      create(Math.max(bytes, regionBytes * 2));
+    }
+    region = (region + 1) % regions;
+    cursor = 0;
+    reserved = bytes;
+
+    if (persistent) {
+      waitFence(region);
+      data = regionData[region];
+    } else {
+      glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+      if (region == 0) {
+        glBufferData(GL_COPY_WRITE_BUFFER, (long) regionBytes * regions, GL_STREAM_DRAW);
+      }
+      int flags = GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT
+          | GL_MAP_FLUSH_EXPLICIT_BIT;
+      data = glMapBufferRange(GL_COPY_WRITE_BUFFER, (long) region * regionBytes, regionBytes, flags);
+      data.order(ByteOrder.nativeOrder());
+      glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+  }
+
+  private void waitFence(int r) {
+    long fence = fences[r];
+    if (fence == 0) {
+      return;
+    }
+    int status = glClientWaitSync(fence, 0, 0L);
+    if (status == GL_TIMEOUT_EXPIRED) {
+      long start = System.nanoTime();
+      fenceWaits++;
+      do {
+        status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000L);
+      } while (status == GL_TIMEOUT_EXPIRED);
+      waitNanos += System.nanoTime() - start;
+    }
+    glDeleteSync(fence);
+    fences[r] = 0;
+  }
+
+  /**
+   * bump-allocate bytes in the current region, returns the region-relative offset
+   */
+  public int allocate(int bytes, int alignment) {
+    int offset = (cursor + alignment - 1) / alignment * alignment;
+    if (offset + bytes > regionBytes) {
+      throw new IllegalStateException("stream buffer region full, reserve more in beginFrame: "
+          + (offset + bytes) + " > " + regionBytes + " (reserved " + reserved + ")");
+    }
+    cursor = offset + bytes;
+    return offset;
+  }
+
+  /**
+   * the current region, write with absolute puts at allocated offsets
+   */
+  public ByteBuffer data() {
+    return data;
+  }
+
+  /**
+   * make the writes visible to GL, call before the draws that read them
+   */
+  public void flush() {
+    if (persistent) {
+      return;   // coherent mapping
+    }
+    glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+    if (cursor > 0) {
+      glFlushMappedBufferRange(GL_COPY_WRITE_BUFFER, 0, cursor);
+    }
+    glUnmapBuffer(GL_COPY_WRITE_BUFFER);
+    glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    data = null;
+  }
+
+  /**
+   * fence the region after the frame's draws were issued
+   */
+  public void endFrame() {
+    if (persistent) {
+      fences[region] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+  }
+
+  public int buffer() {
+    return buffer;
+  }
+
+  /**
+   * buffer offset of a region-relative offset
+   */
+  public long offset(int regionOffset) {
+    return (long) region * regionBytes + regionOffset;
+  }
+
+  public boolean isPersistent() {
+    return persistent;
+  }
+
+  public long sizeBytes() {
+    return (long) regionBytes * regions;
+  }
+
+  public int bytesUsed() {
+    return cursor;
+  }
+
+  /**
+   * time spent in beginFrame() waiting for the GPU to release the region
+   */
+  public long getWaitNanos() {
+    return waitNanos;
+  }
+
+  public int getFenceWaits() {
+    return fenceWaits;
+  }
+
+  public void dispose() {
+    destroy();
+  }
+}
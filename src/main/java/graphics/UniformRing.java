@@ -0,0 +1,71 @@
+package graphics;
+import static org.lwjgl.opengl.GL31.*;
+
+/**
+ * Uniform blocks of one frame, bump-allocated from a StreamBuffer region and bound
+ * with glBindBufferRange.
+ *
+ * per frame: beginFrame(bytes), allocate() and write the blocks, flush(), bind() and
+ * draw, endFrame(). Size the reservation with blockBytes(), every block is padded to
+ * GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT.
+ *
+ */
+public final class UniformRing {
+
+  private final StreamBuffer stream;
+  private final int alignment;
+  private final Std140Writer writer = new Std140Writer();
+
+  public UniformRing(int regionBytes, int frames) {
+    this.alignment = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+    stream = new StreamBuffer(regionBytes, frames);
+  }
+
+  /**
+   * space one block of the given std140 size takes in the ring
+   */
+  public int blockBytes(int bytes) {
+    return (bytes + alignment - 1) / alignment * alignment;
+  }
+
+  public void beginFrame(int bytes) {
+    stream.beginFrame(bytes);
+  }
+
+  /**
+   * reserve an aligned block in the current frame, returns its frame-relative offset
+   */
+  public int allocate(int bytes) {
+    return stream.allocate(bytes, alignment);
+  }
+
+  /**
+   * std140 writer positioned at a block from allocate()
+   */
+  public Std140Writer writer(int offset) {
+    return writer.at(stream.data(), offset);
+  }
+
+  public void flush() {
+    stream.flush();
+  }
+
+  public void endFrame() {
+    stream.endFrame();
+  }
+
+  /**
+   * bind a block to a uniform binding point, see Shader.CAMERA_BLOCK / OBJECT_BLOCK
+   */
+  public void bind(GLStateCache state, int binding, int offset, int bytes) {
+    state.bindBufferRange(GL_UNIFORM_BUFFER, binding, stream.buffer(), stream.offset(offset), bytes);
+  }
+
+  public StreamBuffer stream() {
+    return stream;
+  }
+
+  public void dispose() {
+    stream.dispose();
+  }
+}
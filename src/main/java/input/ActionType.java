@@ -21,6 +21,7 @@ public enum ActionType {
   CANCEL,
   SHUTDOWN,
   KEY,
+  KEY_RELEASE,
   RIGHTCLICK,
   MOVE_FORWARD,
   MOVE_BACKWARDS,
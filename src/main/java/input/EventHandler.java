@@ -190,6 +190,28 @@ public class EventHandler {
         if (key == GLFW.GLFW_KEY_F) {
           out.add(new Action(ActionType.KEY, 0, 0, 0, 0, 0, 0, "f"));
         }
+        // screenshot and recording, not repeated while held
+        if (key == GLFW.GLFW_KEY_F12 && key_action == GLFW.GLFW_PRESS) {
+          out.add(new Action(ActionType.KEY, 0, 0, 0, 0, 0, 0, "f12"));
+        }
+        if (key == GLFW.GLFW_KEY_F11 && key_action == GLFW.GLFW_PRESS) {
+          out.add(new Action(ActionType.KEY, 0, 0, 0, 0, 0, 0, "f11"));
+        }
+      }
+      // movement keys are held, the simulation moves while they are down
+      if (key_action == GLFW.GLFW_RELEASE) {
+        String moveKey = switch (key) {
+          case GLFW.GLFW_KEY_W -> "w";
+          case GLFW.GLFW_KEY_S -> "s";
+          case GLFW.GLFW_KEY_A -> "a";
+          case GLFW.GLFW_KEY_D -> "d";
+          case GLFW.GLFW_KEY_R -> "r";
+          case GLFW.GLFW_KEY_F -> "f";
+          default -> null;
+        };
+        if (moveKey != null) {
+          out.add(new Action(ActionType.KEY_RELEASE, 0, 0, 0, 0, 0, 0, moveKey));
+        }
       }
     }
 
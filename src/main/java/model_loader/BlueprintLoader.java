@@ -31,6 +31,9 @@ public class BlueprintLoader {
       loadSubBlueprint(reader, subBlueprints, size);
     }
     calculateGrowthFactors(subBlueprints);
+    for (SubBlueprint sub : subBlueprints) {
+      sub.setRandomized(randomize);
+    }
     // blueprint.setSubBlueprints(subBlueprints);
     // blueprint.setOverrideName(extraName);
     // blueprint.setRandomizeModelStages(randomize);
@@ -45,10 +48,10 @@ public class BlueprintLoader {
     reader.nextLine();
     Vector3f mins = reader.getNextVector();
     // mins.scale(size);
-    // mins.mul(size);
+    mins.mul(size);
     Vector3f maxs = reader.getNextVector();
     // maxs.scale(size);
-    // maxs.mul(size);
+    maxs.mul(size);
     float increaseFactor = reader.getNextFloat();
     boolean additive = false;
     AABB[] extraAabbs = null;
@@ -74,10 +77,10 @@ public class BlueprintLoader {
     for(int i=0;i<count;i++){
       Vector3f mins = reader.getNextVector();
       // mins.scale(size);
-      // mins.mul(size);
+      mins.mul(size);
       Vector3f maxs = reader.getNextVector();
       // maxs.scale(size);
-      // maxs.mul(size);
+      maxs.mul(size);
       aabbs[i] = new AABB(mins, maxs);
     }
     return aabbs;
@@ -0,0 +1,99 @@
+package model_loader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coarser versions of a blueprint mesh by vertex clustering.
+ *
+ * The bounding box is divided into cubic cells, all vertices of the same colour falling
+ * into one cell are merged into their average, and triangles that end up with two
+ * corners in the same cluster disappear. Colours are kept apart so the flat colour
+ * sections of the models don't bleed into each other. The result keeps the overall
+ * size and silhouette, which is all that matters a few dozen pixels tall.
+ *
+ * Data is the blueprint layout, 10 floats per vertex, 3 vertices per triangle.
+ *
+ */
+public class MeshSimplifier {
+
+  private static final int F = MemorySlot.VERTEX_FLOAT_COUNT;
+
+  /**
+   * @param cellSize edge length of a cluster cell in model units
+   * @return new triangle list, possibly empty
+   */
+  public static float[] cluster(float[] data, float cellSize) {
+    int vertexCount = data.length / F;
+    if (vertexCount == 0) {
+      return new float[0];
+    }
+    float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+    for (int v = 0; v < vertexCount; v++) {
+      minX = Math.min(minX, data[v*F]);
+      minY = Math.min(minY, data[v*F+1]);
+      minZ = Math.min(minZ, data[v*F+2]);
+    }
+
+    // cluster id per vertex, clusters accumulate the sums of all attributes
+    Map<Key, Integer> ids = new HashMap<>();
+    int[] clusterOf = new int[vertexCount];
+    float[] sums = new float[64 * F];
+    int[] counts = new int[64];
+    for (int v = 0; v < vertexCount; v++) {
+      int o = v * F;
+      Key key = new Key(
+          (int) Math.floor((data[o] - minX) / cellSize),
+          (int) Math.floor((data[o+1] - minY) / cellSize),
+          (int) Math.floor((data[o+2] - minZ) / cellSize),
+          Float.floatToIntBits(data[o+7]), Float.floatToIntBits(data[o+8]), Float.floatToIntBits(data[o+9]));
+      Integer id = ids.get(key);
+      if (id == null) {
+        id = ids.size();
+        ids.put(key, id);
+        if (id == counts.length) {
+          counts = Arrays.copyOf(counts, id * 2);
+          sums = Arrays.copyOf(sums, id * 2 * F);
+        }
+      }
+      clusterOf[v] = id;
+      counts[id]++;
+      for (int k = 0; k < F; k++) {
+        sums[id*F + k] += data[o+k];
+      }
+    }
+
+    // representative vertex per cluster, normals renormalized
+    int clusters = ids.size();
+    float[] rep = new float[clusters * F];
+    for (int c = 0; c < clusters; c++) {
+      for (int k = 0; k < F; k++) {
+        rep[c*F + k] = sums[c*F + k] / counts[c];
+      }
+      float nx = rep[c*F+4], ny = rep[c*F+5], nz = rep[c*F+6];
+      float len = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+      if (len > 1e-6f) {
+        rep[c*F+4] = nx / len;
+        rep[c*F+5] = ny / len;
+        rep[c*F+6] = nz / len;
+      }
+    }
+
+    float[] out = new float[data.length];
+    int n = 0;
+    for (int t = 0; t + 2 < vertexCount; t += 3) {
+      int a = clusterOf[t], b = clusterOf[t+1], c = clusterOf[t+2];
+      if (a == b || b == c || a == c) {
+        continue;
+      }
+      System.arraycopy(rep, a*F, out, n, F);
+      System.arraycopy(rep, b*F, out, n + F, F);
+      System.arraycopy(rep, c*F, out, n + 2*F, F);
+      n += 3 * F;
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private record Key(int x, int y, int z, int r, int g, int b) {}
+}
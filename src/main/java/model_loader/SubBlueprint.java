@@ -9,6 +9,7 @@ public class SubBlueprint {
   private float increaseFactor;
   private float minGrowth;
   private float maxGrowth;
+  private boolean randomized;
 
   public SubBlueprint(float[] data, AABB aabb, AABB[] aabbs, float increaseFactor){
     this.boundingBox = aabb;
@@ -54,6 +55,17 @@ public class SubBlueprint {
     return getDataLength() / MemorySlot.VERTEX_FLOAT_COUNT;
   }
 
+  /**
+   * the blueprint's stages are alternative models picked per instance, not growth steps
+   */
+  public boolean isRandomized(){
+    return randomized;
+  }
+
+  public void setRandomized(boolean randomized){
+    this.randomized = randomized;
+  }
+
   public AABB getAABB(){
     return boundingBox;
   }
@@ -2,9 +2,12 @@ package renderEngine;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
@@ -19,9 +22,32 @@ import org.lwjgl.opengl.GL13;
 import org.lwjgl.stb.STBEasyFont;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import graphics.Axes;
-import graphics.Mesh;
+import graphics.Camera;
+import graphics.ChunkBatcher;
+import graphics.DrawListBuilder;
+import graphics.FrameCapture;
+import graphics.FrustumCuller;
+import graphics.GLStateCache;
+import graphics.GpuCuller;
+import graphics.GpuResources;
+import graphics.GpuTimer;
+import graphics.ImpostorBaker;
+import graphics.ImpostorRenderer;
+import graphics.IndirectBatch;
+import graphics.LodSelector;
+import graphics.MeshArena;
+import graphics.MeshUploader;
+import graphics.OcclusionCuller;
+import graphics.RenderQueue;
+import graphics.RenderTarget;
+import graphics.ResidencyController;
+import graphics.ResolutionController;
 import graphics.Shader;
+import graphics.ShaderCache;
+import graphics.UniformRing;
 import input.CursorEvent;
 import input.InputSystem;
 import input.KeyEvent;
@@ -30,29 +56,122 @@ import input.ScrollEvent;
 import model_loader.BlueprintLoader;
 import model_loader.MyFile;
 import model_loader.SubBlueprint;
+import state.FramePacer;
+import state.FrameStats;
+import state.FrameSnapshot;
 import state.GameState;
+import state.Scene;
+import state.ScenePicker;
+import state.Simulation;
+import state.StageLibrary;
+import state.Variation;
 
 
 public class HelloLWJGL {
 
+  private static final Logger log = LoggerFactory.getLogger(HelloLWJGL.class);
+
   private long glfwWindow;
 
   public void run() throws Exception {
     System.out.printf("Starting LWJGL %s! \n", Version.getVersion());
     init();
+    // from here the simulation thread owns game state and scene, the render thread the context
+    renderThread = new Thread(this::renderLoop, "render");
+    simulation.setOnPublish(this::wakeRenderer);
+    simulation.start();
+    renderThread.start();
     loop();
+    simulation.stop();
+    if (closingWindow != null) {
+      // the simulation thread has stopped writing game state
+      gameState.saveState(closingWindow[0], closingWindow[1], closingWindow[2], closingWindow[3]);
+    }
+    rendering = false;
+    wakeRenderer();
+    renderThread.join();
     cleanup();
   }
 
+  // ticks camera and scene, hands snapshots to the render thread
+  private Simulation simulation;
+  private volatile Thread renderThread;
+  private volatile boolean rendering = true;
+  // on demand, a frame is drawn only while one of these holds (see needsFrame())
+  private volatile boolean redrawRequested = true;
+  // window position and size at shutdown, saved once the simulation has stopped
+  private int[] closingWindow;
+  private boolean lastFrameChanged = true;
+  // GLFW calls other threads need made on the main thread, run after polling
+  private final ConcurrentLinkedQueue<Runnable> mainTasks = new ConcurrentLinkedQueue<>();
+  // framebuffer size from the main thread, applied by the render thread
+  private volatile int framebufferWidth;
+  private volatile int framebufferHeight;
+  private int viewportWidth = -1;
+  private int viewportHeight = -1;
+  // the snapshot's camera interpolated to the time of the frame
+  private final Camera viewCamera = new Camera(0f, 0f);
+
   private double startTime;
   private InputSystem input = new InputSystem();
   private GameState gameState;
 
-  Mesh mesh;
   Axes axes;
+  ShaderCache shaderCache;
   Shader shaderMesh;
   Shader shaderAxes;
 
+  StageLibrary stages;
+  Scene scene;
+  // every stage's vertices, drawn per instance or in one multi-draw
+  MeshArena arena;
+  MeshUploader uploader;
+  // batched path, null when the context doesn't support base-instance draws
+  IndirectBatch batch;
+  Shader shaderBatch;
+  // culling and LOD of the next frame run on workers while this one is submitted
+  DrawListBuilder drawLists;
+  LodSelector lod = new LodSelector();
+  ResidencyController residency;
+  private double lastFrameTime = 0;
+  FrustumCuller culler = new FrustumCuller();
+  OcclusionCuller occlusion = new OcclusionCuller(320, 180);
+  boolean useOcclusion = true;
+  // optional compute shader culling, null without GL 4.3
+  GpuCuller gpuCuller;
+  Shader shaderGpu;
+  // far instances as quads from baked atlases, baked on the CPU and cached in ./impostor-cache
+  ImpostorBaker impostorBaker = new ImpostorBaker(8, 32, Paths.get("./impostor-cache"));
+  ImpostorRenderer impostors;
+  Shader shaderImpostor;
+  // static decoration merged per chunk, not part of the scene
+  ChunkBatcher chunks;
+  Shader shaderChunk;
+
+  // every GL object below is registered here, released in cleanup() before the context goes
+  GpuResources resources;
+  List<GpuResources.Handle> owned = new ArrayList<>();
+
+  GLStateCache glState = new GLStateCache();
+  RenderQueue queue = new RenderQueue();
+  RenderQueue.Command drawBatch;
+  RenderQueue.Command drawGpu;
+  RenderQueue.Command drawImpostors;
+  RenderQueue.Command drawChunks;
+  UniformRing uniforms;
+  // the scene renders at a scale and sample count picked to hold the frame time
+  RenderTarget renderTarget;
+  ResolutionController resolution;
+  // null without timer queries, the controller goes by CPU time then
+  GpuTimer gpuTimer;
+  final int MAX_SAMPLES = 4;
+  // F12 screenshots and F11 recording into ./captures, read back through PBOs
+  FrameCapture capture;
+  float[] axesModel = new Matrix4f().scaling(3.0f).get(new float[16]); // scale the axis
+  private double statsTime = 0;
+  private long uploadPeakNanos = 0;
+  private boolean firstFrame = true;
+
   private void init() throws Exception {
 
     // error callback
@@ -67,8 +186,8 @@ public class HelloLWJGL {
     GLFW.glfwWindowHint(GLFW.GLFW_VISIBLE, GLFW.GLFW_FALSE);
     GLFW.glfwWindowHint(GLFW.GLFW_RESIZABLE, GLFW.GLFW_TRUE);
 
-    // Request a multisampled framebuffer: 4x MSAA is a good default
-    GLFW.glfwWindowHint(GLFW.GLFW_SAMPLES, 4);
+    // single sampled, the scene is drawn into a RenderTarget with its own MSAA and blitted here
+    GLFW.glfwWindowHint(GLFW.GLFW_SAMPLES, 0);
 
     // Create a size (100,100) window, resized by gameState
     glfwWindow = GLFW.glfwCreateWindow(100, 100, "Hello LWJGL", MemoryUtil.NULL, MemoryUtil.NULL);
@@ -82,10 +201,6 @@ public class HelloLWJGL {
     GLFW.glfwSetWindowSize(glfwWindow, winD[2], winD[3]);
 
 
-    // Make OpenGL context current
-    GLFW.glfwMakeContextCurrent(glfwWindow);
-    // Enable v-sync
-    GLFW.glfwSwapInterval(1);
     // Make window visible
     GLFW.glfwShowWindow(glfwWindow);
     // initialize OpenGL bindings
@@ -104,78 +219,231 @@ public class HelloLWJGL {
     GLFW.glfwSetKeyCallback(glfwWindow, (w, key, sc, action, mods) ->
     input.enqueue(new KeyEvent(w, GLFW.glfwGetTime(), key, sc, action, mods)));
 
-    // Set callback to detect movement
+    startTime = GLFW.glfwGetTime();
+    lastTime = GLFW.glfwGetTime();
+
+
+    // LOAD MODEL
+    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\89_Beaver.txt"));
+    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\64_Sparrow.txt"));
+    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\55_Butterfly.txt"));
+    List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\43_BananaTree.txt"));
+
+    stages = new StageLibrary();
+    int bananaTree = stages.registerAll("43_BananaTree", bps);
+    scene = new Scene(stages);
+    scene.add(bananaTree + 1, modelMatrix(2,0,2));
+    // click selects, double click focuses - the BVHs are built at the first pick
+    gameState.setPicker(new ScenePicker(scene));
+
+    simulation = new Simulation(gameState, scene, 120);
+    gameState.setMainThread(this::runOnMain);
+    gameState.setSimulationThread(simulation::post);
+
+    // Set callback to detect movement, the popup menu reads the position on the simulation thread
     GLFW.glfwSetWindowPosCallback(glfwWindow, new GLFWWindowPosCallback() {
       @Override
       public void invoke(long window, int xpos, int ypos) {
-        gameState.winXPos = xpos;
-        gameState.winYPos = ypos;
+        simulation.post(() -> {
+          gameState.winXPos = xpos;
+          gameState.winYPos = ypos;
+        });
       }
     });
 
-    startTime = GLFW.glfwGetTime();
-    lastTime = GLFW.glfwGetTime();
+    // the viewport follows on the render thread, the camera aspect on the simulation thread
+    try (MemoryStack stack = MemoryStack.stackPush()) {
+      IntBuffer w = stack.mallocInt(1);
+      IntBuffer h = stack.mallocInt(1);
+      GLFW.glfwGetFramebufferSize(glfwWindow, w, h); // use *framebuffer* size (accounts for HiDPI)
+      framebufferWidth = w.get(0);
+      framebufferHeight = h.get(0);
+    }
+    GLFW.glfwSetFramebufferSizeCallback(glfwWindow, (win, width, height) -> {
+      framebufferWidth = width;
+      framebufferHeight = height;
+      simulation.post(() -> gameState.updateViewport(width, height));
+      wakeRenderer();
+    });
+    // the window was uncovered or the system wants its contents
+    GLFW.glfwSetWindowRefreshCallback(glfwWindow, win -> {
+      redrawRequested = true;
+      wakeRenderer();
+    });
+  }
 
+  // render thread, everything that needs the context
+  private void initGraphics() throws Exception {
+    // Make OpenGL context current
+    GLFW.glfwMakeContextCurrent(glfwWindow);
+    // Enable v-sync, the pacer backs it up when the swap doesn't block
+    GLFW.glfwSwapInterval(VSYNC ? 1 : 0);
 
     // ** GL CONTEXT **
     // -> which binds OpenGL to the current context defined by glfwMakeContextCurrent
     GL.createCapabilities();
 
-
-    // LOAD MODEL
-    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\89_Beaver.txt"));
-    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\64_Sparrow.txt"));
-    // List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\55_Butterfly.txt"));
-    List<SubBlueprint> bps = BlueprintLoader.loadBlueprint(new MyFile("\\blueprints\\43_BananaTree.txt"));
-
-    mesh = Mesh.create(bps.get(1).getFullModelData());
+    resources = new GpuResources((long) gameState.gpuBudgetMB << 20);
+    // streaming keeps a margin below the budget for everything that isn't a mesh
+    residency = new ResidencyController(resources, lod, resources.getBudget() / 4 * 3);
+    int threads = gameState.drawListThreads > 0 ? gameState.drawListThreads
+        : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    drawLists = new DrawListBuilder(lod, occlusion, residency, threads);
     axes = Axes.create();
-
-    String vShaderMesh = Files.readString(Paths.get(
-        Shader.class.getResource("/glsl/mesh.vert").toURI()));
-    String fShaderMesh = Files.readString(Paths.get(
-        Shader.class.getResource("/glsl/mesh.frag").toURI()));
-    String vShaderAxes = Files.readString(Paths.get(
-        Shader.class.getResource("/glsl/axes.vert").toURI()));
-    String fShaderAxes = Files.readString(Paths.get(
-        Shader.class.getResource("/glsl/axes.frag").toURI()));
-
-    shaderMesh = new Shader(vShaderMesh, fShaderMesh);
-    shaderAxes = new Shader(vShaderAxes, fShaderAxes);
+    owned.add(resources.register("axes", GpuResources.Kind.VERTEX_ARRAY, 0, axes::dispose));
+
+    // programs come from the binary cache or link in the background until first use
+    shaderCache = new ShaderCache(Paths.get("./shader-cache"));
+    String fShaderMesh = Shader.source("/glsl/mesh.frag");
+    shaderMesh = shaderCache.program(Shader.source("/glsl/mesh.vert"), fShaderMesh, null);
+    shaderAxes = shaderCache.program(Shader.source("/glsl/axes.vert"), Shader.source("/glsl/axes.frag"), null);
+    ownProgram("mesh", shaderMesh);
+    ownProgram("axes", shaderAxes);
+
+    // all resident stages share one vertex buffer and go out in one multi-draw
+    arena = new MeshArena(1 << 16);
+    // its bytes are counted through the meshes resident in it
+    owned.add(resources.register("mesh arena", GpuResources.Kind.BUFFER, 0, arena::dispose));
+    for (int id = 0; id < stages.size(); id++) {
+      arena.add(id, stages.get(id).getFullModelData());
+    }
+    impostors = new ImpostorRenderer(8, 32, 64);
+    owned.add(resources.register("impostors", GpuResources.Kind.TEXTURE, impostors::sizeBytes, impostors::dispose));
+    bakeImpostors(0, stages.size());
+    buildLods(0, stages.size());
+    trackMeshes(0, stages.size());
+    chunks = new ChunkBatcher(stages, scene.variation(), 16f);
+    owned.add(resources.register("chunks", GpuResources.Kind.BUFFER, chunks::sizeBytes, chunks::dispose));
+    // further species are parsed on workers and uploaded a bit each frame
+    uploader = new MeshUploader(stages, arena, 2);
+    uploader.load("124_SmallJungleTree", new MyFile("blueprints/124_SmallJungleTree.txt"))
+        .thenAccept(first -> {
+          bakeImpostors(first, stages.size());
+          buildLods(first, stages.size());
+          trackMeshes(first, stages.size());
+          simulation.post(() -> scene.add(first + 1, modelMatrix(-2,0,2)));
+        });
+    // randomized blueprint, each rock is drawn with one of its models picked by Variation
+    uploader.load("6_Rocks", new MyFile("blueprints/6_Rocks.txt"))
+        .thenAccept(first -> {
+          bakeImpostors(first, stages.size());
+          buildLods(first, stages.size());
+          trackMeshes(first, stages.size());
+          simulation.post(() -> {
+            for (int k = 0; k < 5; k++) {
+              scene.add(first, modelMatrix(-6 + 3f * k, 0, -3));
+            }
+          });
+        });
+    // a meadow of grass as static chunks
+    uploader.load("20_Grass", new MyFile("blueprints/20_Grass.txt"))
+        .thenAccept(first -> {
+          trackMeshes(first, stages.size());
+          Random rnd = new Random(20);
+          for (int k = 0; k < 4000; k++) {
+            chunks.add(first, modelMatrix(rnd.nextFloat() * 80f - 40f, 0, rnd.nextFloat() * 80f - 40f));
+          }
+        });
+    if (IndirectBatch.isSupported()) {
+      batch = new IndirectBatch(arena);
+      shaderBatch = shaderCache.program(Shader.source("/glsl/mesh_batch.vert"), fShaderMesh, null);
+      owned.add(resources.register("batch", GpuResources.Kind.BUFFER, batch::sizeBytes, batch::dispose));
+      ownProgram("mesh_batch", shaderBatch);
+    }
+    if (batch != null && GpuCuller.isSupported()) {
+      gpuCuller = new GpuCuller(arena, shaderCache.compute(Shader.source("/glsl/cull.comp"), null));
+      gpuCuller.setLod(lod);
+      shaderGpu = shaderCache.program(Shader.source("/glsl/mesh_gpu.vert"), fShaderMesh, null);
+      owned.add(resources.register("gpu culler", GpuResources.Kind.BUFFER, gpuCuller::sizeBytes, gpuCuller::dispose));
+      ownProgram("mesh_gpu", shaderGpu);
+    }
+    shaderImpostor = shaderCache.program(Shader.source("/glsl/impostor.vert"), Shader.source("/glsl/impostor.frag"), null);
+    shaderImpostor.bind();
+    shaderImpostor.set("uColorAtlas", 0);
+    shaderImpostor.set("uNormalAtlas", 1);
+    shaderImpostor.set("uFrames", (float) impostors.getFrames());
+    shaderImpostor.unbind();
+    shaderChunk = shaderCache.program(Shader.source("/glsl/chunk.vert"), fShaderMesh, null);
+    ownProgram("impostor", shaderImpostor);
+    ownProgram("chunk", shaderChunk);
+
+    // queue commands, created once so queuing them doesn't allocate
+    if (batch != null) {
+      drawBatch = batch::draw;
+    }
+    if (gpuCuller != null) {
+      drawGpu = gpuCuller::draw;
+    }
+    drawImpostors = impostors::draw;
+    drawChunks = chunks::draw;
+    queue.setMaxDepth(1000f);
+    uniforms = new UniformRing(64 * 1024, 3);
+    owned.add(resources.register("uniforms", GpuResources.Kind.BUFFER, uniforms.stream()::sizeBytes, uniforms::dispose));
+    renderTarget = new RenderTarget();
+    owned.add(resources.register("render target", GpuResources.Kind.FRAMEBUFFER, renderTarget::sizeBytes,
+        renderTarget::dispose));
+    if (GpuTimer.isSupported()) {
+      gpuTimer = new GpuTimer(4);
+      owned.add(resources.register("gpu timer", GpuResources.Kind.QUERY, 0, gpuTimer::dispose));
+    }
+    // a tenth of the frame left for the swap and the noise
+    resolution = new ResolutionController(1_000_000_000L / TARGET_FPS / 10 * 9, Math.min(MAX_SAMPLES,
+        renderTarget.getMaxSamples()));
+    resolution.setLimits(0.5f, 1f);
+    capture = new FrameCapture(6, 2, Paths.get("./captures"));
+    owned.add(resources.register("frame capture", GpuResources.Kind.BUFFER, capture::sizeBytes, capture::dispose));
 
 
     // Enable multisampling (must be after context creation)
-    GL11.glEnable(GL13.GL_MULTISAMPLE);
+    glState.enable(GL13.GL_MULTISAMPLE);
 
     // backface culling enabled
-    GL11.glEnable(GL11.GL_CULL_FACE);
+    glState.enable(GL11.GL_CULL_FACE);
     GL11.glCullFace(GL11.GL_BACK);
-    GL11.glEnable(GL11.GL_DEPTH_TEST);
+    glState.enable(GL11.GL_DEPTH_TEST);
+  }
 
-    // after creating the context and calling GL.createCapabilities()
-    try (MemoryStack stack = MemoryStack.stackPush()) {
-      IntBuffer w = stack.mallocInt(1);
-      IntBuffer h = stack.mallocInt(1);
-      GLFW.glfwGetFramebufferSize(glfwWindow, w, h); // use *framebuffer* size (accounts for HiDPI)
-      GL11.glViewport(0, 0, w.get(0), h.get(0));
+  // impostor atlases for the stages [first, end), before their LOD levels are registered
+  private void bakeImpostors(int first, int end) {
+    for (int id = first; id < end; id++) {
+      impostors.add(id, impostorBaker.bakeCached(stages.get(id).getFullModelData()));
     }
+  }
 
-    // update glViewport when window is resized
-    GLFW.glfwSetFramebufferSizeCallback(glfwWindow, (win, width, height) -> {
-      GL11.glViewport(0, 0, width, height);
-      gameState.updateViewport(width, height);
-    });
+  // simplified levels for the stages [first, end)
+  private void buildLods(int first, int end) {
+    for (int id = first; id < end; id++) {
+      lod.buildChain(stages, arena, id);
+    }
+  }
 
-    // do a render pass also when the screen resizes
-    // -> keyboard and mouse events are by default paused
-    // -> additional renders are recommended from here
-    GLFW.glfwSetWindowRefreshCallback(glfwWindow, win -> {
-      drawScene();
-    });
+  // resident stages [first, end) become evictable meshes, they reload from the blueprint data
+  private void trackMeshes(int first, int end) {
+    for (int id = first; id < end; id++) {
+      if (arena.isResident(id) && resources.mesh(id) == null) {
+        owned.add(resources.trackMesh(stages.getName(id), arena, id, stages.get(id)::getFullModelData));
+      }
+    }
+  }
+
+  private void ownProgram(String name, Shader shader) {
+    owned.add(resources.register(name, GpuResources.Kind.PROGRAM, 0, shader::dispose));
   }
 
+  // refresh rate the resolution controller budgets for
   final int TARGET_FPS = 60;
-  final double FRAME_TIME = 1.0 / TARGET_FPS;
+  final boolean VSYNC = true;
+  // with v-sync the pacer runs this much shorter than the refresh period, frames held by a
+  // blocking swap always reach it late and it never waits. When the swap interval is
+  // ignored (driver override, minimized or covered window) it holds the rate instead.
+  final long VSYNC_SLACK_NANOS = 500_000;
+  final FramePacer pacer = new FramePacer(1_000_000_000L / TARGET_FPS - (VSYNC ? VSYNC_SLACK_NANOS : 0));
+  final FrameStats frameStats = new FrameStats();
+  // longest the main thread sleeps waiting for events, other threads wake it with runOnMain()
+  final double INPUT_INTERVAL = 1.0 / 240;
+  final double IDLE_INPUT_INTERVAL = 0.5;
+  // on demand the render thread checks for work this often even without a wake up
+  final long IDLE_RENDER_NANOS = 250_000_000L;
 
   private void loop() {
     while (!GLFW.glfwWindowShouldClose(glfwWindow)) {
@@ -187,27 +455,69 @@ public class HelloLWJGL {
           IntBuffer height = stack.mallocInt(1);
           GLFW.glfwGetWindowPos(glfwWindow, xpos, ypos);
           GLFW.glfwGetWindowSize(glfwWindow, width, height);
-          gameState.saveState(xpos.get(0), ypos.get(0), width.get(0), height.get(0));
+          closingWindow = new int[] {xpos.get(0), ypos.get(0), width.get(0), height.get(0)};
         }
         GLFW.glfwSetWindowShouldClose(glfwWindow, true);
       }
 
-      // process mouse and keyboard events every frame
-      GLFW.glfwPollEvents();
+      // events and input only, a slow frame on the render thread doesn't hold them up
+      GLFW.glfwWaitEventsTimeout(gameState.renderOnDemand ? IDLE_INPUT_INTERVAL : INPUT_INTERVAL);
+      input.update(deltaTime(), simulation::submit);
+      Runnable task;
+      while ((task = mainTasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  // any thread - run a GLFW call on the main thread, wakes it from waiting for events
+  private void runOnMain(Runnable task) {
+    mainTasks.add(task);
+    GLFW.glfwPostEmptyEvent();
+  }
 
-      // *draw scene*
-      drawScene();
+  private void wakeRenderer() {
+    Thread t = renderThread;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
 
-      // limit the frame rate
-      double elapsed = GLFW.glfwGetTime() - lastTime;
-      double sleepTime = FRAME_TIME - elapsed;
-      if (sleepTime > 0) {
-        try {
-          Thread.sleep((long) (sleepTime * 1000));
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+  // render thread - something on screen would change, or is still streaming in
+  private boolean needsFrame() {
+    return redrawRequested || lastFrameChanged
+        || simulation.snapshots().hasFresh()
+        || viewportWidth != framebufferWidth || viewportHeight != framebufferHeight
+        || uploader.getPending() > 0 || chunks.getPending() > 0 || resources.getPendingRestores() > 0
+        || gameState.recording || capture.isBusy();
+  }
+
+  // render thread, owns the context until the main thread stops it
+  private void renderLoop() {
+    try {
+      initGraphics();
+      while (rendering) {
+        if (gameState.renderOnDemand && !needsFrame()) {
+          // nothing changed, park until the simulation publishes or the window needs a redraw
+          LockSupport.parkNanos(this, IDLE_RENDER_NANOS);
+          pacer.restart();
+          frameStats.restart();
+          continue;
         }
+        redrawRequested = false;
+        drawScene();
+        // limit the frame rate, to the tenth of a millisecond unlike sleep(ms)
+        pacer.waitNext();
+        frameStats.mark();
       }
+    } catch (Throwable e) {
+      // native and assertion errors too, the main thread would wait on a dead renderer
+      log.error("render thread failed", e);
+      GLFW.glfwSetWindowShouldClose(glfwWindow, true);
+      GLFW.glfwPostEmptyEvent();
+    } finally {
+      cleanupGraphics();
+      GLFW.glfwMakeContextCurrent(MemoryUtil.NULL);
     }
   }
 
@@ -246,38 +556,164 @@ public class HelloLWJGL {
   }
 
   private void drawScene() {
+    long cpuStart = System.nanoTime();
+    if (gpuTimer != null) {
+      gpuTimer.begin();
+    }
+
+    // the latest tick, the camera and scene fields belong to the simulation thread
+    boolean fresh = simulation.snapshots().hasFresh();
+    FrameSnapshot frame = simulation.snapshots().acquire();
+    long frameNanos = System.nanoTime();
+    Camera camera = frame.interpolate(frameNanos, viewCamera);
+    Scene scene = frame.scene;
+    // the draw list of this view is drawn next frame, so a change takes one frame more
+    lastFrameChanged = fresh || frame.alpha(frameNanos) < 1f
+        || viewportWidth != framebufferWidth || viewportHeight != framebufferHeight;
+    if (viewportWidth != framebufferWidth || viewportHeight != framebufferHeight) {
+      viewportWidth = framebufferWidth;
+      viewportHeight = framebufferHeight;
+    }
+    renderTarget.resize(resolution.scaled(viewportWidth), resolution.scaled(viewportHeight), resolution.getSamples());
+    renderTarget.bind();
     GL11.glClearColor(1, 1, 1, 1);
     GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
     // GL11.glDisable(GL11.GL_CULL_FACE);
     // GL11.glFrontFace(GL11.GL_CCW);
 
-    double dt = deltaTime();
-    // System.out.printf("dt=%5.3f \n", dt);
-    input.update(dt, gameState::onAction);
-
-    Matrix4f viewProjMatrix = gameState.camera.viewProjMat();
+    Matrix4f viewProjMatrix = camera.viewProjMat();
 
-    shaderMesh.bind();
-    shaderMesh.set("uViewProj", viewProjMatrix);
-    shaderMesh.set("uModel", modelMatrix(2,0,2));
     float timeSeconds = (float) ((System.nanoTime() - startTime) / 1_000_000_000.0f);
-    // shaderMesh.set("uTime", timeSeconds);
-    mesh.draw();
-    shaderMesh.unbind();
-
-    if (gameState.showAxis) {
-      shaderAxes.bind();
-      shaderAxes.set("uLen", 3.0f); // scale the axis
-      Matrix4f mvp = new Matrix4f(viewProjMatrix).mul(new Matrix4f().identity());
-      shaderAxes.set("uMVP", mvp);
-      axes.draw();
-      shaderAxes.unbind();
+    uploader.update();
+    uploadPeakNanos = Math.max(uploadPeakNanos, uploader.getLastNanos());
+    chunks.update();
+    double now = GLFW.glfwGetTime();
+    residency.update(camera.position, (float) (now - lastFrameTime));
+    lastFrameTime = now;
+    resources.update();
+    glState.beginFrame();
+    queue.clear();
+    culler.setViewProj(viewProjMatrix);
+    chunks.cull(culler);
+    if (chunks.getVisibleChunks() > 0) {
+      queue.add(RenderQueue.PASS_OPAQUE, shaderChunk, chunks.vao(), 0f, drawChunks);
+    }
+    if (gpuCuller != null && frame.gpuCulling) {
+      gpuCuller.upload(scene);
+      gpuCuller.cull(culler.planes());
+      // no visibility on the CPU, every used stage and fallback counts as drawn so the
+      // budget doesn't evict what the commands draw, missing ones are asked back
+      resources.markDrawn(gpuCuller.usedStages(), gpuCuller.usedStageCount());
+      drawLists.beginScoring(scene, camera.position);
+      queue.add(RenderQueue.PASS_OPAQUE, shaderGpu, 0, 0f, drawGpu);
+    } else {
+      // the list finished at the end of the last frame, a frame behind the camera
+      // and built from the snapshot before this one, its indices are into list.scene
+      DrawListBuilder.DrawList list = drawLists.front();
+      Scene listScene = list.scene != null ? list.scene : scene;
+      int[] visible = list.instances;
+      int[] visibleStages = list.stages;
+      lod.setBias(frame.lodBias);
+      drawLists.begin(scene, arena, viewProjMatrix, camera.position,
+          LodSelector.pixelScale(camera, renderTarget.getHeight()), useOcclusion);
+      int n = impostors.split(listScene, visible, visibleStages, list.depths, list.count, camera.position);
+      resources.markDrawn(visibleStages, n);
+      resources.markDrawn(lod.missing(), lod.getMissingCount());
+      if (impostors.getInstanceCount() > 0) {
+        // sorts after the nearer meshes of the opaque pass
+        queue.add(RenderQueue.PASS_OPAQUE, shaderImpostor, 0, impostors.getDistance(), drawImpostors);
+      }
+      if (batch != null) {
+        batch.build(listScene, visible, visibleStages, n);
+        queue.add(RenderQueue.PASS_OPAQUE, shaderBatch, arena.vao, 0f, drawBatch);
+      } else {
+        // one item per instance, sorted by mesh and then front to back
+        for (int k = 0; k < n; k++) {
+          int i = visible[k];
+          int stage = visibleStages[k];
+          if (!arena.isResident(stage)) {
+            continue;
+          }
+          queue.add(RenderQueue.PASS_OPAQUE, shaderMesh, arena, stage, list.depths[k], listScene.transforms(), i * 16,
+              listScene.growth()[i], listScene.growthMin()[i], listScene.growthMax()[i]);
+        }
+      }
+    }
+    if (frame.showAxis) {
+      queue.add(RenderQueue.PASS_OVERLAY, shaderAxes, axes.vao, GL11.GL_LINES, Axes.VERTEX_COUNT, 0f,
+          axesModel, 0);
+    }
+    queue.sort();
+
+    uniforms.beginFrame(uniforms.blockBytes(Shader.CAMERA_BYTES)
+        + queue.size() * uniforms.blockBytes(Shader.OBJECT_BYTES));
+    int cameraBlock = uniforms.allocate(Shader.CAMERA_BYTES);
+    Vector3f eye = camera.position;
+    Variation variation = scene.variation();
+    uniforms.writer(cameraBlock).putMat4(viewProjMatrix)
+        .putFloat(0f) // uTime, wobble is off
+        .putVec4(eye.x, eye.y, eye.z, 1f)
+        .putVec4(variation.getSeed(), variation.getYawJitter(), variation.getScaleJitter(), variation.getTintJitter());
+    queue.prepare(uniforms);
+    uniforms.flush();
+    // the culling and upload code above binds programs and buffers directly
+    glState.invalidate();
+    uniforms.bind(glState, Shader.CAMERA_BLOCK, cameraBlock, Shader.CAMERA_BYTES);
+    queue.submit(glState, uniforms);
+    uniforms.endFrame();
+    // evictions and scene changes have to wait for the workers
+    drawLists.finish();
+    resources.endFrame();
+    reportStats();
+    if (firstFrame) {
+      // cold start compiles everything, a warm start loads the binaries from ./shader-cache
+      firstFrame = false;
+      log.info("shaders: {} from cache, {} compiled{}, {} ms creating, {} ms waiting at first use",
+          shaderCache.getHits(), shaderCache.getMisses(), shaderCache.isParallel() ? " (parallel)" : "",
+          String.format("%.1f", shaderCache.getCreateNanos() / 1e6),
+          String.format("%.1f", shaderCache.getWaitNanos() / 1e6));
     }
 
+    renderTarget.blitToScreen(viewportWidth, viewportHeight);
+    for (int k = gameState.takeScreenshotRequests(); k > 0; k--) {
+      capture.screenshot();
+    }
+    capture.setRecording(gameState.recording);
+    capture.capture(viewportWidth, viewportHeight);
+    if (gpuTimer != null) {
+      gpuTimer.end();
+    }
+    resolution.update(System.nanoTime() - cpuStart, gpuTimer != null ? gpuTimer.getLastNanos() : 0);
+
     // drawTextMessage("(1,100)", winWidth, winHeight);
     GLFW.glfwSwapBuffers(glfwWindow);
   }
 
+  // once a second, draw/triangle/state change counts and fence wait of the last frame in the title bar,
+  // along with the longest upload step and the frame time mean and deviation of that second
+  private void reportStats() {
+    double now = GLFW.glfwGetTime();
+    if (now - statsTime < 1.0) {
+      return;
+    }
+    statsTime = now;
+    String title = String.format(
+        "Hello LWJGL - %d draws, %d tris, %d impostors, %d/%d occluded (%.2f ms), %d/%d chunks, gpu %d/%d MB (%d evicted, %d on fallback), %d state changes, %d skipped, fence wait %.2f ms, upload peak %.2f ms (%d pending), frame %.2f ms +/- %.2f, scale %.2f %dx MSAA (%.2f ms)%s",
+        queue.getDrawCalls(), lod.getTrianglesSubmitted(), impostors.getInstanceCount(),
+        occlusion.getLastCulled(), occlusion.getLastTested(), occlusion.getLastTestMs(),
+        chunks.getVisibleChunks(), chunks.getChunkCount(),
+        resources.totalBytes() >> 20, resources.getBudget() >> 20, resources.getEvictions(),
+        lod.getFallbacks() + (gpuCuller != null ? gpuCuller.getFallbacks() : 0), glState.getChanges(), glState.getSkipped(),
+        uniforms.stream().getWaitNanos() / 1e6, uploadPeakNanos / 1e6, uploader.getPending(),
+        frameStats.getMeanNanos() / 1e6, frameStats.getStdDevNanos() / 1e6, resolution.getScale(), resolution.getSamples(),
+        resolution.getFrameNanos() / 1e6, capture.isRecording() ? String.format(
+            ", recording %d frames (%d dropped, capture %.2f ms)", capture.getCaptured(), capture.getDropped(),
+            capture.getLastNanos() / 1e6) : "");
+    runOnMain(() -> GLFW.glfwSetWindowTitle(glfwWindow, title));
+    uploadPeakNanos = 0;
+    frameStats.resetStats();
+  }
+
   void drawTextMessage(String text, int winW, int winH) {
     // 1) Switch to 2D (orthographic) and prep state
     GL11.glMatrixMode(GL11.GL_PROJECTION);
@@ -327,12 +763,29 @@ public class HelloLWJGL {
     GL11.glPopMatrix();
   }
 
+  // render thread, GL objects go while the context is alive
+  private void cleanupGraphics() {
+    if (uploader != null) {
+      uploader.dispose();
+    }
+    if (drawLists != null) {
+      drawLists.dispose();
+    }
+    for (int i = owned.size() - 1; i >= 0; i--) {
+      owned.get(i).release();
+    }
+    if (resources != null) {
+      // logs whatever is still referenced
+      resources.shutdown();
+    }
+  }
+
+  // main thread, after the render thread is done
   private void cleanup() {
     Callbacks.glfwFreeCallbacks(glfwWindow);
     GLFW.glfwDestroyWindow(glfwWindow);
     GLFW.glfwTerminate();
     GLFW.glfwSetErrorCallback(null).free();
-    mesh.dispose();
   }
 
   public static void main(String[] args) throws Exception {
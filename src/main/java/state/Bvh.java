@@ -0,0 +1,280 @@
+package state;
+
+import java.util.Arrays;
+
+/**
+ * Bounding volume hierarchy over axis aligned boxes, built with the binned surface area
+ * heuristic.
+ *
+ * Primitives come as 6 floats each, min.xyz then max.xyz. The nodes are flat arrays, a
+ * node with count 0 is inner with its children at child and child + 1, a leaf covers
+ * prims()[child .. child + count). refit() recomputes the node boxes bottom up after
+ * the primitives moved without changing the tree, cheap but the tree gets worse the
+ * further things move from where they were at build time.
+ *
+ * Used per stage over triangles and over the instance bounds of a Scene, see ScenePicker.
+ * intersect() keeps its traversal stack in the instance, one thread per Bvh at a time.
+ *
+ */
+public final class Bvh {
+
+  /**
+   * intersection of the ray with one primitive
+   *
+   * @return distance of the hit, or tMax when there is none closer
+   */
+  public interface LeafTest {
+    float test(int prim, float tMax);
+  }
+
+  private static final int BINS = 12;
+  private static final int MAX_LEAF = 8;
+  private static final float TRAVERSAL_COST = 1f;
+
+  private float[] bounds;       // min.xyz, max.xyz per node
+  private int[] child;          // first child, or first primitive of a leaf
+  private int[] count;          // primitives of a leaf, 0 for inner nodes
+  private int[] prims;
+  private int nodeCount = 0;
+
+  // build scratch
+  private float[] centroids;
+  private final float[] binBounds = new float[BINS * 6];
+  private final int[] binCounts = new int[BINS];
+  private final float[] rightArea = new float[BINS];
+
+  private int[] stack = new int[64];
+
+  public static Bvh build(float[] primBounds, int primCount) {
+    Bvh bvh = new Bvh();
+    bvh.rebuild(primBounds, primCount);
+    return bvh;
+  }
+
+  public void rebuild(float[] primBounds, int primCount) {
+    int maxNodes = Math.max(1, 2 * primCount - 1);
+    if (child == null || child.length < maxNodes) {
+      bounds = new float[maxNodes * 6];
+      child = new int[maxNodes];
+      count = new int[maxNodes];
+    }
+    if (prims == null || prims.length < primCount) {
+      prims = new int[primCount];
+      centroids = new float[primCount * 3];
+    }
+    for (int p = 0; p < primCount; p++) {
+      prims[p] = p;
+      for (int k = 0; k < 3; k++) {
+        centroids[p*3 + k] = (primBounds[p*6 + k] + primBounds[p*6 + 3 + k]) * 0.5f;
+      }
+    }
+    nodeCount = 1;
+    child[0] = 0;
+    count[0] = primCount;
+    if (primCount == 0) {
+      Arrays.fill(bounds, 0, 6, 0f);
+      return;
+    }
+    subdivide(0, primBounds);
+  }
+
+  private void subdivide(int node, float[] primBounds) {
+    int first = child[node], n = count[node];
+    float[] cb = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    setEmpty(bounds, node);
+    for (int i = first; i < first + n; i++) {
+      int p = prims[i];
+      grow(bounds, node, primBounds, p);
+      for (int k = 0; k < 3; k++) {
+        cb[k] = Math.min(cb[k], centroids[p*3 + k]);
+        cb[3+k] = Math.max(cb[3+k], centroids[p*3 + k]);
+      }
+    }
+    if (n <= 2) {
+      return;
+    }
+
+    // best bin boundary over the three axes
+    float leafCost = n * area(bounds, node);
+    float bestCost = Float.MAX_VALUE;
+    int bestAxis = -1, bestSplit = -1;
+    for (int axis = 0; axis < 3; axis++) {
+      float lo = cb[axis], extent = cb[3+axis] - lo;
+      if (extent <= 1e-12f) {
+        continue;
+      }
+      float scale = BINS / extent;
+      Arrays.fill(binCounts, 0);
+      for (int b = 0; b < BINS; b++) {
+        setEmpty(binBounds, b);
+      }
+      for (int i = first; i < first + n; i++) {
+        int p = prims[i];
+        int b = Math.min(BINS - 1, (int) ((centroids[p*3 + axis] - lo) * scale));
+        binCounts[b]++;
+        grow(binBounds, b, primBounds, p);
+      }
+      // sweep from the right for the areas, then from the left for the costs
+      float[] acc = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+      for (int b = BINS - 1; b > 0; b--) {
+        grow(acc, 0, binBounds, b);
+        rightArea[b] = area(acc, 0);
+      }
+      Arrays.fill(acc, 0, 3, Float.MAX_VALUE);
+      Arrays.fill(acc, 3, 6, -Float.MAX_VALUE);
+      int leftCount = 0;
+      for (int b = 0; b < BINS - 1; b++) {
+        grow(acc, 0, binBounds, b);
+        leftCount += binCounts[b];
+        int rightCount = n - leftCount;
+        if (leftCount == 0 || rightCount == 0) {
+          continue;
+        }
+        float cost = TRAVERSAL_COST + leftCount * area(acc, 0) + rightCount * rightArea[b + 1];
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestAxis = axis;
+          bestSplit = b;
+        }
+      }
+    }
+    if (bestAxis < 0 || (bestCost >= leafCost && n <= MAX_LEAF)) {
+      return;
+    }
+
+    // partition around the chosen boundary
+    float lo = cb[bestAxis], scale = BINS / (cb[3+bestAxis] - lo);
+    int i = first, j = first + n - 1;
+    while (i <= j) {
+      int b = Math.min(BINS - 1, (int) ((centroids[prims[i]*3 + bestAxis] - lo) * scale));
+      if (b <= bestSplit) {
+        i++;
+      } else {
+        int tmp = prims[i];
+        prims[i] = prims[j];
+        prims[j--] = tmp;
+      }
+    }
+    int leftCount = i - first;
+    int left = nodeCount;
+    nodeCount += 2;
+    child[left] = first;
+    count[left] = leftCount;
+    child[left + 1] = i;
+    count[left + 1] = n - leftCount;
+    child[node] = left;
+    count[node] = 0;
+    subdivide(left, primBounds);
+    subdivide(left + 1, primBounds);
+  }
+
+  /**
+   * recompute the node boxes from the moved primitives, the tree stays as it is
+   */
+  public void refit(float[] primBounds) {
+    // children always come after their parent
+    for (int node = nodeCount - 1; node >= 0; node--) {
+      setEmpty(bounds, node);
+      if (count[node] > 0) {
+        for (int i = child[node]; i < child[node] + count[node]; i++) {
+          grow(bounds, node, primBounds, prims[i]);
+        }
+      } else {
+        grow(bounds, node, bounds, child[node]);
+        grow(bounds, node, bounds, child[node] + 1);
+      }
+    }
+  }
+
+  /**
+   * closest hit along origin + t * dir for t in [0, tMax), test is called for every
+   * primitive whose leaf the ray reaches, nearer children first
+   *
+   * @return distance of the closest hit or tMax
+   */
+  public float intersect(float ox, float oy, float oz, float dx, float dy, float dz, float tMax, LeafTest test) {
+    if (nodeCount == 1 && count[0] == 0) {
+      return tMax;
+    }
+    float ix = 1f / dx, iy = 1f / dy, iz = 1f / dz;
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (slab(node, ox, oy, oz, ix, iy, iz, tMax) >= tMax) {
+        continue;
+      }
+      if (count[node] > 0) {
+        for (int i = child[node]; i < child[node] + count[node]; i++) {
+          tMax = test.test(prims[i], tMax);
+        }
+        continue;
+      }
+      int a = child[node], b = a + 1;
+      float ta = slab(a, ox, oy, oz, ix, iy, iz, tMax);
+      float tb = slab(b, ox, oy, oz, ix, iy, iz, tMax);
+      // the farther child goes on the stack first
+      if (ta > tb) {
+        int tmp = a;
+        a = b;
+        b = tmp;
+        float t = ta;
+        ta = tb;
+        tb = t;
+      }
+      if (top + 2 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      if (tb < tMax) {
+        stack[top++] = b;
+      }
+      if (ta < tMax) {
+        stack[top++] = a;
+      }
+    }
+    return tMax;
+  }
+
+  // entry distance of the ray into the node box, infinity when it misses
+  private float slab(int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMax) {
+    int o = node * 6;
+    float t1 = (bounds[o] - ox) * ix, t2 = (bounds[o+3] - ox) * ix;
+    float tNear = Math.min(t1, t2), tFar = Math.max(t1, t2);
+    t1 = (bounds[o+1] - oy) * iy;
+    t2 = (bounds[o+4] - oy) * iy;
+    tNear = Math.max(tNear, Math.min(t1, t2));
+    tFar = Math.min(tFar, Math.max(t1, t2));
+    t1 = (bounds[o+2] - oz) * iz;
+    t2 = (bounds[o+5] - oz) * iz;
+    tNear = Math.max(tNear, Math.min(t1, t2));
+    tFar = Math.min(tFar, Math.max(t1, t2));
+    if (tFar < Math.max(tNear, 0f) || tNear >= tMax) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return Math.max(tNear, 0f);
+  }
+
+  private static void setEmpty(float[] b, int i) {
+    Arrays.fill(b, i*6, i*6 + 3, Float.MAX_VALUE);
+    Arrays.fill(b, i*6 + 3, i*6 + 6, -Float.MAX_VALUE);
+  }
+
+  private static void grow(float[] b, int i, float[] prim, int p) {
+    for (int k = 0; k < 3; k++) {
+      b[i*6 + k] = Math.min(b[i*6 + k], prim[p*6 + k]);
+      b[i*6 + 3 + k] = Math.max(b[i*6 + 3 + k], prim[p*6 + 3 + k]);
+    }
+  }
+
+  private static float area(float[] b, int i) {
+    float x = b[i*6 + 3] - b[i*6], y = b[i*6 + 4] - b[i*6 + 1], z = b[i*6 + 5] - b[i*6 + 2];
+    if (x < 0f) {
+      return 0f;
+    }
+    return x*y + y*z + z*x;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+}
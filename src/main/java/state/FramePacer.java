@@ -0,0 +1,118 @@
+package state;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits out the rest of a fixed period, to within a few microseconds of the deadline.
+ *
+ * Thread.sleep(ms) truncates to whole milliseconds and the OS adds its own wake-up
+ * latency on top, a 60 Hz loop sleeping that way lands anywhere between 15 and 18 ms.
+ * waitNext() parks until 1 to 2 ms before the deadline and spins the rest. How early it
+ * stops parking follows the wake-up latency it has seen: an overshoot past the margin
+ * raises it at once, it decays back towards MIN_MARGIN while parks are on time. The spin
+ * yields while more than YIELD_NANOS remain so other threads on the same core still run.
+ *
+ * Deadlines advance by the period, not from the time of the call, so the frame rate
+ * doesn't drift with the work done in the frame. When a frame runs past its deadline the
+ * schedule restarts from now instead of returning at once for the frames it missed.
+ *
+ */
+public final class FramePacer {
+
+  private static final long MIN_MARGIN = 1_000_000;
+  private static final long MAX_MARGIN = 3_000_000;
+  private static final long YIELD_NANOS = 200_000;
+
+  private long periodNanos;
+  private long margin = 1_500_000;
+  private long next = 0;
+  private long lastWait = 0;
+  private long late = 0;
+
+  public FramePacer(long periodNanos) {
+    this.periodNanos = periodNanos;
+  }
+
+  public static FramePacer ofRate(double perSecond) {
+    return new FramePacer((long) (1e9 / perSecond));
+  }
+
+  /**
+   * takes effect from the next deadline
+   */
+  public void setPeriod(long nanos) {
+    periodNanos = nanos;
+  }
+
+  public long getPeriodNanos() {
+    return periodNanos;
+  }
+
+  /**
+   * the next waitNext() starts a new schedule from its call, after an idle wait
+   */
+  public void restart() {
+    next = 0;
+  }
+
+  /**
+   * block until the end of the current period
+   *
+   * @return the time returned, System.nanoTime()
+   */
+  public long waitNext() {
+    long now = System.nanoTime();
+    long start = now;
+    if (next == 0) {
+      next = now;
+    }
+    next += periodNanos;
+    if (now > next) {
+      // missed the deadline, start over from here
+      late++;
+      next = now;
+    } else {
+      while (next - now > margin) {
+        long wake = next - margin;
+        LockSupport.parkNanos(wake - now);
+        now = System.nanoTime();
+        long overshoot = now - wake;
+        if (overshoot > margin) {
+          margin = Math.min(overshoot + overshoot / 4, MAX_MARGIN);
+        } else {
+          margin = Math.max(margin - (margin >> 6), MIN_MARGIN);
+        }
+      }
+      while ((now = System.nanoTime()) < next) {
+        if (next - now > YIELD_NANOS) {
+          Thread.yield();
+        } else {
+          Thread.onSpinWait();
+        }
+      }
+    }
+    lastWait = now - start;
+    return now;
+  }
+
+  /**
+   * how long the last waitNext() blocked, 0 when the frame was late
+   */
+  public long getLastWaitNanos() {
+    return lastWait;
+  }
+
+  /**
+   * frames whose work ran past the deadline
+   */
+  public long getLate() {
+    return late;
+  }
+
+  /**
+   * how early parking stops, the wake-up latency seen so far
+   */
+  public long getMarginNanos() {
+    return margin;
+  }
+}
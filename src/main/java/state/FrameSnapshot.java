@@ -0,0 +1,72 @@
+package state;
+
+import graphics.Camera;
+
+/**
+ * What the render thread needs from one simulation tick - the camera, a replica of the
+ * scene and the display settings of GameState. Written by Simulation into the back slot of a SnapshotExchange, read-only once
+ * published. The scene replica only copies what changed since it was last filled (see
+ * Scene.copyFrom()), an unchanged scene costs nothing.
+ *
+ * The camera is kept from before and after the last tick. interpolate() blends the two
+ * by how far the render time is into the tick after the one published, the view moves
+ * smoothly at any frame rate and lags the simulation by at most one tick. The scene isn't
+ * interpolated, instances only change through discrete edits (add, remove, setTransform)
+ * that should show as they are.
+ *
+ */
+public final class FrameSnapshot {
+
+  public final Camera camera = new Camera(0f, 0f);
+  // camera before the last tick
+  public final Camera previous = new Camera(0f, 0f);
+  public final Scene scene;
+  // simulation tick and its time in seconds
+  public long tick;
+  public double time;
+  // System.nanoTime() when published, length of a tick
+  public long publishedNanos;
+  public long tickNanos;
+  // GameState settings of the tick
+  public boolean showAxis;
+  public boolean gpuCulling;
+  public float lodBias;
+
+  public FrameSnapshot(StageLibrary stages) {
+    scene = new Scene(stages);
+  }
+
+  void capture(GameState state, Camera before, Scene source, long tick, double time, long nanos, long tickNanos) {
+    camera.set(state.camera);
+    previous.set(before);
+    scene.copyFrom(source);
+    this.tick = tick;
+    this.time = time;
+    this.publishedNanos = nanos;
+    this.tickNanos = tickNanos;
+    showAxis = state.showAxis;
+    gpuCulling = state.gpuCulling;
+    lodBias = state.lodBias;
+  }
+
+  /**
+   * 0 right after publishing to 1 a tick later, clamped
+   */
+  public float alpha(long now) {
+    if (tickNanos <= 0) {
+      return 1f;
+    }
+    return Math.max(0f, Math.min(1f, (float) (now - publishedNanos) / tickNanos));
+  }
+
+  /**
+   * the camera at render time now into out, position lerped and rotation slerped
+   */
+  public Camera interpolate(long now, Camera out) {
+    float a = alpha(now);
+    previous.position.lerp(camera.position, a, out.position);
+    previous.rotation.slerp(camera.rotation, a, out.rotation);
+    out.aspect = camera.aspect;
+    return out;
+  }
+}
@@ -0,0 +1,74 @@
+package state;
+
+/**
+ * Running statistics of the intervals between frames.
+ *
+ * mark() once per frame records the time since the previous mark(). Mean and variance
+ * are kept with Welford's method, no history is stored. After an idle wait restart()
+ * keeps the wait out of the statistics.
+ *
+ */
+public final class FrameStats {
+
+  private long last = 0;
+
+  private long frames = 0;
+  private double mean = 0;
+  private double m2 = 0;
+  private long longest = 0;
+
+  /**
+   * the next mark() starts over without recording an interval
+   */
+  public void restart() {
+    last = 0;
+  }
+
+  /**
+   * end of a frame
+   *
+   * @return the time of the mark, System.nanoTime()
+   */
+  public long mark() {
+    long now = System.nanoTime();
+    if (last != 0) {
+      record(now - last);
+    }
+    last = now;
+    return now;
+  }
+
+  void record(long interval) {
+    frames++;
+    double d = interval - mean;
+    mean += d / frames;
+    m2 += d * (interval - mean);
+    longest = Math.max(longest, interval);
+  }
+
+  public void resetStats() {
+    frames = 0;
+    mean = 0;
+    m2 = 0;
+    longest = 0;
+  }
+
+  /**
+   * intervals recorded since the last resetStats()
+   */
+  public long getFrames() {
+    return frames;
+  }
+
+  public double getMeanNanos() {
+    return mean;
+  }
+
+  public double getStdDevNanos() {
+    return frames > 1 ? Math.sqrt(m2 / (frames - 1)) : 0;
+  }
+
+  public long getLongestNanos() {
+    return longest;
+  }
+}
@@ -1,13 +1,20 @@
 package state;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.joml.Vector3f;
 import org.lwjgl.glfw.GLFW;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import graphics.Camera;
 import input.Action;
 
 public class GameState {
 
+  private static final Logger log = LoggerFactory.getLogger(GameState.class);
+
   private final String TITLE_DEFAULT = "Test App";
   private final int WIN_XPOS_DEFAULT = 500;
   private final int WIN_YPOS_DEFAULT = 50;
@@ -15,13 +22,22 @@ public class GameState {
   private final int WIN_WIDTH_DEFAULT = 850;
   private final boolean SHOW_AXIS_DEFAULT = true;
   private final boolean SHOW_STATUS_TEXT_DEFAULT = true;
+  private final boolean GPU_CULLING_DEFAULT = false;
+  private final float LOD_BIAS_DEFAULT = 0f;
+  private final int GPU_BUDGET_MB_DEFAULT = 512;
+  private final int DRAW_LIST_THREADS_DEFAULT = 0;
+  private final boolean RENDER_ON_DEMAND_DEFAULT = true;
 
   // public final OrbitCamera camera = new OrbitCamera();
   public Camera camera;
 
   // private final Scene scene;
   private boolean orbiting;
-  private boolean shutdown = false;
+  private volatile boolean shutdown = false;
+  // GLFW calls other than the thread-safe ones go through here (onAction runs on the simulation thread)
+  private Executor mainThread = Runnable::run;
+  // the popup menu runs on the AWT thread, its items are handed over to the simulation thread
+  private Executor simulationThread = Runnable::run;
 
   public int winXPos;
   public int winYPos;
@@ -29,8 +45,23 @@ public class GameState {
   public int winWidth;
   public boolean showAxis;
   public boolean showStatusText;
+  // cull and generate draws with a compute shader (GL 4.3), else CPU culling
+  public boolean gpuCulling;
+  // > 0 switches to coarser levels of detail sooner
+  public float lodBias;
+  // meshes are evicted least recently drawn first above this
+  public int gpuBudgetMB;
+  // workers building the draw list, 0 for one less than the cores
+  public int drawListThreads;
+  // draw only when the camera, the scene or the window changed, else the loops block
+  public boolean renderOnDemand;
   public String title = TITLE_DEFAULT;
+  // instance picked by the last click, -1 for none
+  public int selected = -1;
+  private ScenePicker picker;
 
+  // units per second with a movement key held, about what the key repeat used to give
+  private final float MOVE_SPEED = 6f;
   private final float DEFAULT_CAMERA_YAW = 10; // degrees
   private final float DEFAULT_CAMERA_PITCH = -20;
   private final float[] DEFAULT_CAMERA_POS = {1.8f, 1f, 4f};
@@ -50,6 +81,11 @@ public class GameState {
     winWidth = prop.readInt("winWidth", WIN_WIDTH_DEFAULT);
     showAxis = prop.readBoolean("showAxis", SHOW_AXIS_DEFAULT);
     showStatusText = prop.readBoolean("showStatusText", SHOW_STATUS_TEXT_DEFAULT);
+    gpuCulling = prop.readBoolean("gpuCulling", GPU_CULLING_DEFAULT);
+    lodBias = prop.readFloat("lodBias", LOD_BIAS_DEFAULT);
+    gpuBudgetMB = prop.readInt("gpuBudgetMB", GPU_BUDGET_MB_DEFAULT);
+    drawListThreads = prop.readInt("drawListThreads", DRAW_LIST_THREADS_DEFAULT);
+    renderOnDemand = prop.readBoolean("renderOnDemand", RENDER_ON_DEMAND_DEFAULT);
 
     float yaw, pitch, cameraX, cameraY, cameraZ;
     yaw = prop.readFloat("yaw", DEFAULT_CAMERA_YAW);
@@ -79,6 +115,7 @@ public class GameState {
       }
       case DOUBLE_CLICK -> {
         focusAt(a.x(), a.y());
+        dirty = true;
       }
       case ORBIT_START -> {
         orbiting = true;
@@ -90,34 +127,40 @@ public class GameState {
         if (!showCursor) {
           camera.rotateAxisY((float) -a.dx());
           camera.rotateAxisX((float) -a.dy());
+          dirty = true;
         }
       }
       case DRAG_UPDATE -> {
         // System.out.printf("a.dx=%5.3f a.dy=%5.3f \n", a.dx(), a.dy());
         camera.rotateAxisY((float) -a.dx());
         camera.rotateAxisX((float) -a.dy());
+        dirty = true;
       }
       case ZOOM -> {
         camera.moveForward((float) a.dy());
+        dirty = true;
       }
       case KEY -> {
         switch (a.val()) {
           case "1" -> {
             showCursor = !showCursor;
-            if (showCursor) {
-              GLFW.glfwSetInputMode(glfwWindow, GLFW.GLFW_CURSOR, GLFW.GLFW_CURSOR_NORMAL);
-            } else {
-              GLFW.glfwSetInputMode(glfwWindow, GLFW.GLFW_CURSOR, GLFW.GLFW_CURSOR_DISABLED);
-            }
+            int mode = showCursor ? GLFW.GLFW_CURSOR_NORMAL : GLFW.GLFW_CURSOR_DISABLED;
+            mainThread.execute(() -> GLFW.glfwSetInputMode(glfwWindow, GLFW.GLFW_CURSOR, mode));
+          }
+          // key repeats only keep the key held
+          case "w", "s", "a", "d", "r", "f" -> holdMoveKey(a.val(), true);
+          // the render thread picks these up, dirty so an idle one draws the frame
+          case "f12" -> {
+            screenshotRequests.incrementAndGet();
+            dirty = true;
+          }
+          case "f11" -> {
+            recording = !recording;
+            dirty = true;
           }
-          case "w" -> camera.moveForward(0.2f);
-          case "s" -> camera.moveForward(-0.2f);
-          case "a" -> camera.strafeRight(-0.2f);
-          case "d" -> camera.strafeRight(0.2f);
-          case "r" -> camera.moveUp(0.2f);
-          case "f" -> camera.moveUp(-0.2f);
         }
       }
+      case KEY_RELEASE -> holdMoveKey(a.val(), false);
       case RIGHTCLICK -> {
         if (glfwBridge.popup.isVisible()) {
           glfwBridge.hidePopup();
@@ -128,13 +171,126 @@ public class GameState {
       case SHUTDOWN -> {
         glfwBridge.dispose();
         this.shutdown = true;
+        // the main thread may be waiting for events, an empty task wakes it to see the flag
+        mainThread.execute(() -> {});
       }
       default -> {}
     }
   }
 
-  private void selectAt(double x, double y) { /* ray pick, set selection */ }
-  private void focusAt(double x, double y) { /* fit camera to hit */ }
+  // frame capture, read by the render thread
+  public volatile boolean recording = false;
+  private final AtomicInteger screenshotRequests = new AtomicInteger();
+
+  // camera changed since the last snapshot
+  private boolean dirty = true;
+  // movement keys held down, the camera moves MOVE_SPEED per second along each
+  private boolean forward, back, left, right, up, down;
+
+  private void holdMoveKey(String key, boolean held) {
+    switch (key) {
+      case "w" -> forward = held;
+      case "s" -> back = held;
+      case "a" -> left = held;
+      case "d" -> right = held;
+      case "r" -> up = held;
+      case "f" -> down = held;
+    }
+  }
+
+  /**
+   * simulation thread, once per tick after the tick's actions
+   *
+   * @param dt seconds per tick
+   */
+  public void update(float dt) {
+    float step = MOVE_SPEED * dt;
+    int f = (forward ? 1 : 0) - (back ? 1 : 0);
+    int r = (right ? 1 : 0) - (left ? 1 : 0);
+    int u = (up ? 1 : 0) - (down ? 1 : 0);
+    if (f != 0) {
+      camera.moveForward(f * step);
+    }
+    if (r != 0) {
+      camera.strafeRight(r * step);
+    }
+    if (u != 0) {
+      camera.moveUp(u * step);
+    }
+    dirty |= f != 0 || r != 0 || u != 0;
+  }
+
+  /**
+   * screenshots asked for since the last call, any thread
+   */
+  public int takeScreenshotRequests() {
+    return screenshotRequests.getAndSet(0);
+  }
+
+  /**
+   * a movement key is held, the camera changes every tick
+   */
+  public boolean isAnimating() {
+    return forward || back || left || right || up || down;
+  }
+
+  /**
+   * true once after the camera changed, the render thread has a new view to draw
+   */
+  boolean consumeDirty() {
+    boolean was = dirty;
+    dirty = false;
+    return was;
+  }
+
+  public void setMainThread(Executor mainThread) {
+    this.mainThread = mainThread;
+  }
+
+  public void setSimulationThread(Executor simulationThread) {
+    this.simulationThread = simulationThread;
+  }
+
+  public void setPicker(ScenePicker picker) {
+    this.picker = picker;
+  }
+
+  private void selectAt(double x, double y) {
+    if (picker == null) {
+      return;
+    }
+    ScenePicker.Hit hit = picker.pick(camera, x, y, winWidth, winHeight);
+    selected = hit == null ? -1 : hit.instance();
+    if (hit != null && log.isDebugEnabled()) {
+      log.debug("selected instance {}, triangle {} at {} ({} ms)", hit.instance(), hit.triangle(),
+          String.format("%.2f", hit.distance()), String.format("%.3f", picker.getLastPickNanos() / 1e6));
+    }
+  }
+
+  // look at the picked instance from a distance that fits its bounds into the 60 degree fov
+  private void focusAt(double x, double y) {
+    if (picker == null) {
+      return;
+    }
+    ScenePicker.Hit hit = picker.pick(camera, x, y, winWidth, winHeight);
+    if (hit == null) {
+      return;
+    }
+    Scene scene = picker.getScene();
+    int i = hit.instance();
+    Vector3f center = new Vector3f(scene.centerX()[i], scene.centerY()[i], scene.centerZ()[i]);
+    float radius = new Vector3f(scene.extentX()[i], scene.extentY()[i], scene.extentZ()[i]).length();
+    Vector3f dir = new Vector3f(center).sub(camera.position);
+    if (dir.lengthSquared() < 1e-8f) {
+      return;
+    }
+    dir.normalize();
+    float distance = radius / (float) Math.sin(Math.PI / 6);
+    // forward = (-sin(yaw) cos(pitch), sin(pitch), -cos(yaw) cos(pitch))
+    camera.setOrientation((float) Math.atan2(-dir.x, -dir.z), (float) Math.asin(dir.y));
+    camera.setPosition(center.x - dir.x * distance, center.y - dir.y * distance, center.z - dir.z * distance);
+    selected = i;
+  }
   private void maybeDragSelection(double dx, double dy) { /* translate gizmo */ }
 
   public void saveState(int winXPos, int winYPos, int winWidth, int winHeight) {
@@ -153,6 +309,11 @@ public class GameState {
     prop.addProperty("winHeight", ""+winHeight);
     prop.addProperty("showAxis", ""+showAxis);
     prop.addProperty("showStatusText", ""+showStatusText);
+    prop.addProperty("gpuCulling", ""+gpuCulling);
+    prop.addProperty("lodBias", ""+lodBias);
+    prop.addProperty("gpuBudgetMB", ""+gpuBudgetMB);
+    prop.addProperty("drawListThreads", ""+drawListThreads);
+    prop.addProperty("renderOnDemand", ""+renderOnDemand);
     prop.addProperty("yaw", ""+camera.getYaw());
     prop.addProperty("pitch", ""+camera.getPitch());
     prop.addProperty("cameraX", ""+camera.position.x);
@@ -169,6 +330,7 @@ public class GameState {
     this.winWidth = winWidth;
     this.winHeight = winHeight;
     camera.updateAspect(winWidth, winHeight);
+    dirty = true;
   }
 
   public boolean shutDown() {
@@ -177,31 +339,38 @@ public class GameState {
 
   MiniPopup getMiniPopup() {
     MiniPopup menu = new MiniPopup();
-    menu.addItem("Toggle Axes", e -> {
-      // System.out.println("toggle");
-      GameState.this.showAxis = !GameState.this.showAxis;
-    });
-    menu.addItem("Show quaternion", e -> {
-      GameState.this.camera.showQuaternion();
-    });
-    menu.addItem("Show position", e -> {
-      GameState.this.camera.showPosition();
-    });
-    menu.addItem("Show yaw/pitch/roll", e -> {
-      camera.showYawPitchRoll();
-    });
-    menu.addItem("Show forward", e -> {
+    // the render thread sees the settings in the next snapshot, dirty publishes one
+    menu.addItem("Toggle Axes", e -> simulationThread.execute(() -> {
+      showAxis = !showAxis;
+      dirty = true;
+    }));
+    menu.addItem("Toggle GPU culling", e -> simulationThread.execute(() -> {
+      gpuCulling = !gpuCulling;
+      dirty = true;
+    }));
+    menu.addItem("LOD bias +1", e -> simulationThread.execute(() -> {
+      lodBias += 1;
+      dirty = true;
+    }));
+    menu.addItem("LOD bias -1", e -> simulationThread.execute(() -> {
+      lodBias -= 1;
+      dirty = true;
+    }));
+    menu.addItem("Show quaternion", e -> simulationThread.execute(camera::showQuaternion));
+    menu.addItem("Show position", e -> simulationThread.execute(camera::showPosition));
+    menu.addItem("Show yaw/pitch/roll", e -> simulationThread.execute(camera::showYawPitchRoll));
+    menu.addItem("Show forward", e -> simulationThread.execute(() -> {
       Vector3f forw = camera.forward();
       System.out.printf("forward=(%5.3f,%5.3f,%5.3f) \n", forw.x, forw.y, forw.z);
-    });
-    menu.addItem("Show right", e -> {
+    }));
+    menu.addItem("Show right", e -> simulationThread.execute(() -> {
       Vector3f right = camera.right();
       System.out.printf("right=(%5.3f,%5.3f,%5.3f) \n", right.x, right.y, right.z);
-    });
-    menu.addItem("Show up", e -> {
+    }));
+    menu.addItem("Show up", e -> simulationThread.execute(() -> {
       Vector3f up = camera.up();
       System.out.printf("up=(%5.3f,%5.3f,%5.3f) \n", up.x, up.y, up.z);
-    });
+    }));
     return menu;
   }
 
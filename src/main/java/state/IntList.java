@@ -0,0 +1,50 @@
+package state;
+
+import java.util.Arrays;
+
+/**
+ * growable int array, meant to be cleared and refilled so query results don't allocate
+ */
+public final class IntList {
+
+  private int[] data;
+  private int size = 0;
+
+  public IntList() {
+    this(64);
+  }
+
+  public IntList(int capacity) {
+    data = new int[Math.max(capacity, 1)];
+  }
+
+  public void add(int value) {
+    if (size == data.length) {
+      data = Arrays.copyOf(data, size * 2);
+    }
+    data[size++] = value;
+  }
+
+  public int get(int i) {
+    return data[i];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * backing array, valid up to size()
+   */
+  public int[] array() {
+    return data;
+  }
+}
@@ -1,6 +1,395 @@
 package state;
 
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+import model_loader.AABB;
+import model_loader.SubBlueprint;
+
+/**
+ * placed instances, stored as structure-of-arrays
+ *
+ * instance i uses stage stageIds[i] (an id into the StageLibrary) and the column-major
+ * model matrix at transforms[16*i .. 16*i+15]
+ *
+ * the world space bounds of each instance are kept as center and half extents in six
+ * packed float arrays, derived from the stage AABB and the model matrix
+ *
+ * growth: every instance has a progress through its stage's growth range, the model is
+ * scaled by mix(growthMin, growthMax, progress) in the vertex shader. The range comes from
+ * the stage (SubBlueprint.getMinGrowth/getMaxGrowth), new instances start at the progress
+ * that gives scale 1. setGrowth() only writes the float and bumps growthVersion(), the
+ * bounds already cover the whole range so culling data stays valid.
+ *
+ * variation: yaw, scale and tint jitter and the stage of randomized blueprints come from
+ * a hash of the instance translation (see Variation), nothing is stored per instance.
+ * The bounds cover every yaw, the largest jitter scale and all stages of the variant
+ * group, so they hold whichever the shaders end up drawing.
+ *
+ * the bounds centers are indexed by a SpatialGrid for neighbourhood queries (species
+ * influence radius, placement checks). Removing an instance moves the last instance
+ * into its index, so indices are only stable between removals.
+ *
+ * copyFrom() turns a scene into a replica of another for a different thread to read
+ * (FrameSnapshot), replicas aren't indexed.
+ *
+ */
 public class Scene {
-  
-}
 
+  private static final int INITIAL_CAPACITY = 64;
+  private static final float GRID_CELL_SIZE = 8f;
+
+  public final StageLibrary stages;
+
+  private int count = 0;
+  // bumped on every edit, lets GPU copies know when to re-upload
+  private int version = 0;
+  private int[] stageIds = new int[INITIAL_CAPACITY];
+  private float[] transforms = new float[INITIAL_CAPACITY * 16];
+  private float[] centerX = new float[INITIAL_CAPACITY];
+  private float[] centerY = new float[INITIAL_CAPACITY];
+  private float[] centerZ = new float[INITIAL_CAPACITY];
+  private float[] extentX = new float[INITIAL_CAPACITY];
+  private float[] extentY = new float[INITIAL_CAPACITY];
+  private float[] extentZ = new float[INITIAL_CAPACITY];
+  private float[] growth = new float[INITIAL_CAPACITY];
+  private float[] growthMin = new float[INITIAL_CAPACITY];
+  private float[] growthMax = new float[INITIAL_CAPACITY];
+  private int growthVersion = 0;
+
+  private Variation variation = Variation.defaults();
+
+  private final Vector3f boundsCenter = new Vector3f();
+  private final float[] boxMin = new float[3];
+  private final float[] boxMax = new float[3];
+  private final SpatialGrid grid = new SpatialGrid(GRID_CELL_SIZE);
+
+  public Scene(StageLibrary stages) {
+    this.stages = stages;
+  }
+
+  public int add(int stageId, Matrix4f model) {
+    ensureCapacity(count + 1);
+    int i = count++;
+    stageIds[i] = stageId;
+    model.get(transforms, i * 16);
+    initGrowth(i);
+    updateBounds(i);
+    grid.insert(i, centerX[i], centerY[i], centerZ[i]);
+    version++;
+    return i;
+  }
+
+  public void setTransform(int instance, Matrix4f model) {
+    model.get(transforms, instance * 16);
+    updateBounds(instance);
+    grid.move(instance, centerX[instance], centerY[instance], centerZ[instance]);
+    version++;
+  }
+
+  /**
+   * remove an instance, the last instance takes over its index
+   */
+  public void remove(int instance) {
+    int last = count - 1;
+    grid.remove(instance);
+    if (instance != last) {
+      grid.remove(last);
+      stageIds[instance] = stageIds[last];
+      System.arraycopy(transforms, last * 16, transforms, instance * 16, 16);
+      centerX[instance] = centerX[last];
+      centerY[instance] = centerY[last];
+      centerZ[instance] = centerZ[last];
+      extentX[instance] = extentX[last];
+      extentY[instance] = extentY[last];
+      extentZ[instance] = extentZ[last];
+      growth[instance] = growth[last];
+      growthMin[instance] = growthMin[last];
+      growthMax[instance] = growthMax[last];
+      grid.insert(instance, centerX[instance], centerY[instance], centerZ[instance]);
+    }
+    count--;
+    version++;
+    growthVersion++;
+  }
+
+  /**
+   * re-index every instance in one go, faster than incremental inserts after bulk edits
+   */
+  public void rebuildIndex() {
+    grid.build(count, centerX, centerY, centerZ);
+  }
+
+  /**
+   * instances whose bounds center is within radius r, results are appended to out
+   */
+  public void queryRadius(float x, float y, float z, float r, IntList out) {
+    grid.queryRadius(x, y, z, r, out);
+  }
+
+  public void queryAabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out) {
+    grid.queryAabb(minX, minY, minZ, maxX, maxY, maxZ, out);
+  }
+
+  /**
+   * number of instances of the stages [firstStage, firstStage+stageCount) - a species -
+   * within radius r, used for the liked/disliked species influence of a placement
+   *
+   * @param scratch reused result buffer
+   */
+  public int countNearby(float x, float y, float z, float r, int firstStage, int stageCount, IntList scratch) {
+    scratch.clear();
+    grid.queryRadius(x, y, z, r, scratch);
+    int n = 0;
+    int[] ids = scratch.array();
+    for (int i = 0; i < scratch.size(); i++) {
+      int stage = stageIds[ids[i]];
+      if (stage >= firstStage && stage < firstStage + stageCount) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * become a copy of src, only the arrays changed since the last copy are transferred -
+   * nothing when the versions match. The spatial index is left empty, queries go to src
+   */
+  public void copyFrom(Scene src) {
+    if (src.version != version) {
+      ensureCapacity(src.count);
+      int n = src.count;
+      System.arraycopy(src.stageIds, 0, stageIds, 0, n);
+      System.arraycopy(src.transforms, 0, transforms, 0, n * 16);
+      System.arraycopy(src.centerX, 0, centerX, 0, n);
+      System.arraycopy(src.centerY, 0, centerY, 0, n);
+      System.arraycopy(src.centerZ, 0, centerZ, 0, n);
+      System.arraycopy(src.extentX, 0, extentX, 0, n);
+      System.arraycopy(src.extentY, 0, extentY, 0, n);
+      System.arraycopy(src.extentZ, 0, extentZ, 0, n);
+      System.arraycopy(src.growthMin, 0, growthMin, 0, n);
+      System.arraycopy(src.growthMax, 0, growthMax, 0, n);
+      count = n;
+      variation = src.variation;
+      version = src.version;
+      growthVersion = -1;
+    }
+    if (src.growthVersion != growthVersion) {
+      System.arraycopy(src.growth, 0, growth, 0, src.count);
+      growthVersion = src.growthVersion;
+    }
+  }
+
+  /**
+   * progress through the growth range, 0 = smallest, 1 = fully grown for the stage
+   */
+  public void setGrowth(int instance, float progress) {
+    growth[instance] = Math.max(0f, Math.min(1f, progress));
+    growthVersion++;
+  }
+
+  public float growthScale(int instance) {
+    return growthMin[instance] + (growthMax[instance] - growthMin[instance]) * growth[instance];
+  }
+
+  /**
+   * replaces the jitter of every instance, the bounds are recomputed
+   */
+  public void setVariation(Variation variation) {
+    this.variation = variation;
+    for (int i = 0; i < count; i++) {
+      updateBounds(i);
+    }
+    rebuildIndex();
+    version++;
+  }
+
+  public Variation variation() {
+    return variation;
+  }
+
+  public int variationKey(int instance) {
+    return variation.key(transforms, instance * 16);
+  }
+
+  /**
+   * the stage drawn for the instance, stageIds[instance] unless its blueprint is randomized
+   */
+  public int variantStage(int instance) {
+    int stage = stageIds[instance];
+    if (stages.variantCount(stage) == 1) {
+      return stage;
+    }
+    return variation.stage(stages, stage, variationKey(instance));
+  }
+
+  /**
+   * growth times the jitter scale, the uniform scale applied in model space
+   */
+  public float instanceScale(int instance) {
+    return growthScale(instance) * variation.scale(variationKey(instance));
+  }
+
+  /**
+   * the full model space to world transform the shaders use - model matrix, jitter yaw,
+   * growth and jitter scale
+   */
+  public Matrix4f model(int instance, Matrix4f out) {
+    int key = variationKey(instance);
+    return out.set(transforms, instance * 16).rotateY(variation.yaw(key))
+        .scale(growthScale(instance) * variation.scale(key));
+  }
+
+  // stages without a usable range (not loaded through BlueprintLoader) stay at scale 1
+  private void initGrowth(int i) {
+    SubBlueprint stage = stages.get(stageIds[i]);
+    float min = stage.getMinGrowth(), max = stage.getMaxGrowth();
+    if (!(max > min) || min <= 0f) {
+      min = max = 1f;
+    }
+    growthMin[i] = min;
+    growthMax[i] = max;
+    growth[i] = max > min ? Math.max(0f, Math.min(1f, (1f - min) / (max - min))) : 1f;
+  }
+
+  /**
+   * transform the stage AABB by the model matrix, the result is the AABB of the
+   * transformed box (center moves with the matrix, extents take the absolute matrix)
+   */
+  private void updateBounds(int i) {
+    // union of the variant group's boxes
+    int first = stages.variantFirst(stageIds[i]), n = stages.variantCount(stageIds[i]);
+    Arrays.fill(boxMin, Float.MAX_VALUE);
+    Arrays.fill(boxMax, -Float.MAX_VALUE);
+    for (int s = first; s < first + n; s++) {
+      AABB aabb = stages.get(s).getAABB();
+      Vector4f offset = aabb.getOffset();
+      Vector3f size = aabb.getScale();
+      for (int k = 0; k < 3; k++) {
+        boxMin[k] = Math.min(boxMin[k], offset.get(k) - size.get(k) * 0.5f);
+        boxMax[k] = Math.max(boxMax[k], offset.get(k) + size.get(k) * 0.5f);
+      }
+    }
+    if (variation.getYawJitter() != 0f) {
+      // any yaw around y, the box becomes the square around the farthest xz corner
+      float rx = Math.max(Math.abs(boxMin[0]), Math.abs(boxMax[0]));
+      float rz = Math.max(Math.abs(boxMin[2]), Math.abs(boxMax[2]));
+      float r = (float) Math.sqrt(rx*rx + rz*rz);
+      boxMin[0] = boxMin[2] = -r;
+      boxMax[0] = boxMax[2] = r;
+    }
+    // box of the smallest and the largest scale, all scales in between are inside
+    float a = growthMin[i] * (1f - variation.getScaleJitter());
+    float b = growthMax[i] * (1f + variation.getScaleJitter());
+    Vector3f c = boundsCenter;
+    float hx = grownHalf(boxMin[0], boxMax[0], a, b, c, 0);
+    float hy = grownHalf(boxMin[1], boxMax[1], a, b, c, 1);
+    float hz = grownHalf(boxMin[2], boxMax[2], a, b, c, 2);
+    float[] m = transforms;
+    int o = i * 16;
+    centerX[i] = m[o]   * c.x + m[o+4] * c.y + m[o+8]  * c.z + m[o+12];
+    centerY[i] = m[o+1] * c.x + m[o+5] * c.y + m[o+9]  * c.z + m[o+13];
+    centerZ[i] = m[o+2] * c.x + m[o+6] * c.y + m[o+10] * c.z + m[o+14];
+    extentX[i] = Math.abs(m[o])   * hx + Math.abs(m[o+4]) * hy + Math.abs(m[o+8])  * hz;
+    extentY[i] = Math.abs(m[o+1]) * hx + Math.abs(m[o+5]) * hy + Math.abs(m[o+9])  * hz;
+    extentZ[i] = Math.abs(m[o+2]) * hx + Math.abs(m[o+6]) * hy + Math.abs(m[o+10]) * hz;
+  }
+
+  // half extent along one axis of the union of [min, max] scaled by a and by b, center into c
+  private static float grownHalf(float min, float max, float a, float b, Vector3f c, int axis) {
+    float lo = Math.min(min * a, min * b);
+    float hi = Math.max(max * a, max * b);
+    c.setComponent(axis, (lo + hi) * 0.5f);
+    return (hi - lo) * 0.5f;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int version() {
+    return version;
+  }
+
+  /**
+   * bumped by setGrowth() and removals, the transforms are unchanged
+   */
+  public int growthVersion() {
+    return growthVersion;
+  }
+
+  public int getStageId(int instance) {
+    return stageIds[instance];
+  }
+
+  /**
+   * backing arrays, valid up to size() - the arrays are replaced when the scene grows
+   */
+  public int[] stageIds() {
+    return stageIds;
+  }
+
+  public float[] transforms() {
+    return transforms;
+  }
+
+  public float[] centerX() {
+    return centerX;
+  }
+
+  public float[] centerY() {
+    return centerY;
+  }
+
+  public float[] centerZ() {
+    return centerZ;
+  }
+
+  public float[] extentX() {
+    return extentX;
+  }
+
+  public float[] extentY() {
+    return extentY;
+  }
+
+  public float[] extentZ() {
+    return extentZ;
+  }
+
+  /**
+   * growth progress, min and max scale per instance
+   */
+  public float[] growth() {
+    return growth;
+  }
+
+  public float[] growthMin() {
+    return growthMin;
+  }
+
+  public float[] growthMax() {
+    return growthMax;
+  }
+
+  private void ensureCapacity(int n) {
+    if (n <= stageIds.length) {
+      return;
+    }
+    int cap = Math.max(n, stageIds.length * 2);
+    stageIds = Arrays.copyOf(stageIds, cap);
+    transforms = Arrays.copyOf(transforms, cap * 16);
+    centerX = Arrays.copyOf(centerX, cap);
+    centerY = Arrays.copyOf(centerY, cap);
+    centerZ = Arrays.copyOf(centerZ, cap);
+    extentX = Arrays.copyOf(extentX, cap);
+    extentY = Arrays.copyOf(extentY, cap);
+    extentZ = Arrays.copyOf(extentZ, cap);
+    growth = Arrays.copyOf(growth, cap);
+    growthMin = Arrays.copyOf(growthMin, cap);
+    growthMax = Arrays.copyOf(growthMax, cap);
+  }
+}
@@ -0,0 +1,225 @@
+package state;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import graphics.Camera;
+import model_loader.MemorySlot;
+
+/**
+ * Ray picking against the triangles of a Scene through a two level BVH.
+ *
+ * The bottom level is one Bvh per stage over its triangles in model space. They are built
+ * in parallel the first time a stage is used by an instance and kept, stages never change.
+ * The top level is a Bvh over the world bounds of the instances. It is rebuilt when the
+ * instance count changed and refit when only transforms changed (Scene.version()), with a
+ * full rebuild every REBUILD_AFTER refits so a lot of movement doesn't ruin the tree.
+ *
+ * A ray goes through the top level, every instance box it reaches gets the ray moved into
+ * model space with the inverse of Scene.model() (growth and jitter included) and tested
+ * against the Bvh of the stage it is drawn with. The model space direction is not
+ * renormalized, so distances stay world space along the ray.
+ *
+ */
+public final class ScenePicker {
+
+  public record Hit(int instance, int triangle, float distance) {}
+
+  private static final int F = MemorySlot.VERTEX_FLOAT_COUNT;
+  private static final int REBUILD_AFTER = 64;
+
+  private final Scene scene;
+  private Bvh[] stageBvh = new Bvh[16];
+  private final Bvh top = new Bvh();
+  private float[] instanceBounds = new float[0];
+  private int builtCount = -1;
+  private int builtVersion = -1;
+  private int refits = 0;
+
+  // state of the pick in progress, the leaf tests are created once
+  private final Bvh.LeafTest instanceTest = this::testInstance;
+  private final Bvh.LeafTest triangleTest = this::testTriangle;
+  private final Matrix4f inverse = new Matrix4f();
+  private final Vector3f local = new Vector3f();
+  private float ox, oy, oz, dx, dy, dz;
+  private float lox, loy, loz, ldx, ldy, ldz;
+  private float[] data;
+  private int hitInstance;
+  private int hitTriangle;
+  private int candidateTriangle;
+
+  private long lastPickNanos = 0;
+  private long lastUpdateNanos = 0;
+
+  public ScenePicker(Scene scene) {
+    this.scene = scene;
+  }
+
+  public Scene getScene() {
+    return scene;
+  }
+
+  /**
+   * bring both levels up to date with the scene, pick() does this on its own
+   */
+  public void update() {
+    if (builtCount == scene.size() && builtVersion == scene.version()) {
+      return;
+    }
+    long start = System.nanoTime();
+    int count = scene.size();
+    buildStages();
+    if (instanceBounds.length < count * 6) {
+      instanceBounds = new float[Math.max(count, instanceBounds.length / 6 * 2) * 6];
+    }
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    for (int i = 0; i < count; i++) {
+      instanceBounds[i*6]   = cx[i] - ex[i];
+      instanceBounds[i*6+1] = cy[i] - ey[i];
+      instanceBounds[i*6+2] = cz[i] - ez[i];
+      instanceBounds[i*6+3] = cx[i] + ex[i];
+      instanceBounds[i*6+4] = cy[i] + ey[i];
+      instanceBounds[i*6+5] = cz[i] + ez[i];
+    }
+    if (count != builtCount || refits >= REBUILD_AFTER) {
+      top.rebuild(instanceBounds, count);
+      refits = 0;
+    } else {
+      top.refit(instanceBounds);
+      refits++;
+    }
+    builtCount = count;
+    builtVersion = scene.version();
+    lastUpdateNanos = System.nanoTime() - start;
+  }
+
+  // triangle BVHs of the stages placed in the scene that don't have one yet
+  private void buildStages() {
+    StageLibrary stages = scene.stages;
+    if (stageBvh.length < stages.size()) {
+      stageBvh = Arrays.copyOf(stageBvh, Math.max(stages.size(), stageBvh.length * 2));
+    }
+    boolean[] missing = new boolean[stages.size()];
+    for (int i = 0; i < scene.size(); i++) {
+      int stage = scene.variantStage(i);
+      missing[stage] = stageBvh[stage] == null;
+    }
+    IntStream.range(0, missing.length).parallel().filter(s -> missing[s])
+        .forEach(s -> stageBvh[s] = buildStage(stages.get(s).getFullModelData()));
+  }
+
+  private static Bvh buildStage(float[] data) {
+    int triangles = data.length / F / 3;
+    float[] bounds = new float[triangles * 6];
+    for (int t = 0; t < triangles; t++) {
+      int o = t * 3 * F;
+      for (int k = 0; k < 3; k++) {
+        float a = data[o+k], b = data[o+F+k], c = data[o+2*F+k];
+        bounds[t*6 + k] = Math.min(a, Math.min(b, c));
+        bounds[t*6 + 3 + k] = Math.max(a, Math.max(b, c));
+      }
+    }
+    return Bvh.build(bounds, triangles);
+  }
+
+  /**
+   * closest triangle hit by the ray through window pixel (x, y), y pointing down
+   *
+   * @return null when nothing is hit
+   */
+  public Hit pick(Camera camera, double x, double y, int width, int height) {
+    float nx = (float) (2.0 * x / width - 1.0);
+    float ny = (float) (1.0 - 2.0 * y / height);
+    Matrix4f invViewProj = camera.viewProjMat().invert();
+    Vector3f near = invViewProj.transformProject(nx, ny, -1f, new Vector3f());
+    Vector3f far = invViewProj.transformProject(nx, ny, 1f, new Vector3f());
+    return pick(near, far.sub(near).normalize());
+  }
+
+  /**
+   * closest triangle hit by origin + t * dir, dir normalized
+   *
+   * @return null when nothing is hit
+   */
+  public Hit pick(Vector3f origin, Vector3f dir) {
+    update();
+    long start = System.nanoTime();
+    ox = origin.x;
+    oy = origin.y;
+    oz = origin.z;
+    dx = dir.x;
+    dy = dir.y;
+    dz = dir.z;
+    hitInstance = -1;
+    hitTriangle = -1;
+    float t = top.intersect(ox, oy, oz, dx, dy, dz, Float.POSITIVE_INFINITY, instanceTest);
+    lastPickNanos = System.nanoTime() - start;
+    return hitInstance < 0 ? null : new Hit(hitInstance, hitTriangle, t);
+  }
+
+  private float testInstance(int instance, float tMax) {
+    int stage = scene.variantStage(instance);
+    Bvh bvh = stageBvh[stage];
+    data = scene.stages.get(stage).getFullModelData();
+    scene.model(instance, inverse).invertAffine();
+    inverse.transformPosition(ox, oy, oz, local);
+    lox = local.x;
+    loy = local.y;
+    loz = local.z;
+    inverse.transformDirection(dx, dy, dz, local);
+    ldx = local.x;
+    ldy = local.y;
+    ldz = local.z;
+    candidateTriangle = -1;
+    float t = bvh.intersect(lox, loy, loz, ldx, ldy, ldz, tMax, triangleTest);
+    if (t < tMax) {
+      hitInstance = instance;
+      hitTriangle = candidateTriangle;
+    }
+    return t;
+  }
+
+  // Moeller-Trumbore, both sides count
+  private float testTriangle(int triangle, float tMax) {
+    int a = triangle * 3 * F, b = a + F, c = b + F;
+    float e1x = data[b] - data[a], e1y = data[b+1] - data[a+1], e1z = data[b+2] - data[a+2];
+    float e2x = data[c] - data[a], e2y = data[c+1] - data[a+1], e2z = data[c+2] - data[a+2];
+    float px = ldy * e2z - ldz * e2y, py = ldz * e2x - ldx * e2z, pz = ldx * e2y - ldy * e2x;
+    float det = e1x * px + e1y * py + e1z * pz;
+    if (Math.abs(det) < 1e-12f) {
+      return tMax;
+    }
+    float inv = 1f / det;
+    float sx = lox - data[a], sy = loy - data[a+1], sz = loz - data[a+2];
+    float u = (sx * px + sy * py + sz * pz) * inv;
+    if (u < 0f || u > 1f) {
+      return tMax;
+    }
+    float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+    float v = (ldx * qx + ldy * qy + ldz * qz) * inv;
+    if (v < 0f || u + v > 1f) {
+      return tMax;
+    }
+    float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+    if (t < 0f || t >= tMax) {
+      return tMax;
+    }
+    candidateTriangle = triangle;
+    return t;
+  }
+
+  public long getLastPickNanos() {
+    return lastPickNanos;
+  }
+
+  /**
+   * time of the last update() that had work to do
+   */
+  public long getLastUpdateNanos() {
+    return lastUpdateNanos;
+  }
+}
@@ -0,0 +1,231 @@
+package state;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import graphics.Camera;
+import input.Action;
+
+/**
+ * The simulation thread - owns GameState and the Scene and ticks them at a fixed rate.
+ *
+ * Every tick advances the state by the same dt. The elapsed wall time goes into an
+ * accumulator, each loop runs as many ticks as it holds, so a late wake-up is caught up
+ * instead of slowing the simulation down. More than MAX_CATCH_UP ticks behind (a debugger
+ * stop, a long load) the rest is dropped. Between loops a FramePacer waits out the tick.
+ *
+ * The main thread submit()s the actions its InputSystem produced, other threads post()
+ * scene edits (the render thread adds instances once their meshes are uploaded). Both go
+ * through lock-free queues and are applied at the start of the next tick, so the state is
+ * only ever written here. After the ticks of a loop the camera, the camera before the
+ * last tick and the scene are captured into a FrameSnapshot and published through a
+ * SnapshotExchange, the render thread draws the latest one without locks.
+ *
+ * A snapshot is only published when a tick changed something: the camera (GameState
+ * marks itself dirty), the scene version or a posted task. With GameState.renderOnDemand
+ * and nothing queued or held down the thread parks instead of ticking, submit() and
+ * post() wake it. The onPublish hook wakes the reader.
+ *
+ */
+public final class Simulation {
+
+  private static final Logger log = LoggerFactory.getLogger(Simulation.class);
+  private static final int MAX_CATCH_UP = 8;
+
+  private final GameState state;
+  private final Scene scene;
+  private final SnapshotExchange<FrameSnapshot> snapshots;
+  private final ConcurrentLinkedQueue<Action> actions = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final long tickNanos;
+  private final float dt;
+  private final FramePacer pacer;
+
+  private volatile Thread thread;
+  private volatile boolean running = false;
+  private long tick = 0;
+  private long dropped = 0;
+  // camera before the last tick, the render thread interpolates from it
+  private final Camera previous = new Camera(0f, 0f);
+  private Runnable onPublish = () -> {};
+  private int sceneVersion = -1;
+  private int growthVersion = -1;
+  private boolean ranTasks = false;
+  private long idleNanos = 0;
+  private volatile long lastTickNanos = 0;
+
+  /**
+   * publishes a first snapshot right away so a reader never sees an empty one
+   */
+  public Simulation(GameState state, Scene scene, int ticksPerSecond) {
+    this.state = state;
+    this.scene = scene;
+    this.tickNanos = 1_000_000_000L / ticksPerSecond;
+    this.dt = 1f / ticksPerSecond;
+    pacer = new FramePacer(tickNanos);
+    // the render thread draws the list it built from the snapshot before the current one
+    snapshots = new SnapshotExchange<>(() -> new FrameSnapshot(scene.stages), 1);
+    previous.set(state.camera);
+    publish(System.nanoTime());
+  }
+
+  public SnapshotExchange<FrameSnapshot> snapshots() {
+    return snapshots;
+  }
+
+  /**
+   * any thread - an input action for the next tick
+   */
+  public void submit(Action action) {
+    actions.add(action);
+    wake();
+  }
+
+  /**
+   * any thread - run on the simulation thread at the start of the next tick, the only
+   * way to change the scene once started
+   */
+  public void post(Runnable task) {
+    tasks.add(task);
+    wake();
+  }
+
+  /**
+   * run on the simulation thread after every publish, set before start()
+   */
+  public void setOnPublish(Runnable onPublish) {
+    this.onPublish = onPublish;
+  }
+
+  private void wake() {
+    Thread t = thread;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  public void start() {
+    running = true;
+    thread = new Thread(this::run, "simulation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void run() {
+    long last = System.nanoTime();
+    long accumulator = 0;
+    while (running) {
+      long now = System.nanoTime();
+      accumulator += now - last;
+      last = now;
+      if (accumulator > MAX_CATCH_UP * tickNanos) {
+        dropped += accumulator / tickNanos - MAX_CATCH_UP;
+        accumulator = MAX_CATCH_UP * tickNanos;
+      }
+      if (accumulator >= tickNanos) {
+        long t0 = System.nanoTime();
+        while (accumulator >= tickNanos) {
+          previous.set(state.camera);
+          try {
+            tick();
+          } catch (RuntimeException e) {
+            log.error("simulation tick {} failed", tick, e);
+          }
+          accumulator -= tickNanos;
+        }
+        if (changed()) {
+          publish(System.nanoTime());
+          onPublish.run();
+        }
+        lastTickNanos = System.nanoTime() - t0;
+      }
+      if (!running) {
+        break;
+      }
+      if (state.renderOnDemand && actions.isEmpty() && tasks.isEmpty() && !state.isAnimating()) {
+        // nothing to do until the next submit() or post()
+        long idle = System.nanoTime();
+        LockSupport.park(this);
+        idleNanos += System.nanoTime() - idle;
+        pacer.restart();
+        last = System.nanoTime();
+        accumulator = tickNanos;
+      } else {
+        pacer.waitNext();
+      }
+    }
+  }
+
+  private void tick() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+      ranTasks = true;
+    }
+    Action action;
+    while ((action = actions.poll()) != null) {
+      state.onAction(action);
+    }
+    state.update(dt);
+    tick++;
+  }
+
+  // anything the render thread would see differently since the last publish
+  private boolean changed() {
+    boolean changed = state.consumeDirty() || ranTasks || scene.version() != sceneVersion
+        || scene.growthVersion() != growthVersion;
+    ranTasks = false;
+    return changed;
+  }
+
+  private void publish(long nanos) {
+    sceneVersion = scene.version();
+    growthVersion = scene.growthVersion();
+    snapshots.back().capture(state, previous, scene, tick, tick * (double) dt, nanos, tickNanos);
+    snapshots.publish();
+  }
+
+  public long getTick() {
+    return tick;
+  }
+
+  public long getLastTickNanos() {
+    return lastTickNanos;
+  }
+
+  /**
+   * seconds per tick
+   */
+  public float getDt() {
+    return dt;
+  }
+
+  /**
+   * time spent parked with nothing to do
+   */
+  public long getIdleNanos() {
+    return idleNanos;
+  }
+
+  /**
+   * ticks given up on after falling more than MAX_CATCH_UP behind
+   */
+  public long getDropped() {
+    return dropped;
+  }
+}
@@ -0,0 +1,103 @@
+package state;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free triple buffer handing the latest value from one writer thread to one reader.
+ *
+ * Of the three slots the writer owns one (back()), the reader owns one (acquire()) and the
+ * third is in the middle. publish() swaps the back slot into the middle, acquire() swaps
+ * the middle slot to the front if something was published since the last acquire. Each
+ * swap is one atomic exchange, neither side ever waits or sees a slot the other is
+ * writing. The reader skips values when the writer is faster and keeps the last one when
+ * it is slower.
+ *
+ * The back slot handed to the writer after publish() is an older value, the writer has
+ * to bring all of it up to date before publishing again.
+ *
+ * A reader that still uses older values after acquiring a new one (a draw list built from
+ * the previous snapshot) asks for them to be held. Each held value takes one more slot,
+ * acquire() hands the oldest held slot back to the writer instead of the one it replaces,
+ * so the values of the last few acquires that returned something new stay untouched.
+ *
+ */
+public final class SnapshotExchange<T> {
+
+  // set in middle when it holds a value the reader hasn't acquired yet
+  private static final int FRESH = 1 << 8;
+  private static final int INDEX = FRESH - 1;
+
+  private final Object[] slots;
+  private final AtomicInteger middle = new AtomicInteger(1);
+  private int back = 0;
+  private int front = 2;
+  // reader's earlier fronts, newest first
+  private final int[] held;
+
+  public SnapshotExchange(Supplier<T> factory) {
+    this(factory, 0);
+  }
+
+  /**
+   * @param held earlier values the reader keeps untouched besides the current one
+   */
+  public SnapshotExchange(Supplier<T> factory, int held) {
+    slots = new Object[3 + held];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = factory.get();
+    }
+    this.held = new int[held];
+    for (int k = 0; k < held; k++) {
+      this.held[k] = 3 + k;
+    }
+  }
+
+  /**
+   * writer thread - the slot to fill before the next publish()
+   */
+  @SuppressWarnings("unchecked")
+  public T back() {
+    return (T) slots[back];
+  }
+
+  /**
+   * writer thread - make the back slot the latest value
+   */
+  public void publish() {
+    back = middle.getAndSet(back | FRESH) & INDEX;
+  }
+
+  /**
+   * reader thread - the latest published value, it stays untouched until the next acquire()
+   * that returns a newer one
+   */
+  @SuppressWarnings("unchecked")
+  public T acquire() {
+    if ((middle.get() & FRESH) != 0) {
+      int released = front;
+      if (held.length > 0) {
+        released = held[held.length - 1];
+        System.arraycopy(held, 0, held, 1, held.length - 1);
+        held[0] = front;
+      }
+      front = middle.getAndSet(released) & INDEX;
+    }
+    return (T) slots[front];
+  }
+
+  /**
+   * reader thread - the value of the last acquire()
+   */
+  @SuppressWarnings("unchecked")
+  public T front() {
+    return (T) slots[front];
+  }
+
+  /**
+   * true when acquire() would return a newer value, any thread
+   */
+  public boolean hasFresh() {
+    return (middle.get() & FRESH) != 0;
+  }
+}
@@ -0,0 +1,449 @@
+package state;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Hashed uniform grid over points (instance positions).
+ *
+ * Space is divided in cubic cells of cellSize, only occupied cells exist and are found
+ * through an open addressing hash table keyed by the packed cell coordinates. Each cell
+ * stores its items contiguously - ids in one int array and x,y,z in one float array -
+ * so a query walks a handful of small dense arrays instead of chasing objects.
+ *
+ * Items are identified by non-negative int ids chosen by the caller (scene instance
+ * indices). Insert, remove and move are O(1), removal swaps the last item of the cell
+ * into the freed slot. A cell left empty is freed the same way, the last cell takes its
+ * index, so cellCount() is the number of occupied cells. Query results are appended to a
+ * caller-owned IntList.
+ *
+ */
+public final class SpatialGrid {
+
+  private static final long EMPTY = -1L;
+  private static final int BIAS = 1 << 20;          // cell coordinates are stored in 21 bits
+  private static final long MASK = (1L << 21) - 1;
+
+  private final float cellSize;
+  private final float invCellSize;
+
+  // hash table: packed cell key -> cell index
+  private long[] tableKeys;
+  private int[] tableCells;
+  private int tableMask;
+
+  // cells, items of a cell are ids[0..size) and pos[0..3*size)
+  private int cellCount = 0;
+  private long[] cellKeys = new long[64];
+  private int[][] cellIds = new int[64][];
+  private float[][] cellPos = new float[64][];
+  private int[] cellSizes = new int[64];
+
+  // id -> location
+  private int[] itemCell = new int[0];
+  private int[] itemSlot = new int[0];
+  private int itemCount = 0;
+
+  public SpatialGrid(float cellSize) {
+    this.cellSize = cellSize;
+    this.invCellSize = 1f / cellSize;
+    allocateTable(256);
+  }
+
+  public float getCellSize() {
+    return cellSize;
+  }
+
+  public int size() {
+    return itemCount;
+  }
+
+  public int cellCount() {
+    return cellCount;
+  }
+
+  public boolean contains(int id) {
+    return id < itemCell.length && itemCell[id] >= 0;
+  }
+
+  private int cellCoord(float v) {
+    return (int) Math.floor(v * invCellSize);
+  }
+
+  private static long key(int ix, int iy, int iz) {
+    return ((ix + BIAS) & MASK) << 42 | ((iy + BIAS) & MASK) << 21 | ((iz + BIAS) & MASK);
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+
+  // --- insert / remove / move
+
+  public void insert(int id, float x, float y, float z) {
+    ensureItemCapacity(id + 1);
+    if (itemCell[id] >= 0) {
+      throw new IllegalStateException("id already in grid: " + id);
+    }
+    int cell = findOrCreateCell(key(cellCoord(x), cellCoord(y), cellCoord(z)));
+    append(cell, id, x, y, z);
+    itemCount++;
+  }
+
+  public void remove(int id) {
+    if (!contains(id)) {
+      return;
+    }
+    removeFromCell(id);
+    itemCount--;
+  }
+
+  public void move(int id, float x, float y, float z) {
+    if (!contains(id)) {
+      insert(id, x, y, z);
+      return;
+    }
+    int cell = itemCell[id];
+    if (cellKeys[cell] == key(cellCoord(x), cellCoord(y), cellCoord(z))) {
+      float[] pos = cellPos[cell];
+      int s = itemSlot[id] * 3;
+      pos[s] = x;
+      pos[s+1] = y;
+      pos[s+2] = z;
+      return;
+    }
+    removeFromCell(id);
+    append(findOrCreateCell(key(cellCoord(x), cellCoord(y), cellCoord(z))), id, x, y, z);
+  }
+
+  public void clear() {
+    Arrays.fill(tableKeys, EMPTY);
+    Arrays.fill(itemCell, -1);
+    cellCount = 0;
+    itemCount = 0;
+  }
+
+  private void append(int cell, int id, float x, float y, float z) {
+    int n = cellSizes[cell];
+    if (n == cellIds[cell].length) {
+      cellIds[cell] = Arrays.copyOf(cellIds[cell], n * 2);
+      cellPos[cell] = Arrays.copyOf(cellPos[cell], n * 6);
+    }
+    cellIds[cell][n] = id;
+    float[] pos = cellPos[cell];
+    pos[n*3] = x;
+    pos[n*3+1] = y;
+    pos[n*3+2] = z;
+    cellSizes[cell] = n + 1;
+    itemCell[id] = cell;
+    itemSlot[id] = n;
+  }
+
+  private void removeFromCell(int id) {
+    int cell = itemCell[id];
+    int slot = itemSlot[id];
+    int last = --cellSizes[cell];
+    if (slot != last) {
+      int[] ids = cellIds[cell];
+      float[] pos = cellPos[cell];
+      int moved = ids[last];
+      ids[slot] = moved;
+      pos[slot*3] = pos[last*3];
+      pos[slot*3+1] = pos[last*3+1];
+      pos[slot*3+2] = pos[last*3+2];
+      itemSlot[moved] = slot;
+    }
+    itemCell[id] = -1;
+    if (last == 0) {
+      freeCell(cell);
+    }
+  }
+
+  // drop an empty cell from the table, the last cell moves into its index
+  private void freeCell(int cell) {
+    deleteKey(cellKeys[cell]);
+    int last = --cellCount;
+    if (cell == last) {
+      return;
+    }
+    int[] ids = cellIds[cell];
+    float[] pos = cellPos[cell];
+    int n = cellSizes[last];
+    cellKeys[cell] = cellKeys[last];
+    cellIds[cell] = cellIds[last];
+    cellPos[cell] = cellPos[last];
+    cellSizes[cell] = n;
+    // the freed arrays go to the end, newCell() reuses them
+    cellIds[last] = ids;
+    cellPos[last] = pos;
+    int[] movedIds = cellIds[cell];
+    for (int i = 0; i < n; i++) {
+      itemCell[movedIds[i]] = cell;
+    }
+    tableCells[tableSlot(cellKeys[cell])] = cell;
+  }
+
+
+  // --- queries
+
+  /**
+   * append the ids of all items within radius r of (x,y,z) to out
+   */
+  public void queryRadius(float x, float y, float z, float r, IntList out) {
+    final float r2 = r * r;
+    int ix0 = cellCoord(x - r), ix1 = cellCoord(x + r);
+    int iy0 = cellCoord(y - r), iy1 = cellCoord(y + r);
+    int iz0 = cellCoord(z - r), iz1 = cellCoord(z + r);
+    long cellsInRange = (long) (ix1 - ix0 + 1) * (iy1 - iy0 + 1) * (iz1 - iz0 + 1);
+    if (cellsInRange > cellCount) {
+      // big query, cheaper to walk the occupied cells
+      for (int c = 0; c < cellCount; c++) {
+        radiusInCell(c, x, y, z, r2, out);
+      }
+      return;
+    }
+    for (int ix = ix0; ix <= ix1; ix++) {
+      for (int iy = iy0; iy <= iy1; iy++) {
+        for (int iz = iz0; iz <= iz1; iz++) {
+          int c = findCell(key(ix, iy, iz));
+          if (c >= 0) {
+            radiusInCell(c, x, y, z, r2, out);
+          }
+        }
+      }
+    }
+  }
+
+  private void radiusInCell(int c, float x, float y, float z, float r2, IntList out) {
+    int n = cellSizes[c];
+    int[] ids = cellIds[c];
+    float[] pos = cellPos[c];
+    for (int i = 0; i < n; i++) {
+      float dx = pos[i*3] - x;
+      float dy = pos[i*3+1] - y;
+      float dz = pos[i*3+2] - z;
+      if (dx*dx + dy*dy + dz*dz <= r2) {
+        out.add(ids[i]);
+      }
+    }
+  }
+
+  /**
+   * append the ids of all items inside the box [min,max] to out
+   */
+  public void queryAabb(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out) {
+    int ix0 = cellCoord(minX), ix1 = cellCoord(maxX);
+    int iy0 = cellCoord(minY), iy1 = cellCoord(maxY);
+    int iz0 = cellCoord(minZ), iz1 = cellCoord(maxZ);
+    long cellsInRange = (long) (ix1 - ix0 + 1) * (iy1 - iy0 + 1) * (iz1 - iz0 + 1);
+    if (cellsInRange > cellCount) {
+      for (int c = 0; c < cellCount; c++) {
+        aabbInCell(c, minX, minY, minZ, maxX, maxY, maxZ, out);
+      }
+      return;
+    }
+    for (int ix = ix0; ix <= ix1; ix++) {
+      for (int iy = iy0; iy <= iy1; iy++) {
+        for (int iz = iz0; iz <= iz1; iz++) {
+          int c = findCell(key(ix, iy, iz));
+          if (c >= 0) {
+            aabbInCell(c, minX, minY, minZ, maxX, maxY, maxZ, out);
+          }
+        }
+      }
+    }
+  }
+
+  private void aabbInCell(int c, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out) {
+    int n = cellSizes[c];
+    int[] ids = cellIds[c];
+    float[] pos = cellPos[c];
+    for (int i = 0; i < n; i++) {
+      float px = pos[i*3], py = pos[i*3+1], pz = pos[i*3+2];
+      if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ) {
+        out.add(ids[i]);
+      }
+    }
+  }
+
+
+  // --- bulk build
+
+  /**
+   * rebuild the grid from scratch with ids 0..n-1 at the given positions
+   *
+   * cell keys are computed in parallel and the items are sorted by cell (parallel sort),
+   * the cells are then filled in one sequential pass so every cell is allocated once at
+   * its final size
+   */
+  public void build(int n, float[] xs, float[] ys, float[] zs) {
+    clear();
+    ensureItemCapacity(n);
+    if (n == 0) {
+      return;
+    }
+    final long[] keys = new long[n];
+    final long[] order = new long[n];
+    IntStream.range(0, n).parallel().forEach(i -> {
+      long k = key(cellCoord(xs[i]), cellCoord(ys[i]), cellCoord(zs[i]));
+      keys[i] = k;
+      // sort by cell hash, ties broken by id - items of a cell end up adjacent
+      order[i] = (long) hash(k) << 32 | i;
+    });
+    Arrays.parallelSort(order);
+
+    // count per cell, a lookup is only needed where the hash changes
+    int[] slotOfItem = new int[n];
+    long prevHash = Long.MIN_VALUE;
+    int prevCell = -1;
+    for (int j = 0; j < n; j++) {
+      int id = (int) order[j];
+      long h = order[j] >> 32;
+      long k = keys[id];
+      int cell = (h == prevHash && cellKeys[prevCell] == k) ? prevCell : findOrCreateCell(k);
+      slotOfItem[j] = cellSizes[cell]++;
+      prevHash = h;
+      prevCell = cell;
+    }
+    for (int c = 0; c < cellCount; c++) {
+      if (cellIds[c].length < cellSizes[c]) {
+        cellIds[c] = new int[cellSizes[c]];
+        cellPos[c] = new float[cellSizes[c] * 3];
+      }
+    }
+    // scatter in sorted order, cells are written front to back
+    for (int j = 0; j < n; j++) {
+      int id = (int) order[j];
+      int cell = findCell(keys[id]);
+      int s = slotOfItem[j];
+      cellIds[cell][s] = id;
+      float[] pos = cellPos[cell];
+      pos[s*3] = xs[id];
+      pos[s*3+1] = ys[id];
+      pos[s*3+2] = zs[id];
+      itemCell[id] = cell;
+      itemSlot[id] = s;
+    }
+    itemCount = n;
+  }
+
+
+  // --- hash table
+
+  private void allocateTable(int capacity) {
+    tableKeys = new long[capacity];
+    tableCells = new int[capacity];
+    tableMask = capacity - 1;
+    Arrays.fill(tableKeys, EMPTY);
+  }
+
+  private int findCell(long key) {
+    int i = hash(key) & tableMask;
+    while (true) {
+      long k = tableKeys[i];
+      if (k == key) {
+        return tableCells[i];
+      }
+      if (k == EMPTY) {
+        return -1;
+      }
+      i = (i + 1) & tableMask;
+    }
+  }
+
+  // slot of a key that is in the table
+  private int tableSlot(long key) {
+    int i = hash(key) & tableMask;
+    while (tableKeys[i] != key) {
+      i = (i + 1) & tableMask;
+    }
+    return i;
+  }
+
+  // linear probing delete, later entries of the probe run shift back into the hole
+  private void deleteKey(long key) {
+    int hole = tableSlot(key);
+    int j = hole;
+    while (true) {
+      j = (j + 1) & tableMask;
+      long k = tableKeys[j];
+      if (k == EMPTY) {
+        break;
+      }
+      int home = hash(k) & tableMask;
+      // k may fill the hole unless its home lies after the hole, cyclically up to j
+      if (((j - home) & tableMask) >= ((j - hole) & tableMask)) {
+        tableKeys[hole] = k;
+        tableCells[hole] = tableCells[j];
+        hole = j;
+      }
+    }
+    tableKeys[hole] = EMPTY;
+  }
+
+  private int findOrCreateCell(long key) {
+    int i = hash(key) & tableMask;
+    while (true) {
+      long k = tableKeys[i];
+      if (k == key) {
+        return tableCells[i];
+      }
+      if (k == EMPTY) {
+        break;
+      }
+      i = (i + 1) & tableMask;
+    }
+    int cell = newCell(key);
+    tableKeys[i] = key;
+    tableCells[i] = cell;
+    // keep the load factor under 1/2
+    if (cellCount * 2 > tableKeys.length) {
+      rehash(tableKeys.length * 2);
+    }
+    return cell;
+  }
+
+  private int newCell(long key) {
+    if (cellCount == cellKeys.length) {
+      int cap = cellCount * 2;
+      cellKeys = Arrays.copyOf(cellKeys, cap);
+      cellIds = Arrays.copyOf(cellIds, cap);
+      cellPos = Arrays.copyOf(cellPos, cap);
+      cellSizes = Arrays.copyOf(cellSizes, cap);
+    }
+    int cell = cellCount++;
+    cellKeys[cell] = key;
+    cellSizes[cell] = 0;
+    // cells are reused after clear(), keep their arrays
+    if (cellIds[cell] == null) {
+      cellIds[cell] = new int[4];
+      cellPos[cell] = new float[12];
+    }
+    return cell;
+  }
+
+  private void rehash(int capacity) {
+    allocateTable(capacity);
+    for (int c = 0; c < cellCount; c++) {
+      int i = hash(cellKeys[c]) & tableMask;
+      while (tableKeys[i] != EMPTY) {
+        i = (i + 1) & tableMask;
+      }
+      tableKeys[i] = cellKeys[c];
+      tableCells[i] = c;
+    }
+  }
+
+  private void ensureItemCapacity(int n) {
+    if (n <= itemCell.length) {
+      return;
+    }
+    int old = itemCell.length;
+    int cap = Math.max(n, old * 2);
+    itemCell = Arrays.copyOf(itemCell, cap);
+    itemSlot = Arrays.copyOf(itemSlot, cap);
+    Arrays.fill(itemCell, old, cap, -1);
+  }
+}
@@ -0,0 +1,107 @@
+package state;
+
+import java.util.Arrays;
+import java.util.List;
+
+import model_loader.SubBlueprint;
+
+/**
+ * CPU-side registry of every blueprint stage the application knows about.
+ *
+ * Each registered {@link SubBlueprint} gets a dense integer id, the same id is used
+ * by the scene instances and by the GPU side storage (MeshArena) so a stage can be
+ * referred to without holding on to the object.
+ *
+ * The stages of a randomized blueprint (rocks, pebbles) are variants rather than growth
+ * steps: an instance placed with any of them is drawn with one of the group picked from
+ * its Variation key, see Scene.variantStage().
+ *
+ * Stages are registered on the render thread (uploads, LOD levels) while the simulation
+ * thread and the draw list workers read. The tables are copied on every registration and
+ * published through a volatile field, a reader sees a complete table without locking and
+ * the ids it already knows never change. Registrations are rare, a few per blueprint.
+ *
+ */
+public class StageLibrary {
+
+  // never modified once published, registration replaces the whole table
+  private static final class Table {
+    final SubBlueprint[] stages;
+    final String[] names;
+    // first stage and stage count of the variant group, count 1 for ordinary stages
+    final int[] variantFirst;
+    final int[] variantCount;
+
+    Table(int size) {
+      stages = new SubBlueprint[size];
+      names = new String[size];
+      variantFirst = new int[size];
+      variantCount = new int[size];
+    }
+
+    Table(Table from, int size) {
+      stages = Arrays.copyOf(from.stages, size);
+      names = Arrays.copyOf(from.names, size);
+      variantFirst = Arrays.copyOf(from.variantFirst, size);
+      variantCount = Arrays.copyOf(from.variantCount, size);
+    }
+  }
+
+  private volatile Table table = new Table(0);
+
+  /**
+   * register all the stages of a blueprint, the stages get consecutive ids
+   *
+   * @return the id of the first stage
+   */
+  public synchronized int registerAll(String name, List<SubBlueprint> bps) {
+    Table old = table;
+    int first = old.stages.length;
+    Table t = new Table(old, first + bps.size());
+    boolean randomized = !bps.isEmpty() && bps.get(0).isRandomized();
+    for (int i = 0; i < bps.size(); i++) {
+      int id = first + i;
+      t.stages[id] = bps.get(i);
+      t.names[id] = name + "#" + i;
+      t.variantFirst[id] = randomized ? first : id;
+      t.variantCount[id] = randomized ? bps.size() : 1;
+    }
+    table = t;
+    return first;
+  }
+
+  public synchronized int register(String name, SubBlueprint stage) {
+    Table old = table;
+    int id = old.stages.length;
+    Table t = new Table(old, id + 1);
+    t.stages[id] = stage;
+    t.names[id] = name;
+    t.variantFirst[id] = id;
+    t.variantCount[id] = 1;
+    table = t;
+    return id;
+  }
+
+  public int variantFirst(int stageId) {
+    return table.variantFirst[stageId];
+  }
+
+  /**
+   * stages an instance of stageId may be drawn with, 1 unless the blueprint is randomized
+   */
+  public int variantCount(int stageId) {
+    return table.variantCount[stageId];
+  }
+
+  public SubBlueprint get(int stageId) {
+    return table.stages[stageId];
+  }
+
+  public String getName(int stageId) {
+    return table.names[stageId];
+  }
+
+  public int size() {
+    return table.stages.length;
+  }
+}
@@ -0,0 +1,113 @@
+package state;
+
+/**
+ * Deterministic per-instance jitter derived from a hash, no per-instance storage.
+ *
+ * The key of an instance hashes the bits of its translation (the last column of the
+ * model matrix) with the seed. gl_InstanceID is only a slot in this frame's visible list,
+ * the translation is in every instance stream already and survives culling, batching and
+ * Scene.remove() reordering, so an instance keeps its look. Moving it does not keep it:
+ * Scene.setTransform() (dragging the selection) changes the key and re-rolls the yaw,
+ * scale, tint and variant stage.
+ *
+ * From the key: a yaw around the model's up axis, a uniform scale and a colour tint, each
+ * within +-jitter. The vertex shaders (mesh, mesh_batch, mesh_gpu) get seed and ranges
+ * through the Camera block and compute the same values in glsl/variation.glsl, keep
+ * hash() and the bit ranges below in sync with it. Randomized blueprints (StageLibrary variants) pick their stage
+ * with pick() in the culling and batching pass.
+ *
+ */
+public final class Variation {
+
+  public static final Variation NONE = new Variation(0, 0f, 0f, 0f);
+
+  // the seed goes to the shaders as a float, 24 bits stay exact
+  private static final int SEED_MASK = 0xffffff;
+
+  private final int seed;
+  private final float yawJitter;
+  private final float scaleJitter;
+  private final float tintJitter;
+
+  /**
+   * @param yawJitter max rotation in radians, PI turns instances all the way round
+   * @param scaleJitter max relative scale change, below 1
+   * @param tintJitter max relative colour change
+   */
+  public Variation(int seed, float yawJitter, float scaleJitter, float tintJitter) {
+    this.seed = seed & SEED_MASK;
+    this.yawJitter = yawJitter;
+    this.scaleJitter = Math.max(0f, Math.min(0.9f, scaleJitter));
+    this.tintJitter = tintJitter;
+  }
+
+  public static Variation defaults() {
+    return new Variation(0x5eed, (float) Math.PI, 0.12f, 0.08f);
+  }
+
+  // lowbias32 integer hash, cheap and well mixed in GLSL as well
+  public static int hash(int x) {
+    x ^= x >>> 16;
+    x *= 0x7feb352d;
+    x ^= x >>> 15;
+    x *= 0x846ca68b;
+    x ^= x >>> 16;
+    return x;
+  }
+
+  /**
+   * key of the instance whose column-major model matrix starts at transforms[offset]
+   */
+  public int key(float[] transforms, int offset) {
+    int h = hash(seed ^ Float.floatToRawIntBits(transforms[offset + 12]));
+    h = hash(h ^ Float.floatToRawIntBits(transforms[offset + 13]));
+    return hash(h ^ Float.floatToRawIntBits(transforms[offset + 14]));
+  }
+
+  // bits 0-15
+  public float yaw(int key) {
+    return ((key & 0xffff) / 65535f * 2f - 1f) * yawJitter;
+  }
+
+  // bits 16-23
+  public float scale(int key) {
+    return 1f + (((key >>> 16) & 0xff) / 255f * 2f - 1f) * scaleJitter;
+  }
+
+  // bits 24-31
+  public float tint(int key) {
+    return 1f + ((key >>> 24) / 255f * 2f - 1f) * tintJitter;
+  }
+
+  /**
+   * one of count choices, rehashed so it doesn't follow the jitter values
+   */
+  public int pick(int key, int count) {
+    return Integer.remainderUnsigned(hash(key ^ 0x9e3779b9), count);
+  }
+
+  /**
+   * the stage drawn for an instance of stageId with this key, a member of the variant
+   * group for randomized blueprints
+   */
+  public int stage(StageLibrary stages, int stageId, int key) {
+    int n = stages.variantCount(stageId);
+    return n == 1 ? stageId : stages.variantFirst(stageId) + pick(key, n);
+  }
+
+  public int getSeed() {
+    return seed;
+  }
+
+  public float getYawJitter() {
+    return yawJitter;
+  }
+
+  public float getScaleJitter() {
+    return scaleJitter;
+  }
+
+  public float getTintJitter() {
+    return tintJitter;
+  }
+}
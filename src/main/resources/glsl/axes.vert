@@ -1,6 +1,14 @@
 #version 330 core
-uniform mat4 uMVP;
-uniform float uLen = 1.0;  // half-length of each axis
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+layout(std140) uniform Object {
+    mat4 uModel;         // scale = half-length of each axis
+    vec4 uGrowth;        // unused here
+};
 
 out vec3 vColor;
 
@@ -31,7 +39,6 @@ const vec3 COL[12] = vec3[12](
 );
 
 void main() {
-    vec3 p = POS[gl_VertexID] * uLen;
     vColor = COL[gl_VertexID];
-    gl_Position = uMVP * vec4(p, 1.0);
+    gl_Position = uViewProj * uModel * vec4(POS[gl_VertexID], 1.0);
 }
@@ -0,0 +1,23 @@
+#version 330 core
+layout(location = 0) in vec3 aPosition;   // world space, merged by ChunkBatcher
+layout(location = 1) in float aWobble;
+layout(location = 2) in vec3 aNormal;     // world space
+layout(location = 3) in vec3 aColor;      // tint applied
+
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+
+out vec3 vNormal;
+out vec3 vColor;
+
+// growth, variation and the model matrix are already in the vertices
+void main() {
+    float wob = aWobble * sin(uTime);
+    gl_Position = uViewProj * vec4(aPosition + vec3(0.0, wob, 0.0), 1.0);
+    vNormal = aNormal;
+    vColor = aColor;
+}
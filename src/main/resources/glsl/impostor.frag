@@ -0,0 +1,19 @@
+#version 330 core
+in vec2 vAtlasUv;
+flat in float vLayer;
+out vec4 fragColor;
+
+uniform sampler2DArray uColorAtlas;
+uniform sampler2DArray uNormalAtlas;
+uniform vec3 uLightDir = normalize(vec3(0.4, 1.0, 0.3));
+
+void main() {
+    vec4 color = texture(uColorAtlas, vec3(vAtlasUv, vLayer));
+    if (color.a < 0.5) {
+        discard;
+    }
+    vec3 n = texture(uNormalAtlas, vec3(vAtlasUv, vLayer)).xyz * 2.0 - 1.0;
+    // same lighting as mesh.frag
+    float ndl = max(dot(normalize(n), normalize(uLightDir)), 0.0);
+    fragColor = vec4(color.rgb * (0.2 + 0.8 * ndl), 1.0);
+}
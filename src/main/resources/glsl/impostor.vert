@@ -0,0 +1,52 @@
+#version 330 core
+// one quad per instance, expanded from gl_VertexID (triangle strip of 4)
+layout(location = 0) in vec4 aCenterRadius;   // world space
+layout(location = 1) in float aLayer;
+
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+
+uniform float uFrames;     // views per side of the atlas
+
+out vec2 vAtlasUv;
+flat out float vLayer;
+
+// upper hemisphere <-> [0,1]^2, same mapping as ImpostorBaker.frameDirection
+vec2 encodeHemiOct(vec3 d) {
+    vec3 a = d / (abs(d.x) + abs(d.y) + abs(d.z));
+    return vec2(a.x + a.z, a.x - a.z) * 0.5 + 0.5;
+}
+
+vec3 decodeHemiOct(vec2 uv) {
+    vec2 f = uv * 2.0 - 1.0;
+    vec3 d = vec3((f.x + f.y) * 0.5, 0.0, (f.x - f.y) * 0.5);
+    d.y = 1.0 - abs(d.x) - abs(d.z);
+    return normalize(d);
+}
+
+void main() {
+    vec2 corner = vec2(gl_VertexID & 1, gl_VertexID >> 1);
+    vec3 center = aCenterRadius.xyz;
+
+    // views only cover the upper hemisphere, looking from below uses the horizon ring
+    vec3 toEye = uEye.xyz - center;
+    toEye.y = max(toEye.y, 0.0);
+    vec3 dir = length(toEye) > 1e-5 ? normalize(toEye) : vec3(0.0, 1.0, 0.0);
+
+    // nearest baked view, the quad uses its basis so the image lines up
+    vec2 frame = floor(encodeHemiOct(dir) * (uFrames - 1.0) + 0.5);
+    vec3 view = decodeHemiOct(frame / (uFrames - 1.0));
+    vec3 right = abs(view.y) > 0.999 ? vec3(1.0, 0.0, 0.0) : normalize(vec3(view.z, 0.0, -view.x));
+    vec3 up = cross(view, right);
+
+    vec2 q = corner * 2.0 - 1.0;
+    vec3 pos = center + (right * q.x + up * q.y) * aCenterRadius.w;
+    gl_Position = uViewProj * vec4(pos, 1.0);
+
+    vAtlasUv = (frame + corner) / uFrames;
+    vLayer = aLayer;
+}
@@ -4,24 +4,36 @@ layout(location = 1) in float aWobble;
 layout(location = 2) in vec3 aNormal;
 layout(location = 3) in vec3 aColor;
 
-uniform mat4 uModel;
-uniform mat4 uViewProj;
-uniform float uTime;       // optional wobble driver
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+layout(std140) uniform Object {
+    mat4 uModel;
+    vec4 uGrowth;          // progress, min scale, max scale
+};
 
 out vec3 vNormal;
 out vec3 vColor;
 
+#include "variation.glsl"
+
 void main() {
+    // growth and jitter scale the stage around its origin (the plant's base)
+    vec3 v = variation(uModel[3].xyz);
+    float growth = mix(uGrowth.y, uGrowth.z, uGrowth.x);
     // simple vertical wobble: scale by attribute (per-vertex) so some verts move more
     float wob = aWobble * sin(uTime);
-    vec3 pos = aPosition + vec3(0.0, wob, 0.0);
+    vec3 pos = rotateY(aPosition * growth * v.y, v.x) + vec3(0.0, wob, 0.0);
 
     gl_Position = uViewProj * uModel * vec4(pos, 1.0);
 
     // normal (no TBN here; if you scale non-uniformly, use normal matrix)
     mat3 normalMat = mat3(uModel);
-    vNormal = normalize(normalMat * aNormal);
+    vNormal = normalize(normalMat * rotateY(aNormal, v.x));
 
-    vColor = aColor; // already in [0..1] if authored that way
+    vColor = aColor * v.z; // already in [0..1] if authored that way
 }
 
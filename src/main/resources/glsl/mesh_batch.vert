@@ -0,0 +1,35 @@
+#version 330 core
+layout(location = 0) in vec3 aPosition;
+layout(location = 1) in float aWobble;
+layout(location = 2) in vec3 aNormal;
+layout(location = 3) in vec3 aColor;
+layout(location = 4) in mat4 aModel;   // per instance (divisor 1), locations 4..7
+layout(location = 8) in vec3 aGrowth;  // per instance: progress, min scale, max scale
+
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+
+out vec3 vNormal;
+out vec3 vColor;
+
+#include "variation.glsl"
+
+// same as mesh.vert, but the model matrix comes from the instance buffer.
+// the indirect command's baseInstance selects the first matrix of each draw
+void main() {
+    vec3 v = variation(aModel[3].xyz);
+    float growth = mix(aGrowth.y, aGrowth.z, aGrowth.x);
+    float wob = aWobble * sin(uTime);
+    vec3 pos = rotateY(aPosition * growth * v.y, v.x) + vec3(0.0, wob, 0.0);
+
+    gl_Position = uViewProj * aModel * vec4(pos, 1.0);
+
+    mat3 normalMat = mat3(aModel);
+    vNormal = normalize(normalMat * rotateY(aNormal, v.x));
+
+    vColor = aColor * v.z;
+}
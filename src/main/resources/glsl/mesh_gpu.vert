@@ -0,0 +1,36 @@
+#version 430 core
+layout(location = 0) in vec3 aPosition;
+layout(location = 1) in float aWobble;
+layout(location = 2) in vec3 aNormal;
+layout(location = 3) in vec3 aColor;
+layout(location = 4) in uint aInstanceId;   // per instance (divisor 1), written by cull.comp
+
+layout(std430, binding = 4) readonly buffer TransformBuffer { mat4 models[]; };
+layout(std430, binding = 5) readonly buffer GrowthBuffer { vec4 growths[]; };   // progress, min, max scale
+
+layout(std140) uniform Camera {
+    mat4 uViewProj;
+    float uTime;           // optional wobble driver
+    vec4 uEye;             // camera position, w unused
+    vec4 uVariation;       // seed, yaw, scale and tint jitter (state.Variation)
+};
+
+out vec3 vNormal;
+out vec3 vColor;
+
+#include "variation.glsl"
+
+void main() {
+    mat4 model = models[aInstanceId];
+    vec4 g = growths[aInstanceId];
+    vec3 v = variation(model[3].xyz);
+    float wob = aWobble * sin(uTime);
+    vec3 pos = rotateY(aPosition * mix(g.y, g.z, g.x) * v.y, v.x) + vec3(0.0, wob, 0.0);
+
+    gl_Position = uViewProj * model * vec4(pos, 1.0);
+
+    mat3 normalMat = mat3(model);
+    vNormal = normalize(normalMat * rotateY(aNormal, v.x));
+
+    vColor = aColor * v.z;
+}
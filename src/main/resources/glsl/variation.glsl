@@ -0,0 +1,33 @@
+// Per-instance variation shared by the mesh vertex shaders, pulled in with
+// #include "variation.glsl" (see graphics.Shader.source) after the Camera block.
+//
+// Same as state.Variation. The key hashes the bits of the translation, so moving an
+// instance (Scene.setTransform, dragging the selection) gives it a new key and re-rolls
+// its yaw, scale and tint.
+
+// lowbias32, state.Variation.hash()
+uint hash(uint x) {
+    x ^= x >> 16;
+    x *= 0x7feb352du;
+    x ^= x >> 15;
+    x *= 0x846ca68bu;
+    x ^= x >> 16;
+    return x;
+}
+
+// yaw, scale, tint
+vec3 variation(vec3 translation) {
+    uint key = hash(uint(uVariation.x) ^ floatBitsToUint(translation.x));
+    key = hash(key ^ floatBitsToUint(translation.y));
+    key = hash(key ^ floatBitsToUint(translation.z));
+    return vec3(
+        (float(key & 0xffffu) / 65535.0 * 2.0 - 1.0) * uVariation.y,
+        1.0 + (float((key >> 16) & 0xffu) / 255.0 * 2.0 - 1.0) * uVariation.z,
+        1.0 + (float(key >> 24) / 255.0 * 2.0 - 1.0) * uVariation.w);
+}
+
+// same direction as JOML's rotateY
+vec3 rotateY(vec3 p, float a) {
+    float c = cos(a), s = sin(a);
+    return vec3(c * p.x + s * p.z, p.y, -s * p.x + c * p.z);
+}
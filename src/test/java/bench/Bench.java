@@ -0,0 +1,441 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import graphics.Camera;
+import graphics.DrawListBuilder;
+import graphics.FrustumCuller;
+import graphics.ImpostorAtlas;
+import graphics.ImpostorBaker;
+import graphics.LodSelector;
+import graphics.OcclusionCuller;
+import graphics.ResolutionController;
+import graphics.SoftwareRenderer;
+import model_loader.SubBlueprint;
+import state.FramePacer;
+import state.IntList;
+import state.Scene;
+import state.ScenePicker;
+import state.SpatialGrid;
+
+/**
+ * headless benchmarks, the first argument names one and the rest go to it
+ *
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=bench.Bench -Dexec.args="frustum 1000000"
+ *
+ * frustum [count], grid, picker [count], drawlist [count], occlusion [side],
+ * software [width height], impostor [blueprint], resolution, pacer [frames]
+ */
+public final class Bench {
+
+  private Bench() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String name = args.length > 0 ? args[0] : "";
+    String[] rest = args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : args;
+    switch (name) {
+      case "frustum" -> frustum(intArg(rest, 0, 1_000_000));
+      case "grid" -> grid();
+      case "picker" -> picker(intArg(rest, 0, 100_000));
+      case "drawlist" -> drawList(intArg(rest, 0, 200_000));
+      case "occlusion" -> occlusion(intArg(rest, 0, 200));
+      case "software" -> software(rest.length > 1 ? intArg(rest, 0, 0) : 1280, rest.length > 1 ? intArg(rest, 1, 0) : 720);
+      case "impostor" -> impostor(rest.length > 0 ? rest[0] : BenchScenes.BANANA_TREE);
+      case "resolution" -> resolution();
+      case "pacer" -> pacer(intArg(rest, 0, 600));
+      default -> System.out.println("frustum | grid | picker | drawlist | occlusion | software | impostor | resolution | pacer");
+    }
+  }
+
+  private static int intArg(String[] args, int index, int fallback) {
+    return args.length > index ? Integer.parseInt(args[index]) : fallback;
+  }
+
+  /** culling over random boxes, single and parallel, prints instances per millisecond */
+  static void frustum(int count) {
+    Random rnd = new Random(1);
+    float[] cx = new float[count], cy = new float[count], cz = new float[count];
+    float[] ex = new float[count], ey = new float[count], ez = new float[count];
+    for (int i = 0; i < count; i++) {
+      cx[i] = rnd.nextFloat() * 400 - 200;
+      cy[i] = rnd.nextFloat() * 4;
+      cz[i] = rnd.nextFloat() * 400 - 200;
+      ex[i] = ey[i] = ez[i] = 0.5f + rnd.nextFloat() * 2;
+    }
+    Camera camera = new Camera(0.3f, -0.2f);
+    camera.setPosition(0, 3, 0);
+    FrustumCuller culler = new FrustumCuller();
+    culler.setViewProj(camera.viewProjMat());
+    int[] out = new int[count];
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    for (boolean par : new boolean[] {false, true}) {
+      culler.setParallel(par);
+      int visible = 0;
+      for (int warm = 0; warm < 50; warm++) {
+        visible = culler.cull(cx, cy, cz, ex, ey, ez, count, out);
+      }
+      final int RUNS = 100;
+      long t0 = System.nanoTime();
+      for (int r = 0; r < RUNS; r++) {
+        visible = culler.cull(cx, cy, cz, ex, ey, ez, count, out);
+      }
+      double ms = (System.nanoTime() - t0) / 1e6 / RUNS;
+      int threads = par ? cores : 1;
+      System.out.printf("%s threads=%d instances=%d visible=%d %.3f ms  %.0f instances/ms  %.0f instances/ms/core \n",
+          par ? "parallel" : "single  ", threads, count, visible, ms, count / ms, count / ms / threads);
+    }
+  }
+
+  /** grid queries and updates, instances spread over a square of ~20 instances per 100 m^2 */
+  static void grid() {
+    for (int n : new int[] {100_000, 1_000_000}) {
+      Random rnd = new Random(7);
+      float side = (float) Math.sqrt(n * 5.0);
+      float[] xs = new float[n], ys = new float[n], zs = new float[n];
+      for (int i = 0; i < n; i++) {
+        xs[i] = rnd.nextFloat() * side;
+        ys[i] = 0;
+        zs[i] = rnd.nextFloat() * side;
+      }
+      SpatialGrid grid = new SpatialGrid(8f);
+      for (int warm = 0; warm < 3; warm++) {
+        grid.build(n, xs, ys, zs);
+      }
+      long t0 = System.nanoTime();
+      grid.build(n, xs, ys, zs);
+      double buildMs = (System.nanoTime() - t0) / 1e6;
+
+      final int QUERIES = 200_000;
+      IntList out = new IntList(1024);
+      long found = 0;
+      for (int pass = 0; pass < 2; pass++) {
+        found = 0;
+        t0 = System.nanoTime();
+        for (int q = 0; q < QUERIES; q++) {
+          out.clear();
+          grid.queryRadius(rnd.nextFloat() * side, 0, rnd.nextFloat() * side, 6f, out);
+          found += out.size();
+        }
+      }
+      double radiusUs = (System.nanoTime() - t0) / 1e3 / QUERIES;
+
+      t0 = System.nanoTime();
+      for (int q = 0; q < QUERIES; q++) {
+        out.clear();
+        float x = rnd.nextFloat() * side, z = rnd.nextFloat() * side;
+        grid.queryAabb(x - 6, -1, z - 6, x + 6, 1, z + 6, out);
+      }
+      double aabbUs = (System.nanoTime() - t0) / 1e3 / QUERIES;
+
+      t0 = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        grid.move(i, xs[i] + rnd.nextFloat() * 4 - 2, 0, zs[i] + rnd.nextFloat() * 4 - 2);
+      }
+      double moveNs = (System.nanoTime() - t0) / (double) n;
+
+      t0 = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        grid.remove(i);
+      }
+      for (int i = 0; i < n; i++) {
+        grid.insert(i, xs[i], ys[i], zs[i]);
+      }
+      double removeInsertNs = (System.nanoTime() - t0) / (double) n;
+
+      System.out.printf("n=%d cells=%d build=%.1f ms radius(r=6)=%.2f us (avg %.1f hits) aabb=%.2f us move=%.0f ns remove+insert=%.0f ns \n",
+          n, grid.cellCount(), buildMs, radiusUs, found / (double) QUERIES, aabbUs, moveNs, removeInsertNs);
+    }
+  }
+
+  /** picker build, refit and pick timings over a field of banana trees */
+  static void picker(int count) throws Exception {
+    Scene scene = BenchScenes.bananaField(count, true);
+    float side = BenchScenes.fieldSide(count);
+    ScenePicker picker = new ScenePicker(scene);
+    long t0 = System.nanoTime();
+    picker.update();
+    System.out.printf("instances=%d build %.1f ms \n", count, (System.nanoTime() - t0) / 1e6);
+
+    scene.setTransform(0, new Matrix4f().translation(side * 0.5f, 0, side * 0.5f));
+    picker.update();
+    System.out.printf("refit %.2f ms \n", picker.getLastUpdateNanos() / 1e6);
+
+    // rays from above the field looking down at an angle
+    Random rnd = new Random(2);
+    final int RUNS = 2000;
+    int hits = 0;
+    long total = 0, worst = 0;
+    for (int r = 0; r < RUNS + 200; r++) {
+      Vector3f origin = new Vector3f(rnd.nextFloat() * side, 30f, rnd.nextFloat() * side);
+      Vector3f dir = new Vector3f(rnd.nextFloat() - 0.5f, -1f, rnd.nextFloat() - 0.5f).normalize();
+      ScenePicker.Hit hit = picker.pick(origin, dir);
+      if (r < 200) {
+        continue;   // warm up
+      }
+      hits += hit != null ? 1 : 0;
+      total += picker.getLastPickNanos();
+      worst = Math.max(worst, picker.getLastPickNanos());
+    }
+    System.out.printf("picks=%d hits=%d avg %.4f ms worst %.4f ms \n", RUNS, hits, total / 1e6 / RUNS, worst / 1e6);
+  }
+
+  /** draw list build times with 1 to 16 threads over a field of banana trees */
+  static void drawList(int count) throws Exception {
+    Scene scene = BenchScenes.bananaField(count, false);
+    float side = BenchScenes.fieldSide(count);
+    Camera camera = new Camera(0.3f, -0.2f);
+    camera.setPosition(side * 0.5f, 8, side * 0.5f);
+    float pixelScale = LodSelector.pixelScale(camera, 720);
+    System.out.printf("instances=%d cores=%d \n", count, Runtime.getRuntime().availableProcessors());
+
+    double[] single = new double[2];
+    for (int threads : new int[] {1, 2, 4, 8, 16}) {
+      for (boolean occlusion : new boolean[] {false, true}) {
+        LodSelector lod = new LodSelector();
+        DrawListBuilder builder = new DrawListBuilder(lod, new OcclusionCuller(320, 180), null, threads);
+        final int WARM = 30, RUNS = 100;
+        long total = 0;
+        int visible = 0;
+        for (int r = 0; r < WARM + RUNS; r++) {
+          builder.begin(scene, null, camera.viewProjMat(), camera.position, pixelScale, occlusion);
+          visible = builder.finish().count;
+          if (r >= WARM) {
+            total += builder.getLastBuildNanos();
+          }
+        }
+        builder.dispose();
+        double ms = total / 1e6 / RUNS;
+        if (threads == 1) {
+          single[occlusion ? 1 : 0] = ms;
+        }
+        System.out.printf("threads=%2d occlusion=%-5b visible=%d %.3f ms speedup %.2fx \n", threads, occlusion,
+            visible, ms, single[occlusion ? 1 : 0] / ms);
+      }
+    }
+  }
+
+  /** occlusion culling of the jungle seen from the edge of the forest */
+  static void occlusion(int side) throws Exception {
+    Scene scene = BenchScenes.jungle(side);
+    Camera camera = new Camera(-0.785f, -0.05f);
+    camera.setPosition(-4, 2, 4);
+    Matrix4f viewProj = camera.viewProjMat();
+    FrustumCuller frustum = new FrustumCuller();
+    frustum.setViewProj(viewProj);
+    OcclusionCuller occlusion = new OcclusionCuller(320, 180);
+    occlusion.setMaxOccluders(96);
+    int[] visible = new int[scene.size()];
+
+    float[] cx = scene.centerX(), cy = scene.centerY(), cz = scene.centerZ();
+    float[] ex = scene.extentX(), ey = scene.extentY(), ez = scene.extentZ();
+    int frustumVisible = 0, remaining = 0;
+    long testNanos = 0;
+    for (int frame = 0; frame < 60; frame++) {
+      frustumVisible = frustum.cull(scene, visible);
+      occlusion.render(scene, viewProj, camera.position, visible, frustumVisible);
+      long t0 = System.nanoTime();
+      remaining = 0;
+      for (int k = 0; k < frustumVisible; k++) {
+        int i = visible[k];
+        remaining += occlusion.isOccluded(viewProj, cx[i], cy[i], cz[i], ex[i], ey[i], ez[i]) ? 0 : 1;
+      }
+      testNanos = System.nanoTime() - t0;
+    }
+    System.out.printf("instances=%d frustum=%d occluders=%d (%d triangles) after occlusion=%d raster=%.2f ms test=%.2f ms \n",
+        scene.size(), frustumVisible, occlusion.getOccluderCount(), occlusion.getTriangleCount(),
+        remaining, occlusion.getLastRasterMs(), testNanos / 1e6);
+  }
+
+  /** software frame time per thread count over a grid of banana trees, the last image goes to software.ppm */
+  static void software(int width, int height) throws Exception {
+    Scene scene = BenchScenes.bananaGrid(24);
+    Camera camera = new Camera((float) Math.toRadians(-135), -0.4f);
+    camera.setPosition(-20, 35, -20);
+    camera.setAspect(width, height);
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    SoftwareRenderer last = null;
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      SoftwareRenderer renderer = new SoftwareRenderer(width, height, threads);
+      for (int warm = 0; warm < 10; warm++) {
+        renderer.render(scene, camera);
+      }
+      final int RUNS = 20;
+      long t0 = System.nanoTime();
+      for (int r = 0; r < RUNS; r++) {
+        renderer.render(scene, camera);
+      }
+      double ms = (System.nanoTime() - t0) / 1e6 / RUNS;
+      System.out.printf("threads=%d %dx%d triangles=%d %.2f ms/frame \n",
+          threads, width, height, renderer.getTriangles(), ms);
+      if (last != null) {
+        last.dispose();
+      }
+      last = renderer;
+    }
+    last.writePpm(Paths.get("software.ppm"));
+    last.dispose();
+  }
+
+  /** bakes every stage of a blueprint and writes the colour atlases to impostor_stage<n>.ppm */
+  static void impostor(String blueprint) throws Exception {
+    ImpostorBaker baker = new ImpostorBaker(8, 32, Paths.get("./impostor-cache"));
+    List<SubBlueprint> bps = BenchScenes.load(blueprint);
+    for (int s = 0; s < bps.size(); s++) {
+      ImpostorAtlas atlas = baker.bakeCached(bps.get(s).getFullModelData());
+      writePpm(atlas, Paths.get(String.format("impostor_stage%d.ppm", s)));
+    }
+    System.out.printf("%d stages, %d baked in %.1f ms, %d from cache \n",
+        bps.size(), baker.getBaked(), baker.getBakeNanos() / 1e6, baker.getHits());
+  }
+
+  // colour on white, top row first
+  private static void writePpm(ImpostorAtlas atlas, Path file) throws IOException {
+    int size = atlas.size();
+    byte[] rgb = new byte[size * size * 3];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        int src = ((size - 1 - y) * size + x) * 4;
+        int dst = (y * size + x) * 3;
+        boolean covered = atlas.color[src+3] != 0;
+        for (int k = 0; k < 3; k++) {
+          rgb[dst+k] = covered ? atlas.color[src+k] : (byte) 255;
+        }
+      }
+    }
+    try (OutputStream out = Files.newOutputStream(file)) {
+      out.write(String.format("P6\n%d %d\n255\n", size, size).getBytes());
+      out.write(rgb);
+    }
+  }
+
+  /**
+   * frame time, scale and samples against a GPU cost model: a fixed part plus a part per
+   * pixel that grows with the sample count, and a load that rises, peaks and falls back
+   */
+  static void resolution() {
+    // aim a bit below the 60 Hz frame so the noise stays inside it
+    long frame = 1_000_000_000L / 60;
+    long target = frame * 9 / 10;
+    ResolutionController c = new ResolutionController(target, 4);
+    Random rnd = new Random(1);
+    int frames = 1800;
+    int over = 0;
+    double sum = 0, sumSq = 0;
+    for (int f = 0; f < frames; f++) {
+      // ms at full scale without MSAA: light, heavy from 300, very heavy from 900, light from 1350
+      double load = f < 300 ? 8 : f < 900 ? 18 : f < 1350 ? 30 : 8;
+      double msaa = c.getSamples() == 0 ? 1 : c.getSamples() == 2 ? 1.3 : 1.6;
+      double pixels = c.getScale() * c.getScale();
+      double gpu = (1.5 + load * pixels * msaa) * (1 + rnd.nextGaussian() * 0.04);
+      long gpuNanos = (long) (gpu * 1e6);
+      c.update(4_000_000, gpuNanos);
+      if (f >= 60) {
+        over += gpuNanos > frame ? 1 : 0;
+        sum += gpu;
+        sumSq += gpu * gpu;
+      }
+      if (f % 60 == 0) {
+        System.out.printf("frame %4d load %4.1f ms -> gpu %5.2f ms scale %.2f samples %d \n", f, load, gpu,
+            c.getScale(), c.getSamples());
+      }
+    }
+    int n = frames - 60;
+    double mean = sum / n;
+    System.out.printf("target %.2f ms, mean %.2f ms stddev %.2f ms, %d of %d frames over %.2f ms, %d MSAA changes \n",
+        target / 1e6, mean, Math.sqrt(sumSq / n - mean * mean), over, n, frame / 1e6, c.getSamplesChanges());
+  }
+
+  /**
+   * frame intervals at 60 Hz with 2 to 12 ms of work per frame, limited with Thread.sleep(ms)
+   * like the old render loop, with a plain park for the rest of the frame and with the
+   * FramePacer. Prints the mean, the standard deviation and percentiles of the error
+   * against the period.
+   */
+  static void pacer(int frames) {
+    long period = 1_000_000_000L / 60;
+    long[] intervals = new long[frames];
+
+    Random rnd = new Random(1);
+    long last = System.nanoTime();
+    for (int f = 0; f < frames; f++) {
+      long start = System.nanoTime();
+      work(2_000_000 + rnd.nextInt(10_000_000));
+      long sleep = period - (System.nanoTime() - start);
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep / 1_000_000);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      long now = System.nanoTime();
+      intervals[f] = now - last;
+      last = now;
+    }
+    report("sleep", intervals, period);
+
+    rnd = new Random(1);
+    last = System.nanoTime();
+    long next = last;
+    for (int f = 0; f < frames; f++) {
+      work(2_000_000 + rnd.nextInt(10_000_000));
+      next += period;
+      LockSupport.parkNanos(next - System.nanoTime());
+      long now = System.nanoTime();
+      intervals[f] = now - last;
+      last = now;
+    }
+    report("park ", intervals, period);
+
+    rnd = new Random(1);
+    FramePacer pacer = new FramePacer(period);
+    last = pacer.waitNext();
+    for (int f = 0; f < frames; f++) {
+      work(2_000_000 + rnd.nextInt(10_000_000));
+      long now = pacer.waitNext();
+      intervals[f] = now - last;
+      last = now;
+    }
+    report("pacer", intervals, period);
+    System.out.printf("pacer late %d margin %.3f ms \n", pacer.getLate(), pacer.getMarginNanos() / 1e6);
+  }
+
+  private static void report(String name, long[] intervals, long period) {
+    int n = intervals.length;
+    double mean = 0;
+    for (long i : intervals) {
+      mean += i / (double) n;
+    }
+    double var = 0;
+    long[] error = new long[n];
+    for (int k = 0; k < n; k++) {
+      var += (intervals[k] - mean) * (intervals[k] - mean) / (n - 1);
+      error[k] = Math.abs(intervals[k] - period);
+    }
+    Arrays.sort(error);
+    System.out.printf("%s mean %.3f ms stddev %.3f ms, error p50 %.3f p90 %.3f p99 %.3f max %.3f ms \n", name,
+        mean / 1e6, Math.sqrt(var) / 1e6, error[n / 2] / 1e6, error[n * 9 / 10] / 1e6, error[n * 99 / 100] / 1e6,
+        error[n - 1] / 1e6);
+  }
+
+  private static void work(long nanos) {
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+      Thread.onSpinWait();
+    }
+  }
+}
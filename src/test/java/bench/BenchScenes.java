@@ -0,0 +1,94 @@
+package bench;
+
+import java.util.List;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+
+import model_loader.BlueprintLoader;
+import model_loader.MyFile;
+import model_loader.SubBlueprint;
+import state.Scene;
+import state.StageLibrary;
+
+/**
+ * the scenes the benchmarks run over, every one seeded so runs compare
+ */
+final class BenchScenes {
+
+  static final String BANANA_TREE = "43_BananaTree";
+  static final String JUNGLE_TREE = "125_TallJungleTree";
+
+  private BenchScenes() {
+  }
+
+  static List<SubBlueprint> load(String blueprint) throws Exception {
+    return BlueprintLoader.loadBlueprint(new MyFile("blueprints/" + blueprint + ".txt"));
+  }
+
+  /**
+   * count banana trees at random stages spread over a square of about 36 m^2 each,
+   * turned at random when rotate is set
+   */
+  static Scene bananaField(int count, boolean rotate) throws Exception {
+    List<SubBlueprint> bps = load(BANANA_TREE);
+    StageLibrary stages = new StageLibrary();
+    int first = stages.registerAll(BANANA_TREE, bps);
+    Scene scene = new Scene(stages);
+    Random rnd = new Random(1);
+    float side = fieldSide(count);
+    for (int i = 0; i < count; i++) {
+      Matrix4f model = new Matrix4f().translation(rnd.nextFloat() * side, 0, rnd.nextFloat() * side);
+      if (rotate) {
+        model.rotateY(rnd.nextFloat() * 6.28f);
+      }
+      scene.add(first + rnd.nextInt(bps.size()), model);
+    }
+    return scene;
+  }
+
+  /** side of the square bananaField spreads count trees over */
+  static float fieldSide(int count) {
+    return (float) Math.sqrt(count) * 6f;
+  }
+
+  /** a side x side grid of banana trees 10 m apart at random stages, from the origin along +x and +z */
+  static Scene bananaGrid(int side) throws Exception {
+    List<SubBlueprint> bps = load(BANANA_TREE);
+    StageLibrary stages = new StageLibrary();
+    int first = stages.registerAll(BANANA_TREE, bps);
+    Scene scene = new Scene(stages);
+    Random rnd = new Random(1);
+    for (int x = 0; x < side; x++) {
+      for (int z = 0; z < side; z++) {
+        Matrix4f model = new Matrix4f().translation(x * 10f, 0, z * 10f).rotateY(rnd.nextFloat() * 6.28f);
+        scene.add(first + rnd.nextInt(bps.size()), model);
+      }
+    }
+    return scene;
+  }
+
+  /**
+   * a dense side x side jungle of full grown tall jungle trees and banana trees 2.5 m apart,
+   * from the origin along +x and -z
+   */
+  static Scene jungle(int side) throws Exception {
+    StageLibrary stages = new StageLibrary();
+    List<SubBlueprint> jungle = load(JUNGLE_TREE);
+    List<SubBlueprint> banana = load(BANANA_TREE);
+    int jungleTree = stages.registerAll(JUNGLE_TREE, jungle) + jungle.size() - 1;
+    int bananaTree = stages.registerAll(BANANA_TREE, banana) + banana.size() - 1;
+
+    Scene scene = new Scene(stages);
+    Random rnd = new Random(3);
+    for (int i = 0; i < side; i++) {
+      for (int j = 0; j < side; j++) {
+        int stage = rnd.nextInt(3) == 0 ? jungleTree : bananaTree;
+        float x = i * 2.5f + rnd.nextFloat();
+        float z = -j * 2.5f - rnd.nextFloat();
+        scene.add(stage, new Matrix4f().translation(x, 0, z).rotateY(rnd.nextFloat() * 6.28f));
+      }
+    }
+    return scene;
+  }
+}
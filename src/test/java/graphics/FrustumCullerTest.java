@@ -0,0 +1,61 @@
+package graphics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+public class FrustumCullerTest {
+
+  // eye at the origin looking down -z, 90 degree fov, square, near 1 far 100
+  private static FrustumCuller culler() {
+    FrustumCuller culler = new FrustumCuller();
+    culler.setViewProj(new Matrix4f().perspective((float) Math.toRadians(90), 1f, 1f, 100f));
+    return culler;
+  }
+
+  @Test
+  public void boxesAgainstThePlanes() {
+    FrustumCuller culler = culler();
+    assertTrue("in front", culler.isVisible(0f, 0f, -10f, 1f, 1f, 1f));
+    assertFalse("behind", culler.isVisible(0f, 0f, 10f, 1f, 1f, 1f));
+    assertFalse("left of the 45 degree plane", culler.isVisible(-15f, 0f, -10f, 1f, 1f, 1f));
+    assertTrue("straddling the left plane", culler.isVisible(-10.5f, 0f, -10f, 1f, 1f, 1f));
+    assertFalse("past far", culler.isVisible(0f, 0f, -110f, 1f, 1f, 1f));
+    assertTrue("straddling near", culler.isVisible(0f, 0f, -0.5f, 1f, 1f, 1f));
+  }
+
+  @Test
+  public void parallelCullMatchesIsVisibleInOrder() {
+    FrustumCuller culler = culler();
+    int count = 100_000;
+    Random rnd = new Random(3);
+    float[] cx = new float[count], cy = new float[count], cz = new float[count];
+    float[] ex = new float[count], ey = new float[count], ez = new float[count];
+    for (int i = 0; i < count; i++) {
+      cx[i] = rnd.nextFloat() * 200f - 100f;
+      cy[i] = rnd.nextFloat() * 200f - 100f;
+      cz[i] = rnd.nextFloat() * 200f - 100f;
+      ex[i] = ey[i] = ez[i] = rnd.nextFloat() * 2f;
+    }
+    int[] out = new int[count];
+    int n = culler.cull(cx, cy, cz, ex, ey, ez, count, out);
+
+    int expected = 0;
+    for (int i = 0; i < count; i++) {
+      if (culler.isVisible(cx[i], cy[i], cz[i], ex[i], ey[i], ez[i])) {
+        assertEquals(i, out[expected++]);
+      }
+    }
+    assertEquals(expected, n);
+    assertTrue(n > 0 && n < count);
+
+    culler.setParallel(false);
+    int[] sequential = new int[count];
+    assertEquals(n, culler.cull(cx, cy, cz, ex, ey, ez, count, sequential));
+  }
+}
@@ -0,0 +1,86 @@
+package graphics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import model_loader.AABB;
+import model_loader.SubBlueprint;
+import state.Scene;
+import state.StageLibrary;
+
+public class LodSelectorTest {
+
+  private static SubBlueprint box() {
+    return new SubBlueprint(new float[0], new AABB(new Vector3f(-1f), new Vector3f(1f)), new AABB[0], 1f);
+  }
+
+  // one instance 20 units down -z, pixelScale chosen so it projects to px pixels
+  private static float pixelScale(Scene scene, float px) {
+    float size = 2f * Math.max(scene.extentX()[0], Math.max(scene.extentY()[0], scene.extentZ()[0]));
+    return px * 20f / size;
+  }
+
+  @Test
+  public void evictedMiddleLevelFallsBackToCoarser() {
+    StageLibrary stages = new StageLibrary();
+    int base = stages.register("rock", box());
+    int lod1 = stages.register("rock-lod1", box());
+    int lod2 = stages.register("rock-lod2", box());
+    Scene scene = new Scene(stages);
+    scene.add(base, new Matrix4f().translation(0f, 0f, -20f));
+
+    LodSelector lod = new LodSelector();
+    lod.setChain(base, new int[] {base, lod1, lod2});
+    MeshArena arena = MeshArena.unbacked(1024);
+    arena.attach(base, arena.reserve(30), 30);
+    arena.attach(lod2, arena.reserve(6), 6);
+
+    // between the level 1 and level 0 thresholds (32 and 96 pixels)
+    int[] visible = {0};
+    int[] stagesOut = new int[1];
+    int count = lod.select(scene, visible, 1, new Vector3f(), pixelScale(scene, 50f), arena, stagesOut);
+
+    assertEquals("instance dropped", 1, count);
+    assertEquals(lod2, stagesOut[0]);
+    assertEquals(1, lod.getFallbacks());
+    assertEquals(1, lod.getMissingCount());
+    assertEquals(lod1, lod.missing()[0]);
+  }
+
+  @Test
+  public void evictedCoarsestLevelFallsBackToFiner() {
+    StageLibrary stages = new StageLibrary();
+    int base = stages.register("rock", box());
+    int lod1 = stages.register("rock-lod1", box());
+    int lod2 = stages.register("rock-lod2", box());
+    Scene scene = new Scene(stages);
+    scene.add(base, new Matrix4f().translation(0f, 0f, -20f));
+
+    LodSelector lod = new LodSelector();
+    lod.setChain(base, new int[] {base, lod1, lod2});
+    MeshArena arena = MeshArena.unbacked(1024);
+    arena.attach(lod1, arena.reserve(12), 12);
+
+    int[] visible = {0};
+    int[] stagesOut = new int[1];
+    int count = lod.select(scene, visible, 1, new Vector3f(), pixelScale(scene, 10f), arena, stagesOut);
+
+    assertEquals(1, count);
+    assertEquals(lod1, stagesOut[0]);
+  }
+
+  @Test
+  public void everyLevelKnowsItsChain() {
+    LodSelector lod = new LodSelector();
+    int[] chain = {3, 40, 41};
+    lod.setChain(3, chain);
+    for (int id : chain) {
+      assertArrayEquals(chain, lod.chain(id));
+    }
+    assertEquals(null, lod.chain(4));
+  }
+}
@@ -0,0 +1,79 @@
+package graphics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MeshArenaTest {
+
+  private static void add(MeshArena arena, int stage, int vertices) {
+    arena.attach(stage, arena.reserve(vertices), vertices);
+  }
+
+  @Test
+  public void freedRangeIsReused() {
+    MeshArena arena = MeshArena.unbacked(1000);
+    add(arena, 0, 100);
+    add(arena, 1, 200);
+    add(arena, 2, 100);
+    arena.remove(1);
+    assertFalse(arena.isResident(1));
+
+    // first fit, into the hole stage 1 left
+    add(arena, 3, 150);
+    assertEquals(100, arena.first(3));
+    add(arena, 4, 50);
+    assertEquals(250, arena.first(4));
+    // the hole is used up, the next one goes on top
+    add(arena, 5, 10);
+    assertEquals(400, arena.first(5));
+  }
+
+  @Test
+  public void neighbouringFreeRangesMerge() {
+    MeshArena arena = MeshArena.unbacked(1000);
+    add(arena, 0, 100);
+    add(arena, 1, 100);
+    add(arena, 2, 100);
+    add(arena, 3, 100);
+    arena.remove(0);
+    arena.remove(2);
+    arena.remove(1);
+    // 0..300 is one range now
+    add(arena, 4, 300);
+    assertEquals(0, arena.first(4));
+  }
+
+  @Test
+  public void removingTheTopLowersTheHighWaterMark() {
+    MeshArena arena = MeshArena.unbacked(1000);
+    add(arena, 0, 100);
+    add(arena, 1, 100);
+    add(arena, 2, 100);
+    arena.remove(1);
+    arena.remove(2);
+    // the free range below the top goes with it
+    add(arena, 3, 500);
+    assertEquals(100, arena.first(3));
+  }
+
+  @Test
+  public void growsWhenFull() {
+    MeshArena arena = MeshArena.unbacked(100);
+    add(arena, 0, 80);
+    int version = arena.version();
+    add(arena, 1, 80);
+    assertEquals(80, arena.first(1));
+    assertTrue(arena.sizeBytes() >= 160L * Mesh.STRIDE_BYTES);
+    assertTrue(arena.version() > version);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void attachingTwiceFails() {
+    MeshArena arena = MeshArena.unbacked(100);
+    add(arena, 0, 10);
+    add(arena, 0, 10);
+  }
+}
@@ -0,0 +1,71 @@
+package graphics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RenderQueueTest {
+
+  @Test
+  public void radixSortIsOrderedAndStable() {
+    RenderQueue queue = new RenderQueue();
+    Random rnd = new Random(5);
+    int n = 5000;
+    long[] pushed = new long[n];
+    for (int i = 0; i < n; i++) {
+      // few distinct keys so there are plenty of ties, spread over all bytes
+      long key = (long) rnd.nextInt(3) << 60 | (long) rnd.nextInt(4) << 48 | (long) rnd.nextInt(8) << 32
+          | (long) rnd.nextInt(16) << 16;
+      pushed[i] = key;
+      assertEquals(i, queue.push(key));
+    }
+    queue.sort();
+
+    for (int s = 0; s < n; s++) {
+      assertEquals(pushed[queue.sortedItem(s)], queue.sortedKey(s));
+      if (s > 0) {
+        long previous = queue.sortedKey(s - 1);
+        assertTrue(previous <= queue.sortedKey(s));
+        if (previous == queue.sortedKey(s)) {
+          assertTrue("equal keys keep their order", queue.sortedItem(s - 1) < queue.sortedItem(s));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void keysOrderPassShaderMeshAndDepth() {
+    RenderQueue queue = new RenderQueue();
+    queue.setMaxDepth(100f);
+    long opaqueNear = queue.key(RenderQueue.PASS_OPAQUE, 7, 3, 1f);
+    long opaqueFar = queue.key(RenderQueue.PASS_OPAQUE, 7, 3, 50f);
+    long transparentNear = queue.key(RenderQueue.PASS_TRANSPARENT, 7, 3, 1f);
+    long transparentFar = queue.key(RenderQueue.PASS_TRANSPARENT, 7, 3, 50f);
+    long overlay = queue.key(RenderQueue.PASS_OVERLAY, 1, 1, 0f);
+
+    assertTrue("opaque front to back", opaqueNear < opaqueFar);
+    assertTrue("transparent back to front", transparentFar < transparentNear);
+    assertTrue(opaqueFar < transparentFar);
+    assertTrue(transparentNear < overlay);
+    // the shader outweighs the mesh, the mesh the depth
+    assertTrue(queue.key(RenderQueue.PASS_OPAQUE, 6, 9, 99f) < queue.key(RenderQueue.PASS_OPAQUE, 7, 0, 0f));
+    assertTrue(queue.key(RenderQueue.PASS_OPAQUE, 7, 2, 99f) < queue.key(RenderQueue.PASS_OPAQUE, 7, 3, 0f));
+    // beyond the far plane clamps into the last bucket
+    assertEquals(queue.key(RenderQueue.PASS_OPAQUE, 7, 3, 100f), queue.key(RenderQueue.PASS_OPAQUE, 7, 3, 1e6f));
+  }
+
+  @Test
+  public void sortOfSameKeysKeepsOrder() {
+    RenderQueue queue = new RenderQueue();
+    for (int i = 0; i < 10; i++) {
+      queue.push(42L << 32);
+    }
+    queue.sort();
+    for (int s = 0; s < 10; s++) {
+      assertEquals(s, queue.sortedItem(s));
+    }
+  }
+}
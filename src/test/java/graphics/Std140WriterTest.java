@@ -0,0 +1,68 @@
+package graphics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+public class Std140WriterTest {
+
+  private static ByteBuffer buffer() {
+    // direct like the ring, JOML writes matrices through the address
+    return ByteBuffer.allocateDirect(512).order(ByteOrder.nativeOrder());
+  }
+
+  @Test
+  public void cameraBlockLayout() {
+    ByteBuffer b = buffer();
+    Matrix4f m = new Matrix4f().translation(1f, 2f, 3f);
+    Std140Writer w = new Std140Writer().at(b, 32)
+        .putMat4(m)
+        .putFloat(0.5f)
+        .putVec4(4f, 5f, 6f, 1f)
+        .putVec4(7f, 8f, 9f, 10f);
+
+    assertEquals(Shader.CAMERA_BYTES, w.size());
+    // column-major, the translation is the 4th column
+    assertEquals(1f, b.getFloat(32 + 48), 0f);
+    assertEquals(3f, b.getFloat(32 + 56), 0f);
+    assertEquals(0.5f, b.getFloat(32 + 64), 0f);
+    // the vec4 after a float starts at the next 16 byte boundary
+    assertEquals(4f, b.getFloat(32 + 80), 0f);
+    assertEquals(10f, b.getFloat(32 + 108), 0f);
+  }
+
+  @Test
+  public void scalarPacksIntoTheVec3Slot() {
+    ByteBuffer b = buffer();
+    Std140Writer w = new Std140Writer().at(b, 0)
+        .putFloat(1f)
+        .putVec3(2f, 3f, 4f)
+        .putFloat(5f)
+        .putInt(6);
+
+    assertEquals(1f, b.getFloat(0), 0f);
+    assertEquals(2f, b.getFloat(16), 0f);
+    assertEquals(4f, b.getFloat(24), 0f);
+    assertEquals(5f, b.getFloat(28), 0f);
+    assertEquals(6, b.getInt(32));
+    assertEquals(48, w.size());
+  }
+
+  @Test
+  public void objectBlockFromArray() {
+    ByteBuffer b = buffer();
+    float[] models = new float[32];
+    for (int i = 0; i < models.length; i++) {
+      models[i] = i;
+    }
+    Std140Writer w = new Std140Writer().at(b, 0).putMat4(models, 16).putVec4(0.25f, 0.5f, 1f, 0f);
+    assertEquals(Shader.OBJECT_BYTES, w.size());
+    assertEquals(16f, b.getFloat(0), 0f);
+    assertEquals(31f, b.getFloat(60), 0f);
+    assertEquals(0.5f, b.getFloat(68), 0f);
+  }
+}
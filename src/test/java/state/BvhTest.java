@@ -0,0 +1,105 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BvhTest {
+
+  private static float[] randomBoxes(Random rnd, int n) {
+    float[] b = new float[n * 6];
+    for (int i = 0; i < n; i++) {
+      float x = rnd.nextFloat() * 100f - 50f, y = rnd.nextFloat() * 100f - 50f, z = rnd.nextFloat() * 100f - 50f;
+      float s = 0.2f + rnd.nextFloat() * 2f;
+      b[i*6] = x - s;
+      b[i*6+1] = y - s;
+      b[i*6+2] = z - s;
+      b[i*6+3] = x + s;
+      b[i*6+4] = y + s;
+      b[i*6+5] = z + s;
+    }
+    return b;
+  }
+
+  // entry distance into box p, tMax when missed or farther
+  private static float hitBox(float[] b, int p, float[] ray, float tMax) {
+    float tNear = 0f, tFar = tMax;
+    for (int k = 0; k < 3; k++) {
+      float inv = 1f / ray[3 + k];
+      float t1 = (b[p*6 + k] - ray[k]) * inv, t2 = (b[p*6 + 3 + k] - ray[k]) * inv;
+      tNear = Math.max(tNear, Math.min(t1, t2));
+      tFar = Math.min(tFar, Math.max(t1, t2));
+    }
+    return tNear <= tFar && tNear < tMax ? tNear : tMax;
+  }
+
+  private static float bruteForce(float[] b, int n, float[] ray, float tMax) {
+    for (int p = 0; p < n; p++) {
+      tMax = hitBox(b, p, ray, tMax);
+    }
+    return tMax;
+  }
+
+  // from outside the boxes towards a random point among them
+  private static float[] randomRay(Random rnd) {
+    float ox = rnd.nextFloat() * 200f - 100f, oy = 80f, oz = rnd.nextFloat() * 200f - 100f;
+    float tx = rnd.nextFloat() * 100f - 50f, ty = rnd.nextFloat() * 100f - 50f, tz = rnd.nextFloat() * 100f - 50f;
+    float dx = tx - ox, dy = ty - oy, dz = tz - oz;
+    float len = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+    return new float[] {ox, oy, oz, dx / len, dy / len, dz / len};
+  }
+
+  private static void assertMatches(Bvh bvh, float[] boxes, int n, Random rnd) {
+    int hits = 0;
+    for (int r = 0; r < 500; r++) {
+      float[] ray = randomRay(rnd);
+      float expected = bruteForce(boxes, n, ray, 1000f);
+      float t = bvh.intersect(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], 1000f,
+          (p, tMax) -> hitBox(boxes, p, ray, tMax));
+      assertEquals("ray " + r, expected, t, 1e-4f);
+      hits += expected < 1000f ? 1 : 0;
+    }
+    assertTrue("rays should hit something", hits > 50);
+  }
+
+  @Test
+  public void closestHitMatchesBruteForce() {
+    Random rnd = new Random(17);
+    int n = 2000;
+    float[] boxes = randomBoxes(rnd, n);
+    Bvh bvh = Bvh.build(boxes, n);
+    assertTrue(bvh.getNodeCount() > 1);
+    assertMatches(bvh, boxes, n, rnd);
+  }
+
+  @Test
+  public void refitAfterMoveMatchesBruteForce() {
+    Random rnd = new Random(19);
+    int n = 2000;
+    float[] boxes = randomBoxes(rnd, n);
+    Bvh bvh = Bvh.build(boxes, n);
+    int nodes = bvh.getNodeCount();
+
+    // move every tenth box somewhere else entirely
+    float[] moved = randomBoxes(rnd, n);
+    for (int i = 0; i < n; i += 10) {
+      System.arraycopy(moved, i * 6, boxes, i * 6, 6);
+    }
+    bvh.refit(boxes);
+    assertEquals(nodes, bvh.getNodeCount());
+    assertMatches(bvh, boxes, n, rnd);
+  }
+
+  @Test
+  public void singlePrimitive() {
+    float[] box = {-1f, -1f, -1f, 1f, 1f, 1f};
+    Bvh bvh = Bvh.build(box, 1);
+    float[] hit = {0f, 0f, 10f, 0f, 0f, -1f};
+    assertEquals(9f, bvh.intersect(0f, 0f, 10f, 0f, 0f, -1f, 100f, (p, tMax) -> hitBox(box, p, hit, tMax)), 1e-5f);
+    float[] miss = {5f, 0f, 10f, 0f, 0f, -1f};
+    assertEquals(100f, bvh.intersect(5f, 0f, 10f, 0f, 0f, -1f, 100f, (p, tMax) -> hitBox(box, p, miss, tMax)), 0f);
+  }
+}
@@ -0,0 +1,45 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FramePacerTest {
+
+  @Test
+  public void medianIntervalWithinATenthOfAMillisecond() {
+    long period = 5_000_000;
+    FramePacer pacer = new FramePacer(period);
+    long[] error = new long[41];
+    long last = pacer.waitNext();
+    for (int f = 0; f < error.length; f++) {
+      long now = pacer.waitNext();
+      error[f] = Math.abs(now - last - period);
+      last = now;
+    }
+    Arrays.sort(error);
+    assertTrue("median error " + error[error.length / 2], error[error.length / 2] < 100_000);
+    assertTrue(pacer.getMarginNanos() >= 1_000_000);
+  }
+
+  @Test
+  public void lateFrameRestartsTheSchedule() throws InterruptedException {
+    long period = 5_000_000;
+    FramePacer pacer = new FramePacer(period);
+    pacer.waitNext();
+    pacer.waitNext();
+    Thread.sleep(30);
+    long start = System.nanoTime();
+    long back = pacer.waitNext();
+    // no catching up on the missed frames
+    assertEquals(1, pacer.getLate());
+    assertEquals(0, pacer.getLastWaitNanos());
+    assertTrue(back - start < period);
+    long next = pacer.waitNext();
+    assertTrue("a full period after the late frame", next - back >= period);
+    assertEquals(1, pacer.getLate());
+  }
+}
@@ -0,0 +1,45 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrameStatsTest {
+
+  @Test
+  public void meanAndDeviationOfKnownIntervals() {
+    FrameStats stats = new FrameStats();
+    long[] intervals = {10, 12, 14, 16, 18};
+    for (long i : intervals) {
+      stats.record(i);
+    }
+    assertEquals(5, stats.getFrames());
+    assertEquals(14.0, stats.getMeanNanos(), 1e-9);
+    // sample deviation, sqrt(40 / 4)
+    assertEquals(Math.sqrt(10.0), stats.getStdDevNanos(), 1e-9);
+    assertEquals(18, stats.getLongestNanos());
+
+    stats.resetStats();
+    assertEquals(0, stats.getFrames());
+    assertEquals(0.0, stats.getStdDevNanos(), 0.0);
+    stats.record(5);
+    assertEquals(5.0, stats.getMeanNanos(), 0.0);
+    assertEquals(0.0, stats.getStdDevNanos(), 0.0);
+  }
+
+  @Test
+  public void restartSkipsTheIdleInterval() throws InterruptedException {
+    FrameStats stats = new FrameStats();
+    stats.mark();
+    stats.mark();
+    assertEquals(1, stats.getFrames());
+    stats.restart();
+    Thread.sleep(50);
+    stats.mark();
+    assertEquals("no interval across the restart", 1, stats.getFrames());
+    stats.mark();
+    assertEquals(2, stats.getFrames());
+    assertTrue(stats.getLongestNanos() < 50_000_000L);
+  }
+}
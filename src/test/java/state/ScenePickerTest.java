@@ -0,0 +1,77 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import model_loader.AABB;
+import model_loader.MemorySlot;
+import model_loader.SubBlueprint;
+
+public class ScenePickerTest {
+
+  // a 2x2 quad in the xy plane around the origin, two triangles
+  private static SubBlueprint quad() {
+    float[][] corners = {{-1, -1}, {1, -1}, {1, 1}, {-1, -1}, {1, 1}, {-1, 1}};
+    int f = MemorySlot.VERTEX_FLOAT_COUNT;
+    float[] data = new float[corners.length * f];
+    for (int v = 0; v < corners.length; v++) {
+      data[v*f] = corners[v][0];
+      data[v*f + 1] = corners[v][1];
+    }
+    return new SubBlueprint(data, new AABB(new Vector3f(-1f, -1f, 0f), new Vector3f(1f, 1f, 0f)), new AABB[0], 1f);
+  }
+
+  private static Scene scene(int stage, StageLibrary stages, float... zs) {
+    Scene scene = new Scene(stages);
+    // no jitter, the quads stay where they are put
+    scene.setVariation(Variation.NONE);
+    for (float z : zs) {
+      scene.add(stage, new Matrix4f().translation(0f, 0f, z));
+    }
+    return scene;
+  }
+
+  @Test
+  public void picksTheNearestInstance() {
+    StageLibrary stages = new StageLibrary();
+    int quad = stages.register("quad", quad());
+    Scene scene = scene(quad, stages, -10f, -5f, -20f);
+    ScenePicker picker = new ScenePicker(scene);
+
+    ScenePicker.Hit hit = picker.pick(new Vector3f(0.2f, 0.3f, 0f), new Vector3f(0f, 0f, -1f));
+    assertNotNull(hit);
+    assertEquals(1, hit.instance());
+    assertEquals(5f, hit.distance(), 1e-4f);
+
+    assertNull(picker.pick(new Vector3f(3f, 0f, 0f), new Vector3f(0f, 0f, -1f)));
+    assertNull("all behind the origin", picker.pick(new Vector3f(0f, 0f, 0f), new Vector3f(0f, 0f, 1f)));
+  }
+
+  @Test
+  public void followsAMovedInstance() {
+    StageLibrary stages = new StageLibrary();
+    int quad = stages.register("quad", quad());
+    Scene scene = scene(quad, stages, -10f, -5f, -20f);
+    ScenePicker picker = new ScenePicker(scene);
+    picker.update();
+
+    // instance 2 moves in front of the others, the top level is refit
+    scene.setTransform(2, new Matrix4f().translation(0f, 0f, -2f));
+    ScenePicker.Hit hit = picker.pick(new Vector3f(0f, 0f, 0f), new Vector3f(0f, 0f, -1f));
+    assertNotNull(hit);
+    assertEquals(2, hit.instance());
+    assertEquals(2f, hit.distance(), 1e-4f);
+
+    // and out of the way again
+    scene.setTransform(2, new Matrix4f().translation(50f, 0f, -2f));
+    hit = picker.pick(new Vector3f(0f, 0f, 0f), new Vector3f(0f, 0f, -1f));
+    assertEquals(1, hit.instance());
+    hit = picker.pick(new Vector3f(50f, 0f, 0f), new Vector3f(0f, 0f, -1f));
+    assertEquals(2, hit.instance());
+  }
+}
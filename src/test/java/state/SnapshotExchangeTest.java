@@ -0,0 +1,118 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SnapshotExchangeTest {
+
+  // two copies of the same number, a torn read shows them apart
+  private static final class Value {
+    volatile long a;
+    volatile long b;
+
+    void set(long n) {
+      a = n;
+      b = n;
+    }
+  }
+
+  @Test
+  public void readerGetsTheLatestPublished() {
+    SnapshotExchange<Value> exchange = new SnapshotExchange<>(Value::new);
+    assertFalse(exchange.hasFresh());
+    exchange.back().set(1);
+    exchange.publish();
+    exchange.back().set(2);
+    exchange.publish();
+    assertTrue(exchange.hasFresh());
+
+    Value v = exchange.acquire();
+    assertEquals(2, v.a);
+    assertFalse(exchange.hasFresh());
+    // nothing new, the same value again
+    assertSame(v, exchange.acquire());
+    assertSame(v, exchange.front());
+    assertNotSame(v, exchange.back());
+  }
+
+  @Test
+  public void writerNeverGetsTheReadersSlot() {
+    SnapshotExchange<Value> exchange = new SnapshotExchange<>(Value::new);
+    exchange.back().set(1);
+    exchange.publish();
+    Value front = exchange.acquire();
+    for (int n = 2; n < 10; n++) {
+      assertNotSame(front, exchange.back());
+      exchange.back().set(n);
+      exchange.publish();
+    }
+    assertEquals(1, front.a);
+  }
+
+  @Test
+  public void heldValueStaysUntouched() {
+    SnapshotExchange<Value> exchange = new SnapshotExchange<>(Value::new, 1);
+    exchange.back().set(1);
+    exchange.publish();
+    Value first = exchange.acquire();
+    exchange.back().set(2);
+    exchange.publish();
+    Value second = exchange.acquire();
+    assertEquals(2, second.a);
+
+    // the writer cycles through the free slots, neither of the reader's two
+    for (int n = 3; n < 20; n++) {
+      assertNotSame(first, exchange.back());
+      assertNotSame(second, exchange.back());
+      exchange.back().set(n);
+      exchange.publish();
+    }
+    assertEquals(1, first.a);
+    assertEquals(2, second.a);
+
+    // the next new value releases the oldest
+    Value third = exchange.acquire();
+    assertEquals(19, third.a);
+    assertEquals(2, second.a);
+  }
+
+  @Test
+  public void concurrentHandoffIsNeverTorn() throws InterruptedException {
+    SnapshotExchange<Value> exchange = new SnapshotExchange<>(Value::new, 1);
+    AtomicBoolean running = new AtomicBoolean(true);
+    long count = 200_000;
+    Thread writer = new Thread(() -> {
+      for (long n = 1; n <= count; n++) {
+        Value back = exchange.back();
+        back.a = n;
+        Thread.onSpinWait();
+        back.b = n;
+        exchange.publish();
+      }
+      running.set(false);
+    });
+    writer.start();
+
+    long last = 0;
+    long reads = 0;
+    while (running.get() || exchange.hasFresh()) {
+      Value v = exchange.acquire();
+      long a = v.a;
+      long b = v.b;
+      assertEquals("torn", a, b);
+      assertTrue("went back", a >= last);
+      last = a;
+      reads++;
+    }
+    writer.join();
+    assertEquals(count, exchange.acquire().a);
+    assertTrue(reads > 0);
+  }
+}
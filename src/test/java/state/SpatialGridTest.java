@@ -0,0 +1,140 @@
+package state;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpatialGridTest {
+
+  private static int[] sorted(IntList list) {
+    int[] a = Arrays.copyOf(list.array(), list.size());
+    Arrays.sort(a);
+    return a;
+  }
+
+  // brute force over the points, ids are the indices
+  private static int[] withinRadius(float[] xs, float[] ys, float[] zs, int n, float x, float y, float z, float r) {
+    IntList out = new IntList();
+    for (int i = 0; i < n; i++) {
+      float dx = xs[i] - x, dy = ys[i] - y, dz = zs[i] - z;
+      if (dx*dx + dy*dy + dz*dz <= r * r) {
+        out.add(i);
+      }
+    }
+    return sorted(out);
+  }
+
+  @Test
+  public void queriesMatchBruteForce() {
+    int n = 5000;
+    Random rnd = new Random(7);
+    float[] xs = new float[n], ys = new float[n], zs = new float[n];
+    SpatialGrid grid = new SpatialGrid(4f);
+    for (int i = 0; i < n; i++) {
+      xs[i] = rnd.nextFloat() * 100f - 50f;
+      ys[i] = rnd.nextFloat() * 10f;
+      zs[i] = rnd.nextFloat() * 100f - 50f;
+      grid.insert(i, xs[i], ys[i], zs[i]);
+    }
+    assertEquals(n, grid.size());
+
+    IntList out = new IntList();
+    // small queries walk the cells in range, the last one all occupied cells
+    for (float r : new float[] {0.5f, 3f, 11f, 200f}) {
+      out.clear();
+      grid.queryRadius(5f, 5f, -7f, r, out);
+      assertArrayEquals("r " + r, withinRadius(xs, ys, zs, n, 5f, 5f, -7f, r), sorted(out));
+    }
+
+    out.clear();
+    grid.queryAabb(-10f, 0f, -10f, 10f, 5f, 10f, out);
+    IntList expected = new IntList();
+    for (int i = 0; i < n; i++) {
+      if (xs[i] >= -10f && xs[i] <= 10f && ys[i] >= 0f && ys[i] <= 5f && zs[i] >= -10f && zs[i] <= 10f) {
+        expected.add(i);
+      }
+    }
+    assertArrayEquals(sorted(expected), sorted(out));
+  }
+
+  @Test
+  public void moveAndRemove() {
+    SpatialGrid grid = new SpatialGrid(2f);
+    grid.insert(0, 0f, 0f, 0f);
+    grid.insert(1, 0.5f, 0f, 0f);
+    grid.insert(2, 30f, 0f, 0f);
+
+    grid.move(1, 30.5f, 0f, 0f);
+    IntList out = new IntList();
+    grid.queryRadius(30f, 0f, 0f, 1f, out);
+    assertArrayEquals(new int[] {1, 2}, sorted(out));
+
+    grid.remove(2);
+    assertFalse(grid.contains(2));
+    assertTrue(grid.contains(1));
+    out.clear();
+    grid.queryRadius(30f, 0f, 0f, 1f, out);
+    assertArrayEquals(new int[] {1}, sorted(out));
+    out.clear();
+    grid.queryRadius(0f, 0f, 0f, 1f, out);
+    assertArrayEquals(new int[] {0}, sorted(out));
+  }
+
+  @Test
+  public void emptyCellsAreFreed() {
+    int n = 3000;
+    Random rnd = new Random(5);
+    float[] xs = new float[n], ys = new float[n], zs = new float[n];
+    SpatialGrid grid = new SpatialGrid(2f);
+    for (int i = 0; i < n; i++) {
+      xs[i] = rnd.nextFloat() * 200f;
+      zs[i] = rnd.nextFloat() * 200f;
+      grid.insert(i, xs[i], ys[i], zs[i]);
+    }
+    // everything walks off into a 20 m square, most cells it left are empty
+    for (int i = 0; i < n; i++) {
+      xs[i] = 500f + rnd.nextFloat() * 20f;
+      zs[i] = rnd.nextFloat() * 20f;
+      grid.move(i, xs[i], ys[i], zs[i]);
+    }
+    assertTrue("cells " + grid.cellCount(), grid.cellCount() <= 100);
+
+    IntList out = new IntList();
+    for (float r : new float[] {1f, 7f, 1000f}) {
+      out.clear();
+      grid.queryRadius(510f, 0f, 10f, r, out);
+      assertArrayEquals("r " + r, withinRadius(xs, ys, zs, n, 510f, 0f, 10f, r), sorted(out));
+    }
+    for (int i = 0; i < n; i++) {
+      grid.remove(i);
+    }
+    assertEquals(0, grid.cellCount());
+    out.clear();
+    grid.queryRadius(510f, 0f, 10f, 1000f, out);
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void buildMatchesInserts() {
+    int n = 2000;
+    Random rnd = new Random(11);
+    float[] xs = new float[n], ys = new float[n], zs = new float[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = rnd.nextFloat() * 60f;
+      ys[i] = rnd.nextFloat() * 60f;
+      zs[i] = rnd.nextFloat() * 60f;
+    }
+    SpatialGrid grid = new SpatialGrid(3f);
+    grid.build(n, xs, ys, zs);
+    assertEquals(n, grid.size());
+    IntList out = new IntList();
+    grid.queryRadius(30f, 30f, 30f, 9f, out);
+    assertArrayEquals(withinRadius(xs, ys, zs, n, 30f, 30f, 30f, 9f), sorted(out));
+  }
+}
@@ -0,0 +1,90 @@
+package state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import model_loader.AABB;
+import model_loader.SubBlueprint;
+
+public class VariationTest {
+
+  private static int key(Variation v, Matrix4f m) {
+    return v.key(m.get(new float[16]), 0);
+  }
+
+  @Test
+  public void hashIsLowbias32() {
+    // the GLSL hash() in variation.glsl has to give the same values
+    assertEquals(0, Variation.hash(0));
+    assertEquals(0x688990c0, Variation.hash(1));
+    assertEquals(0x247a23f6, Variation.hash(0x5eed));
+    assertEquals(0xa8f1db88, Variation.hash(123456789));
+  }
+
+  @Test
+  public void keyFollowsTheTranslationOnly() {
+    Variation v = Variation.defaults();
+    Matrix4f m = new Matrix4f().translation(3f, 0f, -7f);
+    int k = key(v, m);
+    assertEquals(k, key(v, new Matrix4f().translation(3f, 0f, -7f).rotateY(1f).scale(2f)));
+    // moving the instance re-rolls it
+    assertNotEquals(k, key(v, new Matrix4f().translation(3.5f, 0f, -7f)));
+    assertNotEquals(k, key(new Variation(1, 1f, 0.1f, 0.1f), m));
+  }
+
+  @Test
+  public void jitterStaysInRange() {
+    Variation v = new Variation(42, 0.5f, 0.2f, 0.1f);
+    float minScale = Float.MAX_VALUE, maxScale = -Float.MAX_VALUE;
+    for (int i = 0; i < 10_000; i++) {
+      int key = Variation.hash(i);
+      float yaw = v.yaw(key), scale = v.scale(key), tint = v.tint(key);
+      assertTrue(Math.abs(yaw) <= 0.5f + 1e-6f);
+      assertTrue(scale >= 0.8f - 1e-6f && scale <= 1.2f + 1e-6f);
+      assertTrue(tint >= 0.9f - 1e-6f && tint <= 1.1f + 1e-6f);
+      minScale = Math.min(minScale, scale);
+      maxScale = Math.max(maxScale, scale);
+    }
+    // and uses it
+    assertTrue(minScale < 0.81f && maxScale > 1.19f);
+
+    int key = Variation.hash(99);
+    assertEquals(0f, Variation.NONE.yaw(key), 0f);
+    assertEquals(1f, Variation.NONE.scale(key), 0f);
+    assertEquals(1f, Variation.NONE.tint(key), 0f);
+  }
+
+  @Test
+  public void randomizedStagesPickEveryVariant() {
+    AABB box = new AABB(new Vector3f(-1f), new Vector3f(1f));
+    StageLibrary stages = new StageLibrary();
+    int plain = stages.register("plain", new SubBlueprint(new float[0], box, new AABB[0], 1f));
+    SubBlueprint[] rocks = new SubBlueprint[4];
+    for (int i = 0; i < rocks.length; i++) {
+      rocks[i] = new SubBlueprint(new float[0], box, new AABB[0], 1f);
+      rocks[i].setRandomized(true);
+    }
+    int first = stages.registerAll("rock", List.of(rocks));
+
+    Variation v = Variation.defaults();
+    int[] counts = new int[rocks.length];
+    for (int i = 0; i < 4000; i++) {
+      int key = Variation.hash(i * 31 + 7);
+      assertEquals(plain, v.stage(stages, plain, key));
+      // any stage of the group picks from the whole group
+      int stage = v.stage(stages, first + 2, key);
+      assertEquals(stage, v.stage(stages, first, key));
+      counts[stage - first]++;
+    }
+    for (int c : counts) {
+      assertTrue("roughly even " + c, c > 800 && c < 1200);
+    }
+  }
+}